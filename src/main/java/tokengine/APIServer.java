@@ -16,7 +16,12 @@ import io.javalin.openapi.JsonSchemaResource;
 import io.javalin.openapi.plugin.DefinitionConfiguration;
 import io.javalin.openapi.plugin.OpenApiPlugin;
 import io.javalin.openapi.plugin.swagger.SwaggerPlugin;
+import tokengine.api.EventsAPI;
 import tokengine.api.RestAPI;
+import tokengine.exception.AdapterUnavailableException;
+import tokengine.exception.DuplicateRequestException;
+import tokengine.exception.StandbyException;
+import tokengine.exception.UnauthorisedException;
 
 public class APIServer {
 	
@@ -30,12 +35,17 @@ public class APIServer {
 	// Endpoint sets
 	private WebApp webApp;
 	private RestAPI api;
+	private EventsAPI events;
+	
+	/** Context attribute used to record request start time */
+	private static final String START_ATTR="tokengine.start";
 
 	public APIServer(Engine engine) {
 		
 		this.engine=engine;
 		webApp=new WebApp(engine);
 		api=new RestAPI(engine);
+		events=new EventsAPI(engine);
 	}
 
 	/**
@@ -113,6 +123,29 @@ public class APIServer {
 			config.useVirtualThreads=true;
 		});
 
+		app.exception(AdapterUnavailableException.class, (e, ctx) -> {
+			long retrySecs=Math.max(1, (e.getRetryAfterMillis()+999)/1000);
+			ctx.header("Retry-After", Long.toString(retrySecs));
+			ctx.result(e.getMessage());
+			ctx.status(503);
+		});
+		
+		app.exception(StandbyException.class, (e, ctx) -> {
+			ctx.result(e.getMessage());
+			ctx.status(503);
+		});
+		
+		app.exception(UnauthorisedException.class, (e, ctx) -> {
+			ctx.result(e.getMessage());
+			ctx.status(401);
+		});
+		
+		app.exception(DuplicateRequestException.class, (e, ctx) -> {
+			ctx.header("Retry-After", "1");
+			ctx.result(e.getMessage());
+			ctx.status(409);
+		});
+		
 		app.exception(Exception.class, (e, ctx) -> {
 			e.printStackTrace();
 			String message = "Unexpected error: " + e;
@@ -129,6 +162,22 @@ public class APIServer {
 			ctx.header("vary","Origin, Access-Control-Request-Headers");
 		});
 		
+		// Request timing for metrics, keyed by endpoint path rather than raw path to bound cardinality
+		app.beforeMatched(ctx->{
+			ctx.attribute(START_ATTR, System.nanoTime());
+		});
+		app.afterMatched(ctx->{
+			Long start=ctx.attribute(START_ATTR);
+			if (start==null) return;
+			engine.getMetrics().recordRequest(ctx.method().name(), ctx.endpointHandlerPath(), ctx.statusCode(), System.nanoTime()-start);
+		});
+		
+		// Prometheus scrape endpoint
+		app.get("/metrics", ctx->{
+			ctx.contentType(Metrics.CONTENT_TYPE);
+			ctx.result(engine.getMetrics().scrape());
+		});
+		
 		// Header to every response
 		app.afterMatched(ctx->{
 			// Reflect CORS origin
@@ -173,6 +222,7 @@ public class APIServer {
 	private void addAPIRoutes(Javalin app) {
 		
 		api.addRoutes(app);
+		events.addRoutes(app);
 		webApp.addRoutes(app);
 	}
 	
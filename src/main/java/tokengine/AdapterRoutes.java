@@ -0,0 +1,81 @@
+package tokengine;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import convex.core.data.AString;
+import tokengine.adapter.AAdapter;
+
+/**
+ * Immutable routing table from network identifiers to adapters. 
+ * 
+ * Maps both CAIP-2 chain IDs and network aliases to adapters, with exact matches checked 
+ * first and then case-normalised matches. Chain IDs take precedence over aliases. A new 
+ * table is built whenever adapters change, so lookups are constant time and need no locking.
+ * 
+ * Token resolution within a network uses the token indexes on each adapter.
+ */
+public final class AdapterRoutes {
+
+	public static final AdapterRoutes EMPTY=new AdapterRoutes(List.of());
+	
+	private final List<AAdapter<?>> adapters;
+	private final Map<AString,AAdapter<?>> exact;
+	private final Map<String,AAdapter<?>> normalised;
+	
+	private AdapterRoutes(Collection<AAdapter<?>> adapterList) {
+		this.adapters=List.copyOf(adapterList);
+		HashMap<AString,AAdapter<?>> ex=new HashMap<>();
+		HashMap<String,AAdapter<?>> norm=new HashMap<>();
+		
+		// Aliases first, so that chain IDs override in case of any clash
+		for (AAdapter<?> a: adapters) {
+			AString alias=a.getAliasField();
+			if (alias==null) continue;
+			ex.put(alias, a);
+			norm.put(normalise(alias), a);
+		}
+		for (AAdapter<?> a: adapters) {
+			AString chainID=a.getChainID();
+			ex.put(chainID, a);
+			norm.put(normalise(chainID), a);
+		}
+		this.exact=Map.copyOf(ex);
+		this.normalised=Map.copyOf(norm);
+	}
+	
+	/**
+	 * Builds a routing table for the given adapters
+	 * @param adapters Adapters to route to
+	 * @return New routing table
+	 */
+	public static AdapterRoutes create(Collection<AAdapter<?>> adapters) {
+		return new AdapterRoutes(adapters);
+	}
+	
+	private static String normalise(AString id) {
+		return id.toString().trim().toLowerCase();
+	}
+	
+	/**
+	 * Gets the adapter for a chain ID or alias
+	 * @param id CAIP-2 chain ID or network alias
+	 * @return Adapter, or null if no match
+	 */
+	public AAdapter<?> get(AString id) {
+		if (id==null) return null;
+		AAdapter<?> a=exact.get(id);
+		if (a!=null) return a;
+		return normalised.get(normalise(id));
+	}
+	
+	/**
+	 * Gets all adapters in this routing table
+	 * @return Immutable list of adapters
+	 */
+	public List<AAdapter<?>> getAdapters() {
+		return adapters;
+	}
+}
@@ -0,0 +1,209 @@
+package tokengine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ACell;
+import convex.core.data.AString;
+import convex.core.data.Blob;
+import convex.core.data.Format;
+import convex.core.data.Hash;
+import convex.core.data.prim.AInteger;
+import convex.core.exceptions.BadFormatException;
+import convex.core.lang.RT;
+import convex.core.util.FileUtils;
+
+/**
+ * Point-in-time checkpoints of the TokEngine lattice, for fast recovery and for cloning environments.
+ *
+ * A checkpoint holds the lattice root hash and the full cell closure of the root, in the multi-cell
+ * encoding compressed with GZIP. Since the lattice is immutable, a checkpoint is taken from a snapshot
+ * of the root without pausing writers. The root hash is checked when a checkpoint is read, so a
+ * damaged file is never restored.
+ *
+ * If "operations.checkpointDir" is configured, checkpoints are written there periodically and the
+ * most recent ones are kept.
+ */
+public class Checkpoints {
+
+	protected static final Logger log=LoggerFactory.getLogger(Checkpoints.class);
+
+	/** File extension for checkpoint files */
+	public static final String EXTENSION=".tkcp";
+
+	/** Default interval between checkpoints in milliseconds */
+	public static final long DEFAULT_INTERVAL=60*60*1000L;
+
+	/** Default number of checkpoint files kept */
+	public static final int DEFAULT_KEEP=24;
+
+	private static final byte[] MAGIC= {'T','K','C','P'};
+	private static final int VERSION=1;
+
+	private static final DateTimeFormatter FILE_TIME=DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+
+	private final Engine engine;
+
+	private File dir=null;
+	private int keep=DEFAULT_KEEP;
+
+	private ScheduledExecutorService scheduler=null;
+
+	Checkpoints(Engine engine) {
+		this.engine=engine;
+	}
+
+	/**
+	 * Starts periodic checkpoints, if "operations.checkpointDir" is configured. The interval is set by
+	 * "operations.checkpointInterval" in milliseconds (0 disables) and the number of files kept by
+	 * "operations.checkpointKeep".
+	 */
+	synchronized void start() {
+		close();
+		AString d=RT.ensureString(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.CHECKPOINT_DIR));
+		if (d==null) return;
+		AInteger i=AInteger.parse(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.CHECKPOINT_INTERVAL));
+		AInteger k=AInteger.parse(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.CHECKPOINT_KEEP));
+		long interval=(i==null)?DEFAULT_INTERVAL:i.longValue();
+		keep=(k==null)?DEFAULT_KEEP:Math.max(1, k.intValue());
+		dir=FileUtils.getFile(d.toString());
+		if (interval<=0) return;
+		scheduler=Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("checkpointer").factory());
+		scheduler.scheduleWithFixedDelay(()->{
+			try {
+				checkpoint();
+			} catch (Exception e) {
+				log.warn("Failed to write checkpoint",e);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops periodic checkpoints
+	 */
+	synchronized void close() {
+		if (scheduler!=null) {
+			scheduler.shutdown(); // don't interrupt a checkpoint being written
+			scheduler=null;
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of the current lattice to the configured checkpoint directory, and removes
+	 * the oldest checkpoints beyond the number kept
+	 * @return Checkpoint file written
+	 * @throws IOException If the checkpoint could not be written
+	 * @throws IllegalStateException If no checkpoint directory is configured
+	 */
+	public File checkpoint() throws IOException {
+		if (dir==null) throw new IllegalStateException("No checkpoint directory configured in operations."+Fields.CHECKPOINT_DIR);
+		File file=new File(dir,"checkpoint-"+FILE_TIME.format(Instant.now())+EXTENSION);
+		Hash hash=checkpoint(file);
+		prune();
+		log.info("Wrote checkpoint "+hash+" to "+file);
+		return file;
+	}
+
+	/**
+	 * Writes a checkpoint of the current lattice to a file. The file is replaced atomically, so a
+	 * partially written checkpoint is never left in its place.
+	 * @param file Destination file
+	 * @return Root hash of the checkpoint
+	 * @throws IOException If the checkpoint could not be written
+	 */
+	public Hash checkpoint(File file) throws IOException {
+		long start=System.nanoTime();
+		ACell root=engine.latticeCursor.get();
+		File parent=file.getAbsoluteFile().getParentFile();
+		Files.createDirectories(parent.toPath());
+		File temp=File.createTempFile("checkpoint", ".tmp", parent);
+		try {
+			Hash hash;
+			try (OutputStream out=Files.newOutputStream(temp.toPath())) {
+				hash=write(root,out);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			engine.metrics.recordCheckpoint(System.nanoTime()-start, file.length());
+			return hash;
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	private void prune() {
+		File[] files=dir.listFiles((d,name)->name.startsWith("checkpoint-")&&name.endsWith(EXTENSION));
+		if ((files==null)||(files.length<=keep)) return;
+		Arrays.sort(files); // timestamped names sort oldest first
+		for (int i=0; i<files.length-keep; i++) {
+			if (!files[i].delete()) log.warn("Unable to delete old checkpoint "+files[i]);
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of a lattice root
+	 * @param root Lattice root
+	 * @param out Output stream, which is not closed
+	 * @return Root hash of the checkpoint
+	 * @throws IOException If writing fails
+	 */
+	public static Hash write(ACell root, OutputStream out) throws IOException {
+		if (root==null) throw new IllegalStateException("No state to checkpoint");
+		Hash hash=root.getHash();
+		Blob encoded=Format.encodeMultiCell(root, true);
+		DataOutputStream dos=new DataOutputStream(out);
+		dos.write(MAGIC);
+		dos.writeByte(VERSION);
+		dos.write(hash.getBytes());
+		GZIPOutputStream gz=new GZIPOutputStream(dos,65536);
+		gz.write(encoded.getBytes());
+		gz.finish();
+		dos.flush();
+		return hash;
+	}
+
+	/**
+	 * Reads a checkpoint, checking that its contents match the root hash
+	 * @param in Input stream
+	 * @return Lattice root
+	 * @throws IOException If the checkpoint is invalid or damaged
+	 */
+	public static ACell read(InputStream in) throws IOException {
+		DataInputStream dis=new DataInputStream(in);
+		byte[] magic=new byte[MAGIC.length];
+		dis.readFully(magic);
+		if (!Arrays.equals(MAGIC, magic)) throw new IOException("Not a TokEngine checkpoint");
+		int version=dis.readUnsignedByte();
+		if (version!=VERSION) throw new IOException("Unsupported checkpoint version: "+version);
+		byte[] hb=new byte[Hash.LENGTH];
+		dis.readFully(hb);
+		Hash expected=Hash.wrap(hb);
+
+		byte[] data=new GZIPInputStream(dis,65536).readAllBytes();
+		ACell root;
+		try {
+			root=Format.decodeMultiCell(Blob.wrap(data));
+		} catch (BadFormatException e) {
+			throw new IOException("Invalid checkpoint encoding",e);
+		}
+		if ((root==null)||!expected.equals(root.getHash())) throw new IOException("Checkpoint content does not match root hash "+expected);
+		return root;
+	}
+}
@@ -1,11 +1,14 @@
 package tokengine;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,11 +45,19 @@ import convex.peer.ConfigException;
 import convex.peer.LaunchException;
 import convex.peer.Server;
 import tokengine.adapter.AAdapter;
+import tokengine.adapter.AdapterCall;
+import tokengine.adapter.Bulkhead;
+import tokengine.adapter.CircuitBreaker;
+import tokengine.adapter.SignatureVerifier;
 import tokengine.adapter.convex.CVMAdapter;
 import tokengine.adapter.evm.EVMAdapter;
 import tokengine.adapter.kafka.Kafka;
+import tokengine.adapter.mock.MockAdapter;
 import tokengine.adapter.tezos.TezosAdapter;
+import tokengine.exception.AdapterUnavailableException;
 import tokengine.exception.PaymentException;
+import tokengine.exception.StandbyException;
+import tokengine.rpc.RPCPool;
 
 /**
  * Engine is the core application class for TokEngine
@@ -55,7 +66,12 @@ import tokengine.exception.PaymentException;
  * :app
  *   "tokengine": app-specific key for tokengine state
  *     "credits": -> User Key -> Token Key (AString, e.g. "CVM") -> Credit balance (AInteger, >=0) 
- *     "receipts": -> Chain ID (AString e.g. "convex:protonet") -> TX ID (Blob, typically the transaction Hash) -> amount
+ *     "receipts": -> Chain ID (AString e.g. "convex:protonet") -> TX ID (Blob, typically the transaction Hash) -> Receipt (amount and time created)
+ *     "transfers": -> Idempotency key (AString) -> Transfer record (see Transfers)
+ *     "reservations": -> Reservation ID (AString) -> Credit held for a payout in progress (see Reservations)
+ *     "results": -> Idempotency key (AString) -> Result of a deposit or payout request (see IdempotencyCache)
+ *   "archive": -> Month (AString e.g. "2026-10") -> Chain ID -> TX ID -> amount, for receipts moved out of the live state (see ReceiptArchive)
+ *   "archiveIndex": -> Month -> Bloom filter (Blob) of the Chain ID and TX ID of each receipt archived in that month
  */
 public class Engine {
 	
@@ -81,6 +97,9 @@ public class Engine {
 	 */
 	final boolean testMode;
 	
+	/** Whether payouts must be authorised by an instruction signed by the source account */
+	final boolean verifyPayouts;
+	
 	final AMap<AString,ACell> config;	
 	
 	private boolean running=false;
@@ -100,15 +119,219 @@ public class Engine {
 	 */
 	ACursor<AMap<AString,ACell>> stateCursor;
 	
-	/** Map of network aliases to adapters instance */
+	/** appCursor tracks the app lattice, holding the TokEngine state and the receipt archive */
+	ACursor<AMap<ACell,ACell>> appCursor;
+	
+	/** Map of chain IDs to adapters instance. Guarded by this Engine, use routes for lookups */
 	protected final Map<AString,AAdapter<?>> adapters=new HashMap<>();
 	
+	/** Routing table for adapter lookup, replaced whenever adapters change */
+	private volatile AdapterRoutes routes=AdapterRoutes.EMPTY;
+	
+	/** Metrics for this engine instance */
+	protected final Metrics metrics=new Metrics();
+	
+	/** Credit held for payouts in progress */
+	protected final Reservations reservations;
+	
+	/** Stored results of deposit and payout requests, for idempotent retries */
+	protected final IdempotencyCache idempotencyCache;
+	
+	/** Used nonces of signed payout instructions */
+	protected final PayoutNonces payoutNonces;
+	
+	/** Persistent transfers, resumed in the background after failures */
+	protected final Transfers transfers;
+	
+	/** Old deposit receipts, moved out of the live state */
+	protected final ReceiptArchive receiptArchive;
+	
+	/** Background writes of the lattice to Etch */
+	protected final StateFlusher stateFlusher;
+	
+	/** Point-in-time checkpoints of the lattice */
+	protected final Checkpoints checkpoints;
+	
+	/** Replication of the lattice to (or from) a hot standby */
+	protected final Replication replication;
+	
+	/** Lock held while writing to Etch */
+	private final Object etchLock=new Object();
+	
 	public Engine(AMap<AString,ACell> config)  {
 		this.config=config;
 		this.testMode=RT.bool(RT.getIn(config,Fields.OPERATIONS, Fields.TEST));
+		ACell verify=RT.getIn(config,Fields.OPERATIONS, Fields.VERIFY_PAYOUTS);
+		this.verifyPayouts=(verify==null)?!testMode:RT.bool(verify);
 		this.latticeCursor=Cursors.of(null);
 		this.stateCursor=latticeCursor.path(Keywords.APP, Fields.TOKENGINE);
+		this.appCursor=latticeCursor.path(Keywords.APP);
+		this.reservations=new Reservations(this);
+		this.idempotencyCache=new IdempotencyCache(this);
+		this.payoutNonces=new PayoutNonces(this);
+		this.transfers=new Transfers(this);
+		this.receiptArchive=new ReceiptArchive(this);
+		this.stateFlusher=new StateFlusher(this);
+		this.checkpoints=new Checkpoints(this);
+		this.replication=new Replication(this);
+		
+		metrics.gauge("tokengine.kafka.queue", this, e->{
+			Kafka k=e.kafka;
+			return (k==null)?0:k.getQueueDepth();
+		});
+		metrics.gauge("tokengine.etch.pending", stateFlusher, f->f.getPendingChanges());
+		metrics.gauge("tokengine.replication.lag", replication, r->r.getLag());
+		metrics.gauge("tokengine.replication.standbys", replication, r->r.getStandbyCount());
+		metrics.gauge("tokengine.signatures.cache.hits", SignatureVerifier.shared(), v->v.getHits());
+		metrics.gauge("tokengine.signatures.cache.misses", SignatureVerifier.shared(), v->v.getMisses());
+		metrics.gauge("tokengine.signatures.cache.size", SignatureVerifier.shared(), v->v.size());
+	}
+	
+	/**
+	 * Gets the metrics for this engine instance
+	 * @return Metrics instance
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Gets the transfer manager for this engine instance
+	 * @return Transfers instance
+	 */
+	public Transfers getTransfers() {
+		return transfers;
+	}
+	
+	/**
+	 * Gets the credit reservations for this engine instance
+	 * @return Reservations instance
+	 */
+	public Reservations getReservations() {
+		return reservations;
+	}
+	
+	/**
+	 * Gets the stored request results for this engine instance
+	 * @return IdempotencyCache instance
+	 */
+	public IdempotencyCache getIdempotencyCache() {
+		return idempotencyCache;
+	}
+	
+	/**
+	 * Gets the checkpoint manager for this engine instance
+	 * @return Checkpoints instance
+	 */
+	public Checkpoints getCheckpoints() {
+		return checkpoints;
+	}
+	
+	/**
+	 * Gets the replication manager for this engine instance
+	 * @return Replication instance
+	 */
+	public Replication getReplication() {
+		return replication;
+	}
+	
+	/**
+	 * Gets the archive of old deposit receipts for this engine instance
+	 * @return ReceiptArchive instance
+	 */
+	public ReceiptArchive getReceiptArchive() {
+		return receiptArchive;
+	}
+	
+	/**
+	 * Calls a DLT adapter, recording latency and errors. All adapter RPC calls should go through here.
+	 * 
+	 * Calls are guarded by the adapter's bulkhead and circuit breaker, so a slow or failing network
+	 * is rejected fast rather than tying up request threads needed by other networks.
+	 * 
+	 * @param <R> Result type
+	 * @param <E> Exception type
+	 * @param adapter Adapter to call
+	 * @param op Operation name for metrics
+	 * @param call Call to make
+	 * @return Result of call
+	 * @throws E If the adapter call fails
+	 * @throws AdapterUnavailableException If the call was rejected without being attempted
+	 */
+	public <R, E extends Exception> R callAdapter(AAdapter<?> adapter, String op, AdapterCall<R,E> call) throws E {
+		String chainID=adapter.getChainID().toString();
+		CircuitBreaker breaker=adapter.getBreaker();
+		if (!breaker.allowRequest()) {
+			metrics.recordRejection(chainID, op, "circuit");
+			throw new AdapterUnavailableException("Network "+chainID+" is unavailable (circuit open)",breaker.getRetryAfterMillis());
+		}
+		Bulkhead bulkhead=adapter.getBulkhead();
+		if (!bulkhead.tryAcquire()) {
+			breaker.onIgnored();
+			metrics.recordRejection(chainID, op, "bulkhead");
+			throw new AdapterUnavailableException("Network "+chainID+" is busy, too many calls in progress",BUSY_RETRY_AFTER);
+		}
 		
+		long start=System.nanoTime();
+		boolean error=true;
+		Tracing.Span span=Tracing.start("adapter."+op).tag("chain", chainID);
+		try {
+			R result=call.call();
+			error=false;
+			breaker.onSuccess();
+			return result;
+		} catch (Exception e) {
+			span.error(e);
+			if (RPCPool.isUpstreamFailure(e)) {
+				breaker.onFailure();
+			} else {
+				breaker.onIgnored();
+			}
+			throw e;
+		} finally {
+			bulkhead.release();
+			span.close();
+			metrics.recordAdapterCall(chainID, op, System.nanoTime()-start, error);
+		}
+	}
+	
+	/** Suggested retry delay when an adapter bulkhead is full */
+	private static final long BUSY_RETRY_AFTER=1000;
+	
+	/**
+	 * Atomically updates the TokEngine state, recording retries caused by contention on the state cursor
+	 * @param updater Update function, which may be called more than once
+	 * @return Updated state
+	 */
+	AMap<AString,ACell> updateState(UnaryOperator<AMap<AString,ACell>> updater) {
+		return update(stateCursor, updater);
+	}
+	
+	/**
+	 * Atomically updates the app lattice, which holds the TokEngine state under "tokengine" alongside the
+	 * receipt archive, so that both can be changed in a single update
+	 * @param updater Update function, which may be called more than once
+	 * @return Updated app lattice
+	 */
+	AMap<ACell,ACell> updateApp(UnaryOperator<AMap<ACell,ACell>> updater) {
+		return update(appCursor, updater);
+	}
+	
+	private <T> T update(ACursor<T> cursor, UnaryOperator<T> updater) {
+		if (replication.isStandby()) throw new StandbyException("TokEngine is a standby and cannot change state until promoted");
+		int[] attempts=new int[1];
+		long start=System.nanoTime();
+		try (Tracing.Span span=Tracing.start("state.update")) {
+			T result=cursor.updateAndGet(state->{
+				attempts[0]++;
+				return updater.apply(state);
+			});
+			span.tag("attempts", attempts[0]);
+			stateFlusher.onChange();
+			return result;
+		} finally {
+			metrics.recordStateUpdate(attempts[0], System.nanoTime()-start);
+		}
 	}
 
 	public synchronized void start() throws Exception {
@@ -121,9 +344,45 @@ public class Engine {
 		
 		startAdapters();	
 		configureAuditService();
+		configureTracing();
+		invalidateStatus();
+		stateFlusher.start();
+		checkpoints.start();
+		replication.start();
+		if (!replication.isStandby()) startWriters();
 		
 		running=true;
 	}
+	
+	/**
+	 * Starts background jobs that change state. A standby only starts these when promoted.
+	 */
+	private void startWriters() {
+		idempotencyCache.start();
+		payoutNonces.start();
+		receiptArchive.start();
+		reservations.start(); // release credit held by payouts interrupted by a previous shutdown
+		transfers.start(); // resume any transfers interrupted by a previous shutdown
+	}
+	
+	/**
+	 * Promotes this standby TokEngine to primary. It stops following its primary, takes its own config into
+	 * the state, and starts accepting state changes. The old primary must already be stopped.
+	 * @return true if promoted, false if this TokEngine is not a standby
+	 */
+	public boolean promote() {
+		// stop the receiver first, which may wait for a delta being applied, without holding the Engine lock
+		if (!replication.promote()) return false;
+		synchronized (this) {
+			if (!config.equals(RT.getIn(stateCursor.get(), Fields.CONFIG))) {
+				updateState(s->s.assoc(Fields.CONFIG, config));
+			}
+			startWriters();
+			invalidateStatus();
+		}
+		log.info("Promoted to primary with state "+latticeCursor.get().getHash());
+		return true;
+	}
 
 	private void loadTokens() {
 		AVector<AMap<AString,ACell>> configTokens=RT.ensureVector(config.get(Fields.TOKENS));
@@ -236,12 +495,9 @@ public class Engine {
 	}
 
 	AString lookupChainID(AString networkAlias) {
-		for (Map.Entry<AString, AAdapter<?>> me: adapters.entrySet()) {
-			AAdapter<?> adapter=me.getValue();
-			if (adapter.getAliasField().equals(networkAlias)) return adapter.getChainID();
-			if (adapter.getChainID().equals(networkAlias)) return networkAlias;
-		}
-		return null;
+		AAdapter<?> adapter=routes.get(networkAlias);
+		if (adapter==null) return null;
+		return adapter.getChainID();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -276,6 +532,13 @@ public class Engine {
 		convex.setKeyPair(kp);
 	}
 
+	private void configureTracing() throws IOException {
+		AString traceFile=RT.ensureString(RT.getIn(config, Fields.OPERATIONS, Fields.TRACE_FILE));
+		if (traceFile==null) return;
+		Tracing.setExporter(new Tracing.FileExporter(Path.of(traceFile.toString())));
+		log.info("Tracing spans to "+traceFile);
+	}
+	
 	private void configureAuditService() {
 		AString kafkaLoc=RT.getIn(config, Fields.OPERATIONS, Fields.KAFKA);
 		this.kafka=new Kafka(kafkaLoc);
@@ -300,12 +563,22 @@ public class Engine {
 		}
 	}
 
-	private void startEtch() throws IOException {
-		// Etch file for Tokengine
+	/**
+	 * Gets the configured Etch file location for TokEngine state
+	 * @param config TokEngine config
+	 * @return Etch file path, or "temp" for a temporary store
+	 */
+	public static AString getEtchFile(AMap<AString,ACell> config) {
 		AString etchFile=RT.ensureString(RT.getIn(config, Fields.OPERATIONS,Fields.ETCH_FILE));
 		if (etchFile==null) {
 			etchFile=Strings.create("~/.tokengine/etch.db");
 		} 
+		return etchFile;
+	}
+	
+	private void startEtch() throws IOException {
+		// Etch file for Tokengine
+		AString etchFile=getEtchFile(config);
 		if ("temp".equals(etchFile.toString())) {
 			etch=EtchStore.createTemp();
 			if (!testMode) {
@@ -333,7 +606,13 @@ public class Engine {
 		persistState();
 	}
 	
-	private AAdapter<?> buildAdapter(AMap<AString, ACell> nc) throws Exception {
+	/**
+	 * Builds the adapter for a network config according to the type of its chain ID
+	 * @param nc Network config
+	 * @return New adapter
+	 * @throws Exception If the adapter can't be built
+	 */
+	AAdapter<?> buildAdapter(AMap<AString, ACell> nc) throws Exception {
 		AString id=RT.ensureString(RT.getIn(nc, Fields.CHAIN_ID));
 		if (id==null) throw new IllegalArgumentException("No chainID in network config: "+nc);
 		String[] caip2=id.toString().split(":");
@@ -341,6 +620,11 @@ public class Engine {
 		if ("convex".equals(type)) return CVMAdapter.build(this,nc);
 		else if ("eip155".equals(type)) return EVMAdapter.build(this,nc);
 		else if ("tezos".equals(type)) return TezosAdapter.build(this,nc);
+		else if ("mock".equals(type)) {
+			// mock deposits are unbacked, so a mock network must stop a real deployment from starting
+			if (!isTest()) throw new Error("Mock network "+id+" is only allowed when operations.test is true");
+			return MockAdapter.build(this,nc);
+		}
 		else throw new IllegalArgumentException("Unrecognised chain type: "+type);
 	}
 
@@ -349,21 +633,51 @@ public class Engine {
 	}
 	
 	public ArrayList<AAdapter<?>> getAdapters() {
-		return new ArrayList<>(adapters.values());
+		return new ArrayList<>(routes.getAdapters());
 	}
 	
 	public ArrayList<Object> getAdapterConfigs() {
 		ArrayList<Object> handlers=new ArrayList<>();
-		for (Map.Entry<AString,AAdapter<?>> me: adapters.entrySet()) {
-			AAdapter<?> adapter=me.getValue();
+		for (AAdapter<?> adapter: routes.getAdapters()) {
 			handlers.add(adapter.getConfig());
 		}
 		return handlers;
 	}
 	
+	// Cached status values, reset whenever adapters change
+	private AVector<ACell> adapterConfigs=null;
+	private AMap<AString,ACell> adapterList=null;
+	private AMap<AString,ACell> status=null;
+	
+	@SuppressWarnings("unchecked")
+	private synchronized AVector<ACell> getAdapterConfigVector() {
+		if (adapterConfigs==null) {
+			adapterConfigs=(AVector<ACell>) Vectors.of(getAdapterConfigs().toArray());
+		}
+		return adapterConfigs;
+	}
+	
+	/**
+	 * Gets a list of installed adapters, as an immutable map with "items" and "count" fields.
+	 * The same instance is returned until adapters change.
+	 * @return Adapter list
+	 */
+	public synchronized AMap<AString,ACell> getAdapterList() {
+		if (adapterList==null) {
+			AVector<ACell> items=getAdapterConfigVector();
+			adapterList=Maps.of(Fields.ITEMS,items,Fields.COUNT,items.count());
+		}
+		return adapterList;
+	}
+	
+	private synchronized void invalidateStatus() {
+		adapterConfigs=null;
+		adapterList=null;
+		status=null;
+	}
+	
 	private void startAdapters() {
-		for (Map.Entry<AString,AAdapter<?>> me: adapters.entrySet()) {
-			AAdapter<?> adapter=me.getValue();
+		for (AAdapter<?> adapter: routes.getAdapters()) {
 			try {
 				adapter.start();
 				log.info("Started adapter: "+adapter);
@@ -373,39 +687,38 @@ public class Engine {
 		}
 	}
 
-	public void addAdapter(AAdapter<?> adapter) {
+	public synchronized void addAdapter(AAdapter<?> adapter) {
 		adapters.put(adapter.getChainID(),adapter);
+		routes=AdapterRoutes.create(adapters.values());
+		invalidateStatus();
 	}
 	
 	/**
-	 * Get adapter for a given chain ID or alias
+	 * Get adapter for a given chain ID or alias. Lookup is case-insensitive if there is no exact match.
 	 * @param chainID or alias
 	 * @return Adapter, or null if not defined
 	 */
 	public AAdapter<?> getAdapter(AString chainID) {
-		AString id=chainID;
-		AAdapter<?> ad= adapters.get(id);
-		if (ad != null) return ad;
-		
-		// If not found by chain ID, try to find by alias
-		for (AAdapter<?> adapter : adapters.values()) {
-			AString alias=adapter.getAliasField();
-			if (alias != null && id.equals(alias)) {
-				return adapter;
-			}
-		}
-		return null;
+		return routes.get(chainID);
 	}
 	
 	public AInteger getBalance(String acct, AString chainID, String token) throws IOException {
 		AAdapter<?> ad=getAdapter(chainID);
 		if (ad==null) throw new IllegalStateException("Chain ID not valid: "+chainID);
-		return ad.getBalance(token, acct);
+		return callAdapter(ad,"getBalance",()->ad.getBalance(token, acct));
 	}
 
 	
 	public synchronized void close() {
 		try {
+			replication.close(); // stop following a primary before the final flush
+			transfers.close();
+			reservations.close();
+			idempotencyCache.close();
+			payoutNonces.close();
+			receiptArchive.close();
+			checkpoints.close();
+			stateFlusher.close(); // waits for any background flush, so the final flush below is the last write
 			if (etch!=null) {
 				try {
 					persistState();
@@ -423,8 +736,10 @@ public class Engine {
 			
 			// shut down audit logging last, just in case
 			if (kafka!=null) kafka.close();
+			if (RT.getIn(config, Fields.OPERATIONS, Fields.TRACE_FILE)!=null) Tracing.setExporter(null);
 		} finally {
 			running=false;
+			invalidateStatus();
 			server=null;
 			convex=null;
 			kafka=null;
@@ -437,14 +752,27 @@ public class Engine {
 		}
 	}
 	
-	private void persistState() throws IOException {
-		etch.setRootData(latticeCursor.get());
-		etch.flush();
+	/**
+	 * Writes the current lattice root to Etch and flushes it. Etch skips cells that are already stored,
+	 * so only cells created since the last flush are written.
+	 * @throws IOException If the write fails
+	 */
+	void persistState() throws IOException {
+		synchronized (etchLock) {
+			EtchStore store=etch;
+			if (store==null) return;
+			long start=System.nanoTime();
+			long before=store.getEtch().getDataLength();
+			try (Tracing.Span span=Tracing.start("etch.flush")) {
+				store.setRootData(latticeCursor.get());
+				store.flush();
+			}
+			metrics.recordFlush(System.nanoTime()-start, store.getEtch().getDataLength()-before);
+		}
 	}
 
 	private void closeAdapters() {
-		for (Map.Entry<AString,AAdapter<?>> me: adapters.entrySet()) {
-			AAdapter<?> adapter=me.getValue();
+		for (AAdapter<?> adapter: routes.getAdapters()) {
 			adapter.close();
 		}
 	}
@@ -461,12 +789,33 @@ public class Engine {
 		return engine;
 	}
 
+	/**
+	 * Gets the status of this TokEngine, including current adapter health (circuit breakers, calls in 
+	 * progress and RPC provider stats)
+	 * @return Status map
+	 */
 	public ACell getStatus() {
+		AMap<AString,ACell> status=getBaseStatus();
+		AVector<ACell> health=Vectors.empty();
+		for (AAdapter<?> adapter: routes.getAdapters()) {
+			health=health.conj(adapter.getHealth());
+		}
+		status=status.assoc(Fields.REPLICATION, replication.getStatus());
+		return status.assoc(Fields.HEALTH, health);
+	}
+	
+	/**
+	 * Gets the static part of the status. The same instance is returned until adapters or the embedded peer change.
+	 * @return Status map
+	 */
+	private synchronized AMap<AString,ACell> getBaseStatus() {
+		if (status!=null) return status;
 		AMap<AString,ACell> status=Maps.empty();
-		status=status.assoc(Fields.ADAPTERS, Vectors.of(getAdapterConfigs().toArray()));
+		status=status.assoc(Fields.ADAPTERS, getAdapterConfigVector());
 		if (server!=null) {
 			status=status.assoc(Fields.LOCAL_CONVEX, Strings.create(server.getHostAddress().toString()));
 		}
+		this.status=status;
 		return status;
 	}
 
@@ -480,6 +829,20 @@ public class Engine {
 	 * @throws IOException
 	 */
 	public AInteger makeDeposit(AAdapter<?> adapter, String token, String address, AMap<AString,ACell> depositProof) throws IOException, PaymentException {
+		return makeDeposit(adapter,token,address,depositProof,null);
+	}
+	
+	/**
+	 * Makes a deposit given a unique deposit proof, applying a further state update atomically with the credit
+	 * @param adapter
+	 * @param token
+	 * @param address Address of user
+	 * @param depositProof
+	 * @param andThen Update applied to the new state given the amount received, or null for none
+	 * @return Integer amount deposited, or null if transaction could not be verified
+	 * @throws IOException
+	 */
+	public AInteger makeDeposit(AAdapter<?> adapter, String token, String address, AMap<AString,ACell> depositProof, BiFunction<AMap<AString,ACell>,AInteger,AMap<AString,ACell>> andThen) throws IOException, PaymentException {
 		AString tokenKey=getTokenKey(adapter,token);
 		if (tokenKey==null) {
 			Set<AString> tokens=adapter.getTokens().keySet();
@@ -490,7 +853,11 @@ public class Engine {
 		AString tx=RT.ensureString(RT.getIn(depositProof, Fields.TX));
 		Blob txID=adapter.parseTransactionID(tx);
 		if (txID==null) throw new IllegalArgumentException("Unable to parse transaction ID: "+tx);
-		AInteger received=adapter.checkTransaction(address,adapter.lookupCAIPAssetID(token).toString(),txID); 
+		long start=System.nanoTime();
+		String assetID=adapter.lookupCAIPAssetID(token).toString();
+		AInteger received=callAdapter(adapter,"checkTransaction",()->adapter.checkTransaction(address,assetID,txID)); 
+		long verified=System.nanoTime();
+		metrics.recordPhase("deposit", "verify", verified-start);
 		if (received==null) {
 			return null; // null = failed to verify
 		} 
@@ -507,10 +874,10 @@ public class Engine {
 		}
 		
 		// We do this atomically, since it needs to update balances and log deposit
-		stateCursor.updateAndGet(state->{
+		AMap<AString,ACell> newState=updateState(state->{
 			AString chainID=adapter.getChainID();
 			ACell existingTx=RT.getIn(state, Fields.RECEIPTS,chainID,txID);
-			if (existingTx!=null) Utils.sneakyThrow(new PaymentException("Deposit already made for transaction "+txID));
+			if ((existingTx!=null)||receiptArchive.contains(chainID, txID)) Utils.sneakyThrow(new PaymentException("Deposit already made for transaction "+txID));
 			
 			AInteger existingBalance=RT.getIn(state, Fields.CREDITS, userKey, tokenKey);
 			if (existingBalance==null) {
@@ -518,9 +885,14 @@ public class Engine {
 			}
 			AInteger newBalance=existingBalance.add(received);
 			state=RT.assocIn(state, newBalance, Fields.CREDITS, userKey, tokenKey);
-			state=RT.assocIn(state, received, Fields.RECEIPTS, chainID,txID);
+			AMap<AString,ACell> receipt=Maps.of(Fields.AMOUNT,received,Fields.CREATED,System.currentTimeMillis());
+			state=RT.assocIn(state, receipt, Fields.RECEIPTS, chainID,txID);
+			if (andThen!=null) state=andThen.apply(state, received);
 			return state;
 		});
+		long updated=System.nanoTime();
+		metrics.recordPhase("deposit", "state", updated-verified);
+		publishEvent("CREDIT",userKey,tokenKey,received,getVirtualCredit(newState,tokenKey,userKey),txID.toString());
 		
 		AMap<AString,ACell> logVal=Maps.of(
 				Fields.TYPE,"CREDIT",
@@ -531,6 +903,7 @@ public class Engine {
 				Fields.TOKEN,adapter.lookupCAIPAssetID(token),
 				Fields.ACCOUNT,userKey);
 		this.postAuditMessage(Engine.getRequest(),logVal);
+		metrics.recordPhase("deposit", "audit", System.nanoTime()-updated);
 		
 		return received; // success case with positive deposit
 	} 
@@ -540,15 +913,35 @@ public class Engine {
 	 */
 	@SuppressWarnings("rawtypes")
 	public AString makePayout(String target, String asset, AAdapter adapter, AInteger quantity, AMap<AString,ACell> depositProof)  {
+		return makePayout(target,asset,adapter,quantity,depositProof,null);
+	}
+	
+	/**
+	 * Handle payout of funds from the operator
+	 * @param onSubmit Called immediately before the payout transaction is sent, after the adapter has accepted
+	 * the call, or null. If an exception is thrown before this is called, no payout was made.
+	 */
+	@SuppressWarnings("rawtypes")
+	public AString makePayout(String target, String asset, AAdapter adapter, AInteger quantity, AMap<AString,ACell> depositProof, Runnable onSubmit)  {
 		try {
-			AInteger operatorBalance = adapter.getOperatorBalance(asset);
+			long start=System.nanoTime();
+			AInteger operatorBalance = callAdapter(adapter,"getOperatorBalance",()->adapter.getOperatorBalance(asset));
+			long checked=System.nanoTime();
+			metrics.recordPhase("payout", "balanceCheck", checked-start);
 
 			if (RT.lt(new ACell[] {operatorBalance,quantity}).booleanValue()) {
 				log.warn("Attempted payout but insufficent operator balance available!");
 				throw new IllegalStateException("Insuffient operator payout balance: "+operatorBalance);
 			}
 			
-			AString r=adapter.payout(asset, quantity, target);
+			// only mark the payout submitted once the breaker and bulkhead have let the call through
+			AString r=callAdapter(adapter,"payout",()->{
+				if (onSubmit!=null) onSubmit.run();
+				return adapter.payout(asset, quantity, target);
+			});
+			long paid=System.nanoTime();
+			metrics.recordPhase("payout", "transfer", paid-checked);
+			publishPayoutEvent(adapter,target,asset,quantity,r);
 
 			AMap<AString,ACell> logVal=Maps.of(
 					Fields.TYPE,"PAYOUT",
@@ -559,25 +952,174 @@ public class Engine {
 					Fields.TOKEN,asset,
 					Fields.ACCOUNT,target);
 			this.postAuditMessage(Engine.getRequest(),logVal);
+			metrics.recordPhase("payout", "audit", System.nanoTime()-paid);
 			
 			return r;
+		} catch (AdapterUnavailableException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new IllegalStateException("Unable to process payout",e);
 		} 
 	}
 	
+	/**
+	 * Checks that a payout is authorised by an instruction signed by the source account. Enabled with
+	 * "operations.verifyPayouts", which defaults to true except in test mode.
+	 * @param adapter Adapter for the source network
+	 * @param req Payout request, with the signed instruction in "deposit"
+	 * @return true if authorised, or if verification is disabled
+	 * @throws IllegalArgumentException If the account or signature is invalid for the network
+	 */
+	public boolean isPayoutAuthorised(AAdapter<?> adapter, AMap<AString,ACell> req) {
+		if (!verifyPayouts) return true;
+		return verifyPayoutInstruction(adapter, req, System.currentTimeMillis());
+	}
+
+	/**
+	 * Verifies the instruction signatures for a batch of payouts together, spread across the SignatureVerifier's
+	 * fork-join pool. Valid signers are cached, so isPayoutAuthorised for each payout afterwards only checks
+	 * the instruction details and nonce. Instructions that can't be checked in a batch, e.g. because they are
+	 * malformed or the account key lookup fails, are left for isPayoutAuthorised to report.
+	 * @param payouts Adapters for the source networks and payout requests
+	 * @return Number of valid signatures
+	 */
+	public int verifyPayoutSignatures(List<Map.Entry<AAdapter<?>,AMap<AString,ACell>>> payouts) {
+		if (!verifyPayouts) return 0;
+		ArrayList<SignatureVerifier.Check> checks=new ArrayList<>();
+		for (Map.Entry<AAdapter<?>,AMap<AString,ACell>> me: payouts) {
+			AMap<AString,ACell> req=me.getValue();
+			AString account=RT.ensureString(RT.getIn(req, Fields.SOURCE, Fields.ACCOUNT));
+			AString msg=RT.ensureString(RT.getIn(req, Fields.DEPOSIT, Fields.MSG));
+			AString sig=RT.ensureString(RT.getIn(req, Fields.DEPOSIT, Fields.SIG));
+			if ((account==null)||(msg==null)||(sig==null)) continue;
+			try {
+				SignatureVerifier.Check check=me.getKey().getInstructionCheck(account.toString(), msg.toString(), sig.toString());
+				if (check!=null) checks.add(check);
+			} catch (RuntimeException e) {
+				log.debug("Payout instruction from "+account+" not checked in batch: "+e.getMessage());
+			}
+		}
+
+		long start=System.nanoTime();
+		boolean[] results=SignatureVerifier.shared().verifyAll(checks);
+		metrics.recordPhase("payouts", "authorise", System.nanoTime()-start);
+		int valid=0;
+		for (boolean ok: results) {
+			if (ok) valid++;
+		}
+		return valid;
+	}
+
+	/**
+	 * Verifies the signed instruction for a payout, and checks that its nonce is unused. The instruction must be
+	 * signed by the source account, must not have expired, and its message must be exactly the one built
+	 * by getPayoutMessage from the request, so it authorises only this payout. The nonce is recorded as used
+	 * when credit is reserved for the payout (see getPayoutNonce).
+	 * @param adapter Adapter for the source network
+	 * @param req Payout request, with the signed instruction in "deposit"
+	 * @param now Current time
+	 * @return true if authorised
+	 * @throws IllegalArgumentException If the account or signature is invalid for the network
+	 */
+	boolean verifyPayoutInstruction(AAdapter<?> adapter, AMap<AString,ACell> req, long now) {
+		if (!adapter.canVerifySignatures()) {
+			log.warn("Payout rejected because signatures can't be verified on "+adapter.getChainID());
+			return false;
+		}
+		AString account=RT.ensureString(RT.getIn(req, Fields.SOURCE, Fields.ACCOUNT));
+		AMap<AString,ACell> instruction=RT.ensureMap(req.get(Fields.DEPOSIT));
+		if ((account==null)||(instruction==null)) return false;
+		AString msg=RT.ensureString(instruction.get(Fields.MSG));
+		AString sig=RT.ensureString(instruction.get(Fields.SIG));
+		AString nonce=RT.ensureString(instruction.get(Fields.NONCE));
+		AInteger expires=AInteger.parse(instruction.get(Fields.EXPIRES));
+		if ((msg==null)||(sig==null)||(nonce==null)||(expires==null)) return false;
+		
+		long exp=expires.longValue();
+		if ((exp<now)||(exp>now+payoutNonces.getWindow())) {
+			log.info("Payout instruction from "+account+" expired or valid for too long: "+exp);
+			return false;
+		}
+		if (!msg.toString().equals(getPayoutMessage(req))) {
+			log.info("Payout instruction from "+account+" does not match payout: "+msg);
+			return false;
+		}
+		
+		long start=System.nanoTime();
+		boolean ok=adapter.verifyInstruction(account.toString(), msg.toString(), sig.toString());
+		metrics.recordPhase("payout", "authorise", System.nanoTime()-start);
+		if (!ok) {
+			log.info("Payout instruction not signed by "+account+" on "+adapter.getChainID());
+			return false;
+		}
+		
+		AString key=getNonceKey(adapter, account, nonce);
+		if (payoutNonces.isUsed(key)) {
+			log.info("Payout instruction nonce already used: "+key);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the nonce of the signed instruction for a payout, to be recorded as used in the same update that
+	 * reserves credit for the payout (see Reservations.reserve)
+	 * @param adapter Adapter for the source network
+	 * @param req Payout request, with the signed instruction in "deposit"
+	 * @return Nonce, or null if verification is disabled
+	 * @throws IllegalArgumentException If the request has no valid instruction nonce
+	 */
+	public PayoutNonces.Nonce getPayoutNonce(AAdapter<?> adapter, AMap<AString,ACell> req) {
+		if (!verifyPayouts) return null;
+		AString account=RT.ensureString(RT.getIn(req, Fields.SOURCE, Fields.ACCOUNT));
+		AString nonce=RT.ensureString(RT.getIn(req, Fields.DEPOSIT, Fields.NONCE));
+		AInteger expires=AInteger.parse(RT.getIn(req, Fields.DEPOSIT, Fields.EXPIRES));
+		if ((account==null)||(nonce==null)||(expires==null)) throw new IllegalArgumentException("Payout instruction requires 'deposit.nonce' and 'deposit.expires'");
+		return new PayoutNonces.Nonce(getNonceKey(adapter, account, nonce), expires.longValue());
+	}
+	
+	static AString getNonceKey(AAdapter<?> adapter, AString account, AString nonce) {
+		return Strings.create(adapter.getChainID()+"/"+adapter.parseAddress(account.toString())+"/"+nonce);
+	}
+	
+	/**
+	 * Builds the message that must be signed to authorise a payout. It includes every detail of the payout,
+	 * a nonce chosen by the client and an expiry time in milliseconds since the epoch, for example:
+	 * 
+	 * "Payout 1000 WCVM from #11 on convex:test to #13 on convex:test as CVM nonce 8f2e expires 1767225600000"
+	 * 
+	 * @param req Payout request
+	 * @return Message, or null if the request is missing a required field
+	 */
+	public static String getPayoutMessage(AMap<AString,ACell> req) {
+		AMap<AString,ACell> src=RT.ensureMap(req.get(Fields.SOURCE));
+		AMap<AString,ACell> dest=RT.ensureMap(req.get(Fields.DESTINATION));
+		AMap<AString,ACell> dep=RT.ensureMap(req.get(Fields.DEPOSIT));
+		if ((src==null)||(dest==null)||(dep==null)) return null;
+		ACell[] parts= {
+			req.get(Fields.QUANTITY), src.get(Fields.TOKEN), src.get(Fields.ACCOUNT), src.get(Fields.NETWORK),
+			dest.get(Fields.ACCOUNT), dest.get(Fields.NETWORK), dest.get(Fields.TOKEN), 
+			dep.get(Fields.NONCE), dep.get(Fields.EXPIRES)
+		};
+		for (ACell part: parts) {
+			if (part==null) return null;
+		}
+		return "Payout "+RT.str(parts[0])+" "+RT.str(parts[1])+" from "+RT.str(parts[2])+" on "+RT.str(parts[3])
+			+" to "+RT.str(parts[4])+" on "+RT.str(parts[5])+" as "+RT.str(parts[6])
+			+" nonce "+RT.str(parts[7])+" expires "+RT.str(parts[8]);
+	}
+	
 	/**
 	 * Get the canonical token Key, as a CAIP-19 full asset type. This should be an index for virtual balances
 	 * @param token Token identifier
 	 * @return AString identifier for the token, or null if not available / defined
 	 */
 	public AString getTokenKey(AAdapter<?> adapter, String token) {
-		AString assetID=adapter.lookupCAIPAssetID(token.trim());
-		if (assetID==null) {
+		AString result=adapter.getTokenKey(token.trim());
+		if (result==null) {
 			log.debug("Couldn't find token: "+token+" on network "+adapter.getChainID());
 			return null;
 		}
-		AString result=adapter.getChainID().append("/").append(assetID);
 		return result;
 	} 
 	
@@ -601,7 +1143,9 @@ public class Engine {
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public boolean postAuditMessage(AString key,AMap message) {
 		if (kafka==null) return false;
-		return kafka.log(key,message);
+		try (Tracing.Span span=Tracing.start("audit.queue")) {
+			return kafka.log(key,message);
+		}
 	}
 	
 	/**
@@ -612,8 +1156,19 @@ public class Engine {
 	 */
 	public synchronized AInteger getVirtualCredit(AString assetKey, AString userKey) {
 		AMap<AString,ACell> state=this.stateCursor.get();
-		
-		// Increment balance in "deposits"-> network ID -> asset ID -> User Key
+		return getVirtualCredit(state,assetKey,userKey);
+	}
+	
+	/**
+	 * Get the virtual credit for a given asset / user pair in a state snapshot. Use this to 
+	 * obtain consistent point-in-time results for multiple queries.
+	 * @param state TokEngine state snapshot, as returned by getStateSnapshot()
+	 * @param assetKey asset key in canonical form
+	 * @param userKey user key in canonical form (i.e. parsed by adapter)
+	 * @return Virtual balance, or null if the asset / user pair has no virtual balance
+	 */
+	public static AInteger getVirtualCredit(ACell state, AString assetKey, AString userKey) {
+		// Balance is in "credits"-> User Key -> Token Key
 		AInteger balance=RT.getIn(state, Fields.CREDITS,userKey,assetKey);
 		return balance;
 	}
@@ -631,7 +1186,8 @@ public class Engine {
 		AInteger current=getVirtualCredit(tokenKey, userKey);
 		if (current==null) current=CVMLong.ZERO;
 		AInteger newBalance=current.add(amount);
-		this.stateCursor.update(state->(AMap<AString,ACell>)RT.assocIn(state, newBalance, Fields.CREDITS,userKey,tokenKey));
+		updateState(state->(AMap<AString,ACell>)RT.assocIn(state, newBalance, Fields.CREDITS,userKey,tokenKey));
+		publishEvent("CREDIT",userKey,tokenKey,amount,newBalance,null);
 		
 		AMap<AString,?> msg=getBaseLogMessage("CREDIT");
 		msg=msg.assoc(Fields.TOKEN,tokenKey);
@@ -649,7 +1205,8 @@ public class Engine {
 		if (current==null) current=CVMLong.ZERO;
 		AInteger newBalance=current.sub(amount);
 		if (newBalance.isNegative()) throw new IllegalArgumentException("Cannot remove more than total credit balance: current="+current+" removed="+amount+ " for user="+userKey);
-		this.stateCursor.update(state->(AMap<AString, ACell>) RT.assocIn(state, newBalance, Fields.CREDITS,userKey,tokenKey));
+		updateState(state->(AMap<AString, ACell>) RT.assocIn(state, newBalance, Fields.CREDITS,userKey,tokenKey));
+		publishEvent("DEBIT",userKey,tokenKey,amount,newBalance,null);
 		
 		AMap<AString,?> msg=getBaseLogMessage("DEBIT");
 		msg=msg.assoc(Fields.TOKEN,tokenKey);
@@ -660,6 +1217,38 @@ public class Engine {
 		return newBalance;
  	}
 	
+	/** Stream of committed credit events for subscribers */
+	protected final EngineEvents events=new EngineEvents(10000);
+	
+	/**
+	 * Gets the stream of committed credit / debit / payout events
+	 * @return Event stream
+	 */
+	public EngineEvents getEvents() {
+		return events;
+	}
+	
+	private void publishPayoutEvent(AAdapter<?> adapter, String target, String asset, AInteger quantity, AString tx) {
+		try {
+			publishEvent("PAYOUT",adapter.parseUserKey(target),getTokenKey(adapter,asset),quantity,null,(tx==null)?null:tx.toString());
+		} catch (Exception e) {
+			// payout has already been made, so never fail here
+			log.warn("Unable to publish payout event",e);
+		}
+	}
+	
+	void publishEvent(String type, AString userKey, AString tokenKey, AInteger amount, AInteger newBalance, String tx) {
+		AMap<AString,ACell> e=Maps.of(
+				Fields.TYPE,type,
+				Fields.USER,userKey,
+				Fields.TOKEN,tokenKey,
+				Fields.AMOUNT,RT.str(amount),
+				Fields.TS,getTimestampString());
+		if (newBalance!=null) e=e.assoc(Fields.NEW_BALANCE, RT.str(newBalance));
+		if (tx!=null) e=e.assoc(Fields.TX, Strings.create(tx));
+		events.publish(e);
+	}
+	
 	/**
 	 * Gets the basic log message for this server
 	 * @param type
@@ -714,11 +1303,21 @@ public class Engine {
 		requestID.set(Blobs.createRandom(16).toCVMHexString());
 	}
 	
+	/**
+	 * Begins a request, starting a trace for the named operation. The request ID is used as the trace ID.
+	 * @param op Operation name
+	 */
+	public static void beginRequest(String op) {
+		beginRequest();
+		Tracing.start("request."+op).tag("request", getRequest().toString());
+	}
+	
 	public static AString getRequest() {
 		return requestID.get();
 	}
 	
 	public static void endRequest() {
+		Tracing.end();
 		requestID.set(null);
 	}
 
@@ -0,0 +1,94 @@
+package tokengine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.prim.CVMLong;
+
+/**
+ * Stream of credit / debit / payout events committed by the Engine.
+ * 
+ * Each event is assigned a monotonically increasing sequence number. A bounded buffer of recent
+ * events is retained so that subscribers can resume from the last sequence number they received.
+ * Sequence numbers are seeded from the clock at startup, so numbers from a previous run are 
+ * always older than the buffer and subscribers will be told to re-sync.
+ */
+public class EngineEvents {
+
+	/**
+	 * An event with its sequence number
+	 * @param seq Sequence number
+	 * @param data Event data, including the "seq" field
+	 */
+	public static record Event(long seq, AMap<AString,ACell> data) {}
+	
+	private final int capacity;
+	private final ArrayDeque<Event> buffer;
+	private final CopyOnWriteArrayList<Consumer<Event>> listeners=new CopyOnWriteArrayList<>();
+	private long nextSeq=System.currentTimeMillis()*1000;
+	
+	public EngineEvents(int capacity) {
+		this.capacity=capacity;
+		this.buffer=new ArrayDeque<>(capacity);
+	}
+	
+	/**
+	 * Publishes an event. Listeners are called synchronously in sequence order, so must not block.
+	 * @param data Event data
+	 * @return Published event
+	 */
+	public synchronized Event publish(AMap<AString,ACell> data) {
+		long seq=nextSeq++;
+		Event e=new Event(seq,data.assoc(Fields.SEQ, CVMLong.create(seq)));
+		if (buffer.size()>=capacity) buffer.removeFirst();
+		buffer.addLast(e);
+		for (Consumer<Event> l: listeners) {
+			l.accept(e);
+		}
+		return e;
+	}
+	
+	/**
+	 * Replays buffered events after the given sequence number. Events are copied under the lock and passed to
+	 * the handler after releasing it, so a handler writing to a slow client doesn't block publishing.
+	 * @param since Last sequence number received by the subscriber
+	 * @param handler Handler for replayed events
+	 * @return True if all events since the sequence number were available, false if some have been dropped from the buffer
+	 */
+	public boolean replay(long since, Consumer<Event> handler) {
+		ArrayList<Event> missed=new ArrayList<>();
+		boolean complete;
+		synchronized (this) {
+			Event first=buffer.peekFirst();
+			complete=(first==null)?(since>=nextSeq-1):(first.seq()<=since+1);
+			for (Event e: buffer) {
+				if (e.seq()>since) missed.add(e);
+			}
+		}
+		for (Event e: missed) {
+			handler.accept(e);
+		}
+		return complete;
+	}
+	
+	/**
+	 * Gets the sequence number of the latest event
+	 * @return Latest sequence number
+	 */
+	public synchronized long getLatestSeq() {
+		return nextSeq-1;
+	}
+	
+	public void addListener(Consumer<Event> listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeListener(Consumer<Event> listener) {
+		listeners.remove(listener);
+	}
+}
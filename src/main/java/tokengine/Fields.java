@@ -7,6 +7,10 @@ public class Fields {
 
 	public static final AString SOURCE = Strings.intern("source");
 	
+	public static final AString SOURCES = Strings.intern("sources");
+	
+	public static final AString PAYOUTS = Strings.intern("payouts");
+	
 	public static final AString NETWORK = Strings.intern("network");
 
 	public static final AString NETWORKS = Strings.intern("networks");
@@ -14,6 +18,8 @@ public class Fields {
 	public static final AString TOKEN = Strings.intern("token");
 	
 	public static final AString ACCOUNT = Strings.intern("account");
+	
+	public static final AString ADDRESS = Strings.intern("address");
 
 	public static final AString DESTINATION = Strings.intern("destination");
 
@@ -41,16 +47,73 @@ public class Fields {
 	public static final AString OPERATIONS = Strings.intern("operations");
 	
 	public static final AString KAFKA = Strings.intern("kafka");
+	public static final AString TRACE_FILE = Strings.intern("traceFile");
+	public static final AString ENDPOINT = Strings.intern("endpoint");
+	public static final AString BODY = Strings.intern("body");
 
 	public static final AString TS = Strings.intern("ts");
 
 	public static final AString AMOUNT = Strings.intern("amount");
 
 	public static final AString NEW_BALANCE = Strings.intern("newBalance");
+	
+	public static final AString BALANCE = Strings.intern("balance");
 
 	public static final AString LOG_TYPE = Strings.intern("type");
 	
 	public static final AString URL = Strings.intern("url");
+	public static final AString TIMEOUT = Strings.intern("timeout");
+	public static final AString RATE_LIMIT = Strings.intern("rateLimit");
+	public static final AString BURST = Strings.intern("burst");
+	public static final AString MAX_RETRIES = Strings.intern("maxRetries");
+	public static final AString HEDGE = Strings.intern("hedge");
+	public static final AString MAX_CONCURRENT = Strings.intern("maxConcurrent");
+	public static final AString BREAKER_THRESHOLD = Strings.intern("breakerThreshold");
+	public static final AString BREAKER_COOLDOWN = Strings.intern("breakerCooldown");
+	public static final AString BATCH_SIZE = Strings.intern("batchSize");
+	public static final AString HEALTH = Strings.intern("health");
+	public static final AString CIRCUIT = Strings.intern("circuit");
+	public static final AString IN_FLIGHT = Strings.intern("inFlight");
+	public static final AString RPC = Strings.intern("rpc");
+	public static final AString STATUS = Strings.intern("status");
+	public static final AString REQUEST = Strings.intern("request");
+	public static final AString CREATED = Strings.intern("created");
+	public static final AString UPDATED = Strings.intern("updated");
+	public static final AString ATTEMPTS = Strings.intern("attempts");
+	public static final AString RESUME_INTERVAL = Strings.intern("resumeInterval");
+	public static final AString RESERVATION = Strings.intern("reservation");
+	public static final AString RESERVATIONS = Strings.intern("reservations");
+	public static final AString RESERVATION_TIMEOUT = Strings.intern("reservationTimeout");
+	public static final AString REASON = Strings.intern("reason");
+	public static final AString RESULTS = Strings.intern("results");
+	public static final AString HASH = Strings.intern("hash");
+	public static final AString IDEMPOTENCY_WINDOW = Strings.intern("idempotencyWindow");
+	public static final AString IDEMPOTENCY_LIMIT = Strings.intern("idempotencyLimit");
+	public static final AString VERIFY_PAYOUTS = Strings.intern("verifyPayouts");
+	public static final AString KEY_CACHE_TTL = Strings.intern("keyCacheTTL");
+	public static final AString NONCE = Strings.intern("nonce");
+	public static final AString NONCES = Strings.intern("nonces");
+	public static final AString EXPIRES = Strings.intern("expires");
+	public static final AString INSTRUCTION_WINDOW = Strings.intern("instructionWindow");
+	public static final AString ARCHIVE = Strings.intern("archive");
+	public static final AString ARCHIVE_INDEX = Strings.intern("archiveIndex");
+	public static final AString RECEIPT_RETENTION = Strings.intern("receiptRetention");
+	public static final AString FLUSH_INTERVAL = Strings.intern("flushInterval");
+	public static final AString FLUSH_CHANGES = Strings.intern("flushChanges");
+	public static final AString CHECKPOINT_DIR = Strings.intern("checkpointDir");
+	public static final AString CHECKPOINT_INTERVAL = Strings.intern("checkpointInterval");
+	public static final AString CHECKPOINT_KEEP = Strings.intern("checkpointKeep");
+	public static final AString REPLICATION = Strings.intern("replication");
+	public static final AString REPLICATION_PORT = Strings.intern("replicationPort");
+	public static final AString REPLICATION_INTERVAL = Strings.intern("replicationInterval");
+	public static final AString REPLICA_OF = Strings.intern("replicaOf");
+	public static final AString REPLICATION_HOST = Strings.intern("replicationHost");
+	public static final AString REPLICATION_SECRET = Strings.intern("replicationSecret");
+	public static final AString WRITER_URL = Strings.intern("writerURL");
+	public static final AString WRITER_TIMEOUT = Strings.intern("writerTimeout");
+	public static final AString ROLE = Strings.intern("role");
+	public static final AString LAG = Strings.intern("lag");
+	public static final AString STANDBYS = Strings.intern("standbys");
 
 	public static final AString SERVER = Strings.intern("server");
 
@@ -98,6 +161,14 @@ public class Fields {
 
 	public static final AString VALUE = Strings.intern("value");
 
+	public static final AString ERROR = Strings.intern("error");
+
+	public static final AString SEQ = Strings.intern("seq");
+
+	public static final AString ITEMS = Strings.intern("items");
+
+	public static final AString COUNT = Strings.intern("count");
+
 
 
 
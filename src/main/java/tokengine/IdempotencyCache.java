@@ -0,0 +1,243 @@
+package tokengine;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Hash;
+import convex.core.data.MapEntry;
+import convex.core.data.Maps;
+import convex.core.data.Strings;
+import convex.core.data.prim.AInteger;
+import convex.core.lang.RT;
+import tokengine.exception.DuplicateRequestException;
+
+/**
+ * Results of requests made with an idempotency key, so that a repeated request returns the original
+ * result instead of being processed again.
+ *
+ * Results are stored in the TokEngine state under "results" -> key, and should be written atomically
+ * with the state change made by the request (see withResult). For requests that are unsafe to repeat
+ * if their outcome is unknown (e.g. payouts), a "pending" record is stored before processing, which
+ * blocks repeats until the request completes or is known to have been abandoned.
+ *
+ * Stored results expire after a time window, and the oldest are removed if there are more than a
+ * configured limit.
+ */
+public class IdempotencyCache {
+
+	protected static final Logger log=LoggerFactory.getLogger(IdempotencyCache.class);
+
+	public static final AString PENDING=Strings.intern("pending");
+	public static final AString DONE=Strings.intern("done");
+
+	/** Default time results are kept in milliseconds */
+	public static final long DEFAULT_WINDOW=24*60*60*1000L;
+
+	/** Default maximum number of results kept */
+	public static final long DEFAULT_LIMIT=100000;
+
+	/** Maximum interval between removal of expired results in milliseconds */
+	static final long PRUNE_INTERVAL=60000;
+
+	private final Engine engine;
+
+	/** Keys of requests currently being processed by this server */
+	private final Set<AString> active=ConcurrentHashMap.newKeySet();
+
+	private long window=DEFAULT_WINDOW;
+	private long limit=DEFAULT_LIMIT;
+
+	private ScheduledExecutorService pruner=null;
+
+	IdempotencyCache(Engine engine) {
+		this.engine=engine;
+	}
+
+	/**
+	 * Starts removal of expired results. Configured with "operations.idempotencyWindow" in milliseconds
+	 * and "operations.idempotencyLimit".
+	 */
+	synchronized void start() {
+		close();
+		AInteger w=AInteger.parse(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.IDEMPOTENCY_WINDOW));
+		AInteger l=AInteger.parse(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.IDEMPOTENCY_LIMIT));
+		window=(w==null)?DEFAULT_WINDOW:w.longValue();
+		limit=(l==null)?DEFAULT_LIMIT:l.longValue();
+		long interval=Math.max(1000, Math.min(window, PRUNE_INTERVAL));
+		pruner=Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("idempotency-pruner").factory());
+		pruner.scheduleWithFixedDelay(this::prune, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops removal of expired results
+	 */
+	synchronized void close() {
+		if (pruner!=null) {
+			pruner.shutdownNow();
+			pruner=null;
+		}
+	}
+
+	/**
+	 * Gets the stored key for an operation, so keys for different operations never collide
+	 * @param op Operation e.g. "deposit"
+	 * @param key Client supplied or derived key
+	 * @return Key for storage
+	 */
+	public static AString key(String op, String key) {
+		return Strings.create(op+"/"+key);
+	}
+
+	/**
+	 * Gets the record for a key
+	 * @param key Key
+	 * @return Record, or null if none
+	 */
+	public AMap<AString,ACell> get(AString key) {
+		return RT.getIn(engine.getStateSnapshot(), Fields.RESULTS, key);
+	}
+
+	/**
+	 * Claims a key for processing a request. If the key already has a result, it is returned and the request
+	 * should not be processed. Otherwise the caller must process the request and then call release(key).
+	 * @param key Key
+	 * @param request Request, which must be the same as for any previous use of the key
+	 * @param pending If true, store a pending record that blocks repeats until a result is stored or the record is cleared
+	 * @param abandoned Test for whether an existing pending record was abandoned (e.g. by a crash) and can be retried, or null if never
+	 * @return Previous result record, or null if the key is claimed for processing
+	 * @throws DuplicateRequestException If a request with the same key has not completed
+	 * @throws IllegalArgumentException If the key was used for a different request
+	 */
+	public AMap<AString,ACell> claim(AString key, AMap<AString,ACell> request, boolean pending, Predicate<AMap<AString,ACell>> abandoned) {
+		if (!active.add(key)) throw new DuplicateRequestException("A request with this idempotency key is already in progress");
+		try {
+			Hash hash=request.getHash();
+			AMap<AString,ACell> rec=get(key);
+			if (rec!=null) {
+				if (!hash.equals(rec.get(Fields.HASH))) throw new IllegalArgumentException("Idempotency key already used for a different request");
+				if (DONE.equals(rec.get(Fields.STATUS))) {
+					active.remove(key);
+					return rec;
+				}
+				if ((abandoned==null)||!abandoned.test(rec)) throw new DuplicateRequestException("A previous request with this idempotency key has not completed");
+				log.info("Retrying abandoned request "+key);
+			}
+			if (pending) {
+				AMap<AString,ACell> pendingRec=Maps.of(
+						Fields.STATUS,PENDING,
+						Fields.HASH,hash,
+						Fields.CREATED,System.currentTimeMillis());
+				engine.updateState(s->RT.assocIn(s, pendingRec, Fields.RESULTS, key));
+			}
+			return null;
+		} catch (RuntimeException e) {
+			active.remove(key);
+			throw e;
+		}
+	}
+
+	/**
+	 * Releases a key claimed for processing
+	 * @param key Key
+	 */
+	public void release(AString key) {
+		active.remove(key);
+	}
+
+	/**
+	 * Removes a pending record, after a request that made no state change has failed
+	 * @param key Key
+	 */
+	public void clearPending(AString key) {
+		engine.updateState(s->{
+			AMap<AString,ACell> rec=RT.getIn(s, Fields.RESULTS, key);
+			if ((rec==null)||!PENDING.equals(rec.get(Fields.STATUS))) return s;
+			return withoutResult(s,key);
+		});
+	}
+
+	/**
+	 * Stores the result for a key in a state. Use in the atomic update that makes the request's state change.
+	 * @param state TokEngine state
+	 * @param key Key
+	 * @param request Request
+	 * @param value Result value
+	 * @return Updated state
+	 */
+	public AMap<AString,ACell> withResult(AMap<AString,ACell> state, AString key, AMap<AString,ACell> request, ACell value) {
+		AMap<AString,ACell> rec=Maps.of(
+				Fields.STATUS,DONE,
+				Fields.HASH,request.getHash(),
+				Fields.VALUE,value,
+				Fields.CREATED,System.currentTimeMillis());
+		return RT.assocIn(state, rec, Fields.RESULTS, key);
+	}
+
+	/**
+	 * Removes the record for a key from a state, so the request can be made again
+	 * @param state TokEngine state
+	 * @param key Key
+	 * @return Updated state
+	 */
+	public AMap<AString,ACell> withoutResult(AMap<AString,ACell> state, AString key) {
+		AMap<AString,ACell> all=RT.getIn(state, Fields.RESULTS);
+		if ((all==null)||!all.containsKey(key)) return state;
+		return state.assoc(Fields.RESULTS, all.dissoc(key));
+	}
+
+	/**
+	 * Removes results older than the window, then the oldest results beyond the limit. Pending records are
+	 * kept, since they mark requests with unknown outcomes.
+	 */
+	void prune() {
+		AMap<AString,AMap<AString,ACell>> all=RT.getIn(engine.getStateSnapshot(), Fields.RESULTS);
+		if (all==null) return;
+		long cutoff=System.currentTimeMillis()-window;
+		ArrayList<AString> expired=new ArrayList<>();
+		ArrayList<MapEntry<AString,AMap<AString,ACell>>> kept=new ArrayList<>();
+		long n=all.count();
+		for (long i=0; i<n; i++) {
+			MapEntry<AString,AMap<AString,ACell>> me=all.entryAt(i);
+			if (!DONE.equals(me.getValue().get(Fields.STATUS))) continue;
+			if (getCreated(me.getValue())<cutoff) {
+				expired.add(me.getKey());
+			} else {
+				kept.add(me);
+			}
+		}
+		long excess=(n-expired.size())-limit;
+		if (excess>0) {
+			kept.sort(Comparator.comparingLong(me->getCreated(me.getValue())));
+			for (int i=0; (i<excess)&&(i<kept.size()); i++) {
+				expired.add(kept.get(i).getKey());
+			}
+		}
+		if (expired.isEmpty()) return;
+
+		engine.updateState(s->{
+			AMap<AString,ACell> results=RT.getIn(s, Fields.RESULTS);
+			for (AString key: expired) {
+				results=results.dissoc(key);
+			}
+			return s.assoc(Fields.RESULTS, results);
+		});
+		log.debug("Removed "+expired.size()+" stored request results");
+	}
+
+	private static long getCreated(AMap<AString,ACell> rec) {
+		AInteger created=RT.ensureInteger(rec.get(Fields.CREATED));
+		return (created==null)?0:created.longValue();
+	}
+}
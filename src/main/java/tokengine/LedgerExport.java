@@ -0,0 +1,173 @@
+package tokengine;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import convex.api.ContentTypes;
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Blob;
+import convex.core.data.Format;
+import convex.core.data.MapEntry;
+import convex.core.data.Maps;
+import convex.core.data.Vectors;
+import convex.core.lang.RT;
+import convex.core.util.JSON;
+
+/**
+ * Streaming export of the TokEngine credits ledger.
+ * 
+ * The credits map is walked lazily entry by entry, so only the current branch of the lattice 
+ * and a single output chunk need to be held in memory. The source state is an immutable 
+ * snapshot, so export is consistent and does not block writers.
+ * 
+ * Output formats:
+ * - NDJSON: one {"user","token","balance"} object per line
+ * - CVX_RAW: a sequence of chunks, each a 4-byte big-endian length followed by a multi-cell 
+ *   encoded vector of [user token balance] vectors
+ */
+public class LedgerExport {
+
+	/** Content type for newline delimited JSON */
+	public static final String NDJSON = "application/x-ndjson";
+	
+	/** Number of ledger entries per output chunk */
+	public static final int CHUNK_SIZE = 1000;
+	
+	private final ACell state;
+	private AString tokenFilter=null;
+	private String userPrefix=null;
+	
+	/**
+	 * Create an export for a TokEngine state snapshot
+	 * @param state State snapshot, as returned by Engine.getStateSnapshot()
+	 */
+	public LedgerExport(ACell state) {
+		this.state=state;
+	}
+	
+	/**
+	 * Only export balances for the given token key
+	 * @param tokenKey Token key e.g. "convex:test/slip44:864", or null for all tokens
+	 * @return This export instance
+	 */
+	public LedgerExport withToken(AString tokenKey) {
+		this.tokenFilter=tokenKey;
+		return this;
+	}
+	
+	/**
+	 * Only export balances for user keys with the given prefix. Note user keys are stored in hash
+	 * order, so this is a filter over the full ledger rather than a range scan.
+	 * @param prefix User key prefix, or null for all users
+	 * @return This export instance
+	 */
+	public LedgerExport withUserPrefix(String prefix) {
+		this.userPrefix=prefix;
+		return this;
+	}
+	
+	/**
+	 * Callback for each exported ledger entry
+	 */
+	@FunctionalInterface
+	public interface EntryHandler {
+		public void accept(AString userKey, AString tokenKey, ACell balance) throws IOException;
+	}
+	
+	/**
+	 * Walks the ledger, calling the handler for each matching balance
+	 * @param handler Handler for ledger entries
+	 * @return Number of entries exported
+	 * @throws IOException If the handler fails
+	 */
+	public long walk(EntryHandler handler) throws IOException {
+		AMap<AString,AMap<AString,ACell>> credits=RT.ensureMap(RT.getIn(state, Fields.CREDITS));
+		if (credits==null) return 0;
+		long n=credits.count();
+		long count=0;
+		for (long i=0; i<n; i++) {
+			MapEntry<AString,AMap<AString,ACell>> me=credits.entryAt(i);
+			AString userKey=me.getKey();
+			if ((userPrefix!=null)&&!userKey.toString().startsWith(userPrefix)) continue;
+			
+			AMap<AString,ACell> balances=me.getValue();
+			if (balances==null) continue;
+			if (tokenFilter!=null) {
+				ACell bal=balances.get(tokenFilter);
+				if (bal==null) continue;
+				handler.accept(userKey, tokenFilter, bal);
+				count++;
+			} else {
+				long bn=balances.count();
+				for (long j=0; j<bn; j++) {
+					MapEntry<AString,ACell> be=balances.entryAt(j);
+					handler.accept(userKey, be.getKey(), be.getValue());
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Writes the ledger in the given content type
+	 * @param out Output stream. Not closed by this method
+	 * @param contentType Either NDJSON or ContentTypes.CVX_RAW
+	 * @return Number of entries exported
+	 * @throws IOException If writing fails
+	 */
+	public long write(OutputStream out, String contentType) throws IOException {
+		if (ContentTypes.CVX_RAW.equals(contentType)) return writeCVXRaw(out);
+		if (NDJSON.equals(contentType)) return writeNDJSON(out);
+		throw new IllegalArgumentException("Unsupported export type: "+contentType);
+	}
+	
+	/**
+	 * Writes the ledger as newline delimited JSON
+	 * @param out Output stream. Not closed by this method
+	 * @return Number of entries exported
+	 * @throws IOException If writing fails
+	 */
+	public long writeNDJSON(OutputStream out) throws IOException {
+		BufferedOutputStream bos=new BufferedOutputStream(out,65536);
+		long count=walk((user,token,balance)->{
+			AMap<AString,ACell> rec=Maps.of(Fields.USER,user,Fields.TOKEN,token,Fields.BALANCE,balance);
+			bos.write(JSON.toString(rec).getBytes(StandardCharsets.UTF_8));
+			bos.write('\n');
+		});
+		bos.flush();
+		return count;
+	}
+	
+	/**
+	 * Writes the ledger as length-prefixed CVX_RAW chunks
+	 * @param out Output stream. Not closed by this method
+	 * @return Number of entries exported
+	 * @throws IOException If writing fails
+	 */
+	public long writeCVXRaw(OutputStream out) throws IOException {
+		ArrayList<ACell> chunk=new ArrayList<>(CHUNK_SIZE);
+		long count=walk((user,token,balance)->{
+			chunk.add(Vectors.of(user,token,balance));
+			if (chunk.size()>=CHUNK_SIZE) {
+				writeChunk(out,chunk);
+			}
+		});
+		if (!chunk.isEmpty()) writeChunk(out,chunk);
+		out.flush();
+		return count;
+	}
+
+	private static void writeChunk(OutputStream out, ArrayList<ACell> chunk) throws IOException {
+		Blob b=Format.encodeMultiCell(Vectors.of(chunk.toArray()), true);
+		int len=(int)b.count();
+		out.write(new byte[] {(byte)(len>>>24),(byte)(len>>>16),(byte)(len>>>8),(byte)len});
+		out.write(b.getBytes());
+		chunk.clear();
+	}
+}
@@ -0,0 +1,242 @@
+package tokengine;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+
+/**
+ * Metrics for a TokEngine instance, exported in Prometheus format
+ * 
+ * Timers are published with percentile histograms so that latency percentiles can be
+ * aggregated across instances in Prometheus.
+ */
+public class Metrics {
+
+	/** Content type for Prometheus text exposition format */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	
+	private final PrometheusMeterRegistry registry=new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+	
+	private final Counter stateRetries;
+	private final Timer stateUpdates;
+	private final Timer etchFlush;
+	private final DistributionSummary etchBytes;
+	
+	public Metrics() {
+		stateRetries=Counter.builder("tokengine.state.retries")
+				.description("Retries of state cursor updates due to contention")
+				.register(registry);
+		stateUpdates=timer("tokengine.state.updates")
+				.description("Atomic state update time, including retries")
+				.register(registry);
+		etchFlush=timer("tokengine.etch.flush")
+				.description("Time to write and flush state to Etch")
+				.register(registry);
+		etchBytes=DistributionSummary.builder("tokengine.etch.written")
+				.description("Bytes written to Etch per flush")
+				.baseUnit("bytes")
+				.register(registry);
+	}
+	
+	private static Timer.Builder timer(String name) {
+		return Timer.builder(name)
+				.publishPercentileHistogram()
+				.minimumExpectedValue(Duration.ofNanos(100000))
+				.maximumExpectedValue(Duration.ofSeconds(60));
+	}
+	
+	/**
+	 * Gets the underlying meter registry
+	 * @return Meter registry
+	 */
+	public MeterRegistry getRegistry() {
+		return registry;
+	}
+	
+	/**
+	 * Produces a Prometheus scrape of all metrics
+	 * @return Metrics in Prometheus text format
+	 */
+	public String scrape() {
+		return registry.scrape();
+	}
+	
+	/**
+	 * Records an API request
+	 * @param method HTTP method
+	 * @param endpoint Endpoint path as registered (not the raw path, to keep cardinality bounded)
+	 * @param status HTTP status code
+	 * @param nanos Elapsed time in nanoseconds
+	 */
+	public void recordRequest(String method, String endpoint, int status, long nanos) {
+		timer("tokengine.api.requests")
+			.tag("method", method)
+			.tag("endpoint", endpoint)
+			.tag("status", Integer.toString(status))
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Records a call to a DLT adapter
+	 * @param chainID Chain ID of adapter
+	 * @param op Operation name e.g. "getBalance"
+	 * @param nanos Elapsed time in nanoseconds
+	 * @param error True if the call failed with an exception
+	 */
+	public void recordAdapterCall(String chainID, String op, long nanos, boolean error) {
+		timer("tokengine.adapter.calls")
+			.tag("chain", chainID)
+			.tag("op", op)
+			.tag("outcome", error?"error":"success")
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+		if (error) {
+			Counter.builder("tokengine.adapter.errors")
+				.tag("chain", chainID)
+				.tag("op", op)
+				.register(registry)
+				.increment();
+		}
+	}
+	
+	/**
+	 * Records a DLT adapter call rejected without being attempted
+	 * @param chainID Chain ID of adapter
+	 * @param op Operation name e.g. "getBalance"
+	 * @param reason Reason for rejection, "circuit" or "bulkhead"
+	 */
+	public void recordRejection(String chainID, String op, String reason) {
+		Counter.builder("tokengine.adapter.rejected")
+			.tag("chain", chainID)
+			.tag("op", op)
+			.tag("reason", reason)
+			.register(registry)
+			.increment();
+	}
+	
+	/**
+	 * Records a phase of an Engine operation
+	 * @param op Operation e.g. "deposit" or "payout"
+	 * @param phase Phase e.g. "verify", "state" or "audit"
+	 * @param nanos Elapsed time in nanoseconds
+	 */
+	public void recordPhase(String op, String phase, long nanos) {
+		timer("tokengine.engine.phases")
+			.tag("op", op)
+			.tag("phase", phase)
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Records a transfer moving to a new status
+	 * @param status New status e.g. "deposited" or "confirmed"
+	 */
+	public void recordTransfer(String status) {
+		Counter.builder("tokengine.transfers")
+			.tag("status", status)
+			.register(registry)
+			.increment();
+	}
+	
+	/**
+	 * Records receipts moved from the live state to the archive
+	 * @param count Number of receipts archived
+	 */
+	public void recordReceiptsArchived(long count) {
+		Counter.builder("tokengine.receipts.archived")
+			.register(registry)
+			.increment(count);
+	}
+	
+	/**
+	 * Records a change to a credit reservation
+	 * @param outcome Outcome e.g. "reserved", "committed", "released" or "unresolved"
+	 */
+	public void recordReservation(String outcome) {
+		Counter.builder("tokengine.reservations")
+			.tag("outcome", outcome)
+			.register(registry)
+			.increment();
+	}
+	
+	/**
+	 * Records an atomic state update
+	 * @param attempts Number of attempts, more than one indicates contention
+	 * @param nanos Elapsed time in nanoseconds
+	 */
+	public void recordStateUpdate(int attempts, long nanos) {
+		stateUpdates.record(nanos, TimeUnit.NANOSECONDS);
+		if (attempts>1) stateRetries.increment(attempts-1);
+	}
+	
+	/**
+	 * Records an Etch flush
+	 * @param nanos Elapsed time in nanoseconds
+	 * @param bytes Bytes added to the Etch file
+	 */
+	public void recordFlush(long nanos, long bytes) {
+		etchFlush.record(nanos, TimeUnit.NANOSECONDS);
+		etchBytes.record(bytes);
+	}
+	
+	/**
+	 * Records a checkpoint written
+	 * @param nanos Elapsed time in nanoseconds
+	 * @param bytes Size of the checkpoint file
+	 */
+	public void recordCheckpoint(long nanos, long bytes) {
+		timer("tokengine.checkpoint.write")
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+		DistributionSummary.builder("tokengine.checkpoint.size")
+			.baseUnit("bytes")
+			.register(registry)
+			.record(bytes);
+	}
+	
+	/**
+	 * Records a replication delta sent to a standby
+	 * @param bytes Size of the delta
+	 */
+	public void recordReplicationDelta(long bytes) {
+		DistributionSummary.builder("tokengine.replication.delta")
+			.baseUnit("bytes")
+			.register(registry)
+			.record(bytes);
+	}
+	
+	/**
+	 * Records a request forwarded from a read-only API node to the writer node
+	 * @param endpoint Endpoint path as registered
+	 * @param status HTTP status returned by the writer, 0 if it could not be reached
+	 * @param nanos Elapsed time in nanoseconds
+	 */
+	public void recordForward(String endpoint, int status, long nanos) {
+		timer("tokengine.writer.forwards")
+			.tag("endpoint", endpoint)
+			.tag("status", Integer.toString(status))
+			.register(registry)
+			.record(nanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Registers a gauge
+	 * @param <T> Type of object observed
+	 * @param name Gauge name
+	 * @param obj Object to observe (weakly referenced)
+	 * @param f Function to obtain value
+	 */
+	public <T> void gauge(String name, T obj, ToDoubleFunction<T> f) {
+		Gauge.builder(name, obj, f).register(registry);
+	}
+}
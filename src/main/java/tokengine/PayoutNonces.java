@@ -0,0 +1,146 @@
+package tokengine;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.MapEntry;
+import convex.core.data.Maps;
+import convex.core.data.prim.AInteger;
+import convex.core.data.prim.CVMLong;
+import convex.core.lang.RT;
+import tokengine.exception.UnauthorisedException;
+
+/**
+ * Nonces of signed payout instructions that have been used, so that a signed instruction authorises
+ * exactly one payout.
+ *
+ * Nonces are stored in the TokEngine state under "nonces" -> key -> expiry time. A nonce is recorded
+ * in the same atomic update that reserves credit for the payout, and dropped again if the reservation
+ * is released, so a payout that failed without being made can be retried with the same instruction
+ * (see Reservations). An instruction is rejected once its expiry time has passed, so a nonce only
+ * needs to be kept until then and is removed by a background job afterwards.
+ */
+public class PayoutNonces {
+
+	protected static final Logger log=LoggerFactory.getLogger(PayoutNonces.class);
+
+	/** Default maximum time a signed instruction may be valid for, in milliseconds */
+	public static final long DEFAULT_WINDOW=60*60*1000L;
+
+	/** Maximum interval between removal of expired nonces in milliseconds */
+	static final long PRUNE_INTERVAL=60000;
+
+	private final Engine engine;
+
+	private ScheduledExecutorService pruner=null;
+
+	PayoutNonces(Engine engine) {
+		this.engine=engine;
+	}
+
+	/**
+	 * Starts removal of expired nonces
+	 */
+	synchronized void start() {
+		close();
+		long interval=Math.max(1000, Math.min(getWindow(), PRUNE_INTERVAL));
+		pruner=Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("nonce-pruner").factory());
+		pruner.scheduleWithFixedDelay(()->prune(System.currentTimeMillis()), interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops removal of expired nonces
+	 */
+	synchronized void close() {
+		if (pruner!=null) {
+			pruner.shutdownNow();
+			pruner=null;
+		}
+	}
+
+	/**
+	 * Gets the maximum time a signed instruction may be valid for, configured with
+	 * "operations.instructionWindow" in milliseconds
+	 * @return Window in milliseconds
+	 */
+	public long getWindow() {
+		AInteger w=AInteger.parse(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.INSTRUCTION_WINDOW));
+		return (w==null)?DEFAULT_WINDOW:w.longValue();
+	}
+
+	/**
+	 * Nonce of a signed instruction
+	 * @param key Nonce key, unique to the signing account
+	 * @param expires Expiry time of the instruction
+	 */
+	public record Nonce(AString key, long expires) {}
+
+	/**
+	 * Checks if a nonce has been used
+	 * @param key Nonce key
+	 * @return true if used by a payout that has not been released
+	 */
+	public boolean isUsed(AString key) {
+		return RT.getIn(engine.getStateSnapshot(), Fields.NONCES, key)!=null;
+	}
+
+	/**
+	 * Records a nonce as used in a state. Use in the atomic update that reserves credit for the payout.
+	 * @param state TokEngine state
+	 * @param nonce Nonce of the payout instruction
+	 * @return Updated state
+	 * @throws UnauthorisedException If the nonce has already been used
+	 */
+	public static AMap<AString,ACell> withNonce(AMap<AString,ACell> state, Nonce nonce) {
+		AMap<AString,ACell> nonces=RT.ensureMap(state.get(Fields.NONCES));
+		if (nonces==null) nonces=Maps.empty();
+		if (nonces.containsKey(nonce.key())) throw new UnauthorisedException("Payout instruction nonce already used");
+		return state.assoc(Fields.NONCES, nonces.assoc(nonce.key(), CVMLong.create(nonce.expires())));
+	}
+
+	/**
+	 * Removes a nonce from a state, so the instruction can be used again
+	 * @param state TokEngine state
+	 * @param key Nonce key
+	 * @return Updated state
+	 */
+	public static AMap<AString,ACell> withoutNonce(AMap<AString,ACell> state, AString key) {
+		AMap<AString,ACell> nonces=RT.ensureMap(state.get(Fields.NONCES));
+		if ((nonces==null)||!nonces.containsKey(key)) return state;
+		return state.assoc(Fields.NONCES, nonces.dissoc(key));
+	}
+
+	/**
+	 * Removes nonces of instructions that have expired, since they can no longer be used
+	 * @param now Current time
+	 */
+	void prune(long now) {
+		AMap<AString,ACell> nonces=RT.getIn(engine.getStateSnapshot(), Fields.NONCES);
+		if ((nonces==null)||nonces.isEmpty()) return;
+		int[] removed=new int[1];
+		engine.updateState(s->{
+			AMap<AString,ACell> ns=RT.ensureMap(s.get(Fields.NONCES));
+			if (ns==null) return s;
+			removed[0]=0;
+			long n=ns.count();
+			AMap<AString,ACell> result=ns;
+			for (long i=0; i<n; i++) {
+				MapEntry<AString,ACell> me=ns.entryAt(i);
+				AInteger expires=RT.ensureInteger(me.getValue());
+				if ((expires==null)||(expires.longValue()<now)) {
+					result=result.dissoc(me.getKey());
+					removed[0]++;
+				}
+			}
+			return (removed[0]==0)?s:s.assoc(Fields.NONCES, result);
+		});
+		if (removed[0]>0) log.debug("Removed "+removed[0]+" expired payout nonces");
+	}
+}
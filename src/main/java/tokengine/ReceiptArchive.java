@@ -0,0 +1,316 @@
+package tokengine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.crypto.Hashing;
+import convex.core.cvm.Keywords;
+import convex.core.data.ABlob;
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Blob;
+import convex.core.data.Hash;
+import convex.core.data.MapEntry;
+import convex.core.data.Maps;
+import convex.core.data.Strings;
+import convex.core.data.prim.AInteger;
+import convex.core.lang.RT;
+import convex.lattice.ACursor;
+
+/**
+ * Archive of old deposit receipts, so that the live TokEngine state stays small as deposits accumulate.
+ *
+ * A compaction job moves receipts older than a retention period out of "receipts" in the TokEngine state
+ * into per-month archive roots, stored in the lattice under :app "archive" -> Month (e.g. "2026-10") ->
+ * Chain ID -> TX ID -> amount. Archived months are never changed by deposits, so they are shared between
+ * snapshots and are not traversed when the live state is updated, hashed or exported.
+ *
+ * Deposits must still be rejected if their transaction was archived. Rather than an index entry per archived
+ * transaction, each archived month has a Bloom filter of its chain and transaction IDs under :app
+ * "archiveIndex" -> Month, costing about a byte per receipt. A replayed deposit checks each month's filter,
+ * and only looks in the archive itself for months whose filter matches, so archived months are rarely read.
+ * Receipts are moved and the filters updated in a single lattice update, so a replayed deposit always finds
+ * its receipt, and the filters are persisted, replicated and checkpointed with the archive.
+ */
+public class ReceiptArchive {
+
+	protected static final Logger log=LoggerFactory.getLogger(ReceiptArchive.class);
+
+	/** Default age after which receipts are archived, in milliseconds */
+	public static final long DEFAULT_RETENTION=30*24*60*60*1000L;
+
+	/** Maximum interval between compactions in milliseconds */
+	static final long COMPACT_INTERVAL=60*60*1000L;
+
+	/** Filter bits per archived receipt, for a false positive rate of about 1% */
+	static final int FILTER_BITS=10;
+
+	/** Number of filter bits set for each receipt */
+	static final int FILTER_HASHES=7;
+
+	private static final DateTimeFormatter MONTH=DateTimeFormatter.ofPattern("yyyy-MM").withZone(ZoneOffset.UTC);
+
+	private final Engine engine;
+
+	/** Archive roots: Month -> Chain ID -> TX ID -> amount */
+	private final ACursor<AMap<AString,AMap<AString,AMap<ACell,ACell>>>> archiveCursor;
+
+	/** Filters of archived transactions: Month -> Bloom filter */
+	private final ACursor<AMap<AString,ACell>> indexCursor;
+
+	private long retention=DEFAULT_RETENTION;
+
+	private ScheduledExecutorService compactor=null;
+
+	ReceiptArchive(Engine engine) {
+		this.engine=engine;
+		this.archiveCursor=engine.latticeCursor.path(Keywords.APP, Fields.ARCHIVE);
+		this.indexCursor=engine.latticeCursor.path(Keywords.APP, Fields.ARCHIVE_INDEX);
+	}
+
+	/**
+	 * Starts compaction. Configured with "operations.receiptRetention" in milliseconds, 0 to disable.
+	 */
+	synchronized void start() {
+		close();
+		AInteger r=AInteger.parse(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.RECEIPT_RETENTION));
+		retention=(r==null)?DEFAULT_RETENTION:r.longValue();
+		if ((archiveCursor.get()!=null)&&!isIndexed()) buildIndex();
+		if (retention<=0) return; // archiving disabled
+		long interval=Math.max(1000, Math.min(retention, COMPACT_INTERVAL));
+		compactor=Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("receipt-compactor").factory());
+		compactor.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops compaction
+	 */
+	synchronized void close() {
+		if (compactor!=null) {
+			compactor.shutdownNow();
+			compactor=null;
+		}
+	}
+
+	/**
+	 * Checks if a transaction has an archived receipt. Months whose filter excludes the transaction are
+	 * skipped, and the others (including any month without a filter) are checked in the archive itself.
+	 * @param chainID Chain ID
+	 * @param txID Transaction ID
+	 * @return true if the transaction was archived
+	 */
+	public boolean contains(AString chainID, ACell txID) {
+		AMap<AString,AMap<AString,AMap<ACell,ACell>>> archive=archiveCursor.get();
+		if (archive==null) return false;
+		AMap<AString,ACell> index=indexCursor.get();
+		Hash key=filterKey(chainID, txID);
+		for (long i=0; i<archive.count(); i++) {
+			MapEntry<AString,AMap<AString,AMap<ACell,ACell>>> month=archive.entryAt(i);
+			ACell filter=(index==null)?null:index.get(month.getKey());
+			if ((filter instanceof ABlob f)&&!mightContain(f, key)) continue;
+			if (RT.getIn(month.getValue(), chainID, txID)!=null) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the archived receipts
+	 * @return Map of Month -> Chain ID -> TX ID -> amount, or null if nothing is archived
+	 */
+	public AMap<AString,AMap<AString,AMap<ACell,ACell>>> getArchive() {
+		return archiveCursor.get();
+	}
+
+	/**
+	 * Moves receipts older than the retention period from the live state to the archive. Receipts are removed
+	 * from the live state, added to the archive and added to their month's filter in the same update, so a
+	 * replayed deposit always finds them in one or the other.
+	 */
+	synchronized void compact() {
+		AMap<AString,AMap<ACell,ACell>> receipts=RT.getIn(engine.getStateSnapshot(), Fields.RECEIPTS);
+		if (receipts==null) return;
+		long cutoff=System.currentTimeMillis()-retention;
+		ArrayList<ACell[]> old=new ArrayList<>(); // [chainID, txID, amount, month]
+		for (long i=0; i<receipts.count(); i++) {
+			MapEntry<AString,AMap<ACell,ACell>> chain=receipts.entryAt(i);
+			AMap<ACell,ACell> txs=chain.getValue();
+			for (long j=0; j<txs.count(); j++) {
+				MapEntry<ACell,ACell> me=txs.entryAt(j);
+				long created=getCreated(me.getValue());
+				if (created>=cutoff) continue;
+				old.add(new ACell[] {chain.getKey(),me.getKey(),getAmount(me.getValue()),Strings.create(MONTH.format(Instant.ofEpochMilli(created)))});
+			}
+		}
+		if (old.isEmpty()) return;
+
+		int[] moved=new int[1];
+		engine.updateApp(app->{
+			AMap<AString,ACell> state=RT.ensureMap(app.get(Fields.TOKENGINE));
+			AMap<AString,AMap<ACell,ACell>> rs=RT.getIn(state, Fields.RECEIPTS);
+			if (rs==null) return app;
+			AMap<ACell,ACell> archive=RT.ensureMap(app.get(Fields.ARCHIVE));
+			AMap<AString,ACell> index=RT.ensureMap(app.get(Fields.ARCHIVE_INDEX));
+			if (archive==null) archive=Maps.empty();
+			if (index==null) index=Maps.empty();
+			HashMap<AString,List<Hash>> added=new HashMap<>();
+			moved[0]=0;
+			for (ACell[] rec: old) {
+				AString chainID=(AString)rec[0];
+				AMap<ACell,ACell> txs=rs.get(chainID);
+				if ((txs==null)||!txs.containsKey(rec[1])) continue;
+				txs=txs.dissoc(rec[1]);
+				rs=txs.isEmpty()?rs.dissoc(chainID):rs.assoc(chainID, txs);
+				archive=RT.assocIn(archive, rec[2], rec[3], chainID, rec[1]);
+				added.computeIfAbsent((AString)rec[3], m->new ArrayList<>()).add(filterKey(chainID, rec[1]));
+				moved[0]++;
+			}
+			for (Map.Entry<AString,List<Hash>> me: added.entrySet()) {
+				AString month=me.getKey();
+				index=index.assoc(month, updateFilter(index.get(month), RT.getIn(archive, month), me.getValue()));
+			}
+			return app.assoc(Fields.ARCHIVE, archive).assoc(Fields.ARCHIVE_INDEX, index).assoc(Fields.TOKENGINE, state.assoc(Fields.RECEIPTS, rs));
+		});
+		engine.metrics.recordReceiptsArchived(moved[0]);
+		log.info("Archived "+moved[0]+" receipts older than "+retention+"ms");
+	}
+
+	/**
+	 * Checks if every archived month has a filter
+	 */
+	private boolean isIndexed() {
+		AMap<AString,AMap<AString,AMap<ACell,ACell>>> archive=archiveCursor.get();
+		AMap<AString,ACell> index=indexCursor.get();
+		for (long i=0; i<archive.count(); i++) {
+			ACell filter=(index==null)?null:index.get(archive.entryAt(i).getKey());
+			if (!(filter instanceof ABlob)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the filters for an archive written before filters were added. This walks every archived
+	 * receipt, but only happens once, since the filters are then persisted with the archive.
+	 */
+	private void buildIndex() {
+		long[] n=new long[1];
+		engine.updateApp(app->{
+			AMap<AString,AMap<AString,AMap<ACell,ACell>>> archive=RT.getIn(app, Fields.ARCHIVE);
+			AMap<AString,ACell> index=Maps.empty();
+			n[0]=0;
+			for (long i=0; i<archive.count(); i++) {
+				MapEntry<AString,AMap<AString,AMap<ACell,ACell>>> month=archive.entryAt(i);
+				index=index.assoc(month.getKey(), buildFilter(month.getValue()));
+				n[0]+=countReceipts(month.getValue());
+			}
+			return app.assoc(Fields.ARCHIVE_INDEX, index);
+		});
+		log.info("Built archive filters for "+n[0]+" archived receipts");
+	}
+
+	/**
+	 * Adds receipts to a month's filter. The filter is rebuilt with room for twice as many receipts once it
+	 * holds as many as it was sized for, so each receipt is added to a rebuilt filter at most a few times.
+	 * @param filter Existing filter, or null if none
+	 * @param month Archived month, including the new receipts
+	 * @param keys Filter keys of the new receipts
+	 * @return Updated filter
+	 */
+	static Blob updateFilter(ACell filter, AMap<AString,AMap<ACell,ACell>> month, List<Hash> keys) {
+		if ((filter instanceof ABlob f)&&(f.count()*8>=countReceipts(month)*FILTER_BITS)) {
+			byte[] bs=new byte[Math.toIntExact(f.count())];
+			f.getBytes(bs, 0);
+			for (Hash key: keys) add(bs, key);
+			return Blob.wrap(bs);
+		}
+		return buildFilter(month);
+	}
+
+	private static Blob buildFilter(AMap<AString,AMap<ACell,ACell>> month) {
+		long n=countReceipts(month);
+		byte[] bs=new byte[Math.toIntExact(Math.max(8, (2*n*FILTER_BITS+7)/8))];
+		for (long i=0; i<month.count(); i++) {
+			MapEntry<AString,AMap<ACell,ACell>> chain=month.entryAt(i);
+			AMap<ACell,ACell> txs=chain.getValue();
+			for (long j=0; j<txs.count(); j++) {
+				add(bs, filterKey(chain.getKey(), txs.entryAt(j).getKey()));
+			}
+		}
+		return Blob.wrap(bs);
+	}
+
+	private static long countReceipts(AMap<AString,AMap<ACell,ACell>> month) {
+		long n=0;
+		for (long i=0; i<month.count(); i++) n+=month.entryAt(i).getValue().count();
+		return n;
+	}
+
+	/**
+	 * Gets the filter key for a transaction
+	 * @param chainID Chain ID
+	 * @param txID Transaction ID
+	 * @return Hash of the chain and transaction IDs
+	 */
+	static Hash filterKey(AString chainID, ACell txID) {
+		return Hashing.sha256((chainID+"/"+RT.str(txID)).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Checks a filter for a key
+	 * @param filter Bloom filter
+	 * @param key Filter key
+	 * @return false if the key was never added, true if it probably was
+	 */
+	static boolean mightContain(ABlob filter, Hash key) {
+		for (long p: positions(key, filter.count()*8)) {
+			if ((filter.byteAt(p>>>3)&(1<<(int)(p&7)))==0) return false;
+		}
+		return true;
+	}
+
+	private static void add(byte[] filter, Hash key) {
+		for (long p: positions(key, filter.length*8L)) {
+			filter[(int)(p>>>3)]|=(byte)(1<<(int)(p&7));
+		}
+	}
+
+	/**
+	 * Gets the bits for a key, by double hashing with two longs taken from the key
+	 */
+	private static long[] positions(Hash key, long bits) {
+		ByteBuffer b=ByteBuffer.wrap(key.getBytes());
+		long h1=b.getLong(0);
+		long h2=b.getLong(8);
+		long[] ps=new long[FILTER_HASHES];
+		for (int i=0; i<FILTER_HASHES; i++) ps[i]=Math.floorMod(h1+i*h2, bits);
+		return ps;
+	}
+
+	/**
+	 * Gets the time a receipt was created. Receipts written before archiving was added hold only the
+	 * amount, so are treated as old.
+	 */
+	private static long getCreated(ACell receipt) {
+		if (!(receipt instanceof AMap<?,?> m)) return 0;
+		AInteger created=RT.ensureInteger(m.get(Fields.CREATED));
+		return (created==null)?0:created.longValue();
+	}
+
+	private static ACell getAmount(ACell receipt) {
+		if (receipt instanceof AMap<?,?> m) return m.get(Fields.AMOUNT);
+		return receipt;
+	}
+}
@@ -0,0 +1,500 @@
+package tokengine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Blob;
+import convex.core.data.Format;
+import convex.core.data.Hash;
+import convex.core.data.Maps;
+import convex.core.data.Ref;
+import convex.core.data.prim.AInteger;
+import convex.core.data.prim.CVMLong;
+import convex.core.exceptions.BadFormatException;
+import convex.core.lang.RT;
+import convex.core.store.Stores;
+import convex.etch.EtchStore;
+
+/**
+ * Hot standby replication of the TokEngine lattice from a primary to standby instances over a local socket.
+ *
+ * A primary configured with "operations.replicationPort" listens on that loopback port. A standby configured
+ * with "operations.replicaOf" ("host:port") connects to it and receives the lattice as a stream of deltas:
+ * each delta holds the new root and only the cells the standby does not already have. Since the lattice is a
+ * Merkle tree, unchanged subtrees are shared between roots, so a delta is roughly the size of the changes
+ * rather than the state. A standby persists each root to its own Etch file, and sends the hash of its latest
+ * root when it subscribes, so that after a reconnect or restart the primary only sends cells created since
+ * (provided the primary still has that root, otherwise the first delta is the whole state). A standby rejects
+ * state changes until it is promoted.
+ *
+ * Standbys on other hosts, such as read-only API nodes, need the primary to listen on another address with
+ * "operations.replicationHost". The primary and its standbys must then share a secret in
+ * "operations.replicationSecret": a subscribing standby answers a random challenge with its HMAC-SHA256, so
+ * the secret itself is never sent. Without a secret, only standbys on loopback are accepted. Deltas are not
+ * encrypted, so the port should still only be reachable on a private network.
+ *
+ * Promotion is a command sent to a standby's own replication port (see the "promote" CLI command), and is
+ * only accepted over loopback. After promotion the standby stops following its primary, starts background
+ * jobs and accepts requests and standbys of its own. The old primary must be stopped first, since nothing
+ * prevents two primaries changing state.
+ */
+public class Replication {
+
+	protected static final Logger log=LoggerFactory.getLogger(Replication.class);
+
+	/** Default interval between deltas (or heartbeats) sent to standbys, in milliseconds */
+	public static final long DEFAULT_INTERVAL=100;
+
+	static final int SUBSCRIBE='S';
+	static final int PROMOTE='P';
+	static final int ACK=1;
+	static final int NACK=0;
+
+	/** Time without a delta or heartbeat after which a standby reconnects, as a multiple of the interval */
+	static final int TIMEOUT_INTERVALS=20;
+
+	/** Delay before a standby reconnects to its primary */
+	static final long RETRY_DELAY=1000;
+
+	/** Time allowed for a delta being applied to finish when stopping */
+	static final long CLOSE_TIMEOUT=30000;
+
+	/** Time allowed for a connection to send its command, challenge response and root hash */
+	static final long HANDSHAKE_TIMEOUT=10000;
+
+	/** Length of the challenge sent to a subscribing standby, and of its HMAC-SHA256 response */
+	static final int CHALLENGE_LENGTH=32;
+
+	/** Shipped cell hashes tracked per standby before the set is rebuilt from the current root */
+	static final int KNOWN_LIMIT=1<<20;
+
+	private final Engine engine;
+
+	private volatile boolean standby=false;
+	private volatile boolean closed=true;
+
+	private long interval=DEFAULT_INTERVAL;
+	private InetSocketAddress primary=null;
+	private byte[] secret=null;
+
+	private ServerSocket listener=null;
+	private Thread receiver=null;
+	private volatile Socket primarySocket=null;
+	private final Set<Socket> standbys=ConcurrentHashMap.newKeySet();
+
+	/** Primary timestamp of the last delta or heartbeat applied, 0 if none */
+	private volatile long primaryTime=0;
+
+	Replication(Engine engine) {
+		this.engine=engine;
+	}
+
+	/**
+	 * Starts replication. Configured with "operations.replicationPort" to listen for standbys and promotion,
+	 * "operations.replicationHost" to listen on an address other than loopback, "operations.replicaOf" to
+	 * run as a standby of the primary at that address, "operations.replicationSecret" to authenticate standbys,
+	 * and "operations.replicationInterval" in milliseconds.
+	 * @throws IOException If the replication port can't be opened
+	 * @throws IllegalStateException If listening on an address other than loopback without a secret
+	 */
+	synchronized void start() throws IOException {
+		close();
+		AMap<AString,ACell> config=engine.getConfig();
+		AInteger port=AInteger.parse(RT.getIn(config, Fields.OPERATIONS, Fields.REPLICATION_PORT));
+		AString host=RT.ensureString(RT.getIn(config, Fields.OPERATIONS, Fields.REPLICATION_HOST));
+		AString replicaOf=RT.ensureString(RT.getIn(config, Fields.OPERATIONS, Fields.REPLICA_OF));
+		AString sec=RT.ensureString(RT.getIn(config, Fields.OPERATIONS, Fields.REPLICATION_SECRET));
+		AInteger i=AInteger.parse(RT.getIn(config, Fields.OPERATIONS, Fields.REPLICATION_INTERVAL));
+		interval=(i==null)?DEFAULT_INTERVAL:Math.max(1, i.longValue());
+		closed=false;
+		standby=(replicaOf!=null);
+		primaryTime=0;
+		secret=((sec==null)||(sec.count()==0))?null:sec.toString().getBytes(StandardCharsets.UTF_8);
+
+		if (port!=null) {
+			InetAddress bind=(host==null)?InetAddress.getLoopbackAddress():InetAddress.getByName(host.toString());
+			if ((secret==null)&&!bind.isLoopbackAddress()) {
+				throw new IllegalStateException("operations.replicationSecret is required to accept replication on "+bind);
+			}
+			ServerSocket ss=new ServerSocket(port.intValue(), 50, bind);
+			listener=ss;
+			Thread.ofVirtual().name("replication-listener").start(()->listen(ss));
+			log.info("Replication listening on "+ss.getLocalSocketAddress());
+		}
+		if (standby) {
+			primary=parseAddress(replicaOf.toString());
+			receiver=Thread.ofVirtual().name("replication-receiver").start(this::receive);
+			log.info("Running as standby of "+primary);
+		}
+	}
+
+	/**
+	 * Stops replication, disconnecting standbys and the primary. A delta being applied is allowed to finish.
+	 */
+	synchronized void close() {
+		closed=true;
+		closeQuietly(listener);
+		listener=null;
+		for (Socket s: standbys) closeQuietly(s);
+		stopReceiver();
+	}
+
+	/**
+	 * Promotes this standby to primary, so that it stops following its primary. Background jobs are started
+	 * by the Engine.
+	 * @return true if promoted, false if not a standby
+	 */
+	synchronized boolean promote() {
+		if (!standby) return false;
+		standby=false;
+		stopReceiver();
+		return true;
+	}
+
+	private void stopReceiver() {
+		Thread t=receiver;
+		if (t==null) return;
+		receiver=null;
+		closeQuietly(primarySocket);
+		try {
+			t.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Checks if this TokEngine is a standby
+	 * @return true if a standby, false if a primary (or not replicating)
+	 */
+	public boolean isStandby() {
+		return standby;
+	}
+
+	/**
+	 * Gets the replication lag of a standby, i.e. the age of the latest primary state applied
+	 * @return Lag in milliseconds, 0 if not a standby, or -1 if no state has been received from the primary
+	 */
+	public long getLag() {
+		if (!standby) return 0;
+		long t=primaryTime;
+		return (t==0)?-1:Math.max(0, System.currentTimeMillis()-t);
+	}
+
+	/**
+	 * Gets the number of standbys connected to this primary
+	 * @return Standby count
+	 */
+	public int getStandbyCount() {
+		return standbys.size();
+	}
+
+	/**
+	 * Gets the replication status
+	 * @return Status map, with role, connected standbys and lag (for a standby)
+	 */
+	public AMap<AString,ACell> getStatus() {
+		if (standby) return Maps.of(Fields.ROLE, "standby", Fields.LAG, CVMLong.create(getLag()));
+		return Maps.of(Fields.ROLE, "primary", Fields.STANDBYS, CVMLong.create(getStandbyCount()));
+	}
+
+	private void listen(ServerSocket ss) {
+		while (!ss.isClosed()) {
+			try {
+				Socket s=ss.accept();
+				Thread.ofVirtual().name("replication-connection").start(()->handle(s));
+			} catch (IOException e) {
+				if (!ss.isClosed()) log.warn("Replication listener failed",e);
+				return;
+			}
+		}
+	}
+
+	private void handle(Socket s) {
+		try (s) {
+			s.setTcpNoDelay(true);
+			s.setSoTimeout((int)HANDSHAKE_TIMEOUT); // a silent client is dropped rather than holding the socket
+			int command=s.getInputStream().read();
+			switch (command) {
+				case SUBSCRIBE:
+					if (standby||closed||!authenticate(s)) {
+						s.getOutputStream().write(NACK);
+						return;
+					}
+					byte[] hb=s.getInputStream().readNBytes(Hash.LENGTH);
+					if (hb.length<Hash.LENGTH) throw new IOException("Standby disconnected before sending its root");
+					s.getOutputStream().write(ACK);
+					ship(s, Hash.wrap(hb));
+					break;
+				case PROMOTE:
+					if (!s.getInetAddress().isLoopbackAddress()) {
+						log.warn("Rejected promotion request from "+s.getRemoteSocketAddress());
+						s.getOutputStream().write(NACK);
+						return;
+					}
+					boolean promoted=engine.promote();
+					s.getOutputStream().write(promoted?ACK:NACK);
+					break;
+				default:
+					log.warn("Unrecognised replication command from "+s.getRemoteSocketAddress());
+			}
+		} catch (IOException e) {
+			log.debug("Replication connection closed",e);
+		}
+	}
+
+	/**
+	 * Sends a random challenge to a subscribing standby and checks its response. With a secret configured the
+	 * response must be the HMAC of the challenge, otherwise the standby must be connected over loopback.
+	 * @return true if the standby may subscribe
+	 */
+	private boolean authenticate(Socket s) throws IOException {
+		byte[] challenge=new byte[CHALLENGE_LENGTH];
+		new SecureRandom().nextBytes(challenge);
+		s.getOutputStream().write(challenge);
+		s.getOutputStream().flush();
+		byte[] response=s.getInputStream().readNBytes(CHALLENGE_LENGTH);
+		boolean ok=(secret==null)?s.getInetAddress().isLoopbackAddress():MessageDigest.isEqual(sign(secret, challenge), response);
+		if (!ok) log.warn("Rejected standby from "+s.getRemoteSocketAddress()+((secret==null)?", not on loopback":", invalid secret"));
+		return ok;
+	}
+
+	/**
+	 * Computes the response to a subscription challenge
+	 * @param secret Shared secret, or null if none is configured
+	 * @param challenge Challenge from the primary
+	 * @return HMAC-SHA256 of the challenge, or zeros without a secret
+	 */
+	static byte[] sign(byte[] secret, byte[] challenge) {
+		if (secret==null) return new byte[CHALLENGE_LENGTH];
+		try {
+			Mac mac=Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			return mac.doFinal(challenge);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 not available",e);
+		}
+	}
+
+	/**
+	 * Sends deltas to a standby until it disconnects. Each frame is the primary time, the root hash and the
+	 * delta encoding, which is empty if the root has not changed since the last frame.
+	 * @param standbyRoot Hash of the latest root the standby has, all zeros if none
+	 */
+	private void ship(Socket s, Hash standbyRoot) throws IOException {
+		standbys.add(s);
+		log.info("Standby connected from "+s.getRemoteSocketAddress());
+		try {
+			DataOutputStream out=new DataOutputStream(new BufferedOutputStream(s.getOutputStream(),65536));
+			HashSet<Hash> known=knownCells(standbyRoot);
+			int knownLimit=KNOWN_LIMIT;
+			ACell sent=null;
+			while (!closed&&!standby) {
+				ACell root=engine.latticeCursor.get();
+				if (root!=null) {
+					out.writeLong(System.currentTimeMillis());
+					out.write(root.getHash().getBytes());
+					if (root==sent) {
+						out.writeInt(0); // heartbeat
+					} else {
+						Blob delta=encodeDelta(root, known);
+						out.writeInt((int)delta.count());
+						out.write(delta.getBytes());
+						engine.metrics.recordReplicationDelta(delta.count());
+						if (known.size()>knownLimit) {
+							// drop hashes of cells no longer in the state
+							known=new HashSet<>();
+							collect(root, known, new ArrayList<>());
+							knownLimit=Math.max(KNOWN_LIMIT, 2*known.size());
+						}
+						sent=root;
+					}
+					out.flush();
+				}
+				Thread.sleep(interval);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			standbys.remove(s);
+			log.info("Standby disconnected from "+s.getRemoteSocketAddress());
+		}
+	}
+
+	/**
+	 * Gets the hashes of cells a standby already has, from the root it reported when subscribing. The root is
+	 * found if it is the current root or has been flushed to Etch, otherwise nothing is known.
+	 * @param hash Standby root hash
+	 * @return Hashes of the root and every branch cell under it
+	 */
+	private HashSet<Hash> knownCells(Hash hash) {
+		HashSet<Hash> known=new HashSet<>();
+		ACell root=engine.latticeCursor.get();
+		if ((root==null)||!hash.equals(root.getHash())) {
+			EtchStore store=engine.etch;
+			Ref<ACell> ref=(store==null)?null:store.refForHash(hash);
+			root=(ref==null)?null:ref.getValue();
+		}
+		if (root!=null) {
+			collect(root, known, new ArrayList<>());
+			known.add(hash);
+		}
+		return known;
+	}
+
+	/**
+	 * Follows the primary, reconnecting after failures, until promoted or closed
+	 */
+	private void receive() {
+		Stores.setCurrent(engine.etch); // cells not in a delta are already in our Etch
+		while (standby&&!closed) {
+			try (Socket s=new Socket()) {
+				primarySocket=s;
+				if (!standby||closed) return;
+				s.connect(primary, (int)RETRY_DELAY);
+				s.setSoTimeout((int)Math.max(RETRY_DELAY, interval*TIMEOUT_INTERVALS));
+				s.setTcpNoDelay(true);
+				s.getOutputStream().write(SUBSCRIBE);
+				DataInputStream in=new DataInputStream(new BufferedInputStream(s.getInputStream(),65536));
+				byte[] challenge=new byte[CHALLENGE_LENGTH];
+				in.readFully(challenge);
+				s.getOutputStream().write(sign(secret, challenge));
+				ACell last=engine.latticeCursor.get(); // primary only sends cells created since this root
+				s.getOutputStream().write((last==null)?new byte[Hash.LENGTH]:last.getHash().getBytes());
+				if (in.read()!=ACK) throw new IOException("Primary refused replication, check operations.replicationSecret");
+				log.info("Connected to primary "+primary);
+				while (standby&&!closed) {
+					long time=in.readLong();
+					byte[] hb=new byte[Hash.LENGTH];
+					in.readFully(hb);
+					Hash hash=Hash.wrap(hb);
+					int length=in.readInt();
+					if (length>0) {
+						byte[] data=new byte[length];
+						in.readFully(data);
+						apply(Format.decodeMultiCell(Blob.wrap(data)), hash);
+					} else {
+						ACell root=engine.latticeCursor.get();
+						if ((root==null)||!hash.equals(root.getHash())) throw new IOException("Standby out of sync with primary");
+					}
+					primaryTime=time;
+				}
+			} catch (IOException | BadFormatException e) {
+				if (standby&&!closed) log.warn("Replication from "+primary+" interrupted: "+e.getMessage());
+			} finally {
+				primarySocket=null;
+			}
+			try {
+				if (standby&&!closed) Thread.sleep(RETRY_DELAY);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void apply(ACell root, Hash hash) throws IOException {
+		if ((root==null)||!hash.equals(root.getHash())) throw new IOException("Delta does not match primary root "+hash);
+		engine.latticeCursor.set(root);
+		engine.persistState(); // later deltas refer to these cells in Etch
+	}
+
+	/**
+	 * Encodes a delta containing a lattice root and every branch cell not already known. Cells encoded are
+	 * added to the known set, so the next delta contains only cells created since.
+	 * @param root Lattice root
+	 * @param known Hashes of cells already sent
+	 * @return Delta in multi-cell encoding, with the root first
+	 */
+	static Blob encodeDelta(ACell root, Set<Hash> known) {
+		ArrayList<ACell> cells=new ArrayList<>();
+		collect(root, known, cells);
+		Blob top=root.getEncoding();
+		long length=top.count();
+		for (ACell c: cells) {
+			long n=c.getEncoding().count();
+			length+=Format.getVLQCountLength(n)+n;
+		}
+		byte[] bs=new byte[Math.toIntExact(length)];
+		int pos=top.getBytes(bs, 0);
+		for (ACell c: cells) {
+			Blob enc=c.getEncoding();
+			pos=Format.writeVLQCount(bs, pos, enc.count());
+			pos=enc.getBytes(bs, pos);
+		}
+		return Blob.wrap(bs);
+	}
+
+	private static void collect(ACell cell, Set<Hash> known, List<ACell> cells) {
+		int n=cell.getRefCount();
+		for (int i=0; i<n; i++) {
+			Ref<ACell> ref=cell.getRef(i);
+			if (ref.isEmbedded()) {
+				// embedded cells are encoded in their parent, but may refer to branch cells
+				ACell c=ref.getValue();
+				if (c!=null) collect(c, known, cells);
+				continue;
+			}
+			Hash h=ref.getHash();
+			if (known.contains(h)) continue; // standby has this whole subtree
+			ACell c=ref.getValue();
+			collect(c, known, cells);
+			known.add(h);
+			cells.add(c);
+		}
+	}
+
+	/**
+	 * Asks the standby listening on a local port to promote itself to primary
+	 * @param port Replication port of the standby
+	 * @return true if promoted, false if it was not a standby
+	 * @throws IOException If the standby can't be reached
+	 */
+	public static boolean requestPromotion(int port) throws IOException {
+		try (Socket s=new Socket(InetAddress.getLoopbackAddress(), port)) {
+			s.getOutputStream().write(PROMOTE);
+			s.getOutputStream().flush();
+			return s.getInputStream().read()==ACK;
+		}
+	}
+
+	static InetSocketAddress parseAddress(String address) {
+		int ix=address.lastIndexOf(':');
+		if (ix<0) throw new IllegalArgumentException("Replication address must be host:port, got: "+address);
+		return new InetSocketAddress(address.substring(0, ix), Integer.parseInt(address.substring(ix+1)));
+	}
+
+	private static void closeQuietly(Closeable c) {
+		if (c==null) return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			// ignore, already closing
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package tokengine;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Blobs;
+import convex.core.data.MapEntry;
+import convex.core.data.Maps;
+import convex.core.data.Strings;
+import convex.core.data.prim.AInteger;
+import convex.core.data.prim.CVMLong;
+import convex.core.lang.RT;
+import tokengine.exception.AdapterUnavailableException;
+import tokengine.exception.UnauthorisedException;
+
+/**
+ * Credit reserved for payouts in progress.
+ *
+ * A payout first moves the quantity out of the user's credit into a reservation, atomically. The
+ * reservation is committed once the payout transaction succeeds, or released (restoring the credit)
+ * if the payout fails. Every change is posted to the audit log.
+ *
+ * A reservation is "reserved" until the payout transaction is about to be sent, then "submitted". A
+ * failure after submission is only released if it shows the payout was not made. A network failure
+ * at that point leaves the reservation in place for reconciliation, since the payout may have succeeded.
+ *
+ * A background sweeper releases reservations still "reserved" after a timeout (e.g. because the server
+ * stopped mid-payout), and reports "submitted" reservations that were never resolved.
+ *
+ * A reservation may hold the nonce of the signed instruction that authorised the payout. The nonce is
+ * recorded as used with the reservation, and dropped when the reservation is released, since the
+ * instruction has then not been used to pay anything.
+ */
+public class Reservations {
+
+	protected static final Logger log=LoggerFactory.getLogger(Reservations.class);
+
+	public static final AString RESERVED=Strings.intern("reserved");
+	public static final AString SUBMITTED=Strings.intern("submitted");
+
+	/** Default age in milliseconds after which the sweeper processes a reservation */
+	public static final long DEFAULT_TIMEOUT=600000;
+
+	/** Maximum interval between sweeps in milliseconds */
+	static final long MAX_SWEEP_INTERVAL=60000;
+
+	private final Engine engine;
+
+	private ScheduledExecutorService sweeper=null;
+
+	Reservations(Engine engine) {
+		this.engine=engine;
+	}
+
+	/**
+	 * Starts the background sweeper. The timeout is configured with "operations.reservationTimeout"
+	 * in milliseconds, 0 to disable.
+	 */
+	synchronized void start() {
+		close();
+		AInteger timeout=AInteger.parse(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.RESERVATION_TIMEOUT));
+		long millis=(timeout==null)?DEFAULT_TIMEOUT:timeout.longValue();
+		if (millis<=0) return;
+		long interval=Math.min(millis, MAX_SWEEP_INTERVAL);
+		sweeper=Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("reservation-sweeper").factory());
+		sweeper.scheduleWithFixedDelay(()->sweep(millis), interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background sweeper
+	 */
+	synchronized void close() {
+		if (sweeper!=null) {
+			sweeper.shutdownNow();
+			sweeper=null;
+		}
+	}
+
+	/**
+	 * Gets a reservation
+	 * @param id Reservation ID
+	 * @return Reservation record, or null if not held
+	 */
+	public AMap<AString,ACell> get(AString id) {
+		return RT.getIn(engine.getStateSnapshot(), Fields.RESERVATIONS, id);
+	}
+
+	/**
+	 * Reserves credit for a payout, removing it from the user's available credit
+	 * @param id Reservation ID, or null to generate one
+	 * @param tokenKey Token key
+	 * @param userKey User key
+	 * @param amount Amount to reserve
+	 * @param andThen Update applied atomically with the reservation, or null for none
+	 * @return Reservation ID
+	 * @throws IllegalArgumentException If the user has insufficient credit
+	 */
+	public AString reserve(AString id, AString tokenKey, AString userKey, AInteger amount, UnaryOperator<AMap<AString,ACell>> andThen) {
+		return reserve(id,tokenKey,userKey,amount,null,andThen);
+	}
+
+	/**
+	 * Reserves credit for a payout authorised by a signed instruction, recording the instruction's nonce
+	 * as used until the reservation is released
+	 * @param id Reservation ID, or null to generate one
+	 * @param tokenKey Token key
+	 * @param userKey User key
+	 * @param amount Amount to reserve
+	 * @param nonce Nonce of the payout instruction, or null if none
+	 * @param andThen Update applied atomically with the reservation, or null for none
+	 * @return Reservation ID
+	 * @throws IllegalArgumentException If the user has insufficient credit
+	 * @throws UnauthorisedException If the nonce has already been used
+	 */
+	public AString reserve(AString id, AString tokenKey, AString userKey, AInteger amount, PayoutNonces.Nonce nonce, UnaryOperator<AMap<AString,ACell>> andThen) {
+		if (amount.isNegative()) throw new IllegalArgumentException("Cannot reserve negative credit: "+amount);
+		AString rid=(id==null)?Blobs.createRandom(16).toCVMHexString():id;
+		long now=System.currentTimeMillis();
+		AMap<AString,ACell> base=Maps.of(
+				Fields.USER,userKey,
+				Fields.TOKEN,tokenKey,
+				Fields.AMOUNT,amount,
+				Fields.STATUS,RESERVED,
+				Fields.CREATED,now,
+				Fields.UPDATED,now);
+		AMap<AString,ACell> rec=(nonce==null)?base:base.assoc(Fields.NONCE, nonce.key());
+		AInteger[] newBalance=new AInteger[1];
+		engine.updateState(state->{
+			if (RT.getIn(state, Fields.RESERVATIONS, rid)!=null) throw new IllegalStateException("Reservation already exists: "+rid);
+			AInteger current=Engine.getVirtualCredit(state, tokenKey, userKey);
+			if (current==null) current=CVMLong.ZERO;
+			AInteger balance=current.sub(amount);
+			if (balance.isNegative()) throw new IllegalArgumentException("Cannot remove more than total credit balance: current="+current+" removed="+amount+ " for user="+userKey);
+			newBalance[0]=balance;
+			state=RT.assocIn(state, balance, Fields.CREDITS, userKey, tokenKey);
+			state=RT.assocIn(state, rec, Fields.RESERVATIONS, rid);
+			if (nonce!=null) state=PayoutNonces.withNonce(state, nonce);
+			return (andThen==null)?state:andThen.apply(state);
+		});
+		engine.publishEvent("DEBIT",userKey,tokenKey,amount,newBalance[0],null);
+		audit("RESERVE",rid,rec,null,null);
+		engine.metrics.recordReservation("reserved");
+		return rid;
+	}
+
+	/**
+	 * Marks a reservation as submitted, immediately before sending the payout transaction. After this
+	 * the reservation is no longer released by the sweeper.
+	 * @param id Reservation ID
+	 * @param andThen Update applied atomically, or null for none
+	 * @throws IllegalStateException If the reservation is no longer held, in which case the payout must not be sent
+	 */
+	public void submit(AString id, UnaryOperator<AMap<AString,ACell>> andThen) {
+		long now=System.currentTimeMillis();
+		engine.updateState(state->{
+			AMap<AString,ACell> rec=RT.getIn(state, Fields.RESERVATIONS, id);
+			if ((rec==null)||!RESERVED.equals(rec.get(Fields.STATUS))) throw new IllegalStateException("Reservation "+id+" is no longer held");
+			rec=rec.assoc(Fields.STATUS, SUBMITTED);
+			rec=rec.assoc(Fields.UPDATED, CVMLong.create(now));
+			state=RT.assocIn(state, rec, Fields.RESERVATIONS, id);
+			return (andThen==null)?state:andThen.apply(state);
+		});
+	}
+
+	/**
+	 * Commits a reservation after a successful payout. The reserved credit is consumed.
+	 * @param id Reservation ID
+	 * @param tx Payout transaction
+	 * @param andThen Update applied atomically, or null for none
+	 */
+	public void commit(AString id, AString tx, UnaryOperator<AMap<AString,ACell>> andThen) {
+		AMap<AString,ACell> rec=remove(id,false,andThen);
+		if (rec==null) {
+			log.warn("Committed reservation "+id+" was not held, payout tx="+tx);
+			return;
+		}
+		audit("COMMIT",id,rec,Fields.TX,tx);
+		engine.metrics.recordReservation("committed");
+	}
+
+	/**
+	 * Releases a reservation, restoring the reserved credit to the user
+	 * @param id Reservation ID
+	 * @param reason Reason for release, for the audit log
+	 * @param force If true, release even if the payout was submitted. Only use if the payout is known to have failed.
+	 * @param andThen Update applied atomically, or null for none
+	 * @return true if released, false if not held (or submitted, when not forced)
+	 */
+	public boolean release(AString id, String reason, boolean force, UnaryOperator<AMap<AString,ACell>> andThen) {
+		AMap<AString,ACell> rec=remove(id,true,state->{
+			AMap<AString,ACell> r=RT.getIn(state, Fields.RESERVATIONS, id);
+			if ((!force)&&SUBMITTED.equals(r.get(Fields.STATUS))) return null;
+			return (andThen==null)?state:andThen.apply(state);
+		});
+		if (rec==null) return false;
+		AString userKey=RT.ensureString(rec.get(Fields.USER));
+		AString tokenKey=RT.ensureString(rec.get(Fields.TOKEN));
+		engine.publishEvent("CREDIT",userKey,tokenKey,RT.ensureInteger(rec.get(Fields.AMOUNT)),engine.getVirtualCredit(tokenKey, userKey),null);
+		audit("RELEASE",id,rec,Fields.REASON,Strings.create(reason));
+		engine.metrics.recordReservation("released");
+		return true;
+	}
+
+	/**
+	 * Removes a reservation atomically, optionally restoring its credit
+	 * @param guard Applied to the state before removal. May return null to cancel removal.
+	 * @return Removed reservation, or null if none removed
+	 */
+	private AMap<AString,ACell> remove(AString id, boolean refund, UnaryOperator<AMap<AString,ACell>> guard) {
+		@SuppressWarnings("unchecked")
+		AMap<AString,ACell>[] removed=new AMap[1];
+		engine.updateState(state->{
+			removed[0]=null;
+			AMap<AString,ACell> rec=RT.getIn(state, Fields.RESERVATIONS, id);
+			if (rec==null) return state;
+			AMap<AString,ACell> s=(guard==null)?state:guard.apply(state);
+			if (s==null) return state;
+			AMap<AString,ACell> all=RT.getIn(s, Fields.RESERVATIONS);
+			s=s.assoc(Fields.RESERVATIONS, all.dissoc(id));
+			if (refund) {
+				AString userKey=RT.ensureString(rec.get(Fields.USER));
+				AString tokenKey=RT.ensureString(rec.get(Fields.TOKEN));
+				AInteger current=Engine.getVirtualCredit(s, tokenKey, userKey);
+				if (current==null) current=CVMLong.ZERO;
+				s=RT.assocIn(s, current.add(RT.ensureInteger(rec.get(Fields.AMOUNT))), Fields.CREDITS, userKey, tokenKey);
+				AString nonce=RT.ensureString(rec.get(Fields.NONCE));
+				if (nonce!=null) s=PayoutNonces.withoutNonce(s, nonce);
+			}
+			removed[0]=rec;
+			return s;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Handles a failed payout for a reservation. The reservation is released unless the payout was
+	 * submitted and the failure leaves it unclear whether the payout was made.
+	 * @param id Reservation ID
+	 * @param e Exception from the payout
+	 * @return true if the reservation was released
+	 */
+	public boolean onFailure(AString id, Exception e) {
+		return onFailure(id,e,null);
+	}
+	
+	/**
+	 * Handles a failed payout for a reservation. The reservation is released unless the payout was
+	 * submitted and the failure leaves it unclear whether the payout was made.
+	 * @param id Reservation ID
+	 * @param e Exception from the payout
+	 * @param andThen Update applied atomically if the reservation is released, or null for none
+	 * @return true if the reservation was released
+	 */
+	public boolean onFailure(AString id, Exception e, UnaryOperator<AMap<AString,ACell>> andThen) {
+		AMap<AString,ACell> rec=get(id);
+		if (rec==null) return false;
+		if (SUBMITTED.equals(rec.get(Fields.STATUS))&&mayHaveBeenPaid(e)) {
+			unresolved(id,"Payout failed after submission: "+e.getMessage());
+			return false;
+		}
+		return release(id,"Payout failed: "+e.getMessage(),true,andThen);
+	}
+
+	/**
+	 * Checks if a payout failure after submission could have happened after the transaction was
+	 * accepted by the network. Only failures known to happen before anything is sent, or to leave the 
+	 * transaction without effect, count as unpaid: invalid input or a reverted transaction (reported by
+	 * adapters as IllegalArgumentException), and calls rejected by a circuit breaker or bulkhead. Any other
+	 * failure, e.g. a timeout waiting for a receipt or an error result, may still be followed by the
+	 * payout landing.
+	 * @param e Exception from the payout
+	 * @return true if the payout may have been made
+	 */
+	public static boolean mayHaveBeenPaid(Throwable e) {
+		Throwable root=e;
+		for (Throwable t=e; t!=null; t=t.getCause()) {
+			if (t instanceof AdapterUnavailableException) return false;
+			root=t;
+		}
+		return !(root instanceof IllegalArgumentException);
+	}
+
+	/**
+	 * Flags a submitted reservation as needing reconciliation
+	 */
+	private void unresolved(AString id, String message) {
+		engine.updateState(state->{
+			AMap<AString,ACell> rec=RT.getIn(state, Fields.RESERVATIONS, id);
+			if (rec==null) return state;
+			return RT.assocIn(state, rec.assoc(Fields.ERROR, Strings.create(message)), Fields.RESERVATIONS, id);
+		});
+		AMap<AString,ACell> rec=get(id);
+		if (rec==null) return;
+		log.warn("Reservation "+id+" needs reconciliation: "+message);
+		audit("UNRESOLVED",id,rec,Fields.REASON,Strings.create(message));
+		engine.metrics.recordReservation("unresolved");
+	}
+
+	/**
+	 * Processes reservations older than the timeout. Reservations that were never submitted are
+	 * released. Submitted reservations are flagged for reconciliation once.
+	 * @param timeout Age in milliseconds
+	 */
+	void sweep(long timeout) {
+		AMap<AString,AMap<AString,ACell>> all=RT.getIn(engine.getStateSnapshot(), Fields.RESERVATIONS);
+		if (all==null) return;
+		long cutoff=System.currentTimeMillis()-timeout;
+		Engine.beginRequest("reservation.sweep");
+		try {
+			long n=all.count();
+			for (long i=0; i<n; i++) {
+				MapEntry<AString,AMap<AString,ACell>> me=all.entryAt(i);
+				AMap<AString,ACell> rec=me.getValue();
+				AInteger created=RT.ensureInteger(rec.get(Fields.CREATED));
+				if ((created!=null)&&(created.longValue()>cutoff)) continue;
+				AString id=me.getKey();
+				if (RESERVED.equals(rec.get(Fields.STATUS))) {
+					if (release(id,"Timed out",false,null)) log.info("Released expired reservation "+id);
+				} else if (rec.get(Fields.ERROR)==null) {
+					unresolved(id,"Payout outcome unknown after timeout");
+				}
+			}
+		} catch (Exception e) {
+			log.warn("Reservation sweep failed",e);
+		} finally {
+			Engine.endRequest();
+		}
+	}
+
+	private void audit(String type, AString id, AMap<AString,ACell> rec, AString field, ACell value) {
+		AMap<AString,?> msg=engine.getBaseLogMessage(type);
+		msg=msg.assoc(Fields.RESERVATION,id);
+		msg=msg.assoc(Fields.TOKEN,rec.get(Fields.TOKEN));
+		msg=msg.assoc(Fields.USER,rec.get(Fields.USER));
+		msg=msg.assoc(Fields.AMOUNT,RT.str(rec.get(Fields.AMOUNT)));
+		if (field!=null) msg=msg.assoc(field,value);
+		engine.postAuditMessage(Engine.getRequest(),msg);
+	}
+}
@@ -0,0 +1,130 @@
+package tokengine;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ACell;
+import convex.core.data.prim.AInteger;
+import convex.core.lang.RT;
+
+/**
+ * Background persistence of the TokEngine lattice to Etch, so that request threads never wait for disk I/O.
+ *
+ * The latest lattice root is written at a fixed interval, or sooner once a number of state changes have
+ * been made since the last flush. This bounds the changes lost in a crash to roughly one interval or
+ * that many changes. Etch only writes cells that are not already stored, so each flush writes just the
+ * parts of the lattice that changed.
+ */
+public class StateFlusher {
+
+	protected static final Logger log=LoggerFactory.getLogger(StateFlusher.class);
+
+	/** Default interval between flushes in milliseconds */
+	public static final long DEFAULT_INTERVAL=5000;
+
+	/** Default number of state changes that trigger a flush before the interval is up */
+	public static final long DEFAULT_CHANGES=1000;
+
+	/** Time allowed for a flush in progress to finish when stopping */
+	static final long CLOSE_TIMEOUT=30000;
+
+	private final Engine engine;
+
+	/** State changes since the last flush started */
+	private final AtomicLong changes=new AtomicLong();
+
+	/** Set while an early flush is queued, so bursts of changes queue only one */
+	private final AtomicBoolean requested=new AtomicBoolean();
+
+	private long threshold=DEFAULT_CHANGES;
+
+	private ACell lastRoot=null;
+
+	private volatile ScheduledExecutorService flusher=null;
+
+	StateFlusher(Engine engine) {
+		this.engine=engine;
+	}
+
+	/**
+	 * Starts background flushing. Configured with "operations.flushInterval" in milliseconds and
+	 * "operations.flushChanges". Setting either to 0 disables that trigger.
+	 */
+	synchronized void start() {
+		close();
+		AInteger i=AInteger.parse(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.FLUSH_INTERVAL));
+		AInteger c=AInteger.parse(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.FLUSH_CHANGES));
+		long interval=(i==null)?DEFAULT_INTERVAL:i.longValue();
+		threshold=(c==null)?DEFAULT_CHANGES:c.longValue();
+		lastRoot=engine.latticeCursor.get(); // already persisted at startup
+		changes.set(0);
+		requested.set(false);
+		ScheduledExecutorService exec=Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("etch-flusher").factory());
+		if (interval>0) exec.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+		flusher=exec;
+	}
+
+	/**
+	 * Stops background flushing. A flush in progress is allowed to finish rather than interrupted,
+	 * since interrupting file I/O would close the Etch file.
+	 */
+	synchronized void close() {
+		ScheduledExecutorService exec=flusher;
+		if (exec==null) return;
+		flusher=null;
+		exec.shutdown();
+		try {
+			if (!exec.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) log.warn("Timeout waiting for Etch flush to complete");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Records a state change, queueing a flush if enough changes have been made since the last one.
+	 * Called on request threads, so never blocks.
+	 */
+	void onChange() {
+		long n=changes.incrementAndGet();
+		if ((threshold<=0)||(n<threshold)) return;
+		ScheduledExecutorService exec=flusher;
+		if ((exec==null)||!requested.compareAndSet(false, true)) return;
+		try {
+			exec.execute(this::flush);
+		} catch (RuntimeException e) {
+			// rejected because we are shutting down, and the final flush will happen on close
+			requested.set(false);
+		}
+	}
+
+	/**
+	 * Gets the number of state changes not yet flushed
+	 * @return Change count
+	 */
+	public long getPendingChanges() {
+		return changes.get();
+	}
+
+	/**
+	 * Writes the latest lattice root to Etch, unless unchanged since the last flush
+	 */
+	void flush() {
+		requested.set(false);
+		ACell root=engine.latticeCursor.get();
+		if (root==lastRoot) return;
+		changes.set(0);
+		try {
+			engine.persistState();
+			lastRoot=root;
+		} catch (IOException | RuntimeException e) {
+			log.warn("Background Etch flush failed",e);
+		}
+	}
+}
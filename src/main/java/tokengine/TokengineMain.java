@@ -1,8 +1,13 @@
 package tokengine;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,24 +15,55 @@ import org.slf4j.LoggerFactory;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.joran.JoranConfigurator;
 import ch.qos.logback.core.joran.spi.JoranException;
+import convex.api.ContentTypes;
+import convex.core.cvm.Keywords;
 import convex.core.data.ACell;
 import convex.core.data.AMap;
 import convex.core.data.AString;
+import convex.core.data.Hash;
+import convex.core.data.Strings;
+import convex.core.data.prim.AInteger;
 import convex.core.lang.RT;
+import convex.core.store.Stores;
 import convex.core.util.ConfigUtils;
 import convex.core.util.FileUtils;
 import convex.core.util.Utils;
+import convex.etch.EtchStore;
+import tokengine.client.LoadTest;
 
 public class TokengineMain {
 	
 	public static final Logger log=LoggerFactory.getLogger(TokengineMain.class);
 
 	public static void main(String[] args) throws Exception  {
+		if ((args.length>0)&&"export".equals(args[0])) {
+			export(args);
+			return;
+		}
+		if ((args.length>0)&&"loadtest".equals(args[0])) {
+			LoadTest.main(args);
+			return;
+		}
+		if ((args.length>0)&&"checkpoint".equals(args[0])) {
+			checkpoint(args);
+			return;
+		}
+		if ((args.length>0)&&"promote".equals(args[0])) {
+			promote(args);
+			return;
+		}
+		
+		// File path for config file
+		String cpath=(args.length==0)?"~/.tokengine/config.json":args[0];
+		if ((args.length>0)&&"restore".equals(args[0])) {
+			// Restore state from a checkpoint, then start as normal
+			cpath=restore(args);
+			if (cpath==null) return;
+		}
+		
 		Engine engine=null;;
 		APIServer server=null;
 		try {
-			// File path for config file
-			String cpath=(args.length==0)?"~/.tokengine/config.json":args[0];
 			AMap<AString,ACell> config = loadConfig(cpath);
 			if ((config==null)) {
 				if (args.length>0) {
@@ -102,6 +138,206 @@ public class TokengineMain {
 		log.info("Logging configured from default resource: "+resourcePath);
 	}
 
+	/**
+	 * Exports the credits ledger from the configured Etch file. TokEngine should not be running 
+	 * on the same Etch file.
+	 * 
+	 * Usage: export [config-file] [--out file] [--format ndjson|cvx-raw] [--token tokenKey] [--user prefix]
+	 * 
+	 * @param args Command line arguments, starting with "export"
+	 * @throws IOException If export fails
+	 */
+	private static void export(String[] args) throws IOException {
+		String cpath="~/.tokengine/config.json";
+		String out=null;
+		String type=LedgerExport.NDJSON;
+		String token=null;
+		String user=null;
+		for (int i=1; i<args.length; i++) {
+			String a=args[i];
+			if (a.startsWith("--")&&(i+1>=args.length)) throw new IllegalArgumentException("Missing value for "+a);
+			switch (a) {
+				case "--out": out=args[++i]; break;
+				case "--format": type="cvx-raw".equals(args[++i])?ContentTypes.CVX_RAW:LedgerExport.NDJSON; break;
+				case "--token": token=args[++i]; break;
+				case "--user": user=args[++i]; break;
+				default: cpath=a;
+			}
+		}
+		
+		AMap<AString, ACell> config = loadConfig(cpath);
+		if (config==null) {
+			log.error("Config file does not exist: "+cpath);
+			return;
+		}
+		AString etchFile=Engine.getEtchFile(config);
+		if ("temp".equals(etchFile.toString())) {
+			log.error("Cannot export from a temporary Etch store");
+			return;
+		}
+		
+		EtchStore etch=EtchStore.create(FileUtils.getFile(etchFile.toString()));
+		try {
+			Stores.setCurrent(etch);
+			ACell state=RT.getIn(etch.getRootData(), Keywords.APP, Fields.TOKENGINE);
+			LedgerExport export=new LedgerExport(state)
+				.withToken((token==null)?null:Strings.create(token))
+				.withUserPrefix(user);
+			
+			long n;
+			if (out==null) {
+				n=export.write(System.out, type);
+			} else {
+				try (OutputStream os=new FileOutputStream(FileUtils.getFile(out))) {
+					n=export.write(os, type);
+				}
+			}
+			log.info("Exported "+n+" ledger entries from "+etchFile);
+		} finally {
+			etch.close();
+		}
+	}
+
+	/**
+	 * Writes a checkpoint from the configured Etch file. TokEngine should not be running on the same 
+	 * Etch file. A running TokEngine writes checkpoints itself if operations.checkpointDir is configured.
+	 * 
+	 * Usage: checkpoint [config-file] --out file
+	 * 
+	 * @param args Command line arguments, starting with "checkpoint"
+	 * @throws IOException If the checkpoint fails
+	 */
+	private static void checkpoint(String[] args) throws IOException {
+		String cpath="~/.tokengine/config.json";
+		String out=null;
+		for (int i=1; i<args.length; i++) {
+			String a=args[i];
+			if (a.startsWith("--")&&(i+1>=args.length)) throw new IllegalArgumentException("Missing value for "+a);
+			switch (a) {
+				case "--out": out=args[++i]; break;
+				default: cpath=a;
+			}
+		}
+		if (out==null) {
+			log.error("Checkpoint file must be specified with --out");
+			return;
+		}
+		
+		AMap<AString, ACell> config = loadConfig(cpath);
+		if (config==null) {
+			log.error("Config file does not exist: "+cpath);
+			return;
+		}
+		AString etchFile=Engine.getEtchFile(config);
+		if ("temp".equals(etchFile.toString())) {
+			log.error("Cannot checkpoint a temporary Etch store");
+			return;
+		}
+		
+		EtchStore etch=EtchStore.create(FileUtils.getFile(etchFile.toString()));
+		try {
+			Stores.setCurrent(etch);
+			ACell root=etch.getRootData();
+			Hash hash;
+			try (OutputStream os=new FileOutputStream(FileUtils.getFile(out))) {
+				hash=Checkpoints.write(root, os);
+			}
+			log.info("Wrote checkpoint "+hash+" from "+etchFile+" to "+out);
+		} finally {
+			etch.close();
+		}
+	}
+	
+	/**
+	 * Promotes a standby TokEngine running on this machine to primary, via its replication port
+	 * 
+	 * Usage: promote [config-file]
+	 * 
+	 * @param args Command line arguments, starting with "promote"
+	 * @throws IOException If the standby can't be reached
+	 */
+	private static void promote(String[] args) throws IOException {
+		String cpath=(args.length>1)?args[1]:"~/.tokengine/config.json";
+		AMap<AString, ACell> config = loadConfig(cpath);
+		if (config==null) {
+			log.error("Config file does not exist: "+cpath);
+			return;
+		}
+		AInteger port=AInteger.parse(RT.getIn(config, Fields.OPERATIONS, Fields.REPLICATION_PORT));
+		if (port==null) {
+			log.error("No operations."+Fields.REPLICATION_PORT+" in config: "+cpath);
+			return;
+		}
+		if (Replication.requestPromotion(port.intValue())) {
+			log.info("Standby on port "+port+" promoted to primary");
+		} else {
+			log.error("TokEngine on port "+port+" is not a standby");
+		}
+	}
+	
+	/**
+	 * Restores the configured Etch file from a checkpoint. Refuses to replace existing state unless
+	 * --force is given.
+	 * 
+	 * Usage: restore checkpoint-file [config-file] [--force]
+	 * 
+	 * @param args Command line arguments, starting with "restore"
+	 * @return Config file path to start TokEngine with, or null if the restore failed
+	 * @throws IOException If the checkpoint could not be read or written
+	 */
+	private static String restore(String[] args) throws IOException {
+		String cpath="~/.tokengine/config.json";
+		String file=null;
+		boolean force=false;
+		for (int i=1; i<args.length; i++) {
+			String a=args[i];
+			if ("--force".equals(a)) {
+				force=true;
+			} else if (file==null) {
+				file=a;
+			} else {
+				cpath=a;
+			}
+		}
+		if (file==null) {
+			log.error("Checkpoint file must be specified");
+			return null;
+		}
+		
+		AMap<AString, ACell> config = loadConfig(cpath);
+		if (config==null) {
+			log.error("Config file does not exist: "+cpath);
+			return null;
+		}
+		AString etchFile=Engine.getEtchFile(config);
+		if ("temp".equals(etchFile.toString())) {
+			log.error("Cannot restore to a temporary Etch store");
+			return null;
+		}
+		
+		long start=System.currentTimeMillis();
+		ACell root;
+		try (InputStream is=new BufferedInputStream(new FileInputStream(FileUtils.getFile(file)))) {
+			root=Checkpoints.read(is);
+		}
+		
+		EtchStore etch=EtchStore.create(FileUtils.getFile(etchFile.toString()));
+		try {
+			Stores.setCurrent(etch);
+			ACell existing=etch.getRootData();
+			if ((existing!=null)&&!force) {
+				log.error("Etch file "+etchFile+" already contains state "+existing.getHash()+", use --force to replace it");
+				return null;
+			}
+			etch.setRootData(root);
+			etch.flush();
+		} finally {
+			etch.close();
+		}
+		log.info("Restored checkpoint "+root.getHash()+" from "+file+" to "+etchFile+" in "+(System.currentTimeMillis()-start)+"ms");
+		return cpath;
+	}
+
 	/**
 	 * Attempts to load a config file
 	 * @param cpath
@@ -0,0 +1,379 @@
+package tokengine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Blobs;
+import convex.core.data.Maps;
+import convex.core.data.Strings;
+import convex.core.data.prim.CVMLong;
+import convex.core.util.JSON;
+
+/**
+ * Lightweight span-based tracing. Spans are grouped into traces by the Engine request ID, so a
+ * trace covers everything done on behalf of a single API request.
+ *
+ * The current span and request ID are held in thread locals. Work handed to other threads
+ * (executors, CompletableFuture continuations) should be wrapped with one of the wrap(...)
+ * methods so that the context is carried across the hop. This works equally for virtual threads.
+ *
+ * Tracing is disabled (and spans are no-ops) unless an exporter is set.
+ */
+public class Tracing {
+
+	protected static final Logger log=LoggerFactory.getLogger(Tracing.class);
+
+	private static final ThreadLocal<Span> current=new ThreadLocal<>();
+
+	private static volatile SpanExporter exporter=null;
+
+	/**
+	 * Destination for completed spans
+	 */
+	public interface SpanExporter {
+		public void export(Span span);
+
+		public default void close() {}
+	}
+
+	/**
+	 * A timed operation within a trace. Close the span to complete it, typically with try-with-resources.
+	 */
+	public static class Span implements AutoCloseable {
+		static final Span NOOP=new Span(null,null,null,false);
+
+		final String name;
+		final AString traceID;
+		final Span parent;
+		final AString spanID;
+		final boolean attached;
+		final long startMicros;
+		final long startNanos;
+		final String thread;
+
+		private AMap<AString,ACell> tags=Maps.empty();
+		private String error=null;
+		private long durationMicros=-1;
+
+		Span(String name, AString traceID, Span parent, boolean attached) {
+			this.name=name;
+			this.traceID=traceID;
+			this.parent=parent;
+			this.attached=attached;
+			this.spanID=(name==null)?null:Blobs.createRandom(8).toCVMHexString();
+			this.startMicros=System.currentTimeMillis()*1000;
+			this.startNanos=System.nanoTime();
+			Thread t=Thread.currentThread();
+			this.thread=t.isVirtual()?("virtual-"+t.threadId()):t.getName();
+		}
+
+		public Span tag(String key, String value) {
+			if (this==NOOP||value==null) return this;
+			synchronized(this) {
+				tags=tags.assoc(Strings.create(key), Strings.create(value));
+			}
+			return this;
+		}
+
+		public Span tag(String key, long value) {
+			if (this==NOOP) return this;
+			synchronized(this) {
+				tags=tags.assoc(Strings.create(key), CVMLong.create(value));
+			}
+			return this;
+		}
+
+		/**
+		 * Marks this span as failed
+		 * @param e Cause of failure
+		 * @return This span
+		 */
+		public synchronized Span error(Throwable e) {
+			if (this!=NOOP) error=e.toString();
+			return this;
+		}
+
+		@Override
+		public void close() {
+			if (this==NOOP) return;
+			long duration=(System.nanoTime()-startNanos)/1000;
+			synchronized(this) {
+				if (durationMicros>=0) return; // already closed
+				durationMicros=duration;
+			}
+			if (attached&&(current.get()==this)) current.set(parent);
+
+			SpanExporter ex=exporter;
+			if (ex==null) return;
+			try {
+				ex.export(this);
+			} catch (Exception e) {
+				log.debug("Failed to export span",e);
+			}
+		}
+
+		/**
+		 * Gets this span as a JSON-compatible map. Times are in microseconds.
+		 * @return Map of span data
+		 */
+		public synchronized AMap<AString,ACell> toData() {
+			AMap<AString,ACell> m=Maps.of(
+					"name",name,
+					"trace",traceID,
+					"span",spanID,
+					"start",startMicros,
+					"duration",durationMicros,
+					"thread",thread);
+			if (parent!=null) m=m.assoc(Strings.create("parent"), parent.spanID);
+			if (!tags.isEmpty()) m=m.assoc(Strings.create("tags"), tags);
+			if (error!=null) m=m.assoc(Fields.ERROR, Strings.create(error));
+			return m;
+		}
+	}
+
+	/**
+	 * Starts a span as a child of the current span, and makes it current for this thread until closed
+	 * @param name Span name
+	 * @return Span instance
+	 */
+	public static Span start(String name) {
+		return create(name,true);
+	}
+
+	/**
+	 * Starts a span as a child of the current span without making it current. Use for operations that
+	 * complete asynchronously, where the span is closed on another thread.
+	 * @param name Span name
+	 * @return Span instance
+	 */
+	public static Span startAsync(String name) {
+		return create(name,false);
+	}
+
+	private static Span create(String name, boolean attached) {
+		if (exporter==null) return Span.NOOP;
+		Span parent=current.get();
+		if (parent==Span.NOOP) parent=null;
+		AString traceID=(parent!=null)?parent.traceID:Engine.getRequest();
+		if (traceID==null) traceID=Blobs.createRandom(16).toCVMHexString();
+		Span span=new Span(name,traceID,parent,attached);
+		if (attached) current.set(span);
+		return span;
+	}
+
+	/**
+	 * Ends the current trace on this thread, closing the current span if open
+	 */
+	public static void end() {
+		Span span=current.get();
+		if (span!=null) span.close();
+		current.remove();
+	}
+
+	/**
+	 * Sets the exporter for completed spans. Closes any previous exporter.
+	 * @param newExporter Exporter, or null to disable tracing
+	 */
+	public static synchronized void setExporter(SpanExporter newExporter) {
+		SpanExporter old=exporter;
+		exporter=newExporter;
+		if ((old!=null)&&(old!=newExporter)) old.close();
+	}
+
+	public static SpanExporter getExporter() {
+		return exporter;
+	}
+
+	/**
+	 * Wraps a task so that it runs with the request ID and span context of the calling thread
+	 * @param task Task to wrap
+	 * @return Wrapped task
+	 */
+	public static Runnable wrap(Runnable task) {
+		AString request=Engine.getRequest();
+		Span span=current.get();
+		return ()->{
+			AString prevRequest=Engine.getRequest();
+			Span prevSpan=current.get();
+			Engine.requestID.set(request);
+			current.set(span);
+			try {
+				task.run();
+			} finally {
+				Engine.requestID.set(prevRequest);
+				current.set(prevSpan);
+			}
+		};
+	}
+
+	/**
+	 * Wraps a task so that it runs with the request ID and span context of the calling thread
+	 * @param <T> Result type
+	 * @param task Task to wrap
+	 * @return Wrapped task
+	 */
+	public static <T> Callable<T> wrap(Callable<T> task) {
+		AString request=Engine.getRequest();
+		Span span=current.get();
+		return ()->{
+			AString prevRequest=Engine.getRequest();
+			Span prevSpan=current.get();
+			Engine.requestID.set(request);
+			current.set(span);
+			try {
+				return task.call();
+			} finally {
+				Engine.requestID.set(prevRequest);
+				current.set(prevSpan);
+			}
+		};
+	}
+
+	/**
+	 * Wraps a function, e.g. a CompletableFuture continuation, so that it runs with the request ID
+	 * and span context of the calling thread
+	 * @param <T> Argument type
+	 * @param <R> Result type
+	 * @param fn Function to wrap
+	 * @return Wrapped function
+	 */
+	public static <T,R> Function<T,R> wrap(Function<T,R> fn) {
+		AString request=Engine.getRequest();
+		Span span=current.get();
+		return t->{
+			AString prevRequest=Engine.getRequest();
+			Span prevSpan=current.get();
+			Engine.requestID.set(request);
+			current.set(span);
+			try {
+				return fn.apply(t);
+			} finally {
+				Engine.requestID.set(prevRequest);
+				current.set(prevSpan);
+			}
+		};
+	}
+
+	/**
+	 * Creates a CompletableFuture completion handler that closes a span, marking it as failed if
+	 * the future completed exceptionally
+	 * @param <T> Result type
+	 * @param span Span to close
+	 * @return Completion handler
+	 */
+	public static <T> BiConsumer<T,Throwable> closer(Span span) {
+		return (r,e)->{
+			if (e!=null) span.error(e);
+			span.close();
+		};
+	}
+
+	/**
+	 * Exporter that appends spans to a file as newline-delimited JSON.
+	 *
+	 * Spans are queued by the closing thread and written by a background writer thread, which flushes
+	 * whenever it has caught up, so request threads never wait for file IO. If the writer falls behind
+	 * by more than the queue capacity, further spans are dropped rather than blocking requests.
+	 */
+	public static class FileExporter implements SpanExporter {
+		/** Default number of spans that may be waiting to be written */
+		public static final int DEFAULT_CAPACITY=65536;
+
+		private static final AMap<AString,ACell> STOP=Maps.of("stop",true);
+
+		private final BufferedWriter writer;
+		private final BlockingQueue<AMap<AString,ACell>> queue;
+		private final Thread thread;
+		private final AtomicLong dropped=new AtomicLong();
+		private volatile boolean closed=false;
+
+		public FileExporter(Path path) throws IOException {
+			this(path,DEFAULT_CAPACITY);
+		}
+
+		public FileExporter(Path path, int capacity) throws IOException {
+			Path dir=path.toAbsolutePath().getParent();
+			if (dir!=null) Files.createDirectories(dir);
+			writer=Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			queue=new ArrayBlockingQueue<>(capacity);
+			thread=Thread.ofVirtual().name("trace-writer").start(this::run);
+		}
+
+		@Override
+		public void export(Span span) {
+			if (closed) return;
+			if (!queue.offer(span.toData())) dropped.incrementAndGet();
+		}
+
+		/**
+		 * Gets the number of spans dropped because the writer had fallen behind
+		 * @return Count of dropped spans
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		private void run() {
+			try {
+				while (true) {
+					AMap<AString,ACell> data=queue.take();
+					while (data!=null) {
+						if (data==STOP) {
+							writer.flush();
+							return;
+						}
+						writer.write(JSON.toString(data));
+						writer.write('\n');
+						data=queue.poll();
+					}
+					writer.flush(); // caught up
+				}
+			} catch (IOException e) {
+				log.warn("Failed to write spans, tracing to file stopped",e);
+				closed=true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Writes any queued spans and closes the file
+		 */
+		@Override
+		public void close() {
+			closed=true;
+			try {
+				while (thread.isAlive()&&!queue.offer(STOP, 100, TimeUnit.MILLISECONDS)) {
+					// writer is still draining a full queue
+				}
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			try {
+				writer.close();
+			} catch (IOException e) {
+				log.debug("Failed to close trace file",e);
+			}
+			long n=dropped.get();
+			if (n>0) log.warn("Dropped "+n+" spans while tracing to file");
+		}
+	}
+}
@@ -0,0 +1,395 @@
+package tokengine;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ABlob;
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.MapEntry;
+import convex.core.data.Maps;
+import convex.core.data.Strings;
+import convex.core.data.prim.AInteger;
+import convex.core.data.prim.CVMLong;
+import convex.core.lang.RT;
+import tokengine.adapter.AAdapter;
+import tokengine.exception.AdapterUnavailableException;
+import tokengine.exception.PaymentException;
+import tokengine.exception.UnauthorisedException;
+
+/**
+ * Transfers (deposit on one side, payout on the other) run as persistent state machines keyed by
+ * an idempotency key, so that a transfer interrupted by a failure or crash can be safely resumed.
+ *
+ * Each transfer moves through the following statuses, each step being recorded atomically with
+ * the state change it describes:
+ * - "started" : request accepted, deposit not yet verified
+ * - "deposited" : deposit verified and credited to the source account
+ * - "debited" : transfer quantity reserved from the source account credit
+ * - "submitted" : payout transaction about to be sent
+ * - "confirmed" : payout made, "tx" holds the payout transaction
+ * - "failed" : transfer cannot proceed, "error" holds the reason
+ *
+ * A transfer pays out the source account's credit, so it must be authorised by a payout instruction
+ * signed by the source account, as for a payout. The instruction is verified when the transfer is first
+ * submitted, and its nonce recorded as used atomically with the new transfer record.
+ *
+ * Records are stored in the TokEngine state under "transfers" -> key. Repeating a request with the
+ * same key returns the existing record, resuming it if incomplete. A background resumer retries
+ * incomplete transfers with backoff.
+ *
+ * A payout that fails before it is sent returns the transfer to "deposited" with the reserved credit
+ * restored, to be retried later. A transfer left in "submitted" may or may not have been paid out,
+ * so it is never retried automatically and its reservation needs to be reconciled (see Reservations).
+ */
+public class Transfers {
+
+	protected static final Logger log=LoggerFactory.getLogger(Transfers.class);
+
+	public static final AString STARTED=Strings.intern("started");
+	public static final AString DEPOSITED=Strings.intern("deposited");
+	public static final AString DEBITED=Strings.intern("debited");
+	public static final AString SUBMITTED=Strings.intern("submitted");
+	public static final AString CONFIRMED=Strings.intern("confirmed");
+	public static final AString FAILED=Strings.intern("failed");
+
+	/** Default interval between resumer runs in milliseconds */
+	public static final long DEFAULT_RESUME_INTERVAL=30000;
+
+	/** Maximum backoff multiplier for repeated resume attempts */
+	static final int MAX_BACKOFF_SHIFT=7;
+
+	private final Engine engine;
+	private final Reservations reservations;
+
+	/** Keys of transfers currently being advanced, so a transfer only runs in one thread at a time */
+	private final Set<AString> active=ConcurrentHashMap.newKeySet();
+
+	private ScheduledExecutorService resumer=null;
+
+	Transfers(Engine engine) {
+		this.engine=engine;
+		this.reservations=engine.getReservations();
+	}
+
+	/**
+	 * Starts the background resumer. The interval is configured with "operations.resumeInterval"
+	 * in milliseconds, 0 to disable.
+	 */
+	synchronized void start() {
+		close();
+		AInteger interval=AInteger.parse(RT.getIn(engine.getConfig(), Fields.OPERATIONS, Fields.RESUME_INTERVAL));
+		long millis=(interval==null)?DEFAULT_RESUME_INTERVAL:interval.longValue();
+		if (millis<=0) return;
+		resumer=Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("transfer-resumer").factory());
+		resumer.scheduleWithFixedDelay(()->resumeAll(millis), millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background resumer
+	 */
+	synchronized void close() {
+		if (resumer!=null) {
+			resumer.shutdownNow();
+			resumer=null;
+		}
+	}
+
+	/**
+	 * Gets the key used for a transfer request with no client supplied idempotency key. This is derived
+	 * from the deposit transaction, which can only be used for one transfer.
+	 * @param request Transfer request
+	 * @return Idempotency key
+	 */
+	public AString deriveKey(AMap<AString,ACell> request) {
+		Plan plan=new Plan(engine,request);
+		ABlob txID=plan.adapter.parseTransactionID(RT.ensureString(RT.getIn(plan.deposit, Fields.TX)));
+		if (txID==null) throw new IllegalArgumentException("Unable to parse transaction ID: "+RT.getIn(plan.deposit, Fields.TX));
+		return Strings.create(plan.adapter.getChainID()+"/"+txID.toHexString());
+	}
+
+	/**
+	 * Gets the record for a transfer
+	 * @param key Idempotency key
+	 * @return Transfer record, or null if no transfer exists for the key
+	 */
+	public AMap<AString,ACell> get(AString key) {
+		return RT.getIn(engine.getStateSnapshot(), Fields.TRANSFERS, key);
+	}
+
+	/**
+	 * Submits a transfer, or returns the existing transfer if one exists for the key. Incomplete
+	 * transfers are advanced as far as possible before returning.
+	 * @param key Idempotency key
+	 * @param request Transfer request, with source, destination, deposit and quantity
+	 * @return Transfer record after advancing
+	 * @throws IllegalArgumentException If the request is invalid, or the key was used for a different request
+	 * @throws UnauthorisedException If a new transfer is not authorised by a valid signed instruction
+	 * @throws AdapterUnavailableException If a network is unavailable. The transfer can be retried later.
+	 */
+	public AMap<AString,ACell> submit(AString key, AMap<AString,ACell> request) {
+		Plan plan=new Plan(engine,request); // validate before recording anything
+		AMap<AString,ACell> existing=get(key);
+		if ((existing!=null)&&!request.equals(existing.get(Fields.REQUEST))) {
+			throw new IllegalArgumentException("Idempotency key already used for a different transfer: "+key);
+		}
+		PayoutNonces.Nonce nonce=null;
+		if (existing==null) {
+			if (!engine.isPayoutAuthorised(plan.adapter, request)) {
+				throw new UnauthorisedException("Transfer must be authorised by 'deposit.msg' signed by the source account in 'deposit.sig', with an unused 'deposit.nonce' and unexpired 'deposit.expires'");
+			}
+			nonce=engine.getPayoutNonce(plan.adapter, request);
+		}
+		PayoutNonces.Nonce used=nonce;
+		long now=System.currentTimeMillis();
+		boolean[] created=new boolean[1];
+		AMap<AString,ACell> state=engine.updateState(s->{
+			created[0]=false;
+			if (RT.getIn(s, Fields.TRANSFERS, key)!=null) return s;
+			created[0]=true;
+			AMap<AString,ACell> rec=Maps.of(
+					Fields.STATUS,STARTED,
+					Fields.REQUEST,request,
+					Fields.CREATED,now,
+					Fields.UPDATED,now,
+					Fields.ATTEMPTS,0);
+			if (used!=null) s=PayoutNonces.withNonce(s, used);
+			return RT.assocIn(s, rec, Fields.TRANSFERS, key);
+		});
+		AMap<AString,ACell> rec=RT.getIn(state, Fields.TRANSFERS, key);
+		if (!request.equals(rec.get(Fields.REQUEST))) {
+			throw new IllegalArgumentException("Idempotency key already used for a different transfer: "+key);
+		}
+		if (created[0]) engine.metrics.recordTransfer(STARTED.toString());
+		return run(key);
+	}
+
+	/**
+	 * Checks if a transfer status is final
+	 * @param status Transfer status
+	 * @return true if confirmed or failed
+	 */
+	public static boolean isComplete(AString status) {
+		return CONFIRMED.equals(status)||FAILED.equals(status);
+	}
+
+	/**
+	 * Advances a transfer as far as possible
+	 * @param key Idempotency key
+	 * @return Latest transfer record
+	 */
+	AMap<AString,ACell> run(AString key) {
+		if (!active.add(key)) return get(key); // already being advanced elsewhere
+		try {
+			while (true) {
+				AMap<AString,ACell> rec=get(key);
+				AString status=RT.ensureString(rec.get(Fields.STATUS));
+				if (isComplete(status)||SUBMITTED.equals(status)) return rec;
+				try {
+					step(key,status,new Plan(engine,rec.get(Fields.REQUEST)));
+				} catch (AdapterUnavailableException e) {
+					recordError(key,e.getMessage());
+					throw e;
+				} catch (Exception e) {
+					log.info("Transfer "+key+" could not proceed from "+status+": "+e.getMessage());
+					recordError(key,e.getMessage());
+					return get(key);
+				}
+			}
+		} finally {
+			active.remove(key);
+		}
+	}
+
+	/**
+	 * Performs the next step of a transfer. Permanent failures mark the transfer as failed, other
+	 * exceptions leave it in its current status to be retried.
+	 */
+	private void step(AString key, AString status, Plan plan) throws Exception {
+		if (STARTED.equals(status)) {
+			AInteger received;
+			try {
+				received=engine.makeDeposit(plan.adapter, plan.token, plan.account, plan.deposit, (s,amt)->withStatus(s,key,DEPOSITED,Fields.AMOUNT,amt));
+			} catch (PaymentException|IllegalArgumentException e) {
+				fail(key,e.getMessage());
+				return;
+			}
+			if (received==null) {
+				fail(key,"Failed to validate deposit: "+plan.deposit);
+				return;
+			}
+			engine.metrics.recordTransfer(DEPOSITED.toString());
+		} else if (DEPOSITED.equals(status)) {
+			try {
+				reservations.reserve(reservationID(key), plan.tokenKey, plan.userKey, plan.quantity, s->withStatus(s,key,DEBITED,null,null));
+			} catch (IllegalArgumentException e) {
+				fail(key,e.getMessage());
+				return;
+			}
+			engine.metrics.recordTransfer(DEBITED.toString());
+		} else if (DEBITED.equals(status)) {
+			AString rid=reservationID(key);
+			if (reservations.get(rid)==null) {
+				// Reservation was released by the sweeper, so the credit is back with the user
+				engine.updateState(s->withStatus(s,key,DEPOSITED,null,null));
+				return;
+			}
+			AString tx;
+			try {
+				tx=engine.makePayout(plan.target, plan.token, plan.adapter, plan.quantity, plan.deposit, ()->{
+					reservations.submit(rid, s->withStatus(s,key,SUBMITTED,null,null));
+					engine.metrics.recordTransfer(SUBMITTED.toString());
+				});
+			} catch (RuntimeException e) {
+				AMap<AString,ACell> res=reservations.get(rid);
+				if ((res==null)||!Reservations.SUBMITTED.equals(res.get(Fields.STATUS))) {
+					// Payout was never sent, so restore the credit and try again later
+					reservations.release(rid, "Payout failed: "+e.getMessage(), false, s->withStatus(s,key,DEPOSITED,null,null));
+					throw e;
+				}
+				if (Reservations.mayHaveBeenPaid(e)) {
+					log.warn("Payout for transfer "+key+" failed after submission, needs reconciliation",e);
+					reservations.onFailure(rid, e);
+					throw e;
+				}
+				AString error=Strings.create("Payout failed: "+e.getMessage());
+				reservations.release(rid, error.toString(), true, s->withStatus(s,key,FAILED,Fields.ERROR,error));
+				engine.metrics.recordTransfer(FAILED.toString());
+				return;
+			}
+			reservations.commit(rid, tx, s->withStatus(s,key,CONFIRMED,Fields.TX,tx));
+			engine.metrics.recordTransfer(CONFIRMED.toString());
+		} else {
+			throw new IllegalStateException("Unexpected transfer status: "+status);
+		}
+	}
+
+	/**
+	 * Gets the ID of the credit reservation held by a transfer while in "debited" or "submitted" status
+	 * @param key Idempotency key
+	 * @return Reservation ID
+	 */
+	public static AString reservationID(AString key) {
+		return Strings.create("transfer/"+key);
+	}
+
+	private void fail(AString key, String message) {
+		engine.updateState(s->withStatus(s,key,FAILED,Fields.ERROR,Strings.create(message)));
+		engine.metrics.recordTransfer(FAILED.toString());
+	}
+
+	private void recordError(AString key, String message) {
+		long now=System.currentTimeMillis();
+		engine.updateState(s->{
+			AMap<AString,ACell> rec=RT.getIn(s, Fields.TRANSFERS, key);
+			if (rec==null) return s;
+			long attempts=getLong(rec,Fields.ATTEMPTS)+1;
+			rec=rec.assoc(Fields.ERROR, Strings.create(String.valueOf(message)));
+			rec=rec.assoc(Fields.ATTEMPTS, CVMLong.create(attempts));
+			rec=rec.assoc(Fields.UPDATED, CVMLong.create(now));
+			return RT.assocIn(s, rec, Fields.TRANSFERS, key);
+		});
+	}
+
+	/**
+	 * Sets the status of a transfer record within a state, clearing any previous error
+	 */
+	private static AMap<AString,ACell> withStatus(AMap<AString,ACell> state, AString key, AString status, AString field, ACell value) {
+		AMap<AString,ACell> rec=RT.getIn(state, Fields.TRANSFERS, key);
+		if (rec==null) throw new IllegalStateException("No transfer record for "+key);
+		rec=rec.dissoc(Fields.ERROR);
+		rec=rec.assoc(Fields.STATUS, status);
+		rec=rec.assoc(Fields.UPDATED, CVMLong.create(System.currentTimeMillis()));
+		if (field!=null) rec=rec.assoc(field, value);
+		return RT.assocIn(state, rec, Fields.TRANSFERS, key);
+	}
+
+	private static long getLong(AMap<AString,ACell> rec, AString field) {
+		AInteger v=RT.ensureInteger(rec.get(field));
+		return (v==null)?0:v.longValue();
+	}
+
+	/**
+	 * Resumes all incomplete transfers that are due for a retry. Each retry of a transfer doubles
+	 * the wait before the next, up to a limit.
+	 * @param interval Base retry interval in milliseconds
+	 */
+	void resumeAll(long interval) {
+		AMap<AString,AMap<AString,ACell>> all=RT.getIn(engine.getStateSnapshot(), Fields.TRANSFERS);
+		if (all==null) return;
+		long now=System.currentTimeMillis();
+		long n=all.count();
+		for (long i=0; i<n; i++) {
+			MapEntry<AString,AMap<AString,ACell>> me=all.entryAt(i);
+			AMap<AString,ACell> rec=me.getValue();
+			AString status=RT.ensureString(rec.get(Fields.STATUS));
+			if (isComplete(status)||SUBMITTED.equals(status)) continue;
+			long attempts=getLong(rec,Fields.ATTEMPTS);
+			long due=getLong(rec,Fields.UPDATED)+(interval<<Math.min(attempts, MAX_BACKOFF_SHIFT));
+			if (due>now) continue;
+
+			AString key=me.getKey();
+			Engine.beginRequest("transfer.resume");
+			try {
+				AMap<AString,ACell> result=run(key);
+				log.info("Resumed transfer "+key+" from "+status+" to "+result.get(Fields.STATUS));
+			} catch (Exception e) {
+				log.info("Unable to resume transfer "+key+": "+e.getMessage());
+			} finally {
+				Engine.endRequest();
+			}
+		}
+	}
+
+	/**
+	 * Parsed transfer request, resolved against the current adapters
+	 */
+	private static class Plan {
+		final AAdapter<?> adapter;
+		final String token;
+		final String account;
+		final AString userKey;
+		final AString tokenKey;
+		final AMap<AString,ACell> deposit;
+		final AInteger quantity;
+		final String target;
+
+		Plan(Engine engine, ACell request) {
+			AMap<AString,ACell> src=RT.ensureMap(RT.getIn(request, Fields.SOURCE));
+			if (src==null) throw new IllegalArgumentException("Expected 'source' object specifying incoming token");
+			AString network=RT.ensureString(src.get(Fields.NETWORK));
+			if (network==null) throw new IllegalArgumentException("Expected 'source.network' property");
+			adapter=engine.getAdapter(network);
+			if (adapter==null) throw new IllegalArgumentException("Can't find network: "+network);
+
+			AString tokenAS=RT.ensureString(src.get(Fields.TOKEN));
+			if (tokenAS==null) throw new IllegalArgumentException("Expected 'source.token' value specifying token");
+			token=tokenAS.toString();
+			tokenKey=engine.getTokenKey(adapter, token);
+			if (tokenKey==null) throw new IllegalArgumentException("Token not supported on this DLT: "+token);
+
+			AString accountAS=RT.ensureString(src.get(Fields.ACCOUNT));
+			if (accountAS==null) throw new IllegalArgumentException("Expected 'source.account' value specifying account on network "+network);
+			account=accountAS.toString();
+			userKey=adapter.parseUserKey(account);
+			if (userKey==null) throw new IllegalArgumentException("Invalid user account: "+account);
+
+			deposit=RT.ensureMap(RT.getIn(request, Fields.DEPOSIT));
+			if (deposit==null) throw new IllegalArgumentException("Expected 'deposit' object specifying transaction proof");
+
+			quantity=AInteger.parse(RT.getIn(request, Fields.QUANTITY));
+			if ((quantity==null)||quantity.isNegative()) throw new IllegalArgumentException("Expected 'quantity' as valid integer amount");
+
+			AString dest=RT.ensureString(RT.getIn(request, Fields.DESTINATION, Fields.ACCOUNT));
+			if (dest==null) throw new IllegalArgumentException("Expected 'destination.account' string identifying user");
+			target=dest.toString();
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package tokengine.adapter;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,9 +14,10 @@ import convex.core.data.AMap;
 import convex.core.data.AString;
 import convex.core.data.Blob;
 import convex.core.data.Index;
+import convex.core.data.Maps;
 import convex.core.data.MapEntry;
-import convex.core.data.Strings;
 import convex.core.data.prim.AInteger;
+import convex.core.data.prim.ANumeric;
 import convex.core.lang.RT;
 import convex.core.util.Utils;
 import tokengine.Engine;
@@ -34,16 +38,92 @@ public abstract class AAdapter<AddressType extends ACell> {
 	 * - Value = Token Record provided from config and transformed by addTokenMapping
 	 */
 	protected Index<AString,AMap<AString,ACell>> tokens=Index.none();
+	
+	/** 
+	 * Lookup index for tokens: exact alias, symbol or CAIP-19 asset ID -> CAIP-19 asset ID.
+	 * Indexes are rebuilt on each token mapping change and replaced atomically, so reads need no locking.
+	 */
+	private volatile Map<String,AString> tokenIndex=Map.of();
+	
+	/** Lookup index for tokens: lowercased CAIP-19 asset ID -> CAIP-19 asset ID */
+	private volatile Map<String,AString> caipIndex=Map.of();
+	
+	/** Precomputed full token keys: CAIP-19 asset ID -> "chainID/assetID" */
+	private volatile Map<AString,AString> tokenKeys=Map.of();
 
 	/** The alias for this adapter */
 	protected final AString alias;
 
 	protected final Engine engine;
 	
+	/** Cache of canonical user keys for this adapter */
+	protected final UserKeyCache userKeys=new UserKeyCache(USER_KEY_CACHE_SIZE);
+	
+	private static final int USER_KEY_CACHE_SIZE=100000;
+	
+	/** Circuit breaker for calls to this network */
+	protected final CircuitBreaker breaker;
+	
+	/** Limit on concurrent calls to this network */
+	protected final Bulkhead bulkhead;
+	
+	/** Maximum balance queries sent to the network in a single batched call */
+	protected final int batchSize;
+	
+	public static final int DEFAULT_MAX_CONCURRENT=64;
+	public static final int DEFAULT_BATCH_SIZE=100;
+	public static final int DEFAULT_BREAKER_THRESHOLD=5;
+	public static final long DEFAULT_BREAKER_COOLDOWN=30000;
+	
+	/** Time a call waits for a free bulkhead slot before being rejected */
+	private static final long BULKHEAD_WAIT=100;
+	
 	protected AAdapter(Engine engine,AMap<AString, ACell> config) {
 		this.engine=engine;
 		this.config=config;
 		this.alias=RT.ensureString(RT.getIn(config, Fields.ALIAS));
+		this.breaker=new CircuitBreaker(String.valueOf(getChainID()),
+				(int)getConfigNumber(Fields.BREAKER_THRESHOLD,DEFAULT_BREAKER_THRESHOLD),
+				(long)getConfigNumber(Fields.BREAKER_COOLDOWN,DEFAULT_BREAKER_COOLDOWN));
+		this.bulkhead=new Bulkhead((int)getConfigNumber(Fields.MAX_CONCURRENT,DEFAULT_MAX_CONCURRENT),BULKHEAD_WAIT);
+		this.batchSize=Math.max(1, (int)getConfigNumber(Fields.BATCH_SIZE,DEFAULT_BATCH_SIZE));
+	}
+	
+	/**
+	 * Gets a numeric value from the adapter config. Values may be numbers or numeric strings.
+	 * @param key Config key
+	 * @param defaultValue Value to use if not specified
+	 * @return Config value
+	 */
+	protected double getConfigNumber(AString key, double defaultValue) {
+		ACell v=(config==null)?null:config.get(key);
+		if (v==null) return defaultValue;
+		if (v instanceof ANumeric n) return n.doubleValue();
+		try {
+			return Double.parseDouble(v.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number for '"+key+"' in config: "+v);
+		}
+	}
+	
+	public CircuitBreaker getBreaker() {
+		return breaker;
+	}
+	
+	public Bulkhead getBulkhead() {
+		return bulkhead;
+	}
+	
+	/**
+	 * Gets the current health of this adapter, for status reporting
+	 * @return Health map
+	 */
+	public AMap<AString,ACell> getHealth() {
+		return Maps.of(
+			Fields.CHAIN_ID,getChainID(),
+			Fields.CIRCUIT,breaker.getState().toString(),
+			Fields.IN_FLIGHT,bulkhead.getInFlight(),
+			Fields.MAX_CONCURRENT,bulkhead.getMaxConcurrent());
 	}
 
 	public abstract void start() throws Exception;
@@ -89,6 +169,25 @@ public abstract class AAdapter<AddressType extends ACell> {
 	 */
 	public abstract AInteger getBalance(String asset,String address) throws IOException;
 
+	/**
+	 * Gets balances for multiple asset / address pairs. The default implementation queries each balance 
+	 * in turn. Adapters should override this to batch RPC calls where the underlying DLT supports it,
+	 * sending at most "batchSize" queries (from the network config) in each call.
+	 * 
+	 * Every query is completed, either with a balance or an error.
+	 * 
+	 * @param queries Balance queries to complete
+	 */
+	public void getBalances(List<BalanceQuery> queries) {
+		for (BalanceQuery q: queries) {
+			try {
+				q.complete(getBalance(q.asset,q.address));
+			} catch (Exception e) {
+				q.fail(e);
+			}
+		}
+	}
+
 	/**
 	 * Gets the balance of the current operator as an Integer
 	 * @return Balance of the operator
@@ -114,13 +213,30 @@ public abstract class AAdapter<AddressType extends ACell> {
 	public abstract AddressType parseAddress(Object obj) throws IllegalArgumentException;
 
 	/**
-	 * Gets the canonical userKey for a given account address
+	 * Gets the canonical userKey for a given account address. Results are cached, so repeat 
+	 * users get the same AString instance.
+	 * 
+	 * @param caip10 CAIP-10 account_address (Assumes chain ID removed)
+	 * @return String representing an Address for this adapter
+	 * @throws IllegalArgumentException If account address format is invalid
+	 */
+	public AString parseUserKey(String caip10) throws IllegalArgumentException {
+		if (caip10==null) throw new IllegalArgumentException("Null address");
+		AString key=userKeys.get(caip10);
+		if (key!=null) return key;
+		key=createUserKey(caip10);
+		if (key==null) throw new IllegalArgumentException("Invalid user account: "+caip10);
+		return userKeys.put(caip10, key);
+	}
+	
+	/**
+	 * Creates the canonical userKey for a given account address. Called by parseUserKey on a cache miss.
 	 * 
 	 * @param caip10 CAIP-10 account_address (Assumes chain ID removed)
 	 * @return String representing an Address for this adapter
 	 * @throws IllegalArgumentException If account address format is invalid
 	 */
-	public abstract AString parseUserKey(String caip10) throws IllegalArgumentException;
+	protected abstract AString createUserKey(String caip10) throws IllegalArgumentException;
 
 
 	/**
@@ -142,6 +258,48 @@ public abstract class AAdapter<AddressType extends ACell> {
 	 */
 	public abstract boolean verifyPersonalSignature(String message, String signature, String account);
 
+	/**
+	 * Verifies that an instruction, e.g. to pay out virtual credit, was signed by an account. Called for
+	 * every payout, so adapters that need to look up the account's public key should cache it.
+	 * 
+	 * The default implementation checks a personal signature against the parsed account address.
+	 * 
+	 * @param account Account that should have signed the instruction, in any form accepted by parseAddress
+	 * @param message The message as a plain text string
+	 * @param signature Signature in hex
+	 * @return True if signature verified, false otherwise
+	 * @throws IllegalArgumentException If the account or signature is invalid for this network
+	 */
+	public boolean verifyInstruction(String account, String message, String signature) {
+		return verifyPersonalSignature(message, signature, parseAddress(account).toString());
+	}
+
+	/**
+	 * Gets the signature check for an instruction, so that instructions for a batch of payouts can be
+	 * verified together with SignatureVerifier.verifyAll. Each instruction must still be checked with
+	 * verifyInstruction, which finds the signers verified by the batch in the verifier's cache.
+	 * 
+	 * The default implementation returns null, for adapters that don't use SignatureVerifier.
+	 * 
+	 * @param account Account that should have signed the instruction, in any form accepted by parseAddress
+	 * @param message The message as a plain text string
+	 * @param signature Signature in hex
+	 * @return Check, or null if the instruction can't be checked in a batch
+	 * @throws IllegalArgumentException If the account or signature is invalid for this network
+	 */
+	public SignatureVerifier.Check getInstructionCheck(String account, String message, String signature) {
+		return null;
+	}
+	
+	/**
+	 * Checks if this adapter actually verifies signatures. Payouts from adapters that can't are rejected
+	 * whenever payout verification is enabled.
+	 * @return True if verifyInstruction checks signatures
+	 */
+	public boolean canVerifySignatures() {
+		return true;
+	}
+
 	public String getAlias() {
 		AMap<AString,ACell> config=getConfig();
 
@@ -243,6 +401,7 @@ public abstract class AAdapter<AddressType extends ACell> {
 		if (tokens==null) {
 			throw new Exception("Problem setting token mapping? "+assetID+" = "+trec);
 		}
+		rebuildTokenIndex();
 
 		log.info("Added asset "+tnet.get(Fields.SYMBOL)+" on network "+getChainID()+" with Asset ID "+assetID);
 	}
@@ -256,6 +415,38 @@ public abstract class AAdapter<AddressType extends ACell> {
 		throw new UnsupportedOperationException("Cannot deploy test assets for "+this.getClass());
 	}
 
+	/**
+	 * Rebuilds token lookup indexes from the current token mappings
+	 */
+	private synchronized void rebuildTokenIndex() {
+		HashMap<String,AString> index=new HashMap<>();
+		HashMap<String,AString> caip=new HashMap<>();
+		HashMap<AString,AString> keys=new HashMap<>();
+		AString prefix=getChainID().append("/");
+		long n=tokens.count();
+		for (int i=0; i<n; i++) {
+			MapEntry<AString, AMap<AString, ACell>> me = tokens.entryAt(i);
+			AString assetID=me.getKey();
+			AMap<AString, ACell> mapping=me.getValue();
+			
+			// Alias and symbol matches are exact, with earlier mappings taking precedence
+			AString alias=RT.ensureString(mapping.get(Fields.ALIAS));
+			if (alias!=null) index.putIfAbsent(alias.toString(), assetID);
+			AString symbol=RT.ensureString(mapping.get(Fields.SYMBOL));
+			if (symbol!=null) index.putIfAbsent(symbol.toString(), assetID);
+			keys.put(assetID, prefix.append(assetID));
+		}
+		
+		// CAIP-19 asset IDs take precedence over aliases and symbols
+		for (AString assetID: keys.keySet()) {
+			index.put(assetID.toString(), assetID);
+			caip.put(assetID.toString().toLowerCase(), assetID);
+		}
+		tokenIndex=index;
+		caipIndex=caip;
+		tokenKeys=keys;
+	}
+	
 	/**
 	 * Looks up a canonical CAIP-19 asset ID (e.g. "cad29:72") for the identified token on this adapter
 	 * 
@@ -263,31 +454,36 @@ public abstract class AAdapter<AddressType extends ACell> {
 	 * @return CAIP-19 Asset ID or null if token is not defined in this adapter
 	 */
 	public AString lookupCAIPAssetID(String token) {
+		// Fast path: exact alias, symbol or CAIP-19 asset ID, then case-insensitive CAIP-19 asset ID
+		AString found=tokenIndex.get(token);
+		if (found!=null) return found;
+		found=caipIndex.get(token.toLowerCase());
+		if (found!=null) return found;
+		
+		// Slow path for other forms of CAIP-19 ID accepted by the adapter
 		try {
 			AString id=toCAIPAssetID(parseAssetID(token)); // parse and canonicalise
-			if (tokens.containsKey(id)) return id; // valid CAIP-19 ID, exact match
+			if ((id!=null)&&tokens.containsKey(id)) return id; // valid CAIP-19 ID, exact match
 		} catch (IllegalArgumentException e) {
-			// fall through to check alias / symbol
-		}
-		
-		AString exactToken=Strings.create(token);
-		
-		long n=tokens.count();
-		for (int i=0; i<n; i++) {
-			MapEntry<AString, AMap<AString, ACell>> me = tokens.entryAt(i);
-			AMap<AString, ACell> mapping=me.getValue();
-			if (exactToken.equals(RT.getIn(mapping, Fields.ALIAS))) {
-				return me.getKey();
-			}
-			if (exactToken.equals(RT.getIn(mapping, Fields.SYMBOL))) {
-				return me.getKey();
-			}
+			// not a valid asset ID
 		}
 		return null;
 	}
 
 	public abstract boolean validateSignature(String userKey, ABlob signature, ABlob message);
 
+	/**
+	 * Gets the full token key ("chainID/assetID") for a token, as used to index virtual balances
+	 * 
+	 * @param token Token identifier, may be an alias, symbol or CAIP-19 asset ID
+	 * @return Token key, or null if token is not defined in this adapter
+	 */
+	public AString getTokenKey(String token) {
+		AString assetID=lookupCAIPAssetID(token);
+		if (assetID==null) return null;
+		return tokenKeys.get(assetID);
+	}
+
 	/**
 	 * Get the token index for this adapter
 	 * @return Token index
@@ -0,0 +1,74 @@
+package tokengine.adapter;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import convex.core.data.ACell;
+import convex.core.data.AccountKey;
+
+/**
+ * Bounded cache of account public keys, so that verifying signatures from an account does not need a
+ * network lookup of its key every time.
+ *
+ * Entries expire after a time to live, which bounds how long a rotated key is still accepted. Callers
+ * should also invalidate an entry when a signature fails to verify against it, since the account may
+ * have a new key. When the cache reaches its maximum size it is cleared, as with UserKeyCache.
+ */
+public class AccountKeyCache {
+
+	private record Entry(AccountKey key, long expiry) {}
+
+	private final int maxSize;
+	private final long ttl;
+	private final ConcurrentHashMap<ACell,Entry> keys=new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a cache
+	 * @param maxSize Maximum number of accounts cached
+	 * @param ttl Time to live for entries in milliseconds
+	 */
+	public AccountKeyCache(int maxSize, long ttl) {
+		this.maxSize=maxSize;
+		this.ttl=ttl;
+	}
+
+	/**
+	 * Gets a cached account key
+	 * @param account Account identifier, e.g. a CVM Address
+	 * @return Public key, or null if not cached or expired
+	 */
+	public AccountKey get(ACell account) {
+		Entry e=keys.get(account);
+		if (e==null) return null;
+		if (System.currentTimeMillis()>=e.expiry()) {
+			keys.remove(account, e);
+			return null;
+		}
+		return e.key();
+	}
+
+	/**
+	 * Adds an account key to the cache
+	 * @param account Account identifier
+	 * @param key Current public key for the account
+	 */
+	public void put(ACell account, AccountKey key) {
+		if (keys.size()>=maxSize) keys.clear();
+		keys.put(account, new Entry(key,System.currentTimeMillis()+ttl));
+	}
+
+	/**
+	 * Removes an account key, e.g. because the account may have rotated its key
+	 * @param account Account identifier
+	 */
+	public void invalidate(ACell account) {
+		keys.remove(account);
+	}
+
+	/**
+	 * Gets the number of cached entries
+	 * @return Cache size
+	 */
+	public int size() {
+		return keys.size();
+	}
+}
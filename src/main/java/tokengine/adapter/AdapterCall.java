@@ -0,0 +1,12 @@
+package tokengine.adapter;
+
+/**
+ * A call to a DLT adapter, as wrapped by Engine.callAdapter for instrumentation
+ *
+ * @param <R> Result type
+ * @param <E> Exception type thrown by the call
+ */
+@FunctionalInterface
+public interface AdapterCall<R, E extends Exception> {
+	public R call() throws E;
+}
@@ -0,0 +1,59 @@
+package tokengine.adapter;
+
+import convex.core.data.prim.AInteger;
+
+/**
+ * A single balance query, as used for batched balance requests to an adapter.
+ * 
+ * Adapters complete each query with either a balance or an error, so that one failed 
+ * lookup does not fail the whole batch.
+ */
+public class BalanceQuery {
+
+	/** Asset identifier, as accepted by {@link AAdapter#getBalance(String, String)} */
+	public final String asset;
+	
+	/** Address of the account to query */
+	public final String address;
+	
+	private AInteger balance=null;
+	private Exception error=null;
+	private boolean done=false;
+	
+	public BalanceQuery(String asset, String address) {
+		this.asset=asset;
+		this.address=address;
+	}
+	
+	/**
+	 * Completes this query with a balance
+	 * @param balance Balance, may be null if the account does not exist
+	 */
+	public synchronized void complete(AInteger balance) {
+		if (done) return;
+		this.balance=balance;
+		this.done=true;
+	}
+	
+	/**
+	 * Completes this query with an error
+	 * @param e Cause of failure
+	 */
+	public synchronized void fail(Exception e) {
+		if (done) return;
+		this.error=e;
+		this.done=true;
+	}
+	
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	public synchronized AInteger getBalance() {
+		return balance;
+	}
+	
+	public synchronized Exception getError() {
+		return error;
+	}
+}
@@ -0,0 +1,57 @@
+package tokengine.adapter;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of concurrent calls to an external network, so that a slow network cannot
+ * tie up every request thread.
+ */
+public class Bulkhead {
+
+	private final int maxConcurrent;
+	private final long waitMillis;
+	private final Semaphore permits;
+
+	/**
+	 * Creates a bulkhead
+	 * @param maxConcurrent Maximum concurrent calls
+	 * @param waitMillis Maximum time to wait for a free slot before rejecting a call
+	 */
+	public Bulkhead(int maxConcurrent, long waitMillis) {
+		this.maxConcurrent=Math.max(1, maxConcurrent);
+		this.waitMillis=waitMillis;
+		this.permits=new Semaphore(this.maxConcurrent);
+	}
+
+	/**
+	 * Tries to enter the bulkhead. Callers that enter must call release() when done.
+	 * @return true if entered, false if full
+	 */
+	public boolean tryAcquire() {
+		if (permits.tryAcquire()) return true;
+		if (waitMillis<=0) return false;
+		try {
+			return permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public void release() {
+		permits.release();
+	}
+
+	/**
+	 * Gets the number of calls currently in progress
+	 * @return Calls in flight
+	 */
+	public int getInFlight() {
+		return maxConcurrent-permits.availablePermits();
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+}
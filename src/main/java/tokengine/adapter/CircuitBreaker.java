@@ -0,0 +1,112 @@
+package tokengine.adapter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for calls to an external network.
+ *
+ * After a number of consecutive failures the breaker opens and calls are rejected immediately for a
+ * cooldown period. After the cooldown a single trial call is allowed (half open): if it succeeds the
+ * breaker closes again, otherwise it re-opens for another cooldown.
+ */
+public class CircuitBreaker {
+
+	protected static final Logger log=LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	private final String name;
+	private final int threshold;
+	private final long cooldownMillis;
+
+	private State state=State.CLOSED;
+	private int failures=0;
+	private long openedAt=0;
+	private boolean trialInFlight=false;
+
+	/**
+	 * Creates a circuit breaker
+	 * @param name Name for logging, e.g. chain ID
+	 * @param threshold Consecutive failures that open the breaker
+	 * @param cooldownMillis Time the breaker stays open before allowing a trial call
+	 */
+	public CircuitBreaker(String name, int threshold, long cooldownMillis) {
+		this.name=name;
+		this.threshold=Math.max(1, threshold);
+		this.cooldownMillis=cooldownMillis;
+	}
+
+	/**
+	 * Checks if a call may proceed. If this returns true, the caller must report the outcome with
+	 * onSuccess(), onFailure() or onIgnored().
+	 * @return true if call allowed
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+			case CLOSED: return true;
+			case OPEN:
+				if (System.currentTimeMillis()-openedAt<cooldownMillis) return false;
+				state=State.HALF_OPEN;
+				trialInFlight=true;
+				return true;
+			case HALF_OPEN:
+				if (trialInFlight) return false;
+				trialInFlight=true;
+				return true;
+			default: return false;
+		}
+	}
+
+	/**
+	 * Reports a successful call
+	 */
+	public synchronized void onSuccess() {
+		failures=0;
+		trialInFlight=false;
+		if (state!=State.CLOSED) {
+			log.info("Circuit breaker closed for {}",name);
+			state=State.CLOSED;
+		}
+	}
+
+	/**
+	 * Reports a call that failed due to the external network, e.g. IO error or timeout
+	 */
+	public synchronized void onFailure() {
+		failures++;
+		trialInFlight=false;
+		if ((state==State.HALF_OPEN)||((state==State.CLOSED)&&(failures>=threshold))) {
+			log.warn("Circuit breaker opened for {} after {} failures",name,failures);
+			state=State.OPEN;
+			openedAt=System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Reports a call whose outcome says nothing about network health, e.g. invalid user input
+	 */
+	public synchronized void onIgnored() {
+		trialInFlight=false;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Gets the time until the breaker will allow a trial call
+	 * @return Milliseconds to wait, or 0 if calls are currently allowed
+	 */
+	public synchronized long getRetryAfterMillis() {
+		if (state!=State.OPEN) return 0;
+		return Math.max(0, openedAt+cooldownMillis-System.currentTimeMillis());
+	}
+}
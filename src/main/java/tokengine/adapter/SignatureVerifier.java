@@ -0,0 +1,200 @@
+package tokengine.adapter;
+
+import java.math.BigInteger;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+import org.web3j.crypto.Keys;
+import org.web3j.crypto.Sign;
+
+import convex.core.crypto.Ed25519Signature;
+import convex.core.crypto.Hashing;
+import convex.core.data.AccountKey;
+import convex.core.data.Blob;
+import convex.core.data.Hash;
+import convex.core.lang.RT;
+
+/**
+ * Verifies signed instructions for all supported signature schemes, shared by all adapters.
+ *
+ * Signature checks are CPU bound, and recovering the signer of a secp256k1 signature is especially
+ * expensive. Each successful check caches the signer against the message hash and signature, so a
+ * repeated check (e.g. a retried payout) is a map lookup. Batches, such as the instructions for a batch of
+ * payouts, are spread across a fork-join pool sized to the available processors.
+ *
+ * When the cache reaches its maximum size it is cleared, as with UserKeyCache.
+ */
+public class SignatureVerifier {
+
+	public enum Scheme {
+		/** Ed25519 signature of the message bytes, as used by Convex */
+		ED25519,
+
+		/** secp256k1 personal signature (r,s,v) of the keccak256 hash of the message, as used by EVM wallets */
+		SECP256K1
+	}
+
+	/**
+	 * A signature to check
+	 * @param scheme Signature scheme
+	 * @param message Signed message bytes
+	 * @param signature Signature bytes
+	 * @param signer Expected signer, either an Ed25519 public key or a 20 byte EVM address
+	 */
+	public record Check(Scheme scheme, Blob message, Blob signature, Blob signer) {}
+
+	private record Key(Scheme scheme, Hash messageHash, Blob signature) {}
+
+	public static final int DEFAULT_CACHE_SIZE=100000;
+
+	/** Batches smaller than this are checked on the calling thread, since handing off costs more than it saves */
+	static final int PARALLEL_THRESHOLD=4;
+
+	private static final SignatureVerifier SHARED=new SignatureVerifier(DEFAULT_CACHE_SIZE);
+
+	private static final ForkJoinPool pool=new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	private final int maxSize;
+
+	/** Signers of previously verified signatures */
+	private final ConcurrentHashMap<Key,Blob> signers=new ConcurrentHashMap<>();
+
+	private final LongAdder hits=new LongAdder();
+	private final LongAdder misses=new LongAdder();
+
+	public SignatureVerifier(int maxSize) {
+		this.maxSize=maxSize;
+	}
+
+	/**
+	 * Gets the shared verifier instance
+	 * @return Shared verifier
+	 */
+	public static SignatureVerifier shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Checks a signature on the calling thread
+	 * @param check Signature to check
+	 * @return true if the signature is valid for the expected signer
+	 * @throws IllegalArgumentException If the signature or signer is malformed for the scheme
+	 */
+	public boolean verify(Check check) {
+		validate(check);
+		Key key=new Key(check.scheme(),Hashing.sha256(check.message().getBytes()),check.signature());
+		Blob cached=signers.get(key);
+		if (cached!=null) {
+			hits.increment();
+			if (cached.equals(check.signer())) return true;
+			// A secp256k1 signature has exactly one signer, which we already know. Ed25519 must be checked against the new key.
+			if (check.scheme()==Scheme.SECP256K1) return false;
+		} else {
+			misses.increment();
+		}
+
+		Blob signer=switch (check.scheme()) {
+			case ED25519 -> verifyEd25519(check)?check.signer():null;
+			case SECP256K1 -> recoverAddress(check.message(), check.signature());
+		};
+		if (signer==null) return false;
+		if (signers.size()>=maxSize) signers.clear();
+		signers.put(key, signer);
+		return signer.equals(check.signer());
+	}
+
+	/**
+	 * Checks a batch of signatures, in parallel if the batch is large enough. Malformed signatures
+	 * are reported as invalid rather than failing the batch.
+	 * @param checks Signatures to check
+	 * @return Array of results, in the same order as the checks
+	 */
+	public boolean[] verifyAll(List<Check> checks) {
+		int n=checks.size();
+		boolean[] results=new boolean[n];
+		if (n<PARALLEL_THRESHOLD) {
+			for (int i=0; i<n; i++) results[i]=tryVerify(checks.get(i));
+		} else {
+			pool.submit(()->IntStream.range(0, n).parallel().forEach(i->results[i]=tryVerify(checks.get(i)))).join();
+		}
+		return results;
+	}
+
+	private boolean tryVerify(Check check) {
+		try {
+			return verify(check);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static void validate(Check check) {
+		long sigLength=check.signature().count();
+		long signerLength=check.signer().count();
+		switch (check.scheme()) {
+			case ED25519:
+				if (sigLength!=64) throw new IllegalArgumentException("Invalid Ed25519 signature length: "+sigLength);
+				if (signerLength!=32) throw new IllegalArgumentException("Invalid Ed25519 public key length: "+signerLength);
+				break;
+			case SECP256K1:
+				if (sigLength!=65) throw new IllegalArgumentException("Invalid secp256k1 signature length: "+sigLength);
+				if (signerLength!=20) throw new IllegalArgumentException("Invalid EVM address length: "+signerLength);
+				break;
+		}
+	}
+
+	private static boolean verifyEd25519(Check check) {
+		AccountKey pk=RT.ensureAccountKey(check.signer());
+		Ed25519Signature sig=Ed25519Signature.wrap(check.signature().getBytes());
+		return sig.verify(check.message(), pk);
+	}
+
+	/**
+	 * Recovers the EVM address that made a personal signature
+	 * @param message Signed message
+	 * @param signature 65 byte signature (r,s,v)
+	 * @return 20 byte address, or null if no signer can be recovered
+	 */
+	static Blob recoverAddress(Blob message, Blob signature) {
+		byte[] bs=signature.getBytes();
+		byte v=bs[64]; // recovery id
+		if (v<27) v+=27;
+		Sign.SignatureData sd=new Sign.SignatureData(v, Arrays.copyOfRange(bs, 0, 32), Arrays.copyOfRange(bs, 32, 64));
+		Hash hash=Hashing.keccak256(message.getBytes());
+		try {
+			BigInteger publicKey=Sign.signedPrefixedMessageToKey(hash.getBytes(), sd);
+			return Blob.fromHex(Keys.getAddress(publicKey));
+		} catch (SignatureException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the number of checks answered from the cache
+	 * @return Cache hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Gets the number of checks that needed a signature verification
+	 * @return Cache misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Gets the number of cached signers
+	 * @return Cache size
+	 */
+	public int size() {
+		return signers.size();
+	}
+}
@@ -0,0 +1,57 @@
+package tokengine.adapter;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import convex.core.data.AString;
+
+/**
+ * Bounded cache of canonical user keys. Maps raw address strings to their canonical user key, and 
+ * interns keys so that every form of the same address resolves to the same AString instance.
+ * 
+ * When the cache reaches its maximum size it is cleared, which keeps memory bounded without 
+ * the cost of tracking recency on every hit.
+ */
+public class UserKeyCache {
+
+	private final int maxSize;
+	private final ConcurrentHashMap<String,AString> byInput=new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<AString,AString> canonical=new ConcurrentHashMap<>();
+	
+	public UserKeyCache(int maxSize) {
+		this.maxSize=maxSize;
+	}
+	
+	/**
+	 * Gets a cached user key
+	 * @param input Raw address string
+	 * @return Canonical user key, or null if not cached
+	 */
+	public AString get(String input) {
+		return byInput.get(input);
+	}
+	
+	/**
+	 * Adds a user key to the cache
+	 * @param input Raw address string
+	 * @param key Canonical user key for the address
+	 * @return Interned canonical user key
+	 */
+	public AString put(String input, AString key) {
+		if (byInput.size()>=maxSize) {
+			byInput.clear();
+			canonical.clear();
+		}
+		AString existing=canonical.putIfAbsent(key, key);
+		if (existing!=null) key=existing;
+		byInput.put(input, key);
+		return key;
+	}
+	
+	/**
+	 * Gets the number of cached entries
+	 * @return Cache size
+	 */
+	public int size() {
+		return byInput.size();
+	}
+}
@@ -9,7 +9,6 @@ import org.slf4j.LoggerFactory;
 
 import convex.api.Convex;
 import convex.core.Result;
-import convex.core.crypto.Ed25519Signature;
 import convex.core.cvm.Address;
 import convex.core.cvm.Keywords;
 import convex.core.data.ABlob;
@@ -31,6 +30,11 @@ import convex.core.util.Utils;
 import tokengine.Engine;
 import tokengine.Fields;
 import tokengine.adapter.AAdapter;
+import tokengine.adapter.AccountKeyCache;
+import tokengine.adapter.SignatureVerifier;
+import tokengine.adapter.SignatureVerifier.Check;
+import tokengine.adapter.SignatureVerifier.Scheme;
+import tokengine.exception.AdapterUnavailableException;
 
 /**
  * TokEngine CVM adapter
@@ -45,10 +49,17 @@ public class CVMAdapter extends AAdapter<Address> {
 	
 	private Address operatorAddress;
 	
+	/** Cache of account public keys, for verifying signed instructions */
+	protected final AccountKeyCache accountKeys;
+	
+	private static final int ACCOUNT_KEY_CACHE_SIZE=100000;
+	
+	public static final long DEFAULT_KEY_CACHE_TTL=60000;
+	
 	public CVMAdapter(Engine engine, AMap<AString, ACell> nc) {
 		super(engine,nc);
 		operatorAddress=Address.parse(nc.get(Fields.OPERATOR_ADDRESS));
-
+		accountKeys=new AccountKeyCache(ACCOUNT_KEY_CACHE_SIZE,(long)getConfigNumber(Fields.KEY_CACHE_TTL,DEFAULT_KEY_CACHE_TTL));
 	}
 	
 	public static CVMAdapter build(Engine engine, AMap<AString, ACell> nc) throws IOException, TimeoutException, InterruptedException {
@@ -171,33 +182,31 @@ public class CVMAdapter extends AAdapter<Address> {
 	@Override
 	public Address parseAddress(String caip10) throws IllegalArgumentException {
 		if (caip10 == null) throw new IllegalArgumentException("Null address");
-		String s= caip10.trim();
-		if (s.isEmpty()) throw new IllegalArgumentException("Empty address");
+		int start=0;
+		int end=caip10.length();
+		while ((start<end)&&Character.isWhitespace(caip10.charAt(start))) start++;
+		while ((end>start)&&Character.isWhitespace(caip10.charAt(end-1))) end--;
+		if (start==end) throw new IllegalArgumentException("Empty address");
 
-		int colon=s.lastIndexOf(":");
-		if (colon>=0) {
-			if (!s.startsWith(getChainIDString())) throw new IllegalArgumentException("Wrong chain ID for this adapter: "+s);
-			s=s.substring(colon+1); // take the part after the colon
+		int colon=caip10.lastIndexOf(':',end-1);
+		if (colon>=start) {
+			if (!caip10.startsWith(getChainIDString(),start)) throw new IllegalArgumentException("Wrong chain ID for this adapter: "+caip10);
+			start=colon+1; // take the part after the colon
 		}
 
-		// Accept non-negative integer as valid address
-		try {
-			long l = Long.parseLong(s);
-			if (l < 0) throw new IllegalArgumentException("Negative address not allowed: " + caip10);
-			return Address.create(l);
-		} catch (NumberFormatException e) {
-			// Not a plain integer, fall through
-		}
-
-		// Accept #12345 format
-		if (!s.startsWith("#")) {
-			throw new IllegalArgumentException("Invalid address format - must be non-negative integer or start with #: " + caip10);
-		}
-		Address result = Address.parse(s);
-		if (result == null) {
-			throw new IllegalArgumentException("Invalid address format: " + caip10);
+		// Accept #12345 or a plain non-negative integer
+		if ((start<end)&&(caip10.charAt(start)=='#')) start++;
+		if (start==end) throw new IllegalArgumentException("Invalid address format: " + caip10);
+		long l=0;
+		for (int i=start; i<end; i++) {
+			int d=caip10.charAt(i)-'0';
+			if ((d<0)||(d>9)) {
+				throw new IllegalArgumentException("Invalid address format - must be non-negative integer or start with #: " + caip10);
+			}
+			if (l>(Long.MAX_VALUE-d)/10) throw new IllegalArgumentException("Address out of range: " + caip10);
+			l=l*10+d;
 		}
-		return result;
+		return Address.create(l);
 	}
 
 	@Override
@@ -218,7 +227,7 @@ public class CVMAdapter extends AAdapter<Address> {
 	}
 	
 	@Override
-	public AString parseUserKey(String address) throws IllegalArgumentException {
+	protected AString createUserKey(String address) throws IllegalArgumentException {
 		Address a=parseAddress(address);
 		return a.toCVMString(10);
 	}
@@ -259,15 +268,85 @@ public class CVMAdapter extends AAdapter<Address> {
 		AccountKey pk=AccountKey.parse(publicKey);
 		if (pk==null) throw new IllegalArgumentException("Invalid Convex account key: "+publicKey);
 		
+		return verify(messageText, signature, pk);
+	}
+	
+	private static boolean verify(String messageText, String signature, AccountKey pk) {
+		return SignatureVerifier.shared().verify(getCheck(messageText, signature, pk));
+	}
+	
+	private static Check getCheck(String messageText, String signature, AccountKey pk) {
 		Blob sigData=Blob.parse(signature);
 		if (sigData==null) throw new IllegalArgumentException("Invalid signature data: "+signature);
 		
 		AString msg=Strings.create(messageText);
 		if (msg==null) throw new IllegalArgumentException("Invalid message: "+msg);
 		
-		Ed25519Signature sig = Ed25519Signature.wrap(sigData.getBytes());
+		return new Check(Scheme.ED25519, msg.toFlatBlob(), sigData, Blob.wrap(pk.getBytes()));
+	}
+
+	private static boolean verify(Blob message, Blob signature, AccountKey pk) {
+		Check check=new Check(Scheme.ED25519, message, signature, Blob.wrap(pk.getBytes()));
+		return SignatureVerifier.shared().verify(check);
+	}
+	
+	@Override
+	public boolean verifyInstruction(String account, String messageText, String signature) {
+		Address addr=parseAddress(account);
+		if (addr==null) throw new IllegalArgumentException("Invalid Convex account: "+account);
+		AccountKey cached=accountKeys.get(addr);
+		AccountKey key=(cached!=null)?cached:getAccountKey(addr);
+		if (key==null) return false; // not a user account
+		if (verify(messageText, signature, key)) return true;
+		if (cached==null) return false;
 		
-		return sig.verify(msg.toFlatBlob(), pk);
+		// The account may have rotated its key since it was cached, so check once against the current key
+		accountKeys.invalidate(addr);
+		AccountKey current=getAccountKey(addr);
+		if ((current==null)||current.equals(cached)) return false;
+		return verify(messageText, signature, current);
+	}
+	
+	@Override
+	public Check getInstructionCheck(String account, String messageText, String signature) {
+		Address addr=parseAddress(account);
+		if (addr==null) throw new IllegalArgumentException("Invalid Convex account: "+account);
+		AccountKey cached=accountKeys.get(addr);
+		AccountKey key=(cached!=null)?cached:getAccountKey(addr);
+		if (key==null) return null; // not a user account
+		return getCheck(messageText, signature, key);
+	}
+	
+	/**
+	 * Looks up the current public key of an account, and caches it. The query goes through the adapter's
+	 * circuit breaker and bulkhead, so an unresponsive peer can't hold up payout threads.
+	 * @param addr Account address
+	 * @return Account key, or null if the account does not exist or is not a user account
+	 * @throws AdapterUnavailableException If the peer rejected or failed the query
+	 */
+	private AccountKey getAccountKey(Address addr) {
+		try {
+			return engine.callAdapter(this,"getAccountKey",()->queryAccountKey(addr));
+		} catch (IOException e) {
+			throw new AdapterUnavailableException("Unable to get account key for "+addr+" on "+getChainID()+": "+e.getMessage(),KEY_RETRY_AFTER);
+		}
+	}
+	
+	/** Suggested retry delay after a failed account key lookup */
+	private static final long KEY_RETRY_AFTER=1000;
+	
+	private AccountKey queryAccountKey(Address addr) throws IOException {
+		Result r;
+		try {
+			r=convex.querySync("(get (account "+addr+") :key)");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted getting account key for "+addr,e);
+		}
+		if (r.isError()) throw new IOException("Query failed with "+r.getErrorCode(),new ResultException(r));
+		AccountKey key=RT.ensureAccountKey(r.getValue());
+		if (key!=null) accountKeys.put(addr, key);
+		return key;
 	}
 
 	@Override
@@ -340,12 +419,12 @@ public class CVMAdapter extends AAdapter<Address> {
 			Address addr=parseAddress(userKey);
 			if (addr==null) return false;
 		
-			AccountKey key=RT.ensureAccountKey(convex.querySync("(get (account "+addr+") :key)").getValue());
+			AccountKey key=accountKeys.get(addr);
+			if (key==null) key=getAccountKey(addr);
 			if (key==null) return false; // not a user account 
 			
-			Ed25519Signature sig=Ed25519Signature.wrap(signature.getBytes());
-			return sig.verify(message.toFlatBlob(), key);
-		} catch (InterruptedException e) {
+			return verify(message.toFlatBlob(), signature.toFlatBlob(), key);
+		} catch (IllegalStateException | IllegalArgumentException e) {
 			return false;
 		}
 	}
@@ -3,7 +3,6 @@ package tokengine.adapter.evm;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -19,23 +18,21 @@ import org.web3j.abi.datatypes.Type;
 import org.web3j.contracts.eip20.generated.ERC20;
 import org.web3j.crypto.CipherException;
 import org.web3j.crypto.Credentials;
-import org.web3j.crypto.Keys;
-import org.web3j.crypto.Sign;
 import org.web3j.crypto.WalletUtils;
 import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.BatchRequest;
 import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.Response;
 import org.web3j.protocol.core.methods.response.EthGetBalance;
 import org.web3j.protocol.core.methods.response.TransactionReceipt;
 import org.web3j.protocol.http.HttpService;
 import org.web3j.tx.gas.DefaultGasProvider;
 
-import convex.core.crypto.Hashing;
 import convex.core.data.ABlob;
 import convex.core.data.ACell;
 import convex.core.data.AMap;
 import convex.core.data.AString;
 import convex.core.data.Blob;
-import convex.core.data.Hash;
 import convex.core.data.Strings;
 import convex.core.data.prim.AInteger;
 import convex.core.data.prim.CVMLong;
@@ -44,6 +41,13 @@ import convex.core.util.FileUtils;
 import tokengine.Engine;
 import tokengine.Fields;
 import tokengine.adapter.AAdapter;
+import tokengine.adapter.BalanceQuery;
+import tokengine.adapter.SignatureVerifier;
+import tokengine.adapter.SignatureVerifier.Check;
+import tokengine.adapter.SignatureVerifier.Scheme;
+import tokengine.rpc.RPCEndpoint;
+import tokengine.rpc.RPCPool;
+import tokengine.rpc.RPCTransport;
 
 /**
  * TokeEngine EVM adapter
@@ -83,7 +87,8 @@ public class EVMAdapter extends AAdapter<AString> {
 		} 
 	}
 
-	Web3j web3;
+	/** Pool of RPC providers. Reads may be hedged across providers, transactions go to the best provider only */
+	RPCPool<Web3j> rpc;
 	List<Credentials> loadedWallets = new ArrayList<>();
 	
 	public static EVMAdapter build(Engine engine, AMap<AString, ACell> nc) {
@@ -100,9 +105,12 @@ public class EVMAdapter extends AAdapter<AString> {
 			log.warn("No operatorAddress specified in config for EVMAdapter");
 		}
 		
-		AString url=RT.getIn(config, Fields.URL);
-		if (url==null) throw new IllegalStateException("No Ethereum RPC ndoe specified, should be in networks[..].url");
-		web3 = Web3j.build(new HttpService(url.toString()));
+		if (RPCPool.getURLs(config).isEmpty()) throw new IllegalStateException("No Ethereum RPC ndoe specified, should be in networks[..].url");
+		// Each provider URL gets its own rate limit, since quotas are per provider
+		rpc = RPCPool.fromConfig(config, url->{
+			RPCEndpoint endpoint=RPCEndpoint.fromConfig(url, config);
+			return Web3j.build(new HttpService(url, RPCTransport.shared().getOkHttpClient(endpoint)));
+		});
 
 
 
@@ -121,7 +129,7 @@ public class EVMAdapter extends AAdapter<AString> {
 	@Override 
 	public AInteger getBalance(String asset, String address) throws IOException {
 		if (isEth(asset)) {
-			EthGetBalance balanceResponse = getWeb3().ethGetBalance(address, DefaultBlockParameterName.LATEST).send(); 
+			EthGetBalance balanceResponse = rpc.hedge(w->w.ethGetBalance(address, DefaultBlockParameterName.LATEST).send()); 
 			if (balanceResponse.hasError()) {
 				throw new IllegalStateException("Can't get ETH balance");
 			} else {
@@ -133,9 +141,8 @@ public class EVMAdapter extends AAdapter<AString> {
 			
 			Credentials cred=Credentials.create("0x0", address); // 0x0 = no private key, not needed
 			
-			ERC20 contract = ERC20.load(contractAddress, getWeb3(), cred, new DefaultGasProvider());
 			try {
-				BigInteger bi=contract.balanceOf(address).send();
+				BigInteger bi=rpc.hedge(w->ERC20.load(contractAddress, w, cred, new DefaultGasProvider()).balanceOf(address).send());
 				return AInteger.create(bi);
 			} catch (Exception e) {
 				throw new IOException("Failure getting ERC20 balance",e);
@@ -146,6 +153,55 @@ public class EVMAdapter extends AAdapter<AString> {
 	}
 	
 
+	/**
+	 * Gets balances in bulk. ETH balance queries are sent as JSON-RPC batches of up to batchSize 
+	 * requests, since providers limit batch sizes. Other assets are queried individually.
+	 */
+	@Override
+	public void getBalances(List<BalanceQuery> queries) {
+		ArrayList<BalanceQuery> ethQueries=new ArrayList<>();
+		ArrayList<BalanceQuery> others=new ArrayList<>();
+		for (BalanceQuery q: queries) {
+			if (isEth(q.asset)) {
+				ethQueries.add(q);
+			} else {
+				others.add(q);
+			}
+		}
+		
+		for (int from=0; from<ethQueries.size(); from+=batchSize) {
+			List<BalanceQuery> chunk=ethQueries.subList(from, Math.min(from+batchSize, ethQueries.size()));
+			if (chunk.size()<2) continue;
+			try {
+				List<? extends Response<?>> responses=rpc.call(w->{
+					BatchRequest batch=w.newBatch();
+					for (BalanceQuery q: chunk) {
+						batch.add(w.ethGetBalance(q.address, DefaultBlockParameterName.LATEST));
+					}
+					return batch.send().getResponses();
+				});
+				for (int i=0; i<chunk.size(); i++) {
+					BalanceQuery q=chunk.get(i);
+					EthGetBalance r=(i<responses.size())?(EthGetBalance)responses.get(i):null;
+					if ((r==null)||r.hasError()) {
+						q.fail(new IOException("Can't get ETH balance for "+q.address));
+					} else {
+						q.complete(AInteger.create(r.getBalance()));
+					}
+				}
+			} catch (Exception e) {
+				// RPC provider may not support batches, fall back to individual queries below
+				log.debug("ETH balance batch failed, querying individually: "+e.getMessage());
+			}
+		}
+		
+		// Anything not yet completed is queried individually
+		for (BalanceQuery q: ethQueries) {
+			if (!q.isDone()) others.add(q);
+		}
+		super.getBalances(others);
+	}
+
 	@Override
 	public AInteger getOperatorBalance(String asset) throws IOException {
 		return getBalance(asset,getOperatorAddress().toString());
@@ -159,21 +215,33 @@ public class EVMAdapter extends AAdapter<AString> {
 	@Override
 	public AString parseAddress(String caip10) throws IllegalArgumentException {
 		if (caip10 == null) throw new IllegalArgumentException("Null address");
-		String s = caip10.trim();
-		if (s.isEmpty()) throw new IllegalArgumentException("Empty address");
+		int start=0;
+		int end=caip10.length();
+		while ((start<end)&&Character.isWhitespace(caip10.charAt(start))) start++;
+		while ((end>start)&&Character.isWhitespace(caip10.charAt(end-1))) end--;
+		if (start==end) throw new IllegalArgumentException("Empty address");
 		
-		int colon=s.lastIndexOf(":");
-		if (colon>=0) {
-			if (!s.startsWith(getChainIDString())) throw new IllegalArgumentException("Wrong chain ID for this adapter: "+s);
-			s=s.substring(colon+1); // take the part after the colon
+		int colon=caip10.lastIndexOf(':',end-1);
+		if (colon>=start) {
+			if (!caip10.startsWith(getChainIDString(),start)) throw new IllegalArgumentException("Wrong chain ID for this adapter: "+caip10);
+			start=colon+1; // take the part after the colon
 		}
 	
-		if (s.startsWith("0x") || s.startsWith("0X")) s = s.substring(2);
-		s = s.toLowerCase();
-		if (s.length() != 40) throw new IllegalArgumentException("Invalid hex length for EVM Adapter: " + caip10);
-		// Validate hex
-		if (!s.matches("[0-9a-f]{40}")) throw new IllegalArgumentException("Invalid hex address for EVM Adapter: " + caip10);
-		return convex.core.data.Strings.create(s);
+		if ((end-start>=2)&&(caip10.charAt(start)=='0')&&((caip10.charAt(start+1)|0x20)=='x')) start+=2;
+		if (end-start != 40) throw new IllegalArgumentException("Invalid hex length for EVM Adapter: " + caip10);
+		
+		// Validate and lowercase hex in a single pass
+		char[] hex=new char[40];
+		for (int i=0; i<40; i++) {
+			char c=caip10.charAt(start+i);
+			if ((c>='A')&&(c<='F')) {
+				c=(char)(c+('a'-'A'));
+			} else if (!(((c>='0')&&(c<='9'))||((c>='a')&&(c<='f')))) {
+				throw new IllegalArgumentException("Invalid hex address for EVM Adapter: " + caip10);
+			}
+			hex[i]=c;
+		}
+		return Strings.create(new String(hex));
 	}
 	
 	@Override
@@ -246,7 +314,7 @@ public class EVMAdapter extends AAdapter<AString> {
 	        // Load the ERC20 contract
 	        ERC20 contract = ERC20.load(
 	            token, // Token contract address
-	            web3,
+	            getWeb3(),
 	            credentials,
 	            new DefaultGasProvider()
 	        );
@@ -332,60 +400,41 @@ public class EVMAdapter extends AAdapter<AString> {
 	
 	@Override
 	public boolean validateSignature(String userKey, ABlob signature, ABlob message) {
+		Blob pk = Blob.parse(userKey);
+		if (pk == null) return false;
 		try {
-			Blob pk = Blob.parse(userKey);
-			
-			Sign.SignatureData signatureData = getSigData(signature.getBytes());
-			String recoveredAddress = recoverAddress(message, signatureData);
-			return recoveredAddress.equalsIgnoreCase(pk.toHexString());
-		} catch (SignatureException e) {
+			return verify(message.toFlatBlob(), signature.toFlatBlob(), pk);
+		} catch (IllegalArgumentException e) {
 			return false;
 		}
 	}
 	
 	@Override
 	public boolean verifyPersonalSignature(String message, String signature, String address) {
-		try {		
-			Blob pk = Blob.parse(address);
-			if (pk == null) throw new IllegalArgumentException("Invalid EVM address: " + address);
-			if (pk.count() != 20) throw new IllegalArgumentException("Invalid EVM address length: " + pk.count());
-	
-			Blob sigData = Blob.parse(signature);
-			if (sigData == null) throw new IllegalArgumentException("Invalid signature data: " + signature);
-	
-			AString msg = Strings.create(message);
-			if (msg == null) throw new IllegalArgumentException("Invalid message: " + msg);
-			
-			Sign.SignatureData signatureData = getSigData(sigData.getBytes());
-			String recoveredAddress = recoverAddress(msg.toBlob(), signatureData);
-			
-			return recoveredAddress.equalsIgnoreCase(pk.toHexString());
-		} catch (SignatureException e) {
-			return false;
-		}
+		return SignatureVerifier.shared().verify(getPersonalSignatureCheck(message, signature, address));
 	}
 
-	private String recoverAddress(ABlob msg, Sign.SignatureData signatureData) throws SignatureException {
-		Hash hash=Hashing.keccak256(msg.getBytes());
-		BigInteger publicKey;
-		publicKey = Sign.signedPrefixedMessageToKey(hash.getBytes(), signatureData);
-
-		String recoveredAddress = Keys.getAddress(publicKey);
-		return recoveredAddress;
+	@Override
+	public Check getInstructionCheck(String account, String message, String signature) {
+		return getPersonalSignatureCheck(message, signature, parseAddress(account).toString());
 	}
-	
-	Sign.SignatureData getSigData(byte[] signatureBytes) {
-		byte[] r = new byte[32];
-		byte[] s = new byte[32];
-		System.arraycopy(signatureBytes, 0, r, 0, 32); // First 32 bytes
-		System.arraycopy(signatureBytes, 32, s, 0, 32); // Next 32 bytes
-		byte v = signatureBytes[64]; // Last byte (recovery id)
-		
-		if (v < 27) {
-            v += 27;
-        }
+
+	private static Check getPersonalSignatureCheck(String message, String signature, String address) {
+		Blob pk = Blob.parse(address);
+		if (pk == null) throw new IllegalArgumentException("Invalid EVM address: " + address);
+		if (pk.count() != 20) throw new IllegalArgumentException("Invalid EVM address length: " + pk.count());
+
+		Blob sigData = Blob.parse(signature);
+		if (sigData == null) throw new IllegalArgumentException("Invalid signature data: " + signature);
+
+		AString msg = Strings.create(message);
+		if (msg == null) throw new IllegalArgumentException("Invalid message: " + msg);
 		
-		return new Sign.SignatureData(v, r, s);
+		return new Check(Scheme.SECP256K1, msg.toFlatBlob(), sigData, pk);
+	}
+
+	private static boolean verify(Blob message, Blob signature, Blob address) {
+		return SignatureVerifier.shared().verify(new Check(Scheme.SECP256K1, message, signature, address));
 	}
 
 	@SuppressWarnings("rawtypes")
@@ -395,7 +444,7 @@ public class EVMAdapter extends AAdapter<AString> {
 		AString erc20Contract=parseERC20TokenID(tokenID);
 		
 		String txS="0x"+tx.toHexString(); // 0x needed in transaction hash for RPC
-		TransactionReceipt receipt = getWeb3().ethGetTransactionReceipt(txS).send().getTransactionReceipt().orElse(null);
+		TransactionReceipt receipt = rpc.hedge(w->w.ethGetTransactionReceipt(txS).send()).getTransactionReceipt().orElse(null);
 		// String status=receipt.getStatus();
 		// if (status.equals("0x1")) return true;
 		AString from = parseAddress(receipt.getFrom());
@@ -463,7 +512,7 @@ public class EVMAdapter extends AAdapter<AString> {
 	}
 
 	@Override
-	public AString parseUserKey(String address) throws IllegalArgumentException {
+	protected AString createUserKey(String address) throws IllegalArgumentException {
 		AString parsed=parseAddress(address);
 		if (parsed!=null) return parsed; // acceptable address
 		
@@ -557,10 +606,26 @@ public class EVMAdapter extends AAdapter<AString> {
 
 
 	/**
+	 * Gets the Web3j client for the currently healthiest RPC provider
 	 * @return the web3
 	 */
 	public Web3j getWeb3() {
-		return web3;
+		return (rpc==null)?null:rpc.primary();
+	}
+	
+	@Override
+	public AMap<AString,ACell> getHealth() {
+		AMap<AString,ACell> health=super.getHealth();
+		if (rpc!=null) health=health.assoc(Fields.RPC, rpc.getStatus());
+		return health;
+	}
+	
+	/**
+	 * Gets the pool of RPC providers for this network
+	 * @return RPC pool, or null if not started
+	 */
+	public RPCPool<Web3j> getRPC() {
+		return rpc;
 	}
 
 
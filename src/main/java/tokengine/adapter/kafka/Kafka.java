@@ -2,13 +2,14 @@ package tokengine.adapter.kafka;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,21 +23,22 @@ import convex.core.lang.RT;
 import convex.core.util.JSON;
 import tokengine.Engine;
 import tokengine.Fields;
+import tokengine.Tracing;
+import tokengine.rpc.RPCEndpoint;
+import tokengine.rpc.RPCTransport;
 
 public class Kafka {
 	protected static final Logger log=LoggerFactory.getLogger(Kafka.class);
 	
 	private URI uri=null; // URI can be null if audit logging disabled / unavailable
-	private final HttpClient httpClient;
+	private final RPCTransport transport=RPCTransport.shared();
+	private final RPCEndpoint endpoint=RPCEndpoint.create("kafka");
 
 	/**
 	 * Create a kafka logging instance
 	 * @param kafkaLoc
 	 */
 	public Kafka(AString kafkaLoc) {
-		this.httpClient = HttpClient.newBuilder()
-			.connectTimeout(Duration.ofSeconds(10))
-			.build();
 		try {
 			this.uri=(kafkaLoc==null)?null:new URI(kafkaLoc.toString());
 		} catch (URISyntaxException e) {
@@ -51,6 +53,9 @@ public class Kafka {
 	 * We use a single thread executor to ensure log messages get sent in the order they are submitted
 	 */
 	ExecutorService executor = Executors.newSingleThreadExecutor();
+	
+	/** Number of messages submitted but not yet sent */
+	private final AtomicInteger pending=new AtomicInteger();
 
 	/**
 	 * Log a value to Kafka. Can be any JSON value
@@ -58,17 +63,35 @@ public class Kafka {
 	 * @return true if successfully submitted
 	 */
 	public boolean log(AString key, AMap<AString,ACell> value) {
-		executor.submit(()->{
-			if (uri==null) return; // TODO: maybe print one warning?
-			try {
-				doLog(key,value);
-			} catch (Exception e) {
-				log.warn("Failed to queue audit log message to Kafka",e);
-			}
-		});
+		// Capture request key now, since thread locals are not visible in the executor
+		AString logKey=(key!=null)?key:Engine.getRequest();
+		pending.incrementAndGet();
+		try {
+			executor.submit(Tracing.wrap(()->{
+				try {
+					if (uri==null) return; // TODO: maybe print one warning?
+					doLog(logKey,value);
+				} catch (Exception e) {
+					log.warn("Failed to queue audit log message to Kafka",e);
+				} finally {
+					pending.decrementAndGet();
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			pending.decrementAndGet();
+			throw e;
+		}
 		return true;
 	}
 	
+	/**
+	 * Gets the number of audit messages queued but not yet sent
+	 * @return Queue depth
+	 */
+	public int getQueueDepth() {
+		return pending.get();
+	}
+	
 	public CompletableFuture<HttpResponse<String>> doLog(AString key,AMap<AString,ACell> value) {
 		// Construct Kafka message with one record
 		AMap<AString,ACell> record=Maps.of("value",value);
@@ -93,7 +116,9 @@ public class Kafka {
 				.header("Content-Type", CONTENT_TYPE)
 				.POST(HttpRequest.BodyPublishers.ofString(data))
 				.build();
-			CompletableFuture<HttpResponse<String>> future = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+			Tracing.Span span=Tracing.startAsync("kafka.send");
+			CompletableFuture<HttpResponse<String>> future = transport.send(endpoint, request, HttpResponse.BodyHandlers.ofString());
+			future.whenComplete(Tracing.closer(span));
 			future.whenCompleteAsync((r,e)->{
 				if (e!=null) {
 					log.warn("Kafka send failed for "+data,e);
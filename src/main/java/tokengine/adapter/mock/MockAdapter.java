@@ -0,0 +1,202 @@
+package tokengine.adapter.mock;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ABlob;
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Blob;
+import convex.core.data.Blobs;
+import convex.core.data.Strings;
+import convex.core.data.prim.AInteger;
+import convex.core.data.prim.ANumeric;
+import convex.core.data.prim.CVMLong;
+import convex.core.lang.RT;
+import tokengine.Engine;
+import tokengine.Fields;
+import tokengine.adapter.AAdapter;
+
+/**
+ * In-memory DLT adapter for benchmarks, load tests and local development. Makes no external calls.
+ *
+ * Chain IDs are of the form "mock:name". Addresses are arbitrary non-empty strings. Asset IDs are
+ * "slip44:0" for the native token or "token:name" for other tokens.
+ *
+ * Optional config:
+ * - "latency" : simulated RPC latency in milliseconds
+ * - "failureRate" : probability (0.0-1.0) that an RPC call fails with an IOException
+ * - "depositAmount" : amount credited for any valid deposit transaction (default 100)
+ */
+public class MockAdapter extends AAdapter<AString> {
+
+	protected static final Logger log = LoggerFactory.getLogger(MockAdapter.class.getName());
+
+	public static final AString NATIVE_ASSET_ID=Strings.intern("slip44:0");
+
+	public static final AString LATENCY=Strings.intern("latency");
+	public static final AString FAILURE_RATE=Strings.intern("failureRate");
+	public static final AString DEPOSIT_AMOUNT=Strings.intern("depositAmount");
+
+	private static final AString OPERATOR=Strings.intern("operator");
+	private static final AInteger DEFAULT_BALANCE=CVMLong.create(1000000000000L);
+
+	private final long latency;
+	private final double failureRate;
+	private final AInteger depositAmount;
+
+	/** Balances set explicitly, keyed by "asset address" */
+	private final ConcurrentHashMap<String,AInteger> balances=new ConcurrentHashMap<>();
+
+	protected MockAdapter(Engine engine, AMap<AString, ACell> nc) {
+		super(engine, nc);
+		AInteger lat=RT.ensureInteger(nc.get(LATENCY));
+		this.latency=(lat==null)?0:lat.longValue();
+		ACell fr=nc.get(FAILURE_RATE);
+		this.failureRate=(fr instanceof ANumeric n)?n.doubleValue():0.0;
+		AInteger dep=RT.ensureInteger(nc.get(DEPOSIT_AMOUNT));
+		this.depositAmount=(dep==null)?CVMLong.create(100):dep;
+	}
+
+	public static MockAdapter build(Engine engine, AMap<AString, ACell> nc) {
+		AString chainID=RT.getIn(nc, Fields.CHAIN_ID);
+		if (chainID==null) throw new IllegalArgumentException("No mock chain ID: "+nc);
+		return new MockAdapter(engine,nc);
+	}
+
+	@Override
+	public void start() throws Exception {
+		log.info("Started mock adapter "+getChainID()+" latency="+latency+"ms failureRate="+failureRate);
+	}
+
+	@Override
+	public void close() {
+		// nothing to do
+	}
+
+	/**
+	 * Simulates an RPC round trip, applying configured latency and failures
+	 * @throws IOException If a simulated failure occurs
+	 */
+	private void simulateCall() throws IOException {
+		if (latency>0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted during mock call");
+			}
+		}
+		if ((failureRate>0)&&(ThreadLocalRandom.current().nextDouble()<failureRate)) {
+			throw new IOException("Simulated failure on "+getChainID());
+		}
+	}
+
+	/**
+	 * Sets the balance for an address
+	 * @param asset CAIP-19 asset ID
+	 * @param address Address
+	 * @param balance New balance
+	 */
+	public void setBalance(String asset, String address, AInteger balance) {
+		balances.put(asset+" "+parseAddress(address), balance);
+	}
+
+	@Override
+	public AInteger getBalance(String asset, String address) throws IOException {
+		AString addr=parseAddress(address);
+		simulateCall();
+		AInteger bal=balances.get(asset+" "+addr);
+		return (bal==null)?DEFAULT_BALANCE:bal;
+	}
+
+	@Override
+	public AInteger getOperatorBalance(String asset) throws IOException {
+		return getBalance(asset,OPERATOR.toString());
+	}
+
+	@Override
+	public AString parseAddress(String caip10) throws IllegalArgumentException {
+		if (caip10==null) throw new IllegalArgumentException("Null address");
+		String s=caip10.trim();
+		if (s.isEmpty()) throw new IllegalArgumentException("Empty address");
+		return Strings.create(s);
+	}
+
+	@Override
+	public AString parseAddress(Object obj) throws IllegalArgumentException {
+		if (obj instanceof AString a) return parseAddress(a.toString());
+		if (obj instanceof String s) return parseAddress(s);
+		throw new IllegalArgumentException("Cannot parse mock address from: "+obj);
+	}
+
+	@Override
+	protected AString createUserKey(String caip10) throws IllegalArgumentException {
+		return parseAddress(caip10);
+	}
+
+	@Override
+	public AString payout(String token, AInteger quantity, String destAccount) throws Exception {
+		parseAddress(destAccount);
+		simulateCall();
+		return Blobs.createRandom(32).toCVMHexString();
+	}
+
+	@Override
+	public boolean canVerifySignatures() {
+		return false;
+	}
+
+	@Override
+	public boolean verifyPersonalSignature(String message, String signature, String account) {
+		return true;
+	}
+
+	@Override
+	public AString getOperatorAddress() {
+		return OPERATOR;
+	}
+
+	@Override
+	public AInteger checkTransaction(String address, String caipTokenID, Blob tx) throws IOException {
+		parseAddress(address);
+		simulateCall();
+		return depositAmount;
+	}
+
+	@Override
+	public Blob parseTransactionID(AString tx) {
+		if (tx==null) return null;
+		Blob b=Blob.parse(tx.toString());
+		if ((b==null)||(b.count()!=32)) return null;
+		return b;
+	}
+
+	@Override
+	public AString getReceiverAddress() {
+		AString receiver=RT.ensureString(config.get(Fields.RECEIVER_ADDRESS));
+		return (receiver==null)?OPERATOR:receiver;
+	}
+
+	@Override
+	public ACell parseAssetID(String assetID) {
+		String s=assetID.trim().toLowerCase();
+		if (s.startsWith("slip44:")||s.startsWith("token:")) return Strings.create(s);
+		throw new IllegalArgumentException("Invalid mock asset ID: "+assetID);
+	}
+
+	@Override
+	public AString toCAIPAssetID(ACell adapterAssetID) {
+		return RT.ensureString(adapterAssetID);
+	}
+
+	@Override
+	public boolean validateSignature(String userKey, ABlob signature, ABlob message) {
+		return true;
+	}
+}
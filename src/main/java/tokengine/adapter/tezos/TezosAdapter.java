@@ -1,7 +1,9 @@
 package tokengine.adapter.tezos;
 
 import java.io.IOException;
-import java.util.concurrent.CompletableFuture;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +14,7 @@ import convex.core.data.ABlob;
 import convex.core.data.ACell;
 import convex.core.data.AMap;
 import convex.core.data.AString;
+import convex.core.data.AVector;
 import convex.core.data.Blob;
 import convex.core.data.Strings;
 import convex.core.data.prim.AInteger;
@@ -20,14 +23,17 @@ import convex.core.lang.RT;
 import tokengine.Engine;
 import tokengine.Fields;
 import tokengine.adapter.AAdapter;
+import tokengine.adapter.BalanceQuery;
+import tokengine.rpc.RPCEndpoint;
+import tokengine.rpc.RPCPool;
 
 public class TezosAdapter extends AAdapter<AString> {
 
 	private static final Logger log = LoggerFactory.getLogger(TezosAdapter.class.getName());
 	
 	private AString operatorAddress;
-	private TezosHTTP tezosHTTP;
-	private String apiUrl;
+	/** TzKT API clients, one per configured URL */
+	private RPCPool<TezosHTTP> tezosHTTP;
 	
 	private static final AString TEZOS_MAIN=Strings.create("tezos:NetXdQprcVkpaWU");
 	private static final AString TEZOS_GHOST=Strings.create("tezos:NetXnHfVqm9iesp");
@@ -89,20 +95,28 @@ public class TezosAdapter extends AAdapter<AString> {
 			log.warn("No operatorAddress specified in config for TezosAdapter");
 		}
 		
-		AString url=RT.getIn(config, Fields.URL);
-		if (url==null) throw new IllegalStateException("No Tezos RPC URL specified, should be in networks[..].url");
-		apiUrl = url.toString();
+		List<String> urls=RPCPool.getURLs(config);
+		if (urls.isEmpty()) throw new IllegalStateException("No Tezos RPC URL specified, should be in networks[..].url");
 		
-		// Initialise TezosHTTP client
-		tezosHTTP = new TezosHTTP(apiUrl);
+		// Initialise TezosHTTP clients
+		tezosHTTP = RPCPool.fromConfig(config, url->new TezosHTTP(url, RPCEndpoint.fromConfig(url, config)));
 			
-		log.info("TezosAdapter started with API URL: {}", apiUrl);
+		log.info("TezosAdapter started with API URLs: {}", urls);
+	}
+
+	@Override
+	public AMap<AString,ACell> getHealth() {
+		AMap<AString,ACell> health=super.getHealth();
+		if (tezosHTTP!=null) health=health.assoc(Fields.RPC, tezosHTTP.getStatus());
+		return health;
 	}
 
 	@Override
 	public void close() {
 		if (tezosHTTP != null) {
-			tezosHTTP.close();
+			for (RPCPool.Upstream<TezosHTTP> u: tezosHTTP.getUpstreams()) {
+				u.getClient().close();
+			}
 			tezosHTTP = null;
 		}
 	}
@@ -115,8 +129,7 @@ public class TezosAdapter extends AAdapter<AString> {
 		
 		if (isTezos(asset)) {
 			try {
-				CompletableFuture<ACell> future = tezosHTTP.getAccountInfo(address);
-				ACell response = future.get(); // Blocking call for now
+				ACell response = tezosHTTP.hedge(h->h.getAccountInfo(address).get());
 				
 				ACell bal=RT.getIn(response, TZKT_BALANCE);
 				if (bal!=null) {
@@ -131,8 +144,7 @@ public class TezosAdapter extends AAdapter<AString> {
 			// FA2 token balance
 			String contractAddress = asset.substring(4); // skip 'fa2:'
 			try {
-				CompletableFuture<ACell> future = tezosHTTP.getTokenBalance(address,contractAddress);
-				ACell response = future.get(); // Blocking call for now
+				ACell response = tezosHTTP.hedge(h->h.getTokenBalance(address,contractAddress).get());
 				
 				ACell bal=RT.getIn(response, TZKT_BALANCE);
 				if (bal!=null) {
@@ -148,6 +160,56 @@ public class TezosAdapter extends AAdapter<AString> {
 		throw new UnsupportedOperationException("Asset not supported in TezosAdapter: "+asset);
 	}
 
+	/**
+	 * Gets balances in bulk. Tez balances are fetched with TzKT accounts queries of up to batchSize 
+	 * addresses, which keeps the query URL within server limits. Other assets are queried individually.
+	 */
+	@Override
+	public void getBalances(List<BalanceQuery> queries) {
+		ArrayList<BalanceQuery> tezQueries=new ArrayList<>();
+		ArrayList<BalanceQuery> others=new ArrayList<>();
+		for (BalanceQuery q: queries) {
+			if (isTezos(q.asset)) {
+				tezQueries.add(q);
+			} else {
+				others.add(q);
+			}
+		}
+		
+		if (tezosHTTP!=null) for (int from=0; from<tezQueries.size(); from+=batchSize) {
+			List<BalanceQuery> chunk=tezQueries.subList(from, Math.min(from+batchSize, tezQueries.size()));
+			if (chunk.size()<2) continue;
+			try {
+				StringBuilder sb=new StringBuilder();
+				for (BalanceQuery q: chunk) {
+					if (sb.length()>0) sb.append(',');
+					sb.append(parseAddress(q.address));
+				}
+				String addresses=sb.toString();
+				ACell response=tezosHTTP.call(h->h.getAccountBalances(addresses).get());
+				AVector<ACell> accounts=RT.ensureVector(response);
+				HashMap<AString,AInteger> balances=new HashMap<>();
+				if (accounts!=null) for (ACell acc: accounts) {
+					AString addr=RT.ensureString(RT.getIn(acc, Fields.ADDRESS));
+					ACell bal=RT.getIn(acc, TZKT_BALANCE);
+					if ((addr!=null)&&(bal!=null)) balances.put(addr, AInteger.parse(bal));
+				}
+				for (BalanceQuery q: chunk) {
+					AInteger bal=balances.get(parseAddress(q.address));
+					// Accounts unknown to the indexer have zero balance, consistent with getBalance
+					q.complete((bal==null)?CVMLong.ZERO:bal);
+				}
+			} catch (Exception e) {
+				log.debug("Tezos balance batch failed, querying individually: {}", e.getMessage());
+			}
+		}
+		
+		for (BalanceQuery q: tezQueries) {
+			if (!q.isDone()) others.add(q);
+		}
+		super.getBalances(others);
+	}
+
 	@Override
 	public AInteger getOperatorBalance(String asset) throws IOException {
 		AString operatorAddr = getOperatorAddress();
@@ -172,25 +234,27 @@ public class TezosAdapter extends AAdapter<AString> {
 	@Override
 	public AString parseAddress(String caip10) throws IllegalArgumentException {
 		if (caip10 == null) throw new IllegalArgumentException("Null address");
-		String s = caip10.trim();
-		if (s.isEmpty()) throw new IllegalArgumentException("Empty address");
+		int start=0;
+		int end=caip10.length();
+		while ((start<end)&&Character.isWhitespace(caip10.charAt(start))) start++;
+		while ((end>start)&&Character.isWhitespace(caip10.charAt(end-1))) end--;
+		if (start==end) throw new IllegalArgumentException("Empty address");
 				
 		// For testing purposes, skip chain ID validation
-		int colon = s.lastIndexOf(":");
-		if (colon >= 0) {
-			s = s.substring(colon + 1); // take the part after the colon
+		int colon = caip10.lastIndexOf(':',end-1);
+		if (colon >= start) {
+			start = colon + 1; // take the part after the colon
 		}
 		
-		// Validate Tezos address format
-		if (!s.startsWith("tz1") && !s.startsWith("tz2") && !s.startsWith("tz3")) {
+		// Validate Tezos address format: tz1, tz2 or tz3 prefix
+		if ((end-start<3)||!caip10.startsWith("tz",start)||(caip10.charAt(start+2)<'1')||(caip10.charAt(start+2)>'3')) {
 			throw new IllegalArgumentException("Invalid Tezos address format: " + caip10 + " (must start with tz1, tz2, or tz3)");
 		}
 		
 		// Validate Base58Check encoding (includes checksum validation)
 		// byte[] decoded = TezosUtils.getAddressBytes(s);
 		
-		AString result = Strings.create(s);
-		return result;
+		return Strings.create(((start==0)&&(end==caip10.length()))?caip10:caip10.substring(start,end));
 	}
 	
 	@Override
@@ -279,6 +343,11 @@ public class TezosAdapter extends AAdapter<AString> {
 		return Strings.create("placeholder_tx_hash_" + System.currentTimeMillis());
 	}
 
+	@Override
+	public boolean canVerifySignatures() {
+		return false; // verifyPersonalSignature is a placeholder
+	}
+
 	@Override
 	public boolean verifyPersonalSignature(String message, String signature, String caip10) {
 		try {
@@ -311,8 +380,7 @@ public class TezosAdapter extends AAdapter<AString> {
 		
 		try {
 			String txHash = "0x" + tx.toHexString();
-			CompletableFuture<ACell> future = tezosHTTP.getTransactionInfo(txHash);
-			ACell response = future.get(); // Blocking call for now
+			ACell response = tezosHTTP.hedge(h->h.getTransactionInfo(txHash).get());
 			
 			// Parse transaction response to check if it's a valid transfer
 			// This is a simplified implementation
@@ -365,7 +433,7 @@ public class TezosAdapter extends AAdapter<AString> {
 	}
 
 	@Override
-	public AString parseUserKey(String address) throws IllegalArgumentException {
+	protected AString createUserKey(String address) throws IllegalArgumentException {
 		// For Tezos, the user key is typically the public key hash (address)
 		AString addr = parseAddress(address);
 		if (addr == null) {
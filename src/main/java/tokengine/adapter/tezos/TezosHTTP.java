@@ -1,7 +1,6 @@
 package tokengine.adapter.tezos;
 
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.concurrent.CompletableFuture;
@@ -11,7 +10,10 @@ import org.slf4j.LoggerFactory;
 
 import convex.core.data.ACell;
 import convex.core.util.JSON;
+import tokengine.Tracing;
 import tokengine.exception.ResponseException;
+import tokengine.rpc.RPCEndpoint;
+import tokengine.rpc.RPCTransport;
 
 /**
  * Utility class for making HTTP calls to Tezos APIs and returning parsed JSON as ACell objects.
@@ -21,31 +23,42 @@ public class TezosHTTP {
     
     private static final Logger log = LoggerFactory.getLogger(TezosHTTP.class.getName());
     
-    private final HttpClient httpClient;
+    private final RPCTransport transport = RPCTransport.shared();
+    private final RPCEndpoint endpoint;
     private final String apiUrl;
     
     public TezosHTTP(String apiUrl) {
+        this(apiUrl, RPCEndpoint.create(apiUrl));
+    }
+    
+    /**
+     * Creates a Tezos API client
+     * @param apiUrl Base URL of the TzKT API
+     * @param endpoint Timeout, rate limit and retry settings for the API
+     */
+    public TezosHTTP(String apiUrl, RPCEndpoint endpoint) {
         this.apiUrl = apiUrl;
-        this.httpClient = HttpClient.newBuilder()
-            .connectTimeout(java.time.Duration.ofSeconds(10))
-            .build();
+        this.endpoint = endpoint;
     }
     
     /**
      * Makes an HTTP API call to the Tezos API and returns the parsed JSON as an ACell
-     * @param endpoint The API endpoint (without base URL)
+     * @param path The API path (without base URL)
      * @return CompletableFuture containing the parsed JSON response as ACell
      */
-    public CompletableFuture<ACell> makeApiCall(String endpoint) {
+    public CompletableFuture<ACell> makeApiCall(String path) {
         try {
             HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(apiUrl + endpoint))
+                .uri(URI.create(apiUrl + path))
                 .header("Accept", "application/json")
                 .GET()
                 .build();
             
-            return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
-                .thenApplyAsync(response -> {
+            Tracing.Span span = Tracing.startAsync("tezos.http").tag("endpoint", path);
+            CompletableFuture<HttpResponse<String>> sent = transport.send(this.endpoint, request, HttpResponse.BodyHandlers.ofString());
+            sent.whenComplete(Tracing.closer(span));
+            return sent
+                .thenApplyAsync(Tracing.wrap(response -> {
                     if (response.statusCode() != 200) {
                         throw new ResponseException("API call failed with status: " + response.statusCode(),response);
                     }
@@ -56,7 +69,7 @@ public class TezosHTTP {
                         log.error("Failed to parse JSON response: {}", e.getMessage());
                         throw new RuntimeException("Failed to parse JSON response", e);
                     }
-                });
+                }));
                 
         } catch (Exception e) {
             CompletableFuture<ACell> future = new CompletableFuture<>();
@@ -74,6 +87,15 @@ public class TezosHTTP {
         return makeApiCall("/v1/accounts/" + address);
     }
     
+    /**
+     * Gets native tez balances for multiple accounts in a single call
+     * @param addresses Comma separated list of Tezos addresses
+     * @return CompletableFuture containing an array of account records with address and balance
+     */
+    public CompletableFuture<ACell> getAccountBalances(String addresses) {
+        return makeApiCall("/v1/accounts?address.in=" + addresses + "&select=address,balance&limit=10000");
+    }
+    
     /**
      * Gets token balances for an account
      * @param address The Tezos address to query
@@ -96,7 +118,7 @@ public class TezosHTTP {
      * Closes the HTTP client
      */
     public void close() {
-        // HttpClient doesn't need explicit closing in modern Java
+        // Connections belong to the shared RPCTransport, so nothing to close here
         // This method is provided for consistency with other resource management patterns
     }
 
@@ -4,6 +4,8 @@ import static j2html.TagCreator.head;
 import static j2html.TagCreator.link;
 import static j2html.TagCreator.title;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Enumeration;
 
@@ -18,13 +20,19 @@ import convex.core.data.Format;
 import convex.core.data.Keyword;
 import convex.core.data.Maps;
 import convex.core.data.Strings;
+import convex.core.json.JSON5Reader;
 import convex.core.lang.RT;
+import convex.core.lang.Reader;
 import convex.core.util.JSON;
 import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import j2html.tags.DomContent;
 
 public abstract class ATokengineAPI  {
+	
+	/** Content type for lenient JSON5 request bodies. Also used when the Content-Type is missing or unrecognised, but never for "application/json". */
+	public static final String JSON5 = "application/json5";
 
 	/**
 	 * Make a generic HTTP header
@@ -70,14 +78,60 @@ public abstract class ATokengineAPI  {
 		}
 	}
 	
-	/**]
-	 * Set a JSON content type and result value
+	/** Cache of encoded responses for static endpoints */
+	protected final ResponseCache responseCache=new ResponseCache();
+	
+	/**
+	 * Set a JSON content type and result value. Output is compact unless pretty printing is requested.
 	 * @param ctx Javalin context
 	 * @param resultJSON JSON content
 	 */
 	protected void setJSONResult(Context ctx, ACell resultJSON) {
 		ctx.contentType(ContentTypes.JSON);
-		ctx.result(JSON.printPretty(resultJSON).getBytes());		
+		ctx.result(encodeJSON(resultJSON,isPretty(ctx)));		
+	}
+	
+	/**
+	 * Set a JSON result for a rarely changing value, using the response cache. Supports
+	 * conditional requests with If-None-Match, returning 304 if the client already has the current value.
+	 * 
+	 * @param ctx Javalin context
+	 * @param key Cache key, typically the endpoint path
+	 * @param resultJSON JSON content
+	 */
+	protected void setCachedJSONResult(Context ctx, String key, ACell resultJSON) {
+		ResponseCache.Entry e=responseCache.getJSON(key, resultJSON, isPretty(ctx));
+		ctx.header("ETag", e.etag());
+		String match=ctx.header("If-None-Match");
+		if ((match!=null)&&(match.contains(e.etag())||match.trim().equals("*"))) {
+			ctx.status(304);
+			return;
+		}
+		ctx.contentType(ContentTypes.JSON);
+		ctx.result(e.body());
+		ctx.status(200);
+	}
+	
+	/**
+	 * Checks if the client requested pretty printed output with the "pretty" query parameter
+	 * @param ctx Javalin context
+	 * @return True if pretty output requested
+	 */
+	protected boolean isPretty(Context ctx) {
+		String p=ctx.queryParam("pretty");
+		if (p==null) return false;
+		return !"false".equals(p);
+	}
+	
+	/**
+	 * Encode a value as JSON
+	 * @param value Value to encode
+	 * @param pretty True for pretty printed output, false for compact output
+	 * @return JSON String
+	 */
+	public static String encodeJSON(ACell value, boolean pretty) {
+		if (pretty) return JSON.printPretty(value).toString();
+		return JSON.toString(value);
 	}
 
 	protected String calcResponseContentType(Context ctx) {
@@ -98,6 +152,63 @@ public abstract class ATokengineAPI  {
 		return type;
 	}
 	
+	/**
+	 * Determine the codec to use for a request body, based on the Content-Type header.
+	 * 
+	 * Strict JSON is used for "application/json". Unrecognised or missing content types fall 
+	 * back to lenient JSON5 so that hand-written requests (e.g. from curl) continue to work.
+	 * 
+	 * @param ctx Javalin context
+	 * @return Content type to use for decoding
+	 */
+	protected String calcRequestContentType(Context ctx) {
+		String ct=ctx.contentType();
+		if (ct==null) return JSON5;
+		// Order matters: CVX_RAW and JSON5 types contain the shorter type names
+		if (ct.contains(ContentTypes.CVX_RAW)) return ContentTypes.CVX_RAW;
+		if (ct.contains(ContentTypes.CVX)) return ContentTypes.CVX;
+		if (ct.contains(JSON5)) return JSON5;
+		if (ct.contains(ContentTypes.JSON)) return ContentTypes.JSON;
+		return JSON5;
+	}
+	
+	/**
+	 * Reads the request body using the codec determined by the request Content-Type
+	 * @param ctx Javalin context
+	 * @return Decoded request body
+	 * @throws BadRequestResponse if the body cannot be decoded
+	 */
+	protected ACell readRequestBody(Context ctx) {
+		String type=calcRequestContentType(ctx);
+		try {
+			return decodeBody(type,ctx.bodyAsBytes());
+		} catch (Exception e) {
+			throw new BadRequestResponse("Request body parsing failed ("+type+"): "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Decodes a request body in the given content type
+	 * @param type Content type, as returned by calcRequestContentType
+	 * @param body Raw body bytes
+	 * @return Decoded value
+	 * @throws Exception if the body is not valid for the content type
+	 */
+	public static ACell decodeBody(String type, byte[] body) throws Exception {
+		if (ContentTypes.CVX_RAW.equals(type)) {
+			// Binary multi-cell encoding, no text parsing required
+			return Format.decodeMultiCell(Blob.wrap(body));
+		} 
+		
+		if (ContentTypes.JSON.equals(type)) {
+			return JSON.parse(new String(body,StandardCharsets.UTF_8));
+		} else if (ContentTypes.CVX.equals(type)) {
+			return Reader.read(new String(body,StandardCharsets.UTF_8));
+		} else {
+			return JSON5Reader.read(new ByteArrayInputStream(body));
+		}
+	}
+	
 	public int statusForResult(Result r) {
 		if (!r.isError()) {
 			return 200;
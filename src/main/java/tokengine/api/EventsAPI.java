@@ -0,0 +1,190 @@
+package tokengine.api;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.AString;
+import convex.core.data.Strings;
+import convex.core.lang.RT;
+import convex.core.util.JSON;
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.sse.SseClient;
+import tokengine.Engine;
+import tokengine.EngineEvents;
+import tokengine.EngineEvents.Event;
+import tokengine.Fields;
+import tokengine.adapter.AAdapter;
+
+/**
+ * Server-sent events API for subscribing to credit changes.
+ * 
+ * Clients subscribe with optional filters and receive "credit" events as they are committed in the Engine.
+ * Each event has an SSE id equal to its sequence number, so clients reconnecting with Last-Event-ID 
+ * resume from where they left off. If events have been missed, a "reset" event is sent and the client 
+ * should re-sync balances with /api/v1/credits.
+ */
+public class EventsAPI extends ATokengineAPI {
+	
+	protected static final Logger log = LoggerFactory.getLogger(EventsAPI.class.getName());
+
+	private static final String ROUTE = "/api/v1/";
+	
+	/** Maximum events queued for a single subscriber before it is disconnected */
+	public static final int MAX_QUEUE=1000;
+	
+	protected final Engine engine;
+
+	public EventsAPI(Engine engine) {
+		this.engine=engine;
+	}
+
+	@Override
+	public void addRoutes(Javalin javalin) {
+		javalin.sse(ROUTE + "events", this::subscribe);
+	}
+	
+	/**
+	 * Handles an SSE subscription. Query parameters:
+	 * - network: optional network used to canonicalise users and tokens
+	 * - users: comma separated user keys (or addresses if network specified)
+	 * - tokens: comma separated token keys (or token aliases / asset IDs if network specified)
+	 * - since: sequence number to resume from, if Last-Event-ID header not given
+	 * @param client SSE client
+	 */
+	protected void subscribe(SseClient client) {
+		String network=client.ctx().queryParam("network");
+		AAdapter<?> adapter=null;
+		if (network!=null) {
+			adapter=engine.getAdapter(Strings.create(network));
+			if (adapter==null) throw new BadRequestResponse("Can't find network: "+network);
+		}
+		Set<AString> users=parseFilter(client.ctx().queryParam("users"), adapter, false);
+		Set<AString> tokens=parseFilter(client.ctx().queryParam("tokens"), adapter, true);
+		
+		String lastID=client.ctx().header("Last-Event-ID");
+		if (lastID==null) lastID=client.ctx().queryParam("since");
+		
+		Subscription sub=new Subscription(client,users,tokens);
+		EngineEvents events=engine.getEvents();
+		
+		// Register before replay so no events are missed, duplicates are dropped by sequence number
+		events.addListener(sub);
+		client.onClose(()->{
+			events.removeListener(sub);
+			sub.close();
+		});
+		
+		if (lastID!=null) {
+			long since;
+			try {
+				since=Long.parseLong(lastID.trim());
+			} catch (NumberFormatException e) {
+				since=-1;
+			}
+			boolean complete=(since>=0)&&events.replay(since, sub::replay);
+			if (!complete) {
+				client.sendEvent("reset", "{\"seq\":"+events.getLatestSeq()+"}", Long.toString(events.getLatestSeq()));
+			}
+		}
+		
+		client.keepAlive();
+		sub.run();
+	}
+	
+	private Set<AString> parseFilter(String param, AAdapter<?> adapter, boolean isToken) {
+		if (param==null) return null;
+		HashSet<AString> result=new HashSet<>();
+		for (String s: param.split(",")) {
+			s=s.trim();
+			if (s.isEmpty()) continue;
+			AString key;
+			try {
+				if (adapter==null) {
+					key=Strings.create(s);
+				} else if (isToken) {
+					key=engine.getTokenKey(adapter, s);
+				} else {
+					key=adapter.parseUserKey(s);
+				}
+			} catch (IllegalArgumentException e) {
+				throw new BadRequestResponse(e.getMessage());
+			}
+			if (key==null) throw new BadRequestResponse("Unknown "+(isToken?"token":"user")+": "+s);
+			result.add(key);
+		}
+		return result;
+	}
+	
+	/**
+	 * A single subscriber. Events are queued by the publishing thread and sent by the 
+	 * subscriber's own thread, so a slow client never blocks the Engine.
+	 */
+	private static class Subscription implements Consumer<Event> {
+		private final SseClient client;
+		private final Set<AString> users;
+		private final Set<AString> tokens;
+		private final BlockingQueue<Event> queue=new ArrayBlockingQueue<>(MAX_QUEUE);
+		private volatile boolean closed=false;
+		private long lastSent=-1;
+		
+		Subscription(SseClient client, Set<AString> users, Set<AString> tokens) {
+			this.client=client;
+			this.users=users;
+			this.tokens=tokens;
+		}
+		
+		private boolean matches(Event e) {
+			if ((users!=null)&&!users.contains(RT.ensureString(e.data().get(Fields.USER)))) return false;
+			if ((tokens!=null)&&!tokens.contains(RT.ensureString(e.data().get(Fields.TOKEN)))) return false;
+			return true;
+		}
+
+		@Override
+		public void accept(Event e) {
+			if (closed||!matches(e)) return;
+			if (!queue.offer(e)) {
+				// Subscriber too slow, disconnect. Client can resume with Last-Event-ID
+				log.debug("Event subscriber queue full, closing");
+				close();
+			}
+		}
+		
+		void replay(Event e) {
+			if (matches(e)) send(e);
+		}
+		
+		void run() {
+			try {
+				while (!closed&&!client.terminated()) {
+					Event e=queue.take();
+					if (closed) break;
+					send(e);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				client.close();
+			}
+		}
+		
+		private void send(Event e) {
+			if (e.seq()<=lastSent) return;
+			client.sendEvent("credit", JSON.toString(e.data()), Long.toString(e.seq()));
+			lastSent=e.seq();
+		}
+		
+		void close() {
+			closed=true;
+			// wake up sending thread
+			queue.clear();
+			queue.offer(new Event(-1,null));
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package tokengine.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import convex.core.data.ACell;
+import convex.core.data.Hash;
+
+/**
+ * Cache of encoded responses for endpoints that return values which rarely change (config, status etc.)
+ * 
+ * Entries are keyed by endpoint and validated against the value hash, so a cached encoding is 
+ * automatically invalidated whenever the underlying value changes. The value hash also serves 
+ * as a strong ETag for conditional requests.
+ */
+public class ResponseCache {
+
+	/**
+	 * Cached encoding of a value
+	 * @param hash Hash of the encoded value
+	 * @param etag ETag header value for this encoding
+	 * @param body Encoded response body
+	 */
+	public static record Entry(Hash hash, String etag, String body) {}
+	
+	private final ConcurrentHashMap<String,Entry> entries=new ConcurrentHashMap<>();
+	
+	/**
+	 * Gets a cached JSON encoding for a value, encoding and caching if necessary
+	 * @param key Cache key, typically the endpoint path
+	 * @param value Value to encode
+	 * @param pretty True for pretty printed JSON
+	 * @return Cache entry for the value
+	 */
+	public Entry getJSON(String key, ACell value, boolean pretty) {
+		if (pretty) key=key+"?pretty";
+		Hash hash=Hash.get(value);
+		Entry e=entries.get(key);
+		if ((e!=null)&&e.hash().equals(hash)) return e;
+		
+		String etag="\""+hash.toHexString()+(pretty?"-p":"")+"\"";
+		e=new Entry(hash,etag,ATokengineAPI.encodeJSON(value, pretty));
+		entries.put(key, e);
+		return e;
+	}
+	
+	/**
+	 * Clears all cached entries
+	 */
+	public void clear() {
+		entries.clear();
+	}
+}
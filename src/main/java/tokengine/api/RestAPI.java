@@ -3,6 +3,10 @@ package tokengine.api;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,28 +16,44 @@ import convex.core.Result;
 import convex.core.data.ACell;
 import convex.core.data.AMap;
 import convex.core.data.AString;
+import convex.core.data.AVector;
+import convex.core.data.Blob;
+import convex.core.data.Maps;
+import convex.core.data.Strings;
+import convex.core.data.Vectors;
 import convex.core.data.prim.AInteger;
-import convex.core.json.JSON5Reader;
 import convex.core.lang.RT;
-import convex.core.util.JSON;
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.PaymentRequiredResponse;
+import io.javalin.http.UnauthorizedResponse;
 import io.javalin.openapi.HttpMethod;
 import io.javalin.openapi.OpenApi;
 import io.javalin.openapi.OpenApiContent;
 import io.javalin.openapi.OpenApiExampleProperty;
+import io.javalin.openapi.OpenApiParam;
 import io.javalin.openapi.OpenApiRequestBody;
 import io.javalin.openapi.OpenApiResponse;
 import tokengine.Engine;
 import tokengine.Fields;
+import tokengine.IdempotencyCache;
+import tokengine.LedgerExport;
+import tokengine.Reservations;
+import tokengine.Transfers;
 import tokengine.adapter.AAdapter;
+import tokengine.adapter.BalanceQuery;
 import tokengine.api.model.BalanceRequest;
+import tokengine.api.model.BatchRequest;
 import tokengine.api.model.DepositRequest;
+import tokengine.api.model.PayoutBatchRequest;
 import tokengine.api.model.PayoutRequest;
 import tokengine.api.model.TransferRequest;
+import tokengine.exception.AdapterUnavailableException;
+import tokengine.exception.DuplicateRequestException;
 import tokengine.exception.PaymentException;
+import tokengine.exception.StandbyException;
+import tokengine.exception.UnauthorisedException;
 
 public class RestAPI extends ATokengineAPI {
 	
@@ -42,10 +62,34 @@ public class RestAPI extends ATokengineAPI {
 	
 	private static final String TOKENGINE_TAG="TokEngine";
 	
+	/** Header for client supplied idempotency keys */
+	public static final String IDEMPOTENCY_KEY="Idempotency-Key";
+	
+	/** Header set on responses that repeat a stored result */
+	public static final String IDEMPOTENT_REPLAYED="Idempotent-Replayed";
+	
 	protected Engine engine;
+	
+	/** Writer node for state changing requests, if this is a read-only API node */
+	protected final WriterProxy writer;
 
 	public RestAPI(Engine engine) {
 		this.engine=engine;
+		this.writer=WriterProxy.create(engine.getConfig(), engine.getMetrics());
+	}
+	
+	/**
+	 * Forwards a state changing request to the writer node, if this is a read-only API node. A promoted
+	 * node handles requests itself. A standby with no writer rejects the request before doing any work.
+	 * @param ctx Javalin context
+	 * @return true if the request was forwarded
+	 * @throws StandbyException If this is a standby with no writer node
+	 */
+	private boolean forwardToWriter(Context ctx) {
+		if (!engine.getReplication().isStandby()) return false;
+		if (writer==null) throw new StandbyException("TokEngine is a standby and cannot change state until promoted");
+		writer.forward(ctx);
+		return true;
 	}
 
 	private static final String ROUTE = "/api/v1/";
@@ -58,14 +102,19 @@ public class RestAPI extends ATokengineAPI {
 		javalin.post(ROUTE + "balance", this::getBalance);
 		
 		javalin.post(ROUTE + "credit", this::getCredit);
+		
+		javalin.post(ROUTE + "balances", this::getBalances);
+		javalin.post(ROUTE + "credits", this::getCredits);
 
 		
 		javalin.post(ROUTE + "transfer", this::postTransfer);
 		javalin.post(ROUTE + "payout", this::postPayout);
+		javalin.post(ROUTE + "payouts", this::postPayouts);
 		javalin.post(ROUTE + "wrap", this::postWrap);
 		javalin.post(ROUTE + "deposit", this::postDeposit);
 		
 		javalin.get(ROUTE + "config", this::getConfig);
+		javalin.get(ROUTE + "export", this::getExport);
 
 	}
 
@@ -77,11 +126,12 @@ public class RestAPI extends ATokengineAPI {
 			responses = {
 					@OpenApiResponse(
 							status = "200", 
-							description = "Status returned"),})
+							description = "Status returned"),
+					@OpenApiResponse(
+							status = "304", 
+							description = "Not modified since ETag given in If-None-Match")})
 	protected void getStatus(Context ctx) {
-		ctx.header("Content-type", ContentTypes.JSON);
-		ctx.result(JSON.toString(engine.getStatus()));
-		ctx.status(200);
+		setCachedJSONResult(ctx,"status",engine.getStatus());
 	}
 	
 	@OpenApi(path = ROUTE + "config", 
@@ -90,10 +140,12 @@ public class RestAPI extends ATokengineAPI {
 					responses = {
 							@OpenApiResponse(
 									status = "200", 
-									description = "Config returned")})
+									description = "Config returned"),
+					@OpenApiResponse(
+							status = "304", 
+							description = "Not modified since ETag given in If-None-Match")})
 	protected void getConfig(Context ctx) {
-		setJSONResult(ctx,engine.getConfig());
-		ctx.status(200);
+		setCachedJSONResult(ctx,"config",engine.getConfig());
 	}
 	
 	@OpenApi(path = ROUTE + "adapters", 
@@ -102,16 +154,12 @@ public class RestAPI extends ATokengineAPI {
 					responses = {
 							@OpenApiResponse(
 									status = "200", 
-									description = "Adapters listed"),})
+									description = "Adapters listed"),
+					@OpenApiResponse(
+							status = "304", 
+							description = "Not modified since ETag given in If-None-Match")})
 	protected void getAdapters(Context ctx) {
-		ctx.header("Content-type", ContentTypes.JSON);
-		
-		ArrayList<?> handlers=engine.getAdapterConfigs();
-		HashMap<String,Object> data=new HashMap<>();
-		data.put("items",handlers);
-		data.put("count",handlers.size());
-		ctx.result(JSON.toString(data));
-		ctx.status(200);
+		setCachedJSONResult(ctx,"adapters",engine.getAdapterList());
 	}
 	
 	@OpenApi(path = ROUTE + "balance", 
@@ -152,7 +200,7 @@ public class RestAPI extends ATokengineAPI {
 		try {
 			String token=RT.str(src.get(Fields.TOKEN)).toString();
 			String address=RT.str(src.get(Fields.ACCOUNT)).toString();
-			AInteger bal=adapter.getBalance(token,address);
+			AInteger bal=engine.callAdapter(adapter,"getBalance",()->adapter.getBalance(token,address));
 			log.info("Querying balance on network: "+network +" token: "+token+" account: "+address + " bal="+bal);
 			prepareResult(ctx,Result.value(bal));
 		} catch (IOException | IllegalArgumentException | UnsupportedOperationException e) {
@@ -212,15 +260,232 @@ public class RestAPI extends ATokengineAPI {
 		}
 	}
 	
-	private AMap<AString,ACell> parseRequest(Context ctx) {
-		try {
-			ACell data=JSON5Reader.read(ctx.bodyInputStream());
-			AMap<AString,ACell> m=RT.ensureMap(data);
-			if (m==null) throw new BadRequestResponse("JSON Object expected as request body");
-			return m;
-		} catch (Exception e) {
-			throw new BadRequestResponse("JSON Parsing failed: "+e.getMessage());
+	/** Maximum number of sources in a single batch request */
+	public static final int MAX_BATCH=10000;
+	
+	@OpenApi(path = ROUTE + "credits", 
+			methods = HttpMethod.POST, 
+			tags = {TOKENGINE_TAG}, 
+			summary = "Queries virtual balances for multiple sources. All results are taken from the same point-in-time state snapshot.", 
+			operationId = "credits",
+			requestBody = @OpenApiRequestBody(
+					description = "Batch credit request, must provide an array of sources each with a network, token and account.", 
+					content = {@OpenApiContent(
+							from = BatchRequest.class,  
+							type = "application/json")}),
+			responses = {
+					@OpenApiResponse(
+							status = "200", 
+							description = "Array of results returned, each with either a 'value' or an 'error'"),
+					@OpenApiResponse(
+							status = "400", 
+							description = "Bad request, e.g. missing sources array")})
+	protected void getCredits(Context ctx) {
+		AVector<ACell> sources=parseSources(ctx);
+		
+		// Single immutable snapshot for consistent results across the batch
+		ACell state=engine.getStateSnapshot();
+		int n=(int)sources.count();
+		ACell[] results=new ACell[n];
+		for (int i=0; i<n; i++) {
+			try {
+				AMap<AString,ACell> src=RT.ensureMap(sources.get(i));
+				if (src==null) throw new IllegalArgumentException("Expected source object");
+				AAdapter<?> adapter=getSourceAdapter(src);
+				AString token=RT.ensureString(src.get(Fields.TOKEN));
+				if (token==null) throw new IllegalArgumentException("Expected 'token' property for source");
+				AString tokenKey=engine.getTokenKey(adapter, token.toString());
+				if (tokenKey==null) throw new IllegalArgumentException("Token not found for source: "+src);
+				AString address=RT.ensureString(src.get(Fields.ACCOUNT));
+				if (address==null) throw new IllegalArgumentException("Expected 'account' property for source");
+				AString userKey=adapter.parseUserKey(address.toString());
+				results[i]=Maps.of(Fields.VALUE,Engine.getVirtualCredit(state, tokenKey, userKey));
+			} catch (Exception e) {
+				results[i]=Maps.of(Fields.ERROR,e.getMessage());
+			}
+		}
+		prepareResult(ctx,Result.value(Vectors.of((Object[])results)));
+	}
+	
+	@OpenApi(path = ROUTE + "balances", 
+			methods = HttpMethod.POST, 
+			tags = {TOKENGINE_TAG}, 
+			summary = "Queries on-chain balances for multiple sources. Queries are run concurrently per network, batched where the network supports it.", 
+			operationId = "balances",
+			requestBody = @OpenApiRequestBody(
+					description = "Batch balance request, must provide an array of sources each with a network, token and account.", 
+					content = {@OpenApiContent(
+							from = BatchRequest.class,  
+							type = "application/json")}),
+			responses = {
+					@OpenApiResponse(
+							status = "200", 
+							description = "Array of results returned, each with either a 'value' or an 'error'"),
+					@OpenApiResponse(
+							status = "400", 
+							description = "Bad request, e.g. missing sources array")})
+	protected void getBalances(Context ctx) {
+		AVector<ACell> sources=parseSources(ctx);
+		int n=(int)sources.count();
+		
+		BalanceQuery[] queries=new BalanceQuery[n];
+		HashMap<AAdapter<?>,List<BalanceQuery>> byAdapter=new HashMap<>();
+		for (int i=0; i<n; i++) {
+			AMap<AString,ACell> src=RT.ensureMap(sources.get(i));
+			try {
+				if (src==null) throw new IllegalArgumentException("Expected source object");
+				AAdapter<?> adapter=getSourceAdapter(src);
+				AString token=RT.ensureString(src.get(Fields.TOKEN));
+				if (token==null) throw new IllegalArgumentException("Expected 'token' property for source");
+				AString address=RT.ensureString(src.get(Fields.ACCOUNT));
+				if (address==null) throw new IllegalArgumentException("Expected 'account' property for source");
+				queries[i]=new BalanceQuery(token.toString(),address.toString());
+				byAdapter.computeIfAbsent(adapter, a->new ArrayList<>()).add(queries[i]);
+			} catch (Exception e) {
+				queries[i]=new BalanceQuery(null,null);
+				queries[i].fail(e);
+			}
+		}
+		
+		// Fan out to each adapter concurrently, waits for all to complete on close
+		try (ExecutorService ex=Executors.newVirtualThreadPerTaskExecutor()) {
+			for (Map.Entry<AAdapter<?>,List<BalanceQuery>> me: byAdapter.entrySet()) {
+				AAdapter<?> adapter=me.getKey();
+				List<BalanceQuery> batch=me.getValue();
+				ex.submit(()->engine.callAdapter(adapter,"getBalances",()->{
+					adapter.getBalances(batch);
+					return null;
+				}));
+			}
+		}
+		
+		ACell[] results=new ACell[n];
+		for (int i=0; i<n; i++) {
+			BalanceQuery q=queries[i];
+			Exception e=q.getError();
+			if (e!=null) {
+				results[i]=Maps.of(Fields.ERROR,e.getMessage());
+			} else {
+				results[i]=Maps.of(Fields.VALUE,q.getBalance());
+			}
+		}
+		prepareResult(ctx,Result.value(Vectors.of((Object[])results)));
+	}
+	
+	@OpenApi(path = ROUTE + "export", 
+			methods = HttpMethod.GET, 
+			tags = {TOKENGINE_TAG}, 
+			summary = "Streams the full virtual credits ledger from a point-in-time snapshot", 
+			operationId = "export",
+			queryParams = {
+					@OpenApiParam(name = "format", description = "Output format, 'ndjson' (default) or 'cvx-raw'. CVX_RAW may also be requested with the Accept header"),
+					@OpenApiParam(name = "network", description = "Network for token filter (alias or CAIP-2 chainID)"),
+					@OpenApiParam(name = "token", description = "Only export balances of this token, requires network"),
+					@OpenApiParam(name = "user", description = "Only export balances for user keys with this prefix")},
+			responses = {
+					@OpenApiResponse(
+							status = "200", 
+							description = "Ledger streamed"),
+					@OpenApiResponse(
+							status = "400", 
+							description = "Bad request, e.g. unknown network or token")})
+	protected void getExport(Context ctx) throws IOException {
+		String format=ctx.queryParam("format");
+		String type;
+		if (format==null) {
+			type=ContentTypes.CVX_RAW.equals(calcResponseContentType(ctx))?ContentTypes.CVX_RAW:LedgerExport.NDJSON;
+		} else if ("ndjson".equals(format)) {
+			type=LedgerExport.NDJSON;
+		} else if ("cvx-raw".equals(format)) {
+			type=ContentTypes.CVX_RAW;
+		} else {
+			throw new BadRequestResponse("Unsupported export format: "+format);
+		}
+		
+		LedgerExport export=new LedgerExport(engine.getStateSnapshot());
+		String token=ctx.queryParam("token");
+		if (token!=null) {
+			String network=ctx.queryParam("network");
+			if (network==null) throw new BadRequestResponse("Token filter requires 'network' parameter");
+			AString tokenKey;
+			try {
+				tokenKey=engine.getTokenKey(Strings.create(network), token);
+			} catch (IllegalArgumentException e) {
+				throw new BadRequestResponse(e.getMessage());
+			}
+			if (tokenKey==null) throw new BadRequestResponse("Token not found: "+token);
+			export.withToken(tokenKey);
 		}
+		export.withUserPrefix(ctx.queryParam("user"));
+		
+		ctx.status(200);
+		ctx.contentType(type);
+		long n=export.write(ctx.outputStream(), type);
+		log.debug("Exported "+n+" ledger entries");
+	}
+	
+	private AVector<ACell> parseSources(Context ctx) {
+		AMap<AString,ACell> req=parseRequest(ctx);
+		AVector<ACell> sources=RT.ensureVector(req.get(Fields.SOURCES));
+		if (sources==null) throw new BadRequestResponse("Expected 'sources' array");
+		if (sources.count()>MAX_BATCH) throw new BadRequestResponse("Too many sources in batch, maximum is "+MAX_BATCH);
+		return sources;
+	}
+	
+	private AAdapter<?> getSourceAdapter(AMap<AString,ACell> src) {
+		AString network=RT.ensureString(src.get(Fields.NETWORK));
+		if (network==null) throw new IllegalArgumentException("Expected 'network' property for source");
+		AAdapter<?> adapter=engine.getAdapter(network);
+		if (adapter==null) throw new IllegalArgumentException("Can't find network: "+network);
+		return adapter;
+	}
+	
+	/**
+	 * Gets the idempotency key for a request. This is the Idempotency-Key header if given, otherwise
+	 * derived from the deposit transaction (which identifies a deposit, or the instruction for a payout).
+	 * @param ctx Request context
+	 * @param op Operation name
+	 * @param req Parsed request
+	 * @return Key, or null if none available
+	 */
+	private AString getIdempotencyKey(Context ctx, String op, AMap<AString,ACell> req) {
+		String header=ctx.header(IDEMPOTENCY_KEY);
+		if ((header!=null)&&!header.isBlank()) return IdempotencyCache.key(op, header.trim());
+		return deriveIdempotencyKey(op, req);
+	}
+	
+	/**
+	 * Derives the idempotency key for a request from its deposit transaction
+	 * @param op Operation name
+	 * @param req Parsed request
+	 * @return Key, or null if the request has no valid deposit transaction
+	 */
+	private AString deriveIdempotencyKey(String op, AMap<AString,ACell> req) {
+		AString network=RT.ensureString(RT.getIn(req, Fields.SOURCE, Fields.NETWORK));
+		AString tx=RT.ensureString(RT.getIn(req, Fields.DEPOSIT, Fields.TX));
+		if ((network==null)||(tx==null)) return null;
+		AAdapter<?> adapter=engine.getAdapter(network);
+		if (adapter==null) return null;
+		Blob txID=adapter.parseTransactionID(tx);
+		if (txID==null) return null;
+		return IdempotencyCache.key(op, adapter.getChainID()+"/"+txID.toHexString());
+	}
+	
+	/**
+	 * Responds with a stored result for a repeated request
+	 * @param ctx Request context
+	 * @param rec Stored result record
+	 */
+	private void replayResult(Context ctx, AMap<AString,ACell> rec) {
+		ctx.header(IDEMPOTENT_REPLAYED, "true");
+		prepareResult(ctx, Result.value(rec.get(Fields.VALUE)));
+	}
+	
+	private AMap<AString,ACell> parseRequest(Context ctx) {
+		ACell data=readRequestBody(ctx);
+		AMap<AString,ACell> m=RT.ensureMap(data);
+		if (m==null) throw new BadRequestResponse("Object / map expected as request body");
+		return m;
 	}
 
 
@@ -245,21 +510,58 @@ public class RestAPI extends ATokengineAPI {
 													}),
 													@OpenApiExampleProperty(name = "deposit", objects= {
 															@OpenApiExampleProperty(name = "tx", value="0x9d3a3663d32b9ff5cf2d393e433b7b31489d13b398133a35c4bb6e2085bd8e83"),
-															@OpenApiExampleProperty(name = "msg", value="Transfer 1000 to #12 on convex"),
+															@OpenApiExampleProperty(name = "msg", value="Payout 1000 CVM from #11 on convex to #12 on convex as WCVM nonce 8f2e1c expires 1767225600000"),
+															@OpenApiExampleProperty(name = "nonce", value="8f2e1c"),
+															@OpenApiExampleProperty(name = "expires", value="1767225600000"),
 															@OpenApiExampleProperty(name = "sig", value="0xdd48188b1647010d908e9fed4b6726cebd0d65e20f412b8b9ff4868386f05b0a28a9c0e35885c95e2322c2c670743edd07b0e1450ae65c3f6708b61bb3e582371c")
 													}), 
 													@OpenApiExampleProperty(name = "quantity", value = "1000") })}
-						))
+						),
+					headers = {
+							@OpenApiParam(
+									name = IDEMPOTENCY_KEY,
+									description = "Client key identifying this transfer. Defaults to one derived from the deposit transaction.")},
+					responses = {
+							@OpenApiResponse(
+									status = "200", 
+									description = "Transfer completed, value is the payout transaction"),
+							@OpenApiResponse(
+									status = "202", 
+									description = "Transfer in progress, value is the transfer record. Repeat with the same key to check progress."),
+							@OpenApiResponse(
+									status = "401", 
+									description = "Transfer not authorised by a signed payout instruction"),
+							@OpenApiResponse(
+									status = "402", 
+									description = "Transfer failed, e.g. deposit could not be confirmed"),
+							@OpenApiResponse(
+									status = "503", 
+									description = "DLT network unavailable or overloaded, or node is a standby, retry later with the same key")})
 	protected void postTransfer(Context ctx) {
+		if (forwardToWriter(ctx)) return;
 		try {
-			Engine.beginRequest();
+			Engine.beginRequest("transfer");
 			AMap<AString,ACell> req = parseRequest(ctx);
-			AInteger deposited = doDeposit(req);
-			AString o=doPayout(req);
-			log.info("Transfer of tokens, deposited amout="+deposited+"  payout tx="+o);
+			Transfers transfers=engine.getTransfers();
+			String keyHeader=ctx.header(IDEMPOTENCY_KEY);
+			AString key=((keyHeader==null)||keyHeader.isBlank())?transfers.deriveKey(req):Strings.create(keyHeader.trim());
+			ctx.header(IDEMPOTENCY_KEY, key.toString());
 			
-			Result r = Result.value(o);
-			prepareResult(ctx, r);
+			AMap<AString,ACell> rec=transfers.submit(key, req);
+			AString status=RT.ensureString(rec.get(Fields.STATUS));
+			if (Transfers.FAILED.equals(status)) {
+				throw new PaymentRequiredResponse("Transfer failed: "+rec.get(Fields.ERROR));
+			}
+			if (Transfers.CONFIRMED.equals(status)) {
+				AString o=RT.ensureString(rec.get(Fields.TX));
+				log.info("Transfer of tokens, deposited amount="+rec.get(Fields.AMOUNT)+"  payout tx="+o);
+				prepareResult(ctx, Result.value(o));
+			} else {
+				prepareResult(ctx, Result.value(rec.dissoc(Fields.REQUEST)));
+				ctx.status(202);
+			}
+		} catch (AdapterUnavailableException|StandbyException|UnauthorisedException|PaymentRequiredResponse e) {
+			throw e;
 		} catch (Exception e) {
 			log.warn("Could not confirm deposit: "+e.getMessage());
 			throw new PaymentRequiredResponse("Could not confirm deposit: "+e.getMessage());
@@ -289,11 +591,17 @@ public class RestAPI extends ATokengineAPI {
 													}),
 													@OpenApiExampleProperty(name = "deposit", objects= {
 															@OpenApiExampleProperty(name = "tx", value="0x9d3a3663d32b9ff5cf2d393e433b7b31489d13b398133a35c4bb6e2085bd8e83"),
-															@OpenApiExampleProperty(name = "msg", value="Transfer 100000 to #13 on convex"),
+															@OpenApiExampleProperty(name = "msg", value="Payout 1000000 WCVM from #11 on convex:test to #13 on convex:test as CVM nonce 8f2e1c expires 1767225600000"),
+															@OpenApiExampleProperty(name = "nonce", value="8f2e1c"),
+															@OpenApiExampleProperty(name = "expires", value="1767225600000"),
 															@OpenApiExampleProperty(name = "sig", value="0xdd48188b1647010d908e9fed4b6726cebd0d65e20f412b8b9ff4868386f05b0a28a9c0e35885c95e2322c2c670743edd07b0e1450ae65c3f6708b61bb3e582371c")
 													}),
 													@OpenApiExampleProperty(name = "quantity", value = "1000000") })}
 						),
+					headers = {
+							@OpenApiParam(
+									name = IDEMPOTENCY_KEY,
+									description = "Client key identifying this payout. Defaults to one derived from the deposit transaction, if given.")},
 					responses = {
 							@OpenApiResponse(
 									status = "200", 
@@ -303,21 +611,142 @@ public class RestAPI extends ATokengineAPI {
 									description = "Payout not authorised"),
 							@OpenApiResponse(
 									status = "400", 
-									description = "Payout failed, e.g. insufficient virtual balance")})
+									description = "Payout failed, e.g. insufficient virtual balance"),
+							@OpenApiResponse(
+									status = "409", 
+									description = "A previous payout with the same idempotency key has not completed"),
+							@OpenApiResponse(
+									status = "503", 
+									description = "DLT network unavailable or overloaded, or node is a standby, retry later")})
 	protected void postPayout(Context ctx) {
+		if (forwardToWriter(ctx)) return;
 		try {
-			Engine.beginRequest();
+			Engine.beginRequest("payout");
 			AMap<AString,ACell> req=parseRequest(ctx);
-			AString r = doPayout(req);
+			AString key=getIdempotencyKey(ctx,"payout",req);
+			AMap<AString,ACell> previous=claimPayout(key, req);
+			if (previous!=null) {
+				replayResult(ctx,previous);
+				return;
+			}
+			AString r = doClaimedPayout(req,key);
 			// log.warn("Paying out on network: "+chainID +" token: "+token+" account: "+address + " quantity="+q);
 			prepareResult(ctx,Result.value(r));
+		} catch (IllegalArgumentException e) {
+			throw new BadRequestResponse("Payout failed: "+e.getMessage());
+		} finally {
+			Engine.endRequest();
+		}
+	}
+	
+	/** Maximum number of payouts in a single batch request */
+	public static final int MAX_PAYOUT_BATCH=100;
+	
+	@OpenApi(path = ROUTE + "payouts", 
+			methods = HttpMethod.POST, 
+			tags = {TOKENGINE_TAG}, 
+			summary = "Makes multiple payouts of owned tokens. Instruction signatures for the whole batch are verified together, then the payouts are made in order.", 
+			operationId = "payouts",
+			requestBody = @OpenApiRequestBody(
+					description = "Batch payout request, must provide an array of payouts each as for a single payout. Each payout's idempotency key is derived from its deposit transaction.", 
+					content = {@OpenApiContent(
+							from = PayoutBatchRequest.class,  
+							type = "application/json")}),
+			responses = {
+					@OpenApiResponse(
+							status = "200", 
+							description = "Array of results returned, each with either a 'value' (the payout transaction) or an 'error'"),
+					@OpenApiResponse(
+							status = "400", 
+							description = "Bad request, e.g. missing payouts array"),
+					@OpenApiResponse(
+							status = "503", 
+							description = "Node is a standby, retry later")})
+	protected void postPayouts(Context ctx) {
+		if (forwardToWriter(ctx)) return;
+		try {
+			Engine.beginRequest("payouts");
+			AMap<AString,ACell> body=parseRequest(ctx);
+			AVector<ACell> payouts=RT.ensureVector(body.get(Fields.PAYOUTS));
+			if (payouts==null) throw new BadRequestResponse("Expected 'payouts' array");
+			if (payouts.count()>MAX_PAYOUT_BATCH) throw new BadRequestResponse("Too many payouts in batch, maximum is "+MAX_PAYOUT_BATCH);
+			int n=(int)payouts.count();
+			
+			// Signatures are verified together, so each payout finds its signer in the verifier's cache
+			ArrayList<Map.Entry<AAdapter<?>,AMap<AString,ACell>>> signed=new ArrayList<>();
+			for (int i=0; i<n; i++) {
+				AMap<AString,ACell> req=RT.ensureMap(payouts.get(i));
+				AMap<AString,ACell> src=(req==null)?null:RT.ensureMap(req.get(Fields.SOURCE));
+				if (src==null) continue;
+				try {
+					signed.add(Map.entry(getSourceAdapter(src), req));
+				} catch (IllegalArgumentException e) {
+					// reported when the payout is made
+				}
+			}
+			engine.verifyPayoutSignatures(signed);
+			
+			ACell[] results=new ACell[n];
+			for (int i=0; i<n; i++) {
+				try {
+					AMap<AString,ACell> req=RT.ensureMap(payouts.get(i));
+					if (req==null) throw new IllegalArgumentException("Expected payout object");
+					AString key=deriveIdempotencyKey("payout",req);
+					AMap<AString,ACell> previous=claimPayout(key, req);
+					ACell value=(previous!=null)?previous.get(Fields.VALUE):doClaimedPayout(req,key);
+					results[i]=Maps.of(Fields.VALUE,value);
+				} catch (StandbyException e) {
+					throw e;
+				} catch (Exception e) {
+					results[i]=Maps.of(Fields.ERROR,e.getMessage());
+				}
+			}
+			prepareResult(ctx,Result.value(Vectors.of((Object[])results)));
 		} finally {
 			Engine.endRequest();
 		}
 	}
+	
+	/**
+	 * Claims the idempotency key for a payout
+	 * @param key Idempotency key, or null if none
+	 * @param req Payout request
+	 * @return Result record of a previous payout with the same key, or null if the payout should be made
+	 * @throws DuplicateRequestException If a payout with the same key has not completed
+	 */
+	private AMap<AString,ACell> claimPayout(AString key, AMap<AString,ACell> req) {
+		if (key==null) return null;
+		// A payout interrupted before it was sent leaves a pending result but no reservation, so can be retried
+		Reservations reservations=engine.getReservations();
+		return engine.getIdempotencyCache().claim(key, req, true, rec->reservations.get(key)==null);
+	}
+	
+	/**
+	 * Makes a payout after its idempotency key has been claimed, releasing the key afterwards
+	 * @param req Payout request
+	 * @param key Idempotency key claimed for the request, or null if none
+	 * @return Payout transaction
+	 */
+	private AString doClaimedPayout(AMap<AString,ACell> req, AString key) {
+		try {
+			return doPayout(req,key);
+		} catch (RuntimeException e) {
+			// Unless credit is still reserved for a payout with unknown outcome, nothing was paid so allow retries
+			if ((key!=null)&&(engine.getReservations().get(key)==null)) engine.getIdempotencyCache().clearPending(key);
+			throw e;
+		} finally {
+			if (key!=null) engine.getIdempotencyCache().release(key);
+		}
+	}
 
 
-	private AString doPayout(AMap<AString, ACell> req) {
+	/**
+	 * Perform payout
+	 * @param req Payout request
+	 * @param key Idempotency key claimed for the request, or null if none. Also used as the reservation ID.
+	 * @return Payout transaction
+	 */
+	private AString doPayout(AMap<AString, ACell> req, AString key) {
 		AMap<AString,ACell> src = RT.ensureMap(req.get(Fields.SOURCE));
 		if (src==null) throw new BadRequestResponse("Expected 'source' object specifying payor");
 		AString srcUserKey=RT.ensureString(src.get(Fields.ACCOUNT));
@@ -342,8 +771,25 @@ public class RestAPI extends ATokengineAPI {
 		AString destUserKey=RT.ensureString(dest.get(Fields.ACCOUNT));
 		if (destUserKey==null) throw new BadRequestResponse("Expected 'dest.account' string identifying user");
 
-		engine.subtractVirtualCredit(engine.getTokenKey(adapter, token), srcUserKey, q);
-		AString result = engine.makePayout(destUserKey.toString(), token, adapter, q,dep);
+		// Check the signed instruction before any credit is reserved
+		if (!engine.isPayoutAuthorised(adapter, req)) {
+			throw new UnauthorizedResponse("Payout must be authorised by 'deposit.msg' signed by the source account in 'deposit.sig', with an unused 'deposit.nonce' and unexpired 'deposit.expires'");
+		}
+
+		AString tokenKey=engine.getTokenKey(adapter, token);
+		IdempotencyCache cache=engine.getIdempotencyCache();
+		Reservations reservations=engine.getReservations();
+		// The nonce is only recorded as used while credit is reserved, so a failed payout can be retried
+		AString reservation=reservations.reserve(key, tokenKey, srcUserKey, q, engine.getPayoutNonce(adapter, req), null);
+		AString result;
+		try {
+			result = engine.makePayout(destUserKey.toString(), token, adapter, q,dep,()->reservations.submit(reservation, null));
+		} catch (RuntimeException e) {
+			// Restores the credit unless the payout may have been made
+			reservations.onFailure(reservation, e, (key==null)?null:s->cache.withoutResult(s, key));
+			throw e;
+		}
+		reservations.commit(reservation, result, (key==null)?null:s->cache.withResult(s, key, req, result));
 		// log.warn("Payout made: "+r);
 		return result;
 	}
@@ -379,6 +825,10 @@ public class RestAPI extends ATokengineAPI {
 											@OpenApiExampleProperty(name = "deposit", objects= {
 													@OpenApiExampleProperty(name = "tx", value="0x9d3a3663d32b9ff5cf2d393e433b7b31489d13b398133a35c4bb6e2085bd8e83")											}) 
 									})}),
+			headers = {
+					@OpenApiParam(
+							name = IDEMPOTENCY_KEY,
+							description = "Client key identifying this deposit. Defaults to one derived from the deposit transaction.")},
 			responses = {
 					@OpenApiResponse(
 							status = "200", 
@@ -388,19 +838,42 @@ public class RestAPI extends ATokengineAPI {
 							description = "Bad request, see message for reason(s)"),
 					@OpenApiResponse(
 							status = "402", 
-							description = "Deposit not accepted, verified payment required")})
+							description = "Deposit not accepted, verified payment required"),
+					@OpenApiResponse(
+							status = "409", 
+							description = "A deposit with the same idempotency key is in progress"),
+					@OpenApiResponse(
+							status = "503", 
+							description = "DLT network unavailable or overloaded, or node is a standby, retry later")})
 	protected void postDeposit(Context ctx) {
+		if (forwardToWriter(ctx)) return;
 		try {
-			Engine.beginRequest();
+			Engine.beginRequest("deposit");
 			AMap<AString, ACell> req = parseRequest(ctx);
-			AInteger deposited = doDeposit(req);
-			
-			// For now, we'll treat deposit similar to a transfer, using the engine's transfer functionality
-			// log.warn("Deposit made: "+deposited+" "+token+" with proof: "+dep);
-			Result r = Result.value(deposited);
-			prepareResult(ctx, r);
+			AString key=getIdempotencyKey(ctx,"deposit",req);
+			IdempotencyCache cache=engine.getIdempotencyCache();
+			if (key!=null) {
+				// No pending record needed, since receipts already prevent a deposit being credited twice
+				AMap<AString,ACell> previous=cache.claim(key, req, false, null);
+				if (previous!=null) {
+					replayResult(ctx,previous);
+					return;
+				}
+			}
+			try {
+				AInteger deposited = doDeposit(req,key);
+				
+				// For now, we'll treat deposit similar to a transfer, using the engine's transfer functionality
+				// log.warn("Deposit made: "+deposited+" "+token+" with proof: "+dep);
+				Result r = Result.value(deposited);
+				prepareResult(ctx, r);
+			} finally {
+				if (key!=null) cache.release(key);
+			}
 		} catch (PaymentException e) {
 			throw new PaymentRequiredResponse("Could not confirm deposit: "+e.getMessage());
+		} catch (AdapterUnavailableException|DuplicateRequestException|StandbyException e) {
+			throw e;
 		} catch (Exception e) {
 			log.info("Could not confirm deposit: ",e);
 			throw new BadRequestResponse("Could not make deposit: "+e.getMessage());
@@ -412,11 +885,12 @@ public class RestAPI extends ATokengineAPI {
 
 	/**
 	 * Perform deposit
-	 * @param ctx
+	 * @param req Deposit request
+	 * @param key Idempotency key claimed for the request, or null if none
 	 * @return
 	 * @throws IOException
 	 */
-	private AInteger doDeposit(AMap<AString,ACell> req) throws IOException, PaymentException {
+	private AInteger doDeposit(AMap<AString,ACell> req, AString key) throws IOException, PaymentException {
 		AMap<AString,ACell> src = RT.ensureMap(req.get(Fields.SOURCE));
 		if (src == null) throw new BadRequestResponse("Expected 'source' object specifying incoming token");
 		//AInteger q = AInteger.parse(req.get(Strings.create("quantity")));
@@ -442,7 +916,8 @@ public class RestAPI extends ATokengineAPI {
 		String address = addressAS.toString();
 		
 		// Check transaction validity
-		AInteger deposited=engine.makeDeposit(adapter,token,address,dep);
+		IdempotencyCache cache=engine.getIdempotencyCache();
+		AInteger deposited=engine.makeDeposit(adapter,token,address,dep,(key==null)?null:(s,amt)->cache.withResult(s, key, req, amt));
 		if (deposited==null) {
 			throw new PaymentRequiredResponse("Failed to validate deposit: "+dep);
 		}
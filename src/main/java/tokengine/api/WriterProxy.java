@@ -0,0 +1,129 @@
+package tokengine.api;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.prim.AInteger;
+import convex.core.lang.RT;
+import io.javalin.http.BadGatewayResponse;
+import io.javalin.http.Context;
+import io.javalin.http.GatewayTimeoutResponse;
+import io.javalin.http.ServiceUnavailableResponse;
+import tokengine.Fields;
+import tokengine.Metrics;
+
+/**
+ * Forwards state changing requests from a read-only API node to the writer node.
+ *
+ * A read-only API node is a standby that follows the writer's state and serves reads from its own replica.
+ * Deposits, payouts and transfers are passed to the writer's REST API unchanged, including the idempotency
+ * key, and the writer's response is returned to the client as is. A client can therefore retry a forwarded
+ * request against any node.
+ *
+ * If the writer can't be connected to, the request was not sent, so the client is told to retry with 503 and
+ * Retry-After. If the connection fails or times out after the request was sent, the writer may still complete
+ * it, so the node returns 502 or 504, with Retry-After only if the request has an idempotency key that makes a
+ * retry safe.
+ */
+public class WriterProxy {
+
+	/** Default time allowed for the writer to respond, in milliseconds. Payouts wait for on-chain transactions. */
+	public static final long DEFAULT_TIMEOUT=60000;
+
+	/** Request headers passed to the writer */
+	private static final String[] REQUEST_HEADERS= {"Content-Type","Accept",RestAPI.IDEMPOTENCY_KEY};
+
+	/** Writer response headers returned to the client */
+	private static final String[] RESPONSE_HEADERS= {"Content-Type",RestAPI.IDEMPOTENCY_KEY,RestAPI.IDEMPOTENT_REPLAYED,"Retry-After"};
+
+	private final URI writer;
+	private final Duration timeout;
+	private final Metrics metrics;
+	private final HttpClient client;
+
+	WriterProxy(URI writer, long timeout, Metrics metrics) {
+		this.writer=writer;
+		this.timeout=Duration.ofMillis(timeout);
+		this.metrics=metrics;
+		this.client=HttpClient.newBuilder().connectTimeout(Duration.ofMillis(Math.min(timeout, 5000))).build();
+	}
+
+	/**
+	 * Creates a proxy to the writer configured with "operations.writerURL", with a response timeout of
+	 * "operations.writerTimeout" in milliseconds
+	 * @param config TokEngine config
+	 * @param metrics Metrics to record forwarded requests
+	 * @return Proxy, or null if no writer is configured
+	 */
+	public static WriterProxy create(AMap<AString,ACell> config, Metrics metrics) {
+		AString url=RT.ensureString(RT.getIn(config, Fields.OPERATIONS, Fields.WRITER_URL));
+		if (url==null) return null;
+		AInteger t=AInteger.parse(RT.getIn(config, Fields.OPERATIONS, Fields.WRITER_TIMEOUT));
+		long timeout=(t==null)?DEFAULT_TIMEOUT:t.longValue();
+		return new WriterProxy(URI.create(url.toString()), timeout, metrics);
+	}
+
+	/**
+	 * Gets the writer node URL
+	 * @return Writer base URL
+	 */
+	public URI getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Forwards a POST request to the writer and sets the writer's response as the result
+	 * @param ctx Javalin context
+	 */
+	void forward(Context ctx) {
+		String path=ctx.path();
+		String query=ctx.queryString();
+		if (query!=null) path=path+"?"+query;
+		HttpRequest.Builder b=HttpRequest.newBuilder(writer.resolve(path))
+				.timeout(timeout)
+				.POST(HttpRequest.BodyPublishers.ofByteArray(ctx.bodyAsBytes()));
+		for (String h: REQUEST_HEADERS) {
+			String v=ctx.header(h);
+			if (v!=null) b.header(h, v);
+		}
+		b.header("X-Forwarded-For", ctx.ip());
+
+		long start=System.nanoTime();
+		HttpResponse<byte[]> response;
+		try {
+			response=client.send(b.build(), HttpResponse.BodyHandlers.ofByteArray());
+		} catch (ConnectException | HttpConnectTimeoutException e) {
+			metrics.recordForward(ctx.endpointHandlerPath(), 0, System.nanoTime()-start);
+			ctx.header("Retry-After", "1");
+			throw new ServiceUnavailableResponse("Writer node unavailable: "+e.getMessage());
+		} catch (IOException e) {
+			// the writer may have received the request, so only a request with a key can be safely retried
+			metrics.recordForward(ctx.endpointHandlerPath(), 0, System.nanoTime()-start);
+			if (ctx.header(RestAPI.IDEMPOTENCY_KEY)!=null) ctx.header("Retry-After", "1");
+			if (e instanceof HttpTimeoutException) {
+				throw new GatewayTimeoutResponse("Timed out waiting for writer node, the request may still complete");
+			}
+			throw new BadGatewayResponse("Writer node connection failed, the request may still complete: "+e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableResponse("Interrupted waiting for writer node");
+		}
+		metrics.recordForward(ctx.endpointHandlerPath(), response.statusCode(), System.nanoTime()-start);
+
+		for (String h: RESPONSE_HEADERS) {
+			response.headers().firstValue(h).ifPresent(v->ctx.header(h, v));
+		}
+		ctx.status(response.statusCode());
+		ctx.result(response.body());
+	}
+}
@@ -0,0 +1,8 @@
+package tokengine.api.model;
+
+import io.javalin.openapi.OpenApiByFields;
+
+@OpenApiByFields
+public class PayoutBatchRequest {
+	public PayoutRequest[] payouts;
+}
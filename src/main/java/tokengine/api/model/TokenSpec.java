@@ -6,4 +6,5 @@ public class TokenSpec {
 	public String type;
 	public String network;
 	public String token;
+	public String account;
 }
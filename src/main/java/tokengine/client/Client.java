@@ -1,10 +1,8 @@
 package tokengine.client;
 
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
@@ -19,16 +17,17 @@ import convex.core.util.JSON;
 import convex.java.ARESTClient;
 import tokengine.Fields;
 import tokengine.exception.ResponseException;
+import tokengine.rpc.RPCEndpoint;
+import tokengine.rpc.RPCTransport;
 
 public class Client extends ARESTClient {
 
-	private final HttpClient httpClient;
+	private final RPCTransport transport=RPCTransport.shared();
+	private final RPCEndpoint endpoint;
 
 	public Client(URI host) {
 		super(host,"/api/v1/");
-		this.httpClient = HttpClient.newBuilder()
-			.connectTimeout(Duration.ofSeconds(10))
-			.build();
+		this.endpoint=RPCEndpoint.create(host.toString());
 	}
 
 	/**
@@ -92,7 +91,7 @@ public class Client extends ARESTClient {
 			.POST(HttpRequest.BodyPublishers.ofString(jsonBody))
 			.build();
 		
-		CompletableFuture<HttpResponse<String>> future = httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString());
+		CompletableFuture<HttpResponse<String>> future = doRequest(req);
 		return future.thenApplyAsync(resp -> {
 			int code = resp.statusCode();
 			if ((code / 100) == 2) {
@@ -138,7 +137,7 @@ public class Client extends ARESTClient {
 			.POST(HttpRequest.BodyPublishers.ofString(jsonBody))
 			.build();
 		
-		CompletableFuture<HttpResponse<String>> future = httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString());
+		CompletableFuture<HttpResponse<String>> future = doRequest(req);
 		return future.thenApplyAsync(resp -> {
 			int code = resp.statusCode();
 			if ((code / 100) == 2) {
@@ -179,7 +178,7 @@ public class Client extends ARESTClient {
 			.POST(HttpRequest.BodyPublishers.ofString(jsonBody))
 			.build();
 		
-		CompletableFuture<HttpResponse<String>> future = httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString());
+		CompletableFuture<HttpResponse<String>> future = doRequest(req);
 		return future.thenApplyAsync(resp -> {
 			int code = resp.statusCode();
 			if ((code / 100) == 2) {
@@ -202,13 +201,37 @@ public class Client extends ARESTClient {
 		});
 	}
 	
+	/**
+	 * Posts a JSON request body to an API endpoint, returning the raw HTTP response
+	 * @param endpoint Endpoint relative to the API base e.g. "credit"
+	 * @param body Request body, will be encoded as JSON
+	 * @return Future for the HTTP response
+	 */
+	public CompletableFuture<HttpResponse<String>> post(String endpoint, ACell body) {
+		HttpRequest req = HttpRequest.newBuilder()
+			.uri(getBaseURI().resolve(endpoint))
+			.header("Content-Type", "application/json")
+			.POST(HttpRequest.BodyPublishers.ofString(JSON.toString(body)))
+			.build();
+		return doRequest(req);
+	}
+	
+	/**
+	 * Sends a request via the shared RPC transport
+	 * @param request Request object
+	 * @return Future for the HTTP response
+	 */
+	protected CompletableFuture<HttpResponse<String>> doRequest(HttpRequest request) {
+		return transport.send(endpoint, request, HttpResponse.BodyHandlers.ofString());
+	}
+	
 	/**
 	 * Makes a HTTP request as a CompletableFuture
 	 * @param request Request object
 	 * @return Future to be filled with JSON response.
 	 */
 	protected CompletableFuture<ACell> doJSONRequest(HttpRequest request) {
-		CompletableFuture<HttpResponse<String>> future = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+		CompletableFuture<HttpResponse<String>> future = doRequest(request);
 		return future.thenApplyAsync(resp->{
 			int code=resp.statusCode();
 			if ((code/100)==2) {
@@ -247,7 +270,7 @@ public class Client extends ARESTClient {
 			.POST(HttpRequest.BodyPublishers.ofString(jsonBody))
 			.build();
 		
-		CompletableFuture<HttpResponse<String>> future = httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString());
+		CompletableFuture<HttpResponse<String>> future = doRequest(req);
 		return future.thenApplyAsync(resp -> {
 			int code = resp.statusCode();
 			if ((code / 100) == 2) {
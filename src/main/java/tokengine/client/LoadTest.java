@@ -0,0 +1,282 @@
+package tokengine.client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Blobs;
+import convex.core.data.Maps;
+import convex.core.lang.RT;
+import convex.core.util.JSON;
+import tokengine.Fields;
+
+/**
+ * Load generator for a running TokEngine server. Replays a JSONL request trace, or a generated
+ * synthetic trace, at a fixed target rate and reports throughput and latency percentiles.
+ *
+ * Requests are sent open-loop: each request has a scheduled send time and latency is measured
+ * from that time, so a slow server is not hidden by the generator backing off.
+ *
+ * Trace files contain one request per line, e.g.
+ * <pre>
+ * {"endpoint":"credit","body":{"source":{"account":"user1","network":"mockfast","token":"USD"}}}
+ * </pre>
+ * A deposit "tx" of "$random" is replaced by a fresh transaction ID each time it is sent, so that
+ * traces containing deposits can be replayed repeatedly.
+ *
+ * Pair with config-loadtest.json, which uses mock adapters with configurable latency and failure rate.
+ */
+public class LoadTest {
+
+	protected static final Logger log = LoggerFactory.getLogger(LoadTest.class.getName());
+
+	public static final String RANDOM_TX="$random";
+
+	/** Status code recorded for requests that fail without a HTTP response */
+	private static final int NO_RESPONSE=0;
+
+	/** A request in a trace */
+	public record TraceRequest(String endpoint, AMap<AString,ACell> body) {}
+
+	private final Client client;
+	private final List<TraceRequest> trace;
+	private final int rate;
+	private final long durationMillis;
+	private final int maxOutstanding;
+
+	private final ConcurrentHashMap<Integer,LongAdder> statusCounts=new ConcurrentHashMap<>();
+	private final AtomicInteger outstanding=new AtomicInteger();
+	private final LongAdder dropped=new LongAdder();
+
+	/** Latency in nanoseconds for each request, -1 if not completed */
+	private long[] latencies;
+
+	public LoadTest(Client client, List<TraceRequest> trace, int rate, long durationMillis, int maxOutstanding) {
+		if (trace.isEmpty()) throw new IllegalArgumentException("Empty request trace");
+		if (rate<=0) throw new IllegalArgumentException("Rate must be positive");
+		this.client=client;
+		this.trace=trace;
+		this.rate=rate;
+		this.durationMillis=durationMillis;
+		this.maxOutstanding=maxOutstanding;
+	}
+
+	/**
+	 * Reads a JSONL request trace
+	 * @param path Path to trace file
+	 * @return List of requests
+	 * @throws IOException If file cannot be read
+	 */
+	public static List<TraceRequest> readTrace(Path path) throws IOException {
+		List<TraceRequest> result=new ArrayList<>();
+		try (BufferedReader reader=Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line=reader.readLine())!=null) {
+				line=line.trim();
+				if (line.isEmpty()) continue;
+				AMap<AString,ACell> rec=RT.ensureMap(JSON.parse(line));
+				AString endpoint=(rec==null)?null:RT.ensureString(rec.get(Fields.ENDPOINT));
+				AMap<AString,ACell> body=(rec==null)?null:RT.ensureMap(rec.get(Fields.BODY));
+				if ((endpoint==null)||(body==null)) throw new IllegalArgumentException("Trace line needs 'endpoint' and 'body': "+line);
+				result.add(new TraceRequest(endpoint.toString(),body));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a request trace in JSONL format
+	 * @param path Path to trace file
+	 * @param trace Requests to write
+	 * @throws IOException If file cannot be written
+	 */
+	public static void writeTrace(Path path, List<TraceRequest> trace) throws IOException {
+		try (BufferedWriter writer=Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			for (TraceRequest r: trace) {
+				writer.write(JSON.toString(Maps.of(Fields.ENDPOINT,r.endpoint(),Fields.BODY,r.body())));
+				writer.write('\n');
+			}
+		}
+	}
+
+	/**
+	 * Generates a synthetic trace: mostly credit queries, with balance queries and deposits
+	 * @param n Number of requests
+	 * @param users Number of distinct users
+	 * @param networks Network aliases to use
+	 * @param token Token alias
+	 * @return Generated trace
+	 */
+	public static List<TraceRequest> generate(int n, int users, String[] networks, String token) {
+		ThreadLocalRandom rand=ThreadLocalRandom.current();
+		List<TraceRequest> result=new ArrayList<>(n);
+		for (int i=0; i<n; i++) {
+			String network=networks[rand.nextInt(networks.length)];
+			AMap<AString,ACell> source=Maps.of(
+					Fields.ACCOUNT,"user"+rand.nextInt(users),
+					Fields.NETWORK,network,
+					Fields.TOKEN,token);
+			int p=rand.nextInt(100);
+			if (p<60) {
+				result.add(new TraceRequest("credit",Maps.of(Fields.SOURCE,source)));
+			} else if (p<85) {
+				result.add(new TraceRequest("balance",Maps.of(Fields.SOURCE,source)));
+			} else {
+				result.add(new TraceRequest("deposit",Maps.of(Fields.SOURCE,source,Fields.DEPOSIT,Maps.of(Fields.TX,RANDOM_TX))));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Runs the load test, blocking until all requests have completed or timed out
+	 * @throws InterruptedException If interrupted
+	 */
+	public void run() throws InterruptedException {
+		int total=(int)Math.min(Integer.MAX_VALUE-8,(rate*durationMillis)/1000);
+		latencies=new long[total];
+		Arrays.fill(latencies, -1);
+		long interval=TimeUnit.SECONDS.toNanos(1)/rate;
+
+		log.info("Sending "+total+" requests at "+rate+"/s");
+		long start=System.nanoTime();
+		for (int i=0; i<total; i++) {
+			long scheduled=start+i*interval;
+			long wait=scheduled-System.nanoTime();
+			if (wait>0) LockSupport.parkNanos(wait);
+			if (Thread.interrupted()) throw new InterruptedException();
+
+			if (outstanding.get()>=maxOutstanding) {
+				dropped.increment();
+				continue;
+			}
+			send(i,scheduled,trace.get(i%trace.size()));
+		}
+
+		// Wait for stragglers
+		long deadline=System.nanoTime()+TimeUnit.SECONDS.toNanos(60);
+		while ((outstanding.get()>0)&&(System.nanoTime()<deadline)) {
+			Thread.sleep(10);
+		}
+		long elapsed=System.nanoTime()-start;
+		report(System.out,elapsed);
+	}
+
+	private void send(int i, long scheduled, TraceRequest r) {
+		AMap<AString,ACell> body=r.body();
+		ACell tx=RT.getIn(body, Fields.DEPOSIT, Fields.TX);
+		if ((tx!=null)&&RANDOM_TX.equals(tx.toString())) {
+			body=RT.assocIn(body, Blobs.createRandom(32).toCVMHexString(), Fields.DEPOSIT, Fields.TX);
+		}
+		outstanding.incrementAndGet();
+		client.post(r.endpoint(), body).orTimeout(60, TimeUnit.SECONDS).whenComplete((resp,e)->{
+			latencies[i]=System.nanoTime()-scheduled;
+			int status=(e==null)?resp.statusCode():NO_RESPONSE;
+			statusCounts.computeIfAbsent(status, s->new LongAdder()).increment();
+			outstanding.decrementAndGet();
+		});
+	}
+
+	/**
+	 * Prints a summary of the run
+	 * @param out Output stream
+	 * @param elapsedNanos Elapsed time of run
+	 */
+	public void report(PrintStream out, long elapsedNanos) {
+		long[] done=Arrays.stream(latencies).filter(l->l>=0).sorted().toArray();
+		int n=done.length;
+		double secs=elapsedNanos/1e9;
+		out.printf("Completed %d requests in %.2fs (%.1f req/s), target rate %d req/s%n", n, secs, n/secs, rate);
+		if (dropped.sum()>0) out.printf("Dropped %d requests (more than %d outstanding)%n", dropped.sum(), maxOutstanding);
+
+		Map<Integer,Long> counts=new TreeMap<>();
+		statusCounts.forEach((k,v)->counts.put(k, v.sum()));
+		counts.forEach((status,count)->{
+			out.printf("  %s: %d%n", (status==NO_RESPONSE)?"no response":("HTTP "+status), count);
+		});
+		if (n==0) return;
+
+		out.printf("Latency (ms): p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+				percentile(done,0.5), percentile(done,0.9), percentile(done,0.99), percentile(done,0.999), done[n-1]/1e6);
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		int ix=(int)Math.ceil(p*sorted.length)-1;
+		return sorted[Math.max(0, Math.min(sorted.length-1, ix))]/1e6;
+	}
+
+	/**
+	 * Command line entry point.
+	 *
+	 * Usage: loadtest [--url http://localhost:8080] [--trace file.jsonl] [--rate 100] [--duration 30]
+	 *                 [--users 100] [--networks mockfast,mockslow] [--token USD] [--max-outstanding 10000]
+	 *                 [--write-trace file.jsonl]
+	 *
+	 * @param args Command line arguments
+	 * @throws Exception If load test fails
+	 */
+	public static void main(String[] args) throws Exception {
+		String url="http://localhost:8080";
+		String tracePath=null;
+		String writePath=null;
+		int rate=100;
+		int duration=30;
+		int users=100;
+		int maxOutstanding=10000;
+		String networks="mockfast,mockslow";
+		String token="USD";
+		for (int i=0; i<args.length; i++) {
+			String a=args[i];
+			if ("loadtest".equals(a)) continue;
+			if (i+1>=args.length) throw new IllegalArgumentException("Missing value for "+a);
+			switch (a) {
+				case "--url": url=args[++i]; break;
+				case "--trace": tracePath=args[++i]; break;
+				case "--write-trace": writePath=args[++i]; break;
+				case "--rate": rate=Integer.parseInt(args[++i]); break;
+				case "--duration": duration=Integer.parseInt(args[++i]); break;
+				case "--users": users=Integer.parseInt(args[++i]); break;
+				case "--networks": networks=args[++i]; break;
+				case "--token": token=args[++i]; break;
+				case "--max-outstanding": maxOutstanding=Integer.parseInt(args[++i]); break;
+				default: throw new IllegalArgumentException("Unrecognised option: "+a);
+			}
+		}
+
+		List<TraceRequest> trace;
+		if (tracePath!=null) {
+			trace=readTrace(Path.of(tracePath));
+		} else {
+			trace=generate(rate*duration, users, networks.split(","), token);
+		}
+		if (writePath!=null) {
+			writeTrace(Path.of(writePath), trace);
+			log.info("Wrote "+trace.size()+" requests to "+writePath);
+		}
+
+		Client client=Client.create(URI.create(url));
+		new LoadTest(client,trace,rate,duration*1000L,maxOutstanding).run();
+	}
+}
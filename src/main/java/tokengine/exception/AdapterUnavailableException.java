@@ -0,0 +1,25 @@
+package tokengine.exception;
+
+/**
+ * Exception thrown when a call to a DLT adapter is rejected without being attempted, because the
+ * adapter's circuit breaker is open or it has too many calls in progress, or because a lookup needed
+ * before the call (e.g. of a signer's account key) failed
+ */
+@SuppressWarnings("serial")
+public class AdapterUnavailableException extends RuntimeException {
+
+	private final long retryAfterMillis;
+	
+	public AdapterUnavailableException(String message, long retryAfterMillis) {
+		super(message);
+		this.retryAfterMillis=retryAfterMillis;
+	}
+
+	/**
+	 * Gets a suggested time to wait before retrying
+	 * @return Milliseconds to wait
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+}
@@ -0,0 +1,13 @@
+package tokengine.exception;
+
+/**
+ * Exception thrown when a request repeats an idempotency key whose original request has not
+ * yet completed, so it can be neither processed again nor answered from the stored result
+ */
+@SuppressWarnings("serial")
+public class DuplicateRequestException extends RuntimeException {
+
+	public DuplicateRequestException(String message) {
+		super(message);
+	}
+}
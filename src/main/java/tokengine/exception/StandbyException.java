@@ -0,0 +1,13 @@
+package tokengine.exception;
+
+/**
+ * Exception thrown when a state change is attempted on a standby TokEngine, which only applies state
+ * replicated from its primary until it is promoted
+ */
+@SuppressWarnings("serial")
+public class StandbyException extends RuntimeException {
+
+	public StandbyException(String message) {
+		super(message);
+	}
+}
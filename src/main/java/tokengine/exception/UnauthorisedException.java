@@ -0,0 +1,13 @@
+package tokengine.exception;
+
+/**
+ * Exception thrown when a request is not authorised, e.g. a payout without a valid signed instruction
+ * from the source account, or with an instruction that has already been used
+ */
+@SuppressWarnings("serial")
+public class UnauthorisedException extends RuntimeException {
+
+	public UnauthorisedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,115 @@
+package tokengine.rpc;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.prim.ANumeric;
+import tokengine.Fields;
+
+/**
+ * Settings for calls to a single remote endpoint: timeout, rate limit and retry budget.
+ *
+ * Usually created from a network config entry, which may contain:
+ * - "timeout" : request timeout in milliseconds (default 10000)
+ * - "rateLimit" : maximum requests per second (default unlimited)
+ * - "burst" : number of requests that may be sent at once before the rate limit applies (default 10)
+ * - "maxRetries" : retries for failed idempotent requests (default 3)
+ */
+public class RPCEndpoint {
+
+	public static final long DEFAULT_TIMEOUT=10000;
+	public static final int DEFAULT_BURST=10;
+	public static final int DEFAULT_MAX_RETRIES=3;
+
+	/** Base delay for retry backoff in milliseconds */
+	static final long BACKOFF_BASE=100;
+
+	/** Maximum delay for retry backoff in milliseconds */
+	static final long BACKOFF_MAX=5000;
+
+	private final String name;
+	private final Duration timeout;
+	private final int maxRetries;
+	private final TokenBucket limiter;
+
+	public RPCEndpoint(String name, long timeoutMillis, double rateLimit, int burst, int maxRetries) {
+		if (timeoutMillis<=0) throw new IllegalArgumentException("Timeout must be positive: "+timeoutMillis);
+		this.name=name;
+		this.timeout=Duration.ofMillis(timeoutMillis);
+		this.maxRetries=Math.max(0, maxRetries);
+		this.limiter=new TokenBucket(rateLimit,burst);
+	}
+
+	/**
+	 * Creates an endpoint with default settings and no rate limit
+	 * @param name Endpoint name, used for logging
+	 * @return New endpoint
+	 */
+	public static RPCEndpoint create(String name) {
+		return new RPCEndpoint(name,DEFAULT_TIMEOUT,0,DEFAULT_BURST,DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * Creates an endpoint from a network config entry
+	 * @param name Endpoint name, used for logging
+	 * @param nc Network config, may be null for defaults
+	 * @return New endpoint
+	 */
+	public static RPCEndpoint fromConfig(String name, AMap<AString,ACell> nc) {
+		if (nc==null) return create(name);
+		long timeout=(long)getNumber(nc,Fields.TIMEOUT,DEFAULT_TIMEOUT);
+		double rate=getNumber(nc,Fields.RATE_LIMIT,0);
+		int burst=(int)getNumber(nc,Fields.BURST,DEFAULT_BURST);
+		int retries=(int)getNumber(nc,Fields.MAX_RETRIES,DEFAULT_MAX_RETRIES);
+		return new RPCEndpoint(name,timeout,rate,burst,retries);
+	}
+
+	/**
+	 * Gets a numeric config value. Values may be numbers or strings, since existing configs use e.g. "timeout":"10000"
+	 */
+	private static double getNumber(AMap<AString,ACell> nc, AString key, double defaultValue) {
+		ACell v=nc.get(key);
+		if (v==null) return defaultValue;
+		if (v instanceof ANumeric n) return n.doubleValue();
+		try {
+			return Double.parseDouble(v.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number for '"+key+"' in config: "+v);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Duration getTimeout() {
+		return timeout;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public TokenBucket getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Gets the delay before a retry, using exponential backoff with random jitter so that clients
+	 * failing together do not retry together
+	 * @param attempt Number of attempts already made (1 for first retry)
+	 * @return Delay in milliseconds
+	 */
+	public long getBackoff(int attempt) {
+		long cap=Math.min(BACKOFF_MAX, BACKOFF_BASE<<Math.min(attempt, 16));
+		return ThreadLocalRandom.current().nextLong(cap/2, cap+1);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,372 @@
+package tokengine.rpc;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.AVector;
+import convex.core.data.Maps;
+import convex.core.data.Vectors;
+import convex.core.lang.RT;
+import tokengine.Fields;
+import tokengine.Tracing;
+import tokengine.exception.ResponseException;
+
+/**
+ * A set of interchangeable RPC endpoints for one network, e.g. several providers for the same chain.
+ *
+ * Each upstream is scored from its observed latency and error rate, and calls go to the best scoring
+ * upstream first, failing over to the others if it is unreachable. Upstreams with repeated failures
+ * are rested for a cooldown period.
+ *
+ * Reads can optionally be hedged: if the best upstream has not answered within the recent p95 latency,
+ * the same call is sent to the next best upstream and whichever answers first is used. Only use hedging
+ * for calls that are safe to repeat.
+ *
+ * @param <C> Client type for each upstream, e.g. a Web3j instance
+ */
+public class RPCPool<C> {
+
+	protected static final Logger log=LoggerFactory.getLogger(RPCPool.class);
+
+	/** Weight of each new sample in moving averages */
+	static final double ALPHA=0.2;
+
+	/** Score penalty for a 100% error rate, in nanoseconds */
+	static final double ERROR_PENALTY=1e10;
+
+	/** Consecutive failures after which an upstream is rested */
+	static final int FAILURE_THRESHOLD=3;
+
+	/** Time an unhealthy upstream is rested before being tried again */
+	static final long COOLDOWN_MILLIS=30000;
+
+	/** Number of recent latencies used to estimate p95 */
+	static final int SAMPLES=256;
+
+	/** Minimum samples before hedging starts */
+	static final int MIN_SAMPLES=20;
+
+	/** Minimum hedge delay, so that very fast upstreams are not hedged on jitter */
+	static final long MIN_HEDGE_NANOS=TimeUnit.MILLISECONDS.toNanos(5);
+
+	private static final ExecutorService executor=Executors.newVirtualThreadPerTaskExecutor();
+
+	/**
+	 * A call made against one upstream client
+	 */
+	@FunctionalInterface
+	public interface Call<C,R> {
+		R apply(C client) throws Exception;
+	}
+
+	/**
+	 * One endpoint in the pool, with its health statistics
+	 */
+	public static class Upstream<C> {
+		final String url;
+		final C client;
+
+		private double latency=0; // EWMA in nanoseconds
+		private double errorRate=0; // EWMA of failures
+		private int consecutiveFailures=0;
+		private long restUntil=0;
+		private long calls=0;
+
+		Upstream(String url, C client) {
+			this.url=url;
+			this.client=client;
+		}
+
+		synchronized void success(long nanos) {
+			latency=(calls==0)?nanos:(latency+ALPHA*(nanos-latency));
+			errorRate=errorRate*(1-ALPHA);
+			consecutiveFailures=0;
+			calls++;
+		}
+
+		synchronized void failure() {
+			errorRate=errorRate+ALPHA*(1-errorRate);
+			calls++;
+			if (++consecutiveFailures>=FAILURE_THRESHOLD) {
+				restUntil=System.currentTimeMillis()+COOLDOWN_MILLIS;
+				log.warn("RPC upstream {} failed {} times, resting for {}ms",url,consecutiveFailures,COOLDOWN_MILLIS);
+			}
+		}
+
+		/**
+		 * Gets the health score for this upstream, roughly an expected latency in nanoseconds. Lower is better.
+		 */
+		synchronized double score() {
+			if (calls==0) return 0; // try untested upstreams early
+			double s=latency*(1+10*errorRate)+errorRate*ERROR_PENALTY;
+			if (System.currentTimeMillis()<restUntil) s+=1e15;
+			return s;
+		}
+
+		public String getURL() {
+			return url;
+		}
+
+		public C getClient() {
+			return client;
+		}
+
+		synchronized AMap<AString,ACell> getStatus() {
+			return Maps.of(
+				Fields.URL,url,
+				"latencyMillis",(long)(latency/1e6),
+				"errorRate",Math.round(errorRate*1000)/1000.0,
+				"calls",calls,
+				"healthy",System.currentTimeMillis()>=restUntil);
+		}
+	}
+
+	private final List<Upstream<C>> upstreams;
+	private final boolean hedging;
+
+	private final long[] samples=new long[SAMPLES];
+	private int sampleCount=0;
+	private volatile long hedgeNanos=0;
+
+	public RPCPool(List<Upstream<C>> upstreams, boolean hedging) {
+		if (upstreams.isEmpty()) throw new IllegalArgumentException("No RPC upstreams");
+		this.upstreams=List.copyOf(upstreams);
+		this.hedging=hedging;
+	}
+
+	/**
+	 * Creates a pool from a network config entry. The "url" field may be a single URL or an array of URLs,
+	 * and "hedge" enables hedged reads.
+	 * @param <C> Client type
+	 * @param nc Network config
+	 * @param factory Function to create a client for each URL
+	 * @return New pool
+	 */
+	public static <C> RPCPool<C> fromConfig(AMap<AString,ACell> nc, Function<String,C> factory) {
+		List<String> urls=getURLs(nc);
+		if (urls.isEmpty()) throw new IllegalStateException("No RPC URL specified, should be in networks[..].url");
+		ArrayList<Upstream<C>> ups=new ArrayList<>();
+		for (String url: urls) {
+			ups.add(new Upstream<>(url,factory.apply(url)));
+		}
+		boolean hedge=RT.bool(nc.get(Fields.HEDGE));
+		return new RPCPool<>(ups,hedge);
+	}
+
+	/**
+	 * Gets the list of RPC URLs from a network config entry
+	 * @param nc Network config
+	 * @return List of URLs, empty if none specified
+	 */
+	public static List<String> getURLs(AMap<AString,ACell> nc) {
+		ACell v=nc.get(Fields.URL);
+		if (v==null) return List.of();
+		if (v instanceof AVector<?> vec) {
+			ArrayList<String> result=new ArrayList<>();
+			for (ACell u: vec) {
+				if (u!=null) result.add(u.toString());
+			}
+			return result;
+		}
+		return Arrays.asList(v.toString());
+	}
+
+	/**
+	 * Gets upstreams ordered by health score, best first
+	 * @return Ranked list of upstreams
+	 */
+	public List<Upstream<C>> ranked() {
+		if (upstreams.size()==1) return upstreams;
+		ArrayList<Upstream<C>> result=new ArrayList<>(upstreams);
+		result.sort(Comparator.comparingDouble(Upstream::score));
+		return result;
+	}
+
+	/**
+	 * Gets the client for the currently best upstream. Use for calls that must not be repeated, such
+	 * as submitting transactions.
+	 * @return Client instance
+	 */
+	public C primary() {
+		if (upstreams.size()==1) return upstreams.get(0).client;
+		return ranked().get(0).client;
+	}
+
+	public List<Upstream<C>> getUpstreams() {
+		return upstreams;
+	}
+
+	/**
+	 * Makes a call against the best upstream, failing over to others if it is unreachable
+	 * @param <R> Result type
+	 * @param call Call to make
+	 * @return Result of call
+	 * @throws IOException If all upstreams failed
+	 */
+	public <R> R call(Call<C,R> call) throws IOException {
+		return call(call,ranked());
+	}
+
+	private <R> R call(Call<C,R> call, List<Upstream<C>> order) throws IOException {
+		Exception last=null;
+		for (Upstream<C> u: order) {
+			try {
+				return invoke(u,call,null);
+			} catch (Exception e) {
+				if (!isUpstreamFailure(e)) throw rethrow(e);
+				log.debug("RPC call to {} failed: {}",u.url,e.toString());
+				last=e;
+			}
+		}
+		throw rethrow(last);
+	}
+
+	/**
+	 * Makes a read call, hedging to a second upstream if the first is slow. Falls back to a plain call
+	 * with failover if hedging is disabled or there is only one upstream.
+	 * @param <R> Result type
+	 * @param call Call to make. Must be safe to repeat.
+	 * @return Result of whichever upstream answers successfully first
+	 * @throws IOException If all upstreams failed
+	 */
+	public <R> R hedge(Call<C,R> call) throws IOException {
+		List<Upstream<C>> order=ranked();
+		long delay=hedgeNanos;
+		if ((!hedging)||(order.size()<2)||(delay==0)) return call(call,order);
+
+		CompletionService<R> cs=new ExecutorCompletionService<>(executor);
+		ArrayList<Future<R>> running=new ArrayList<>(2);
+		AtomicBoolean cancelled=new AtomicBoolean(false);
+		try {
+			running.add(cs.submit(Tracing.wrap(()->invoke(order.get(0),call,cancelled))));
+			Future<R> done=cs.poll(delay, TimeUnit.NANOSECONDS);
+			if (done==null) {
+				// Primary is slow, so race a second upstream
+				Tracing.start("rpc.hedge").tag("url", order.get(1).url).close();
+				running.add(cs.submit(Tracing.wrap(()->invoke(order.get(1),call,cancelled))));
+				done=cs.take();
+			}
+			Exception failure=null;
+			for (int i=0; i<running.size(); i++) {
+				if (i>0) done=cs.take();
+				try {
+					return done.get();
+				} catch (ExecutionException e) {
+					Exception cause=(e.getCause() instanceof Exception ex)?ex:e;
+					if (!isUpstreamFailure(cause)) throw rethrow(cause);
+					failure=cause;
+				}
+			}
+			// Everything we raced failed, so try any remaining upstreams in turn
+			if (order.size()>running.size()) return call(call,order.subList(running.size(), order.size()));
+			throw rethrow(failure);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted during RPC call",e);
+		} finally {
+			// set before interrupting, so the losing call doesn't count its interruption as a failure
+			cancelled.set(true);
+			for (Future<R> f: running) f.cancel(true);
+		}
+	}
+
+	/**
+	 * Calls an upstream, recording its latency and health
+	 * @param cancelled Set when the caller has abandoned the call, e.g. the losing side of a hedge, or null
+	 */
+	private <R> R invoke(Upstream<C> u, Call<C,R> call, AtomicBoolean cancelled) throws Exception {
+		long start=System.nanoTime();
+		try {
+			R result=call.apply(u.client);
+			long elapsed=System.nanoTime()-start;
+			u.success(elapsed);
+			recordLatency(elapsed);
+			return result;
+		} catch (Exception e) {
+			if ((e instanceof InterruptedException)||((cancelled!=null)&&cancelled.get())) {
+				// Cancelled, e.g. losing side of a hedge, so says nothing about health
+			} else if (isUpstreamFailure(e)) {
+				u.failure();
+			} else {
+				// Upstream answered, even if the answer was an error
+				u.success(System.nanoTime()-start);
+			}
+			throw e;
+		}
+	}
+
+	private synchronized void recordLatency(long nanos) {
+		samples[sampleCount%SAMPLES]=nanos;
+		sampleCount++;
+		if ((sampleCount>=MIN_SAMPLES)&&((sampleCount%16)==0)) {
+			int n=Math.min(sampleCount, SAMPLES);
+			long[] sorted=Arrays.copyOf(samples, n);
+			Arrays.sort(sorted);
+			hedgeNanos=Math.max(MIN_HEDGE_NANOS, sorted[(int)(n*0.95)]);
+		}
+	}
+
+	/**
+	 * Gets the current hedge delay, based on the recent p95 latency
+	 * @return Delay in nanoseconds, or 0 if not enough calls have been observed
+	 */
+	public long getHedgeDelay() {
+		return hedgeNanos;
+	}
+
+	/**
+	 * Checks if an exception means the upstream could not serve the request (as opposed to a valid
+	 * error response such as an unknown transaction), so another upstream should be tried
+	 * @param e Exception thrown by a call
+	 * @return true if upstream failure
+	 */
+	public static boolean isUpstreamFailure(Throwable e) {
+		boolean io=false;
+		for (; e!=null; e=e.getCause()) {
+			// A HTTP response anywhere in the chain tells us whether the upstream was at fault
+			if ((e instanceof ResponseException re)&&(re.getResponse() instanceof HttpResponse<?> r)) {
+				int code=r.statusCode();
+				return (code>=500)||(code==429);
+			}
+			if (e instanceof IOException) io=true;
+		}
+		return io;
+	}
+
+	private static IOException rethrow(Exception e) {
+		if (e instanceof RuntimeException re) throw re;
+		if (e instanceof IOException io) return io;
+		return new IOException(e.getMessage(),e);
+	}
+
+	/**
+	 * Gets status of the upstreams, for reporting
+	 * @return Vector of upstream status maps
+	 */
+	public AVector<ACell> getStatus() {
+		AVector<ACell> result=Vectors.empty();
+		for (Upstream<C> u: upstreams) {
+			result=result.conj(u.getStatus());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,276 @@
+package tokengine.rpc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+
+/**
+ * Shared HTTP transport for calls to external services (DLT RPC nodes, indexers, Kafka).
+ *
+ * All callers share one JDK HttpClient and one OkHttp connection pool (used by web3j), so connections
+ * to each host are pooled and reused across adapters. HTTP/2 is used where the server supports it via
+ * TLS negotiation, which multiplexes concurrent requests over a single connection.
+ *
+ * Each request is made against an RPCEndpoint, which supplies the timeout, rate limit and retry budget.
+ * Failed requests are retried with jittered backoff if it is safe to do so: requests that never reached
+ * the server, and idempotent requests that failed or were rejected with 429, 502, 503 or 504. A POST is only
+ * idempotent if it carries an Idempotency-Key, or is a JSON-RPC call that doesn't submit a transaction,
+ * since a server may have acted on a request even when it answers 429 or 503.
+ */
+public class RPCTransport {
+
+	protected static final Logger log=LoggerFactory.getLogger(RPCTransport.class);
+
+	static final Duration CONNECT_TIMEOUT=Duration.ofSeconds(10);
+
+	/** Idle connections kept in the OkHttp pool */
+	static final int MAX_IDLE_CONNECTIONS=32;
+
+	/** Maximum concurrent OkHttp requests per host. OkHttp defaults to 5, which is too low for busy RPC nodes */
+	static final int MAX_REQUESTS_PER_HOST=64;
+
+	private static final Set<String> IDEMPOTENT_METHODS=Set.of("GET","HEAD","OPTIONS","PUT","DELETE");
+
+	/** Header that makes a non-idempotent request safe to repeat */
+	static final String IDEMPOTENCY_KEY="Idempotency-Key";
+
+	/** JSON-RPC methods that submit transactions, and must not be retried after reaching the server */
+	private static final List<String> UNSAFE_RPC_METHODS=List.of("eth_sendRawTransaction","eth_sendTransaction");
+
+	private static final RPCTransport SHARED=new RPCTransport();
+
+	private final HttpClient httpClient;
+	private final OkHttpClient okHttpClient;
+
+	RPCTransport() {
+		httpClient=HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_2)
+			.connectTimeout(CONNECT_TIMEOUT)
+			.followRedirects(HttpClient.Redirect.NORMAL)
+			.build();
+
+		okHttpClient=new OkHttpClient.Builder()
+			.connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, 5, TimeUnit.MINUTES))
+			.protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+			.connectTimeout(CONNECT_TIMEOUT)
+			.build();
+		okHttpClient.dispatcher().setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+	}
+
+	/**
+	 * Gets the shared transport instance
+	 * @return Shared transport
+	 */
+	public static RPCTransport shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Gets the underlying JDK HTTP client. Requests made directly on this client bypass rate limits and retries.
+	 * @return HttpClient instance
+	 */
+	public HttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	/**
+	 * Sends a request asynchronously, applying the endpoint's timeout, rate limit and retry policy
+	 * @param <T> Response body type
+	 * @param endpoint Endpoint settings
+	 * @param request Request to send. The endpoint timeout is used unless the request sets its own.
+	 * @param handler Response body handler
+	 * @return Future for the final response. Completes exceptionally if the last attempt failed.
+	 */
+	public <T> CompletableFuture<HttpResponse<T>> send(RPCEndpoint endpoint, HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+		HttpRequest req=prepare(endpoint,request);
+		CompletableFuture<HttpResponse<T>> result=new CompletableFuture<>();
+		attempt(endpoint,req,handler,0,result);
+		return result;
+	}
+
+	private HttpRequest prepare(RPCEndpoint endpoint, HttpRequest request) {
+		HttpRequest.Builder b=HttpRequest.newBuilder(request, (name,value)->true);
+		if (request.timeout().isEmpty()) b.timeout(endpoint.getTimeout());
+		// HTTP/2 is negotiated over TLS. Don't attempt h2c upgrades on plain HTTP, which many servers mishandle.
+		if (request.version().isEmpty()&&"http".equalsIgnoreCase(request.uri().getScheme())) {
+			b.version(HttpClient.Version.HTTP_1_1);
+		}
+		return b.build();
+	}
+
+	private <T> void attempt(RPCEndpoint endpoint, HttpRequest req, HttpResponse.BodyHandler<T> handler, int attempt, CompletableFuture<HttpResponse<T>> result) {
+		long wait=endpoint.getLimiter().reserve();
+		Executor exec=(wait>0)?CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS):Runnable::run;
+		exec.execute(()->{
+			httpClient.sendAsync(req, handler).whenComplete((resp,e)->{
+				Throwable cause=unwrap(e);
+				if ((attempt<endpoint.getMaxRetries())&&shouldRetry(req,resp,cause)) {
+					String retryAfter=(resp==null)?null:resp.headers().firstValue("Retry-After").orElse(null);
+					long delay=retryDelay(endpoint,retryAfter,attempt+1);
+					log.debug("Retrying {} {} in {}ms after {}",req.method(),req.uri(),delay,(cause!=null)?cause.toString():resp.statusCode());
+					CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(()->attempt(endpoint,req,handler,attempt+1,result));
+				} else if (cause!=null) {
+					result.completeExceptionally(cause);
+				} else {
+					result.complete(resp);
+				}
+			});
+		});
+	}
+
+	private static boolean shouldRetry(HttpRequest req, HttpResponse<?> resp, Throwable cause) {
+		boolean idempotent=IDEMPOTENT_METHODS.contains(req.method())||req.headers().firstValue(IDEMPOTENCY_KEY).isPresent();
+		if (cause!=null) {
+			if (isConnectFailure(cause)) return true;
+			return idempotent&&(cause instanceof IOException);
+		}
+		return isRetryableStatus(resp.statusCode(),idempotent);
+	}
+
+	/**
+	 * Checks if a failure happened before the request reached the server, so it is always safe to retry
+	 */
+	static boolean isConnectFailure(Throwable cause) {
+		return (cause instanceof ConnectException)||(cause instanceof HttpConnectTimeoutException);
+	}
+
+	/**
+	 * Checks if a HTTP status code is worth retrying. 429 and 503 usually mean the request was not processed,
+	 * but servers and proxies don't guarantee this, so only idempotent requests are retried.
+	 */
+	static boolean isRetryableStatus(int code, boolean idempotent) {
+		if (!idempotent) return false;
+		return (code==429)||(code==503)||(code==502)||(code==504);
+	}
+
+	/**
+	 * Gets the delay before a retry, honouring a Retry-After header (in seconds) up to the endpoint timeout
+	 */
+	static long retryDelay(RPCEndpoint endpoint, String retryAfter, int attempt) {
+		long delay=endpoint.getBackoff(attempt);
+		if (retryAfter!=null) {
+			try {
+				long requested=Long.parseLong(retryAfter.trim())*1000;
+				delay=Math.max(delay, Math.min(requested, endpoint.getTimeout().toMillis()));
+			} catch (NumberFormatException e) {
+				// HTTP date form, just use backoff
+			}
+		}
+		return delay;
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		while (((e instanceof CompletionException)||(e instanceof ExecutionException))&&(e.getCause()!=null)) {
+			e=e.getCause();
+		}
+		return e;
+	}
+
+	/**
+	 * Gets an OkHttp client for an endpoint, e.g. for use with web3j's HttpService. The client shares
+	 * the connection pool of this transport and applies the endpoint's timeout, rate limit and retry policy.
+	 * @param endpoint Endpoint settings
+	 * @return OkHttpClient instance
+	 */
+	public OkHttpClient getOkHttpClient(RPCEndpoint endpoint) {
+		return okHttpClient.newBuilder()
+			.callTimeout(endpoint.getTimeout())
+			.readTimeout(endpoint.getTimeout())
+			.addInterceptor(new EndpointInterceptor(endpoint))
+			.build();
+	}
+
+	/**
+	 * OkHttp interceptor applying rate limits and retries for an endpoint. Runs on the calling thread,
+	 * which for web3j is either the caller of send() or a web3j executor thread.
+	 */
+	static class EndpointInterceptor implements Interceptor {
+		private final RPCEndpoint endpoint;
+
+		EndpointInterceptor(RPCEndpoint endpoint) {
+			this.endpoint=endpoint;
+		}
+
+		@Override
+		public Response intercept(Chain chain) throws IOException {
+			Request request=chain.request();
+			boolean idempotent=isIdempotent(request);
+			int attempt=0;
+			while (true) {
+				pause(endpoint.getLimiter().reserve());
+				Response response;
+				try {
+					response=chain.proceed(request);
+				} catch (IOException e) {
+					if ((attempt>=endpoint.getMaxRetries())||!(idempotent||(e instanceof ConnectException))) throw e;
+					attempt++;
+					long delay=endpoint.getBackoff(attempt);
+					log.debug("Retrying {} in {}ms after {}",endpoint,delay,e.toString());
+					pause(TimeUnit.MILLISECONDS.toNanos(delay));
+					continue;
+				}
+
+				if ((attempt<endpoint.getMaxRetries())&&isRetryableStatus(response.code(),idempotent)) {
+					attempt++;
+					long delay=retryDelay(endpoint,response.header("Retry-After"),attempt);
+					log.debug("Retrying {} in {}ms after status {}",endpoint,delay,response.code());
+					response.close();
+					pause(TimeUnit.MILLISECONDS.toNanos(delay));
+					continue;
+				}
+				return response;
+			}
+		}
+
+		/**
+		 * JSON-RPC calls are all POSTs, so check the body for methods that submit transactions
+		 */
+		private static boolean isIdempotent(Request request) throws IOException {
+			if (IDEMPOTENT_METHODS.contains(request.method())) return true;
+			if (request.header(IDEMPOTENCY_KEY)!=null) return true;
+			RequestBody body=request.body();
+			if (body==null) return true;
+			Buffer buffer=new Buffer();
+			body.writeTo(buffer);
+			String content=buffer.readUtf8();
+			for (String m: UNSAFE_RPC_METHODS) {
+				if (content.contains(m)) return false;
+			}
+			return true;
+		}
+
+		private static void pause(long nanos) throws IOException {
+			if (nanos<=0) return;
+			try {
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for RPC rate limit");
+			}
+		}
+	}
+}
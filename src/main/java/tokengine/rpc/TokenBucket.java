@@ -0,0 +1,53 @@
+package tokengine.rpc;
+
+/**
+ * Token bucket rate limiter. Permits accrue at a fixed rate up to a maximum burst size.
+ *
+ * Callers reserve a permit and are told how long to wait before using it, rather than being blocked, so
+ * the limiter works equally for blocking callers and for scheduling asynchronous requests. Reservations
+ * beyond the available permits go into debt, which keeps requests in FIFO order under contention.
+ */
+public class TokenBucket {
+
+	private final double nanosPerPermit;
+	private final double burst;
+
+	private double permits;
+	private long lastRefill;
+
+	/**
+	 * Creates a token bucket
+	 * @param rate Permits per second. Zero or negative for unlimited.
+	 * @param burst Maximum number of permits that can accrue
+	 */
+	public TokenBucket(double rate, double burst) {
+		this.nanosPerPermit=(rate>0)?(1e9/rate):0.0;
+		this.burst=Math.max(1.0, burst);
+		this.permits=this.burst;
+		this.lastRefill=System.nanoTime();
+	}
+
+	/**
+	 * Reserves a permit
+	 * @return Delay in nanoseconds before the permit may be used, zero if available immediately
+	 */
+	public long reserve() {
+		if (nanosPerPermit==0.0) return 0;
+		synchronized(this) {
+			long now=System.nanoTime();
+			permits=Math.min(burst, permits+(now-lastRefill)/nanosPerPermit);
+			lastRefill=now;
+			permits-=1.0;
+			if (permits>=0) return 0;
+			return (long)(-permits*nanosPerPermit);
+		}
+	}
+
+	/**
+	 * Checks if this bucket limits rate at all
+	 * @return true if rate limited
+	 */
+	public boolean isLimited() {
+		return nanosPerPermit>0.0;
+	}
+}
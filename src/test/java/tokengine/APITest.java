@@ -1,13 +1,21 @@
 package tokengine;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -18,10 +26,22 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.TestInstance.Lifecycle;
 
+import convex.api.ContentTypes;
 import convex.core.data.ACell;
 import convex.core.data.AMap;
 import convex.core.data.AString;
+import convex.core.data.AVector;
+import convex.core.data.Blob;
+import convex.core.data.Blobs;
+import convex.core.data.Format;
+import convex.core.data.Maps;
+import convex.core.data.Strings;
+import convex.core.data.Vectors;
+import convex.core.lang.RT;
 import convex.core.util.ConfigUtils;
+import convex.core.util.JSON;
+import tokengine.api.ATokengineAPI;
+import tokengine.api.WriterProxy;
 
 /**
  * These are basically smoke tests for the API server
@@ -82,6 +102,235 @@ public class APITest {
 		assertEquals(404,resp.statusCode(),()->"Got error response: "+resp);
 	}
 
+	@Test public void testMetrics() throws URISyntaxException, InterruptedException, ExecutionException, TimeoutException {
+		// make sure at least one API request has been recorded
+		HttpRequest doc = HttpRequest.newBuilder()
+			.uri(new URI("http://localhost:"+PORT+"/openapi"))
+			.GET()
+			.build();
+		assertEquals(200,httpClient.sendAsync(doc, HttpResponse.BodyHandlers.ofString()).get(10000,TimeUnit.MILLISECONDS).statusCode());
+
+		HttpRequest req = HttpRequest.newBuilder()
+			.uri(new URI("http://localhost:"+PORT+"/metrics"))
+			.GET()
+			.build();
+		HttpResponse<String> resp = httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString()).get(10000,TimeUnit.MILLISECONDS);
+		assertEquals(200,resp.statusCode(),()->"Got error response: "+resp);
+		assertTrue(resp.headers().firstValue("Content-Type").orElse("").startsWith("text/plain"));
+		String body=resp.body();
+		assertTrue(body.contains("tokengine_state_retries_total"),()->"Missing state retries counter in: "+body);
+		assertTrue(body.contains("tokengine_api_requests_seconds_count{endpoint=\"/openapi\""),()->"Missing API request timer in: "+body);
+		assertTrue(body.contains("tokengine_signatures_cache_hits"),()->"Missing signature cache hits in: "+body);
+	}
+
+	
+	@Test public void testRequestCodecs() throws Exception {
+		AMap<AString,ACell> body=Maps.of(Fields.SOURCE,Maps.of(
+				Fields.ACCOUNT,"#11",
+				Fields.NETWORK,"convex",
+				Fields.TOKEN,"CVM"));
+		
+		// Strict JSON
+		assertEquals(200,postCredit(ContentTypes.JSON,JSON.toString(body).getBytes()).statusCode());
+		
+		// JSON5 only when requested, strict JSON rejects comments
+		byte[] json5="{source: {account: '#11', network: 'convex', token: 'CVM'}} // comment".getBytes();
+		assertEquals(200,postCredit(ATokengineAPI.JSON5,json5).statusCode());
+		assertEquals(400,postCredit(ContentTypes.JSON,json5).statusCode());
+		
+		// Binary CVX_RAW multi-cell encoding
+		Blob raw=Format.encodeMultiCell(body, true);
+		assertEquals(body,ATokengineAPI.decodeBody(ContentTypes.CVX_RAW, raw.getBytes()));
+		assertEquals(200,postCredit(ContentTypes.CVX_RAW,raw.getBytes()).statusCode());
+	}
+	
+	@Test public void testCachedResponses() throws Exception {
+		HttpRequest req = HttpRequest.newBuilder()
+			.uri(new URI("http://localhost:"+PORT+"/api/v1/config"))
+			.GET()
+			.build();
+		HttpResponse<String> resp = httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString()).get(10000,TimeUnit.MILLISECONDS);
+		assertEquals(200,resp.statusCode());
+		assertEquals(engine.getConfig(),JSON.parse(resp.body()));
+		String etag=resp.headers().firstValue("ETag").orElseThrow();
+		
+		// Conditional request with current ETag should not return a body
+		HttpRequest req2 = HttpRequest.newBuilder()
+			.uri(new URI("http://localhost:"+PORT+"/api/v1/config"))
+			.header("If-None-Match", etag)
+			.GET()
+			.build();
+		HttpResponse<String> resp2 = httpClient.sendAsync(req2, HttpResponse.BodyHandlers.ofString()).get(10000,TimeUnit.MILLISECONDS);
+		assertEquals(304,resp2.statusCode());
+		
+		// Pretty output has a different encoding so a different ETag
+		HttpRequest req3 = HttpRequest.newBuilder()
+			.uri(new URI("http://localhost:"+PORT+"/api/v1/config?pretty=true"))
+			.header("If-None-Match", etag)
+			.GET()
+			.build();
+		HttpResponse<String> resp3 = httpClient.sendAsync(req3, HttpResponse.BodyHandlers.ofString()).get(10000,TimeUnit.MILLISECONDS);
+		assertEquals(200,resp3.statusCode());
+		assertEquals(engine.getConfig(),JSON.parse(resp3.body()));
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test public void testBatchCredits() throws Exception {
+		AMap<AString,ACell> good=Maps.of(Fields.ACCOUNT,"#11",Fields.NETWORK,"convex",Fields.TOKEN,"CVM");
+		AMap<AString,ACell> bad=Maps.of(Fields.ACCOUNT,"#11",Fields.NETWORK,"notanetwork",Fields.TOKEN,"CVM");
+		AMap<AString,ACell> body=Maps.of(Fields.SOURCES,Vectors.of(good,bad,good));
+		
+		HttpRequest req = HttpRequest.newBuilder()
+			.uri(new URI("http://localhost:"+PORT+"/api/v1/credits"))
+			.header("Content-Type", ContentTypes.JSON)
+			.POST(HttpRequest.BodyPublishers.ofString(JSON.toString(body)))
+			.build();
+		HttpResponse<String> resp = httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString()).get(10000,TimeUnit.MILLISECONDS);
+		assertEquals(200,resp.statusCode());
+		
+		AVector<ACell> results=RT.ensureVector(RT.getIn(JSON.parse(resp.body()),Fields.VALUE));
+		assertEquals(3,results.count());
+		assertTrue(((AMap<AString,ACell>)results.get(0)).containsKey(Fields.VALUE));
+		assertNotNull(RT.getIn(results.get(1),Fields.ERROR));
+		assertEquals(results.get(0),results.get(2));
+	}
+	
+	@Test public void testBatchBalancesErrors() throws Exception {
+		AMap<AString,ACell> noToken=Maps.of(Fields.ACCOUNT,"#11",Fields.NETWORK,"convex");
+		AMap<AString,ACell> noAccount=Maps.of(Fields.NETWORK,"convex",Fields.TOKEN,"CVM");
+		AMap<AString,ACell> body=Maps.of(Fields.SOURCES,Vectors.of(noToken,noAccount));
+		
+		HttpRequest req = HttpRequest.newBuilder()
+			.uri(new URI("http://localhost:"+PORT+"/api/v1/balances"))
+			.header("Content-Type", ContentTypes.JSON)
+			.POST(HttpRequest.BodyPublishers.ofString(JSON.toString(body)))
+			.build();
+		HttpResponse<String> resp = httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString()).get(10000,TimeUnit.MILLISECONDS);
+		assertEquals(200,resp.statusCode());
+		
+		// Missing fields are reported per source rather than queried as "nil"
+		AVector<ACell> results=RT.ensureVector(RT.getIn(JSON.parse(resp.body()),Fields.VALUE));
+		assertEquals(2,results.count());
+		assertEquals(Strings.create("Expected 'token' property for source"),RT.getIn(results.get(0),Fields.ERROR));
+		assertEquals(Strings.create("Expected 'account' property for source"),RT.getIn(results.get(1),Fields.ERROR));
+	}
+	
+	@Test public void testBatchPayouts() throws Exception {
+		AMap<AString,ACell> noSource=Maps.of(Fields.QUANTITY,"1");
+		AMap<AString,ACell> badNetwork=Maps.of(Fields.SOURCE,Maps.of(Fields.ACCOUNT,"#11",Fields.NETWORK,"notanetwork",Fields.TOKEN,"CVM"));
+		AMap<AString,ACell> noCredit=Maps.of(
+				Fields.SOURCE,Maps.of(Fields.ACCOUNT,"#11",Fields.NETWORK,"convex",Fields.TOKEN,"CVM"),
+				Fields.DESTINATION,Maps.of(Fields.ACCOUNT,"#12",Fields.NETWORK,"convex",Fields.TOKEN,"CVM"),
+				Fields.DEPOSIT,Maps.of(Fields.TX,"0x"+Blobs.createRandom(32).toHexString()),
+				Fields.QUANTITY,"1000000000");
+		AMap<AString,ACell> body=Maps.of(Fields.PAYOUTS,Vectors.of(noSource,badNetwork,noCredit));
+
+		// Each payout fails on its own, without failing the batch
+		HttpResponse<String> resp=post(PORT,"payouts",JSON.toString(body).getBytes(),null);
+		assertEquals(200,resp.statusCode(),()->"Got response: "+resp.body());
+		AVector<ACell> results=RT.ensureVector(RT.getIn(JSON.parse(resp.body()),Fields.VALUE));
+		assertEquals(3,results.count());
+		for (ACell r: results) {
+			assertNotNull(RT.getIn(r,Fields.ERROR),()->"Expected error in: "+r);
+		}
+
+		HttpResponse<String> missing=post(PORT,"payouts","{}".getBytes(),null);
+		assertEquals(400,missing.statusCode());
+	}
+
+	private HttpResponse<String> postCredit(String contentType, byte[] body) throws URISyntaxException, InterruptedException, ExecutionException, TimeoutException {
+		HttpRequest req = HttpRequest.newBuilder()
+			.uri(new URI("http://localhost:"+PORT+"/api/v1/credit"))
+			.header("Content-Type", contentType)
+			.POST(HttpRequest.BodyPublishers.ofByteArray(body))
+			.build();
+		return httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString()).get(10000,TimeUnit.MILLISECONDS);
+	}
+	
+	@Test public void testWriterProxy() {
+		// a single node handles writes itself
+		assertNull(WriterProxy.create(engine.getConfig(), engine.getMetrics()));
+		assertEquals(Strings.create("primary"),RT.getIn(engine.getStatus(), Fields.REPLICATION, Fields.ROLE));
+		
+		WriterProxy proxy=WriterProxy.create(Maps.of(Fields.OPERATIONS,Maps.of(Fields.WRITER_URL,"http://localhost:"+PORT)), engine.getMetrics());
+		assertEquals(URI.create("http://localhost:"+PORT),proxy.getWriter());
+	}
+	
+	@Test public void testForwardToWriter() throws Exception {
+		int readerPort=PORT+1;
+		byte[] body="{\"source\": {\"account\": \"#11\", \"network\": \"convex\"}}".getBytes();
+		HttpResponse<String> direct=post(PORT,"deposit",body,null);
+		assertEquals(400,direct.statusCode());
+		
+		// a standby with a writer forwards state changes to it and returns the writer's response
+		APIServer reader=startReader(readerPort,"http://localhost:"+PORT);
+		try {
+			assertTrue(reader.engine.getReplication().isStandby());
+			HttpResponse<String> forwarded=post(readerPort,"deposit",body,"forward-test");
+			assertEquals(direct.statusCode(),forwarded.statusCode());
+			assertEquals(direct.body(),forwarded.body());
+		} finally {
+			reader.close();
+			reader.engine.close();
+		}
+		
+		// a writer that accepts the request but doesn't answer may still complete it
+		try (ServerSocket silent=new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			ArrayList<Socket> held=new ArrayList<>();
+			Thread.ofVirtual().start(()->{
+				try {
+					while (true) held.add(silent.accept());
+				} catch (IOException e) {
+					// closed
+				}
+			});
+			reader=startReader(readerPort,"http://localhost:"+silent.getLocalPort());
+			try {
+				HttpResponse<String> timeout=post(readerPort,"deposit",body,null);
+				assertEquals(504,timeout.statusCode());
+				assertTrue(timeout.headers().firstValue("Retry-After").isEmpty());
+				
+				HttpResponse<String> keyed=post(readerPort,"deposit",body,"timeout-test");
+				assertEquals(504,keyed.statusCode());
+				assertTrue(keyed.headers().firstValue("Retry-After").isPresent());
+			} finally {
+				reader.close();
+				reader.engine.close();
+			}
+		}
+	}
+	
+	@Test public void testTransferBlankKey() throws Exception {
+		// a blank key is ignored, so the key is derived from the deposit transaction
+		for (int i=0; i<2; i++) {
+			String tx=Blobs.createRandom(32).toHexString();
+			String body="{\"source\": {\"account\": \"#11\", \"network\": \"convex\", \"token\": \"CVM\"},"
+					+" \"destination\": {\"account\": \"#12\", \"network\": \"convex\", \"token\": \"CVM\"},"
+					+" \"deposit\": {\"tx\": \"0x"+tx+"\"}, \"quantity\": \"1\"}";
+			HttpResponse<String> resp=post(PORT,"transfer",body.getBytes()," ");
+			assertEquals("convex:test/"+tx,resp.headers().firstValue("Idempotency-Key").orElse(null),()->"Got response: "+resp.body());
+		}
+	}
+	
+	private APIServer startReader(int port, String writerURL) throws IOException {
+		Engine reader=new Engine(Maps.of(Fields.OPERATIONS,Maps.of(
+				Fields.REPLICA_OF,"localhost:1", // primary is never reached
+				Fields.WRITER_URL,writerURL,
+				Fields.WRITER_TIMEOUT,1000)));
+		reader.getReplication().start();
+		APIServer server=APIServer.create(reader);
+		server.start(port);
+		return server;
+	}
+	
+	private HttpResponse<String> post(int port, String endpoint, byte[] body, String key) throws Exception {
+		HttpRequest.Builder b = HttpRequest.newBuilder()
+			.uri(new URI("http://localhost:"+port+"/api/v1/"+endpoint))
+			.header("Content-Type", ContentTypes.JSON)
+			.POST(HttpRequest.BodyPublishers.ofByteArray(body));
+		if (key!=null) b.header("Idempotency-Key", key);
+		return httpClient.sendAsync(b.build(), HttpResponse.BodyHandlers.ofString()).get(10000,TimeUnit.MILLISECONDS);
+	}
 	
 	@AfterAll
 	public void shutDown() {
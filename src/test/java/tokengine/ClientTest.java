@@ -7,6 +7,8 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
@@ -41,6 +43,7 @@ import convex.core.util.ConfigUtils;
 import convex.core.util.TXUtils;
 import tokengine.adapter.AAdapter;
 import tokengine.client.Client;
+import tokengine.client.LoadTest;
 import tokengine.exception.PaymentException;
 
 @TestInstance(Lifecycle.PER_CLASS)
@@ -262,4 +265,17 @@ public class ClientTest {
         executor.shutdown();
     }
 
+    @Test public void testLoadTestTrace() throws IOException {
+        List<LoadTest.TraceRequest> trace=LoadTest.generate(100, 10, new String[] {"mockfast"}, "USD");
+        assertEquals(100,trace.size());
+        
+        Path file=Files.createTempFile("trace", ".jsonl");
+        try {
+            LoadTest.writeTrace(file, trace);
+            assertEquals(trace,LoadTest.readTrace(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
 }
@@ -1,11 +1,56 @@
 package tokengine;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 import org.junit.jupiter.api.Test;
 
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Maps;
+import convex.core.lang.RT;
+import convex.core.util.JSON;
+import tokengine.rpc.RPCEndpoint;
+import tokengine.rpc.TokenBucket;
+
 public class ConfigTest {
 
 	
 	@Test public void testConfigureLogging() {
 		
 	}
+	
+	@Test public void testEndpointConfig() {
+		// timeout is a string in existing configs
+		AMap<AString,ACell> nc=RT.ensureMap(JSON.parse("{\"timeout\":\"300000\",\"rateLimit\":25,\"maxRetries\":\"1\"}"));
+		RPCEndpoint ep=RPCEndpoint.fromConfig("test", nc);
+		assertEquals(300000,ep.getTimeout().toMillis());
+		assertEquals(1,ep.getMaxRetries());
+		assertTrue(ep.getLimiter().isLimited());
+		
+		RPCEndpoint def=RPCEndpoint.fromConfig("test", Maps.empty());
+		assertEquals(RPCEndpoint.DEFAULT_TIMEOUT,def.getTimeout().toMillis());
+		assertEquals(RPCEndpoint.DEFAULT_MAX_RETRIES,def.getMaxRetries());
+		
+		assertThrows(IllegalArgumentException.class,()->RPCEndpoint.fromConfig("test", Maps.of("timeout","soon")));
+		
+		for (int i=1; i<10; i++) {
+			long backoff=ep.getBackoff(i);
+			assertTrue((backoff>0)&&(backoff<=5000));
+		}
+	}
+	
+	@Test public void testTokenBucket() {
+		TokenBucket unlimited=new TokenBucket(0,1);
+		for (int i=0; i<100; i++) assertEquals(0,unlimited.reserve());
+		
+		// Burst is available immediately, then requests are spaced at the rate
+		TokenBucket tb=new TokenBucket(10,3);
+		for (int i=0; i<3; i++) assertEquals(0,tb.reserve());
+		long wait=tb.reserve();
+		assertTrue((wait>0)&&(wait<=100_000_000L),"Unexpected wait "+wait);
+		assertTrue(tb.reserve()>wait);
+	}
 }
@@ -8,6 +8,7 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 import org.junit.jupiter.api.AfterAll;
@@ -36,6 +37,8 @@ import convex.core.data.prim.CVMLong;
 import convex.core.init.Init;
 import convex.core.lang.RT;
 import convex.core.util.ConfigUtils;
+import tokengine.adapter.SignatureVerifier;
+import tokengine.adapter.SignatureVerifier.Check;
 import tokengine.adapter.convex.CVMAdapter;
 import tokengine.exception.PaymentException;
 
@@ -77,6 +80,69 @@ public class ConvexTest {
 
 	}
 	
+	@Test public void testCVMInstructions() throws Exception {
+		CVMAdapter ca=(CVMAdapter) engine.getAdapter(Strings.create("convex:test"));
+		Convex convex=engine.getConvex();
+		Address user=distributeWCVM(CVMLong.create(1000), convex);
+		
+		String msg="Transfer 100 to #13 on convex";
+		String sig=TEST_KP.sign(Strings.create(msg).toFlatBlob()).toHexString();
+		assertTrue(ca.verifyInstruction(user.toString(), msg, sig));
+		assertTrue(ca.verifyInstruction(user.toString(), msg, sig)); // cached key
+		assertFalse(ca.verifyInstruction(user.toString(), "Transfer 1000000 to #13 on convex", sig));
+		assertThrows(IllegalArgumentException.class,()->ca.verifyInstruction(user.toString(), msg, "0x1234"));
+		
+		// A rotated key is picked up as soon as a signature fails against the cached key
+		AKeyPair kp2=AKeyPair.generate();
+		Convex cc=Convex.connect(convex.getHostAddress(),user,TEST_KP);
+		Result r=cc.transactSync("(set-key "+kp2.getAccountKey()+")");
+		assertFalse(r.isError(),()->"Unexpected error: "+r);
+		cc.close();
+		String sig2=kp2.sign(Strings.create(msg).toFlatBlob()).toHexString();
+		assertTrue(ca.verifyInstruction(user.toString(), msg, sig2));
+		assertFalse(ca.verifyInstruction(user.toString(), msg, sig));
+	}
+	
+	@Test public void testPayoutInstruction() throws Exception {
+		CVMAdapter ca=(CVMAdapter) engine.getAdapter(Strings.create("convex:test"));
+		Address user=distributeWCVM(CVMLong.create(1000), engine.getConvex());
+		long now=System.currentTimeMillis();
+		long expires=now+60000;
+		
+		AMap<AString,ACell> req=Maps.of(
+			Fields.SOURCE,Maps.of(Fields.ACCOUNT,user.toString(),Fields.NETWORK,"convex:test",Fields.TOKEN,"WCVM"),
+			Fields.DESTINATION,Maps.of(Fields.ACCOUNT,"#13",Fields.NETWORK,"convex:test",Fields.TOKEN,"CVM"),
+			Fields.QUANTITY,"100",
+			Fields.DEPOSIT,Maps.of(Fields.NONCE,"n1",Fields.EXPIRES,Long.toString(expires)));
+		String msg=Engine.getPayoutMessage(req);
+		assertEquals("Payout 100 WCVM from "+user+" on convex:test to #13 on convex:test as CVM nonce n1 expires "+expires,msg);
+		String sig=TEST_KP.sign(Strings.create(msg).toFlatBlob()).toHexString();
+		AMap<AString,ACell> signed=RT.assocIn(RT.assocIn(req, Strings.create(msg), Fields.DEPOSIT, Fields.MSG), Strings.create(sig), Fields.DEPOSIT, Fields.SIG);
+		
+		// the signature only authorises the payout it describes
+		assertFalse(engine.verifyPayoutInstruction(ca, RT.assocIn(signed, Strings.create("1000"), Fields.QUANTITY), now));
+		assertFalse(engine.verifyPayoutInstruction(ca, RT.assocIn(signed, Strings.create("#14"), Fields.DESTINATION, Fields.ACCOUNT), now));
+		
+		// expired instructions are rejected
+		assertFalse(engine.verifyPayoutInstruction(ca, signed, expires+1));
+		
+		// instructions for a batch of payouts are verified together, leaving valid signers in the verifier's cache
+		Check check=ca.getInstructionCheck(user.toString(), msg, sig);
+		Check forged=ca.getInstructionCheck(user.toString(), msg+" ", sig);
+		boolean[] batch=SignatureVerifier.shared().verifyAll(List.of(check,forged));
+		assertTrue(batch[0]);
+		assertFalse(batch[1]);
+		long misses=SignatureVerifier.shared().getMisses();
+		
+		// and it can only be used once, its nonce being recorded with the payout's credit reservation
+		assertTrue(engine.verifyPayoutInstruction(ca, signed, now));
+		assertEquals(misses,SignatureVerifier.shared().getMisses());
+		assertTrue(engine.verifyPayoutInstruction(ca, signed, now));
+		AString key=Engine.getNonceKey(ca, Strings.create(user.toString()), Strings.create("n1"));
+		engine.updateState(s->PayoutNonces.withNonce(s, new PayoutNonces.Nonce(key, expires)));
+		assertFalse(engine.verifyPayoutInstruction(ca, signed, now));
+	}
+	
 	@Test public void testWCVMDeposit() throws InterruptedException, IOException, TimeoutException, PaymentException {
 		CVMAdapter ca=(CVMAdapter) engine.getAdapter(Strings.create("convex:test"));
 		assertNotNull(ca);
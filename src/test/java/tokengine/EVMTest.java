@@ -2,6 +2,7 @@ package tokengine;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
@@ -36,6 +37,7 @@ import org.web3j.protocol.core.methods.response.TransactionReceipt;
 import org.web3j.protocol.http.HttpService;
 import org.web3j.utils.Numeric;
 
+import convex.core.crypto.AKeyPair;
 import convex.core.crypto.Hashing;
 import convex.core.crypto.InsecureRandom;
 import convex.core.data.ACell;
@@ -43,6 +45,9 @@ import convex.core.data.AMap;
 import convex.core.data.AString;
 import convex.core.data.Blob;
 import convex.core.data.Maps;
+import tokengine.adapter.SignatureVerifier;
+import tokengine.adapter.SignatureVerifier.Check;
+import tokengine.adapter.SignatureVerifier.Scheme;
 import tokengine.adapter.evm.EVMAdapter;
 
 public class EVMTest {
@@ -345,6 +350,54 @@ public class EVMTest {
         
     }
 
+	@Test
+	public void testSignatureVerifier() throws Exception {
+		SignatureVerifier verifier=new SignatureVerifier(1000);
+		ECKeyPair ek=Keys.createEcKeyPair(new InsecureRandom(57865));
+		Blob evmAddress=Blob.parse(Credentials.create(ek).getAddress());
+		AKeyPair kp=AKeyPair.createSeeded(1234);
+		Blob edKey=Blob.wrap(kp.getAccountKey().getBytes());
+		
+		int N=10;
+		ArrayList<Check> checks=new ArrayList<>();
+		for (int i=0; i<N; i++) {
+			Blob msg=Blob.wrap(("Transfer "+i+" to #13 on convex").getBytes());
+			Sign.SignatureData sd=Sign.signPrefixedMessage(Hashing.keccak256(msg.getBytes()).getBytes(), ek);
+			byte[] bs=new byte[65];
+			System.arraycopy(sd.getR(), 0, bs, 0, 32);
+			System.arraycopy(sd.getS(), 0, bs, 32, 32);
+			bs[64]=sd.getV()[0];
+			checks.add(new Check(Scheme.SECP256K1,msg,Blob.wrap(bs),evmAddress));
+			checks.add(new Check(Scheme.ED25519,msg,Blob.wrap(kp.sign(msg).getBytes()),edKey));
+		}
+		
+		// Wrong signers, wrong messages and malformed signatures fail without failing the batch
+		Check evm0=checks.get(0);
+		Check ed0=checks.get(1);
+		checks.add(new Check(Scheme.SECP256K1,evm0.message(),evm0.signature(),Blob.wrap(new byte[20])));
+		checks.add(new Check(Scheme.ED25519,checks.get(3).message(),ed0.signature(),edKey));
+		checks.add(new Check(Scheme.ED25519,ed0.message(),Blob.wrap(new byte[10]),edKey));
+		
+		boolean[] results=verifier.verifyAll(checks);
+		for (int i=0; i<2*N; i++) {
+			assertTrue(results[i],"Check "+i+" should verify");
+		}
+		for (int i=2*N; i<checks.size(); i++) {
+			assertFalse(results[i],"Check "+i+" should fail");
+		}
+		
+		// Repeated checks are answered from the cache
+		long misses=verifier.getMisses();
+		assertTrue(verifier.verify(evm0));
+		assertTrue(verifier.verify(ed0));
+		assertEquals(misses,verifier.getMisses());
+		assertThrows(IllegalArgumentException.class,()->verifier.verify(checks.get(checks.size()-1)));
+
+		// The adapter builds the same check for a payout instruction, so batches can include it
+		EVMAdapter ea=EVMAdapter.build(null,Maps.of(Fields.CHAIN_ID,"eip155:11155111"));
+		assertEquals(evm0,ea.getInstructionCheck(evmAddress.toHexString(),"Transfer 0 to #13 on convex",evm0.signature().toHexString()));
+	}
+
 	@Test
 	public void testEVMAdapterParseAddress() {
 		EVMAdapter adapter = EVMAdapter.build(null,Maps.of(Fields.CHAIN_ID, "eip155:11155111"));
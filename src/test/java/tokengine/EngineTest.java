@@ -4,9 +4,20 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.function.Consumer;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -14,17 +25,31 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.TestInstance.Lifecycle;
 
+import convex.core.cvm.Keywords;
+import convex.core.data.ABlob;
 import convex.core.data.ACell;
 import convex.core.data.AMap;
 import convex.core.data.AString;
+import convex.core.data.Blob;
+import convex.core.data.Blobs;
+import convex.core.data.Format;
+import convex.core.data.Hash;
 import convex.core.data.Index;
 import convex.core.data.MapEntry;
 import convex.core.data.Maps;
 import convex.core.data.prim.*;
 import convex.core.data.Strings;
 import convex.core.data.prim.CVMLong;
+import convex.core.lang.RT;
 import convex.core.util.ConfigUtils;
+import convex.core.util.JSON;
 import tokengine.adapter.AAdapter;
+import tokengine.adapter.CircuitBreaker;
+import tokengine.adapter.mock.MockAdapter;
+import tokengine.exception.AdapterUnavailableException;
+import tokengine.exception.DuplicateRequestException;
+import tokengine.exception.PaymentException;
+import tokengine.exception.UnauthorisedException;
 
 /**
  * Tests for a standalone Engine
@@ -36,12 +61,40 @@ public class EngineTest {
 	
 	Engine engine=null;
 	
+	/** Standalone engines created by tests, closed with the shared engine */
+	private final ArrayList<Engine> standalone=new ArrayList<>();
+	
 	@BeforeAll public void setup() throws Exception {
 		AMap<AString,ACell> config=ConfigUtils.readConfig(EngineTest.class.getResourceAsStream("/tokengine/config-test.json"));
 		if (config==null) throw new IllegalStateException("Can't have null config for tests");
 		engine = Engine.launch(config); // default config
 	}
 	
+	/**
+	 * Creates a standalone engine with no DLT connections, closed after all tests
+	 * @param operations Operations config
+	 * @return New engine, not started
+	 */
+	private Engine standaloneEngine(AMap<AString,ACell> operations) {
+		Engine e=new Engine(Maps.of(Fields.OPERATIONS,operations));
+		standalone.add(e);
+		return e;
+	}
+	
+	/**
+	 * Creates a standalone engine with a mock network, on which the token "MOCK" is the native asset
+	 * @param operations Operations config
+	 * @param network Mock network config, with its chain ID and alias
+	 * @return New engine, not started
+	 */
+	private Engine mockEngine(AMap<AString,ACell> operations, AMap<AString,ACell> network) {
+		Engine e=standaloneEngine(operations);
+		MockAdapter mock=MockAdapter.build(e, network);
+		mock.addTokenMapping(Strings.create("MOCK"), MockAdapter.NATIVE_ASSET_ID, Maps.of(Fields.SYMBOL,"MCK"));
+		e.addAdapter(mock);
+		return e;
+	}
+	
 	@Test public void testExampleEngine() throws Exception {
 		Engine e = engine;
 		assertEquals(3,e.getAdapters().size());		
@@ -52,6 +105,54 @@ public class EngineTest {
 		assertTrue(engine.postAuditMessage(Fields.TEST,Maps.of("test-run",engine.getTimestampString())));
 	}
 	
+	@Test public void testStateFlusher() throws Exception {
+		engine.addVirtualCredit(Strings.create("flush:token"), Strings.create("flush-user"), CVMLong.create(10));
+		engine.stateFlusher.flush();
+		assertEquals(0,engine.stateFlusher.getPendingChanges());
+		assertEquals(engine.latticeCursor.get(),engine.etch.getRootData());
+	}
+	
+	@Test public void testCheckpoint() throws Exception {
+		engine.addVirtualCredit(Strings.create("checkpoint:token"), Strings.create("checkpoint-user"), CVMLong.create(10));
+		ACell root=engine.latticeCursor.get();
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		assertEquals(root.getHash(),Checkpoints.write(root, bos));
+		
+		byte[] bs=bos.toByteArray();
+		ACell restored=Checkpoints.read(new ByteArrayInputStream(bs));
+		assertEquals(root,restored);
+		
+		// damaged checkpoints must not be restored
+		bs[10]^=1; // inside root hash
+		assertThrows(IOException.class,()->Checkpoints.read(new ByteArrayInputStream(bs)));
+		assertThrows(IOException.class,()->Checkpoints.read(new ByteArrayInputStream(new byte[] {1,2,3,4,5})));
+	}
+	
+	@Test public void testReplicationDelta() throws Exception {
+		ACell root=engine.latticeCursor.get();
+		HashSet<Hash> known=new HashSet<>();
+		Blob full=Replication.encodeDelta(root, known);
+		assertEquals(root,Format.decodeMultiCell(full));
+		
+		// after a change, only new cells are sent
+		engine.addVirtualCredit(Strings.create("replica:token"), Strings.create("replica-user"), CVMLong.create(10));
+		ACell next=engine.latticeCursor.get();
+		Blob delta=Replication.encodeDelta(next, known);
+		assertTrue(delta.count()<full.count());
+		
+		// an unchanged root needs no cells
+		assertEquals(next.getEncoding(),Replication.encodeDelta(next, known));
+		
+		assertFalse(engine.getReplication().isStandby());
+		assertEquals(0,engine.getReplication().getLag());
+		
+		// standbys on other hosts must authenticate with a shared secret
+		Engine open=standaloneEngine(Maps.of(Fields.REPLICATION_PORT,0,Fields.REPLICATION_HOST,"0.0.0.0"));
+		assertThrows(IllegalStateException.class,()->open.getReplication().start());
+		byte[] challenge=new byte[Replication.CHALLENGE_LENGTH];
+		assertFalse(Arrays.equals(Replication.sign("secret".getBytes(), challenge),Replication.sign("other".getBytes(), challenge)));
+	}
+	
 	@Test public void testAdapterProperties() {
 		for (AAdapter<?> a:engine.getAdapters()) {
 			ACell opAddr=a.getOperatorAddress();
@@ -102,7 +203,390 @@ public class EngineTest {
 		assertEquals(DEPOSIT.sub(WITHDRAWAL),e.getVirtualCredit(assetKey, userKey));
 	}
 	
+	@Test public void testAdapterRoutes() {
+		AAdapter<?> convex=engine.getAdapter(Strings.create("convex:test"));
+		assertNotNull(convex);
+		assertEquals(convex,engine.getAdapter(Strings.create("convex")));
+		assertEquals(convex,engine.getAdapter(Strings.create("CONVEX")));
+		assertEquals(Strings.create("convex:test"),engine.lookupChainID(Strings.create("convex")));
+		assertNull(engine.getAdapter(Strings.create("nonexistent")));
+	}
+	
+	@Test public void testMockOnlyInTestMode() throws Exception {
+		AMap<AString,ACell> nc=Maps.of(Fields.CHAIN_ID,"mock:test",Fields.ALIAS,"mock");
+		assertThrows(Error.class,()->standaloneEngine(Maps.empty()).buildAdapter(nc));
+		Engine test=standaloneEngine(Maps.of(Fields.TEST,true));
+		assertTrue(test.buildAdapter(nc) instanceof MockAdapter);
+	}
+	
+	@Test public void testMockDeposit() throws Exception {
+		// Standalone engine with no DLT connections
+		Engine e=mockEngine(Maps.empty(), Maps.of(Fields.CHAIN_ID,"mock:test",Fields.ALIAS,"mock"));
+		MockAdapter mock=(MockAdapter)e.getAdapter(Strings.create("mock"));
+		
+		assertEquals(MockAdapter.NATIVE_ASSET_ID,mock.lookupCAIPAssetID("MCK"));
+		assertEquals(MockAdapter.NATIVE_ASSET_ID,mock.lookupCAIPAssetID("MOCK"));
+		assertEquals(MockAdapter.NATIVE_ASSET_ID,mock.lookupCAIPAssetID("SLIP44:0"));
+		assertNull(mock.lookupCAIPAssetID("mck")); // aliases and symbols are case sensitive
+		assertNull(mock.lookupCAIPAssetID("token:missing"));
+		
+		// user keys are interned, so different forms of the same address give the same instance
+		assertSame(mock.parseUserKey("alice"),mock.parseUserKey(" alice "));
+		AString tokenKey=e.getTokenKey(Strings.create("mock"), "MOCK");
+		assertEquals("mock:test/slip44:0",tokenKey.toString());
+		
+		String tx=Blobs.createRandom(32).toHexString();
+		AInteger dep=e.makeDeposit(mock, "MOCK", "alice", Maps.of(Fields.TX,tx));
+		assertEquals(CVMLong.create(100),dep);
+		assertEquals(dep,e.getVirtualCredit(tokenKey, Strings.create("alice")));
+		
+		// same transaction can't be deposited twice
+		assertThrows(PaymentException.class,()->e.makeDeposit(mock, "MOCK", "alice", Maps.of(Fields.TX,tx)));
+	}
+	
+	@Test public void testUnverifiablePayout() throws Exception {
+		Engine e=mockEngine(Maps.of(Fields.VERIFY_PAYOUTS,true), Maps.of(Fields.CHAIN_ID,"mock:verify",Fields.ALIAS,"mock"));
+		MockAdapter mock=(MockAdapter)e.getAdapter(Strings.create("mock"));
+		AMap<AString,ACell> req=Maps.of(
+			Fields.SOURCE,Maps.of(Fields.ACCOUNT,"alice",Fields.NETWORK,"mock:verify",Fields.TOKEN,"MOCK"),
+			Fields.DESTINATION,Maps.of(Fields.ACCOUNT,"bob",Fields.NETWORK,"mock:verify",Fields.TOKEN,"MOCK"),
+			Fields.QUANTITY,"100",
+			Fields.DEPOSIT,Maps.of(Fields.MSG,"anything",Fields.SIG,"0x00",Fields.NONCE,"n1",Fields.EXPIRES,Long.toString(System.currentTimeMillis()+1000)));
+		
+		// mock signatures are never checked, so payouts can't be authorised
+		assertFalse(mock.canVerifySignatures());
+		assertFalse(e.isPayoutAuthorised(mock, req));
+		
+		// nor can transfers, which are rejected before anything is recorded or deposited
+		Transfers transfers=e.getTransfers();
+		AMap<AString,ACell> transfer=req.assoc(Fields.DEPOSIT, RT.ensureMap(req.get(Fields.DEPOSIT)).assoc(Fields.TX, Strings.create(Blobs.createRandom(32).toHexString())));
+		AString key=transfers.deriveKey(transfer);
+		assertThrows(UnauthorisedException.class,()->transfers.submit(key, transfer));
+		assertNull(transfers.get(key));
+		assertNull(e.getVirtualCredit(e.getTokenKey(mock, "MOCK"), Strings.create("alice")));
+	}
+	
+	@Test public void testTransfer() throws Exception {
+		Engine e=mockEngine(Maps.of(Fields.VERIFY_PAYOUTS,false), Maps.of(Fields.CHAIN_ID,"mock:transfer",Fields.ALIAS,"mock"));
+		MockAdapter mock=(MockAdapter)e.getAdapter(Strings.create("mock"));
+		Transfers transfers=e.getTransfers();
+		AString tokenKey=e.getTokenKey(mock, "MOCK");
+		AString alice=Strings.create("alice");
+		
+		AMap<AString,ACell> req=Maps.of(
+				Fields.SOURCE,Maps.of(Fields.NETWORK,"mock",Fields.TOKEN,"MOCK",Fields.ACCOUNT,"alice"),
+				Fields.DESTINATION,Maps.of(Fields.NETWORK,"mock",Fields.TOKEN,"MOCK",Fields.ACCOUNT,"bob"),
+				Fields.DEPOSIT,Maps.of(Fields.TX,Blobs.createRandom(32).toHexString()),
+				Fields.QUANTITY,60);
+		AString key=transfers.deriveKey(req);
+		AMap<AString,ACell> rec=transfers.submit(key, req);
+		assertEquals(Transfers.CONFIRMED,rec.get(Fields.STATUS));
+		assertNotNull(rec.get(Fields.TX));
+		assertEquals(CVMLong.create(40),e.getVirtualCredit(tokenKey, alice));
+		
+		// Error results and receipt timeouts may still be followed by the payout landing
+		assertTrue(Reservations.mayHaveBeenPaid(new IllegalStateException("Unable to process payout",new Exception("Payout on convex:test failed: :TIMEOUT"))));
+		assertTrue(Reservations.mayHaveBeenPaid(new IllegalStateException("Timed out waiting for receipt")));
+		assertFalse(Reservations.mayHaveBeenPaid(new AdapterUnavailableException("Network unavailable",1000)));
+		
+		// Repeating the request returns the same result without another deposit or payout
+		assertEquals(rec,transfers.submit(key, req));
+		assertEquals(CVMLong.create(40),e.getVirtualCredit(tokenKey, alice));
+		
+		// Key can't be reused for a different request
+		assertThrows(IllegalArgumentException.class,()->transfers.submit(key, req.assoc(Fields.QUANTITY, CVMLong.create(50))));
+		
+		// Insufficient credit fails the transfer, but the deposit stays credited
+		AMap<AString,ACell> big=req.assoc(Fields.DEPOSIT, Maps.of(Fields.TX,Blobs.createRandom(32).toHexString())).assoc(Fields.QUANTITY, CVMLong.create(1000));
+		rec=transfers.submit(Strings.create("big"), big);
+		assertEquals(Transfers.FAILED,rec.get(Fields.STATUS));
+		assertNotNull(rec.get(Fields.ERROR));
+		assertEquals(CVMLong.create(140),e.getVirtualCredit(tokenKey, alice));
+		
+		// Network failure leaves the transfer incomplete, to be resumed later
+		MockAdapter down=MockAdapter.build(e, Maps.of(Fields.CHAIN_ID,"mock:flaky",Fields.ALIAS,"flaky",MockAdapter.FAILURE_RATE,1.0));
+		down.addTokenMapping(Strings.create("MOCK"), MockAdapter.NATIVE_ASSET_ID, Maps.of(Fields.SYMBOL,"MCK"));
+		e.addAdapter(down);
+		AMap<AString,ACell> flaky=big.assoc(Fields.SOURCE, Maps.of(Fields.NETWORK,"flaky",Fields.TOKEN,"MOCK",Fields.ACCOUNT,"alice"));
+		rec=transfers.submit(Strings.create("flaky"), flaky);
+		assertEquals(Transfers.STARTED,rec.get(Fields.STATUS));
+		assertEquals(CVMLong.ONE,rec.get(Fields.ATTEMPTS));
+		assertFalse(Transfers.isComplete(RT.ensureString(rec.get(Fields.STATUS))));
+	}
+	
+	@Test public void testReservations() throws Exception {
+		Engine e=standaloneEngine(Maps.empty());
+		Reservations reservations=e.getReservations();
+		AString tokenKey=Strings.create("test:reserve/slip44:1");
+		AString alice=Strings.create("ReserveTestUser");
+		e.addVirtualCredit(tokenKey, alice, CVMLong.create(100));
+		
+		// Reserved credit is unavailable until released
+		AString id=reservations.reserve(null, tokenKey, alice, CVMLong.create(30), null);
+		assertEquals(CVMLong.create(70),e.getVirtualCredit(tokenKey, alice));
+		assertEquals(Reservations.RESERVED,reservations.get(id).get(Fields.STATUS));
+		assertThrows(IllegalArgumentException.class,()->reservations.reserve(null, tokenKey, alice, CVMLong.create(71), null));
+		assertTrue(reservations.release(id, "test", false, null));
+		assertNull(reservations.get(id));
+		assertEquals(CVMLong.create(100),e.getVirtualCredit(tokenKey, alice));
+		assertFalse(reservations.release(id, "test", false, null));
+		
+		// Submitted reservations are only released if forced, and committed on success
+		AString paid=reservations.reserve(null, tokenKey, alice, CVMLong.create(50), null);
+		reservations.submit(paid, null);
+		assertFalse(reservations.release(paid, "test", false, null));
+		reservations.commit(paid, Strings.create("0x1234"), null);
+		assertNull(reservations.get(paid));
+		assertEquals(CVMLong.create(50),e.getVirtualCredit(tokenKey, alice));
+		
+		// Failures after submission release only if the payout can't have been made
+		AString rejected=reservations.reserve(null, tokenKey, alice, CVMLong.create(10), null);
+		reservations.submit(rejected, null);
+		assertTrue(reservations.onFailure(rejected, new IllegalStateException("Unable to process payout",new IllegalArgumentException("Bad address"))));
+		AString unknown=reservations.reserve(null, tokenKey, alice, CVMLong.create(10), null);
+		reservations.submit(unknown, null);
+		assertFalse(reservations.onFailure(unknown, new IllegalStateException("Unable to process payout",new IOException("Connection reset"))));
+		assertNotNull(reservations.get(unknown).get(Fields.ERROR));
+		assertEquals(CVMLong.create(40),e.getVirtualCredit(tokenKey, alice));
+		
+		// Sweeper releases expired reservations that were never submitted
+		AString stale=reservations.reserve(null, tokenKey, alice, CVMLong.create(15), null);
+		assertThrows(IllegalStateException.class,()->reservations.reserve(stale, tokenKey, alice, CVMLong.create(1), null));
+		reservations.sweep(0);
+		assertNull(reservations.get(stale));
+		assertNotNull(reservations.get(unknown));
+		assertEquals(CVMLong.create(40),e.getVirtualCredit(tokenKey, alice));
+		assertThrows(IllegalStateException.class,()->reservations.submit(stale, null));
+		
+		// A payout instruction nonce is used while its reservation is held, and can be used again once released
+		PayoutNonces.Nonce nonce=new PayoutNonces.Nonce(Strings.create("test:reserve/ReserveTestUser/n1"), System.currentTimeMillis()+60000);
+		assertThrows(IllegalArgumentException.class,()->reservations.reserve(null, tokenKey, alice, CVMLong.create(41), nonce, null));
+		assertFalse(e.payoutNonces.isUsed(nonce.key()));
+		AString signed=reservations.reserve(null, tokenKey, alice, CVMLong.create(5), nonce, null);
+		assertTrue(e.payoutNonces.isUsed(nonce.key()));
+		assertThrows(UnauthorisedException.class,()->reservations.reserve(null, tokenKey, alice, CVMLong.create(5), nonce, null));
+		assertTrue(reservations.onFailure(signed, new AdapterUnavailableException("Circuit open", 1000)));
+		assertFalse(e.payoutNonces.isUsed(nonce.key()));
+		AString committed=reservations.reserve(null, tokenKey, alice, CVMLong.create(5), nonce, null);
+		reservations.submit(committed, null);
+		reservations.commit(committed, Strings.create("0x5678"), null);
+		assertTrue(e.payoutNonces.isUsed(nonce.key()));
+		assertEquals(CVMLong.create(35),e.getVirtualCredit(tokenKey, alice));
+	}
+	
+	@Test public void testIdempotencyCache() throws Exception {
+		Engine e=mockEngine(Maps.of(
+				Fields.IDEMPOTENCY_WINDOW,60*60*1000,
+				Fields.IDEMPOTENCY_LIMIT,3),
+				Maps.of(Fields.CHAIN_ID,"mock:idem",Fields.ALIAS,"mock"));
+		MockAdapter mock=(MockAdapter)e.getAdapter(Strings.create("mock"));
+		IdempotencyCache cache=e.getIdempotencyCache();
+		
+		AMap<AString,ACell> dep=Maps.of(Fields.TX,Blobs.createRandom(32).toHexString());
+		AMap<AString,ACell> req=Maps.of(Fields.DEPOSIT,dep);
+		AString key=IdempotencyCache.key("deposit", "test-1");
+		
+		// Claimed keys block concurrent repeats
+		assertNull(cache.claim(key, req, false, null));
+		assertThrows(DuplicateRequestException.class,()->cache.claim(key, req, false, null));
+		AInteger amt=e.makeDeposit(mock, "MOCK", "alice", dep, (s,a)->cache.withResult(s, key, req, a));
+		cache.release(key);
+		
+		// Completed requests return the stored result, and the key can't be used for another request
+		AMap<AString,ACell> rec=cache.claim(key, req, false, null);
+		assertEquals(IdempotencyCache.DONE,rec.get(Fields.STATUS));
+		assertEquals(amt,rec.get(Fields.VALUE));
+		assertThrows(IllegalArgumentException.class,()->cache.claim(key, Maps.of(Fields.DEPOSIT,Maps.empty()), false, null));
+		
+		// Pending records block repeats unless abandoned, and can be cleared after a failure
+		AString payKey=IdempotencyCache.key("payout", "test-2");
+		assertNull(cache.claim(payKey, req, true, null));
+		cache.release(payKey);
+		assertEquals(IdempotencyCache.PENDING,cache.get(payKey).get(Fields.STATUS));
+		assertThrows(DuplicateRequestException.class,()->cache.claim(payKey, req, true, r->false));
+		assertNull(cache.claim(payKey, req, true, r->true));
+		cache.clearPending(payKey);
+		cache.release(payKey);
+		assertNull(cache.get(payKey));
+		
+		// Pruning keeps results within the window and limit
+		cache.start(); // reads window and limit from config
+		cache.close();
+		cache.prune();
+		assertNotNull(cache.get(key));
+		
+		// Results past the window are removed, then the oldest beyond the limit. Pending records are kept.
+		long now=System.currentTimeMillis();
+		AString expired=IdempotencyCache.key("deposit", "expired");
+		AString stale=IdempotencyCache.key("payout", "stale");
+		AString[] recent=new AString[4];
+		e.updateState(s->{
+			s=RT.assocIn(s, Maps.of(Fields.STATUS,IdempotencyCache.DONE,Fields.HASH,req.getHash(),Fields.CREATED,now-2*60*60*1000), Fields.RESULTS, expired);
+			s=RT.assocIn(s, Maps.of(Fields.STATUS,IdempotencyCache.PENDING,Fields.HASH,req.getHash(),Fields.CREATED,now-2*60*60*1000), Fields.RESULTS, stale);
+			for (int i=0; i<recent.length; i++) {
+				recent[i]=IdempotencyCache.key("deposit", "recent-"+i);
+				s=RT.assocIn(s, Maps.of(Fields.STATUS,IdempotencyCache.DONE,Fields.HASH,req.getHash(),Fields.CREATED,now-(recent.length-i)*1000), Fields.RESULTS, recent[i]);
+			}
+			return s;
+		});
+		assertEquals(7,RT.ensureMap(e.getStateSnapshot().get(Fields.RESULTS)).count());
+		cache.prune();
+		assertNull(cache.get(expired));
+		assertNull(cache.get(recent[0]));
+		assertNull(cache.get(recent[1]));
+		assertNull(cache.get(recent[2]));
+		assertNotNull(cache.get(recent[3]));
+		assertNotNull(cache.get(key));
+		assertEquals(IdempotencyCache.PENDING,cache.get(stale).get(Fields.STATUS));
+		assertEquals(3,RT.ensureMap(e.getStateSnapshot().get(Fields.RESULTS)).count());
+	}
+	
+	@Test public void testReceiptArchive() throws Exception {
+		Engine e=mockEngine(Maps.empty(), Maps.of(Fields.CHAIN_ID,"mock:archive",Fields.ALIAS,"mock"));
+		MockAdapter mock=(MockAdapter)e.getAdapter(Strings.create("mock"));
+		ReceiptArchive archive=e.getReceiptArchive();
+		AString chainID=mock.getChainID();
+		
+		String tx=Blobs.createRandom(32).toHexString();
+		e.makeDeposit(mock, "MOCK", "alice", Maps.of(Fields.TX,tx));
+		Blob txID=mock.parseTransactionID(Strings.create(tx));
+		
+		// Receipts from before archiving hold only the amount, so are treated as old
+		String oldTx=Blobs.createRandom(32).toHexString();
+		Blob oldID=mock.parseTransactionID(Strings.create(oldTx));
+		e.updateState(s->RT.assocIn(s, CVMLong.create(100), Fields.RECEIPTS, chainID, oldID));
+		
+		archive.compact();
+		assertNotNull(RT.getIn(e.getStateSnapshot(), Fields.RECEIPTS, chainID, txID));
+		assertNull(RT.getIn(e.getStateSnapshot(), Fields.RECEIPTS, chainID, oldID));
+		assertEquals(CVMLong.create(100),RT.getIn(archive.getArchive(), Strings.create("1970-01"), chainID, oldID));
+		assertTrue(archive.contains(chainID, oldID));
+		assertFalse(archive.contains(chainID, txID));
+		
+		// Each month's filter is part of the lattice, so is persisted and replicated with the archive
+		ABlob filter=RT.getIn(e.latticeCursor.get(), Keywords.APP, Fields.ARCHIVE_INDEX, Strings.create("1970-01"));
+		assertTrue(ReceiptArchive.mightContain(filter, ReceiptArchive.filterKey(chainID, oldID)));
+		assertFalse(ReceiptArchive.mightContain(filter, ReceiptArchive.filterKey(chainID, txID)));
+		
+		// Archived transactions still can't be deposited again
+		assertThrows(PaymentException.class,()->e.makeDeposit(mock, "MOCK", "alice", Maps.of(Fields.TX,oldTx)));
+		
+		// An archive from before filters were added is checked directly, and filtered once on start
+		e.latticeCursor.path(Keywords.APP, Fields.ARCHIVE_INDEX).set(null);
+		assertTrue(archive.contains(chainID, oldID));
+		archive.start();
+		archive.close();
+		assertEquals(filter,RT.getIn(e.latticeCursor.get(), Keywords.APP, Fields.ARCHIVE_INDEX, Strings.create("1970-01")));
+		assertTrue(archive.contains(chainID, oldID));
+		
+		// Filters grow as receipts are added to a month, and never lose a receipt
+		ArrayList<Blob> ids=new ArrayList<>();
+		for (int i=0; i<100; i++) {
+			Blob id=Blobs.createRandom(32).toFlatBlob();
+			ids.add(id);
+			e.updateState(s->RT.assocIn(s, CVMLong.create(1), Fields.RECEIPTS, chainID, id));
+			archive.compact();
+		}
+		for (Blob id: ids) {
+			assertTrue(archive.contains(chainID, id));
+		}
+		assertFalse(archive.contains(chainID, txID));
+		ABlob grown=RT.getIn(e.latticeCursor.get(), Keywords.APP, Fields.ARCHIVE_INDEX, Strings.create("1970-01"));
+		assertTrue(grown.count()>filter.count());
+	}
+	
+	@Test public void testCircuitBreaker() throws Exception {
+		Engine e=mockEngine(Maps.empty(), Maps.of(Fields.CHAIN_ID,"mock:down",Fields.ALIAS,"down",
+				MockAdapter.FAILURE_RATE,1.0,Fields.BREAKER_THRESHOLD,3,Fields.BREAKER_COOLDOWN,60000));
+		MockAdapter mock=(MockAdapter)e.getAdapter(Strings.create("down"));
+		
+		// Invalid input doesn't count against the network
+		for (int i=0; i<5; i++) {
+			assertThrows(IllegalArgumentException.class,()->e.callAdapter(mock, "getBalance", ()->mock.getBalance("slip44:0", " ")));
+		}
+		assertEquals(CircuitBreaker.State.CLOSED,mock.getBreaker().getState());
+		
+		// Network failures open the breaker, after which calls fail fast
+		for (int i=0; i<3; i++) {
+			assertThrows(IOException.class,()->e.callAdapter(mock, "getBalance", ()->mock.getBalance("slip44:0", "alice")));
+		}
+		assertEquals(CircuitBreaker.State.OPEN,mock.getBreaker().getState());
+		AdapterUnavailableException ex=assertThrows(AdapterUnavailableException.class,()->e.callAdapter(mock, "getBalance", ()->mock.getBalance("slip44:0", "alice")));
+		assertTrue(ex.getRetryAfterMillis()>0);
+		assertEquals(0,mock.getBulkhead().getInFlight());
+		
+		AMap<AString,ACell> health=RT.getIn(e.getStatus(), Fields.HEALTH, 0);
+		assertEquals("open",RT.getIn(health, Fields.CIRCUIT).toString());
+	}
+	
+	@Test public void testLedgerExport() throws Exception {
+		AString assetKey=Strings.create("test:export/slip44:1");
+		AString userKey=Strings.create("ExportTestUser");
+		engine.addVirtualCredit(assetKey,userKey,CVMLong.create(1234));
+		
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		long n=new LedgerExport(engine.getStateSnapshot()).withToken(assetKey).writeNDJSON(bos);
+		assertEquals(1,n);
+		String[] lines=bos.toString(StandardCharsets.UTF_8).split("\n");
+		assertEquals(1,lines.length);
+		ACell rec=JSON.parse(lines[0]);
+		assertEquals(userKey,RT.getIn(rec, Fields.USER));
+		assertEquals(CVMLong.create(1234),RT.getIn(rec, Fields.BALANCE));
+		
+		// Full export includes at least this entry, and user prefix filters out everything else
+		long all=new LedgerExport(engine.getStateSnapshot()).writeNDJSON(OutputStream.nullOutputStream());
+		assertTrue(all>=1);
+		assertEquals(1,new LedgerExport(engine.getStateSnapshot()).withUserPrefix("ExportTest").writeCVXRaw(OutputStream.nullOutputStream()));
+	}
+	
+	@Test public void testEvents() {
+		AString assetKey=Strings.create("test:events/slip44:1");
+		AString userKey=Strings.create("EventTestUser");
+		EngineEvents events=engine.getEvents();
+		
+		ArrayList<EngineEvents.Event> received=new ArrayList<>();
+		Consumer<EngineEvents.Event> listener=received::add;
+		events.addListener(listener);
+		long start=events.getLatestSeq();
+		try {
+			engine.addVirtualCredit(assetKey,userKey,CVMLong.create(100));
+			engine.subtractVirtualCredit(assetKey,userKey,CVMLong.create(40));
+		} finally {
+			events.removeListener(listener);
+		}
+		
+		assertEquals(2,received.size());
+		assertEquals(Strings.create("CREDIT"),received.get(0).data().get(Fields.TYPE));
+		assertEquals(Strings.create("DEBIT"),received.get(1).data().get(Fields.TYPE));
+		assertEquals(Strings.create("60"),received.get(1).data().get(Fields.NEW_BALANCE));
+		assertTrue(received.get(0).seq()<received.get(1).seq());
+		
+		// Resume from the first event should replay only the second
+		ArrayList<EngineEvents.Event> replayed=new ArrayList<>();
+		assertTrue(events.replay(received.get(0).seq(), replayed::add));
+		assertTrue(replayed.contains(received.get(1)));
+		assertFalse(replayed.contains(received.get(0)));
+		
+		// A sequence number from before startup cannot be resumed
+		assertFalse(events.replay(start-1000000000L, e->{}));
+		
+		// Replay handlers run without the lock, so a slow subscriber doesn't block publishing
+		EngineEvents local=new EngineEvents(10);
+		EngineEvents.Event first=local.publish(Maps.of(Fields.TYPE,"CREDIT"));
+		local.publish(Maps.of(Fields.TYPE,"DEBIT"));
+		assertTrue(local.replay(first.seq()-1, e->{
+			Thread t=Thread.ofVirtual().start(()->local.publish(Maps.of(Fields.TYPE,"CREDIT")));
+			try {
+				assertTrue(t.join(Duration.ofSeconds(5)));
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+		}));
+		assertEquals(first.seq()+3,local.getLatestSeq());
+	}
+	
 	@AfterAll public void shutdown() {
+		for (Engine e: standalone) e.close();
 		engine.close();
 		assertFalse(engine.postAuditMessage(Fields.TEST,Maps.of("test-run",engine.getTimestampString())));
 	}
@@ -0,0 +1,156 @@
+package tokengine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Maps;
+import convex.core.data.prim.CVMDouble;
+import convex.core.lang.RT;
+import convex.core.util.JSON;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import tokengine.rpc.RPCEndpoint;
+import tokengine.rpc.RPCPool;
+import tokengine.rpc.RPCTransport;
+
+public class RPCTest {
+
+	@Test public void testPoolConfig() {
+		AMap<AString,ACell> nc=RT.ensureMap(JSON.parse("{\"url\":[\"http://a\",\"http://b\"],\"hedge\":true}"));
+		assertEquals(List.of("http://a","http://b"),RPCPool.getURLs(nc));
+		RPCPool<String> pool=RPCPool.fromConfig(nc, url->url);
+		assertEquals(2,pool.getUpstreams().size());
+		
+		// Single URL as in existing configs
+		AMap<AString,ACell> single=RT.ensureMap(JSON.parse("{\"url\":\"http://a\"}"));
+		assertEquals(List.of("http://a"),RPCPool.getURLs(single));
+	}
+	
+	@Test public void testFailover() throws IOException {
+		AMap<AString,ACell> nc=RT.ensureMap(JSON.parse("{\"url\":[\"bad\",\"good\"]}"));
+		RPCPool<String> pool=RPCPool.fromConfig(nc, url->url);
+		AtomicInteger badCalls=new AtomicInteger();
+		RPCPool.Call<String,String> call=c->{
+			if (c.equals("bad")) {
+				badCalls.incrementAndGet();
+				throw new IOException("Unreachable");
+			}
+			return c;
+		};
+		for (int i=0; i<10; i++) {
+			assertEquals("good",pool.call(call));
+		}
+		// Failing upstream is demoted after its first failure
+		assertEquals(1,badCalls.get());
+		assertEquals("good",pool.primary());
+		
+		// Errors from a responsive upstream are not retried elsewhere
+		AtomicInteger calls=new AtomicInteger();
+		assertThrows(IllegalArgumentException.class,()->pool.call(c->{
+			calls.incrementAndGet();
+			throw new IllegalArgumentException("Unknown transaction");
+		}));
+		assertEquals(1,calls.get());
+		
+		// All upstreams failing gives an IOException
+		assertThrows(IOException.class,()->pool.call(c->{throw new IOException("Down");}));
+	}
+	
+	@Test public void testRetries() throws Exception {
+		// Server that is always overloaded
+		AtomicInteger hits=new AtomicInteger();
+		HttpServer server=HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", ex->{
+			hits.incrementAndGet();
+			ex.getRequestBody().readAllBytes();
+			ex.sendResponseHeaders(503, -1);
+			ex.close();
+		});
+		server.start();
+		try {
+			URI uri=URI.create("http://localhost:"+server.getAddress().getPort()+"/");
+			RPCEndpoint endpoint=RPCEndpoint.fromConfig("test", Maps.of(Fields.MAX_RETRIES,1));
+			RPCTransport transport=RPCTransport.shared();
+			
+			// A POST may have been acted on even if rejected, so is only retried with an idempotency key
+			HttpRequest post=HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofString("{}")).build();
+			assertEquals(503,transport.send(endpoint, post, HttpResponse.BodyHandlers.discarding()).get().statusCode());
+			assertEquals(1,hits.getAndSet(0));
+			HttpRequest keyed=HttpRequest.newBuilder(uri).header("Idempotency-Key", "k1").POST(HttpRequest.BodyPublishers.ofString("{}")).build();
+			assertEquals(503,transport.send(endpoint, keyed, HttpResponse.BodyHandlers.discarding()).get().statusCode());
+			assertEquals(2,hits.getAndSet(0));
+			
+			// JSON-RPC reads are retried, transaction submissions are not
+			OkHttpClient ok=transport.getOkHttpClient(endpoint);
+			MediaType json=MediaType.get("application/json");
+			try (Response r=ok.newCall(new Request.Builder().url(uri.toString()).post(RequestBody.create("{\"method\":\"eth_call\"}", json)).build()).execute()) {
+				assertEquals(503,r.code());
+			}
+			assertEquals(2,hits.getAndSet(0));
+			try (Response r=ok.newCall(new Request.Builder().url(uri.toString()).post(RequestBody.create("{\"method\":\"eth_sendRawTransaction\"}", json)).build()).execute()) {
+				assertEquals(503,r.code());
+			}
+			assertEquals(1,hits.getAndSet(0));
+		} finally {
+			server.stop(0);
+		}
+	}
+	
+	@Test public void testHedge() throws IOException, InterruptedException {
+		AMap<AString,ACell> nc=RT.ensureMap(JSON.parse("{\"url\":[\"a\",\"b\"],\"hedge\":true}"));
+		RPCPool<String> pool=RPCPool.fromConfig(nc, url->url);
+		
+		// Warm up latency stats so that a hedge delay is established
+		for (int i=0; i<100; i++) {
+			assertEquals("ok",pool.hedge(c->"ok"));
+		}
+		long delay=pool.getHedgeDelay();
+		assertTrue(delay>0);
+		
+		// Whichever upstream is primary now stalls, so the hedged request should answer
+		String slow=pool.primary();
+		long start=System.nanoTime();
+		CountDownLatch interrupted=new CountDownLatch(1);
+		String result=pool.hedge(c->{
+			if (c.equals(slow)) try {
+				Thread.sleep(2000);
+			} catch (InterruptedException e) {
+				// HTTP clients report interruption as an IO error
+				interrupted.countDown();
+				throw new IOException("Interrupted",e);
+			}
+			return c;
+		});
+		assertTrue(!result.equals(slow));
+		assertTrue(System.nanoTime()-start<1_000_000_000L);
+		
+		// Cancelling the losing side of the hedge doesn't count against that upstream
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		for (ACell status: pool.getStatus()) {
+			if (slow.equals(RT.getIn(status, Fields.URL).toString())) assertEquals(CVMDouble.create(0.0),RT.getIn(status, "errorRate"));
+		}
+	}
+}
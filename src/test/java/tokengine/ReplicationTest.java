@@ -0,0 +1,126 @@
+package tokengine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import convex.api.ContentTypes;
+import convex.core.data.ACell;
+import convex.core.data.AString;
+import convex.core.data.Maps;
+import convex.core.data.Strings;
+import convex.core.data.prim.CVMLong;
+import convex.etch.EtchStore;
+import tokengine.exception.StandbyException;
+
+/**
+ * Replication between a primary and standby TokEngine over loopback
+ */
+public class ReplicationTest {
+
+	public static int API_PORT=8083;
+
+	private static final AString TOKEN=Strings.create("replica:token");
+	private static final AString USER=Strings.create("replica-user");
+
+	@Test public void testStandbyRoundTrip() throws Exception {
+		int port=freePort();
+		int standbyPort=freePort();
+		Engine primary=new Engine(Maps.of(Fields.OPERATIONS,Maps.of(
+				Fields.REPLICATION_PORT,port,
+				Fields.REPLICATION_INTERVAL,10,
+				Fields.REPLICATION_SECRET,"test-secret")));
+		primary.addVirtualCredit(TOKEN, USER, CVMLong.create(10));
+		primary.getReplication().start();
+
+		Engine standby=createStandby(port, standbyPort, "test-secret");
+		Engine intruder=createStandby(port, null, "wrong-secret");
+		APIServer api=null;
+		try {
+			// the standby receives the whole state, then each change
+			awaitSync(primary, standby);
+			assertEquals(CVMLong.create(10),standby.getVirtualCredit(TOKEN, USER));
+			primary.addVirtualCredit(TOKEN, USER, CVMLong.create(5));
+			awaitSync(primary, standby);
+			assertEquals(CVMLong.create(15),standby.getVirtualCredit(TOKEN, USER));
+			assertTrue(standby.getReplication().getLag()>=0);
+
+			// a standby without the shared secret is refused
+			assertEquals(1,primary.getReplication().getStandbyCount());
+			assertEquals(-1,intruder.getReplication().getLag());
+
+			// the standby reconnects after the primary restarts, and catches up
+			primary.getReplication().close();
+			primary.addVirtualCredit(TOKEN, USER, CVMLong.create(5));
+			primary.getReplication().start();
+			awaitSync(primary, standby);
+			assertEquals(CVMLong.create(20),standby.getVirtualCredit(TOKEN, USER));
+
+			// state changes are rejected on the standby, which the API reports as 503
+			assertThrows(StandbyException.class,()->standby.addVirtualCredit(TOKEN, USER, CVMLong.create(1)));
+			api=APIServer.create(standby);
+			api.start(API_PORT);
+			String deposit="{\"source\":{\"account\":\"#11\",\"network\":\"convex\",\"token\":\"CVM\"},\"deposit\":{\"tx\":\"0x1234\"}}";
+			for (String endpoint: new String[] {"payout","payouts","deposit","transfer"}) {
+				HttpRequest req=HttpRequest.newBuilder()
+					.uri(new URI("http://localhost:"+API_PORT+"/api/v1/"+endpoint))
+					.header("Content-Type", ContentTypes.JSON)
+					.header("Idempotency-Key", "standby-test")
+					.POST(HttpRequest.BodyPublishers.ofString(deposit))
+					.build();
+				HttpResponse<String> resp=HttpClient.newHttpClient().sendAsync(req, HttpResponse.BodyHandlers.ofString()).get(10000,TimeUnit.MILLISECONDS);
+				assertEquals(503,resp.statusCode(),()->endpoint+" on standby returned "+resp.statusCode()+": "+resp.body());
+			}
+
+			// once the primary is stopped, the standby can be promoted and accepts changes
+			primary.getReplication().close();
+			assertTrue(Replication.requestPromotion(standbyPort));
+			assertFalse(standby.getReplication().isStandby());
+			assertFalse(standby.promote());
+			standby.addVirtualCredit(TOKEN, USER, CVMLong.create(1));
+			assertEquals(CVMLong.create(21),standby.getVirtualCredit(TOKEN, USER));
+		} finally {
+			if (api!=null) api.close();
+			intruder.close();
+			standby.close();
+			primary.close();
+		}
+	}
+
+	private static Engine createStandby(int primaryPort, Integer port, String secret) throws IOException {
+		Engine standby=new Engine(Maps.of(Fields.OPERATIONS,Maps.of(
+				Fields.REPLICA_OF,"localhost:"+primaryPort,
+				Fields.REPLICATION_PORT,port,
+				Fields.REPLICATION_INTERVAL,10,
+				Fields.REPLICATION_SECRET,secret)));
+		standby.etch=EtchStore.createTemp(); // later deltas refer to cells stored by earlier ones
+		standby.getReplication().start();
+		return standby;
+	}
+
+	private static void awaitSync(Engine primary, Engine standby) throws InterruptedException {
+		ACell root=primary.latticeCursor.get();
+		for (int i=0; i<1000; i++) {
+			if (root.equals(standby.latticeCursor.get())) return;
+			Thread.sleep(10);
+		}
+		throw new AssertionError("Standby did not catch up with primary");
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket s=new ServerSocket(0)) {
+			return s.getLocalPort();
+		}
+	}
+}
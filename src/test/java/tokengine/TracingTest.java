@@ -0,0 +1,84 @@
+package tokengine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import convex.core.data.ACell;
+import convex.core.data.AMap;
+import convex.core.data.AString;
+import convex.core.data.Strings;
+import convex.core.lang.RT;
+import convex.core.util.JSON;
+
+public class TracingTest {
+
+	private static final AString NAME=Strings.create("name");
+	private static final AString SPAN=Strings.create("span");
+	private static final AString TRACE=Strings.create("trace");
+	private static final AString PARENT=Strings.create("parent");
+
+	@Test public void testFileExporter() throws Exception {
+		Path file=Files.createTempFile("trace", ".json");
+		Tracing.FileExporter exporter=new Tracing.FileExporter(file);
+		Tracing.setExporter(exporter);
+		int n=100;
+		try {
+			try (Tracing.Span outer=Tracing.start("outer")) {
+				ExecutorService ex=Executors.newFixedThreadPool(4);
+				try {
+					Future<?>[] fs=new Future<?>[n];
+					for (int i=0; i<n; i++) {
+						fs[i]=ex.submit(Tracing.wrap(()->Tracing.start("inner").tag("thread", Thread.currentThread().getName()).close()));
+					}
+					for (Future<?> f: fs) f.get();
+				} finally {
+					ex.shutdown();
+				}
+			}
+		} finally {
+			Tracing.setExporter(null); // closes the exporter, writing any queued spans
+		}
+		assertNull(Tracing.getExporter());
+		assertSame(Tracing.Span.NOOP,Tracing.start("disabled"));
+
+		List<String> lines=Files.readAllLines(file);
+		assertEquals(n+1,lines.size());
+		Map<String,AMap<AString,ACell>> byName=new HashMap<>();
+		int inner=0;
+		for (String line: lines) {
+			AMap<AString,ACell> span=RT.ensureMap(JSON.parse(line));
+			assertNotNull(span);
+			String name=span.get(NAME).toString();
+			if (name.equals("inner")) inner++;
+			byName.put(name, span);
+		}
+		assertEquals(n,inner);
+
+		// spans on other threads belong to the trace of the span that submitted them
+		AMap<AString,ACell> outer=byName.get("outer");
+		AMap<AString,ACell> child=byName.get("inner");
+		assertEquals(outer.get(SPAN),child.get(PARENT));
+		assertEquals(outer.get(TRACE),child.get(TRACE));
+		assertNull(outer.get(PARENT));
+		assertEquals(0,exporter.getDropped());
+
+		// spans exported after close are ignored
+		exporter.export(new Tracing.Span("late",Strings.create("t"),null,false));
+		exporter.close();
+		assertEquals(n+1,Files.readAllLines(file).size());
+		Files.deleteIfExists(file);
+	}
+}
@@ -0,0 +1,128 @@
+package tokengine.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import convex.core.data.ACell;
+import convex.core.data.AString;
+import convex.core.data.Maps;
+import convex.core.data.Strings;
+import tokengine.Engine;
+import tokengine.Fields;
+import tokengine.adapter.AAdapter;
+import tokengine.adapter.convex.CVMAdapter;
+import tokengine.adapter.evm.EVMAdapter;
+import tokengine.adapter.mock.MockAdapter;
+import tokengine.adapter.tezos.TezosAdapter;
+
+/**
+ * Benchmarks for adapter token lookup and address parsing. Adapters are built but not started,
+ * so no DLT connections are needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdapterBenchmark {
+
+	static final String CVM_ADDRESS="#12";
+	static final String EVM_ADDRESS="0xa72018ba06475aCa284ED98AB0cE0E07878521a3";
+	static final String TEZOS_ADDRESS="tz1MJx9vhaNRSimcuXPK2rW4fLccQnDAnVKJ";
+	static final String EVM_CAIP10="eip155:11155111:0xA72018BA06475ACA284ED98AB0CE0E07878521A3";
+	static final String CVM_PLAIN="12345";
+
+	static final int TOKEN_COUNT=20;
+
+	AAdapter<?> cvm;
+	AAdapter<?> evm;
+	AAdapter<?> tezos;
+	MockAdapter mock;
+
+	String lastAlias;
+	String lastSymbol;
+	String lastAssetID;
+
+	@Setup
+	public void setup() throws Exception {
+		Engine engine=new Engine(Maps.empty());
+		cvm=CVMAdapter.build(engine, Maps.of(Fields.CHAIN_ID,"convex:test",Fields.OPERATOR_ADDRESS,CVM_ADDRESS));
+		evm=EVMAdapter.build(engine, Maps.of(Fields.CHAIN_ID,"eip155:11155111",Fields.OPERATOR_ADDRESS,EVM_ADDRESS));
+		tezos=TezosAdapter.build(engine, Maps.of(Fields.CHAIN_ID,"tezos:ghostnet",Fields.OPERATOR_ADDRESS,TEZOS_ADDRESS));
+
+		// Mock adapter with a realistic number of token mappings, lookups target the last one (worst case for a scan)
+		mock=MockAdapter.build(engine, Maps.of(Fields.CHAIN_ID,"mock:bench"));
+		for (int i=0; i<TOKEN_COUNT; i++) {
+			lastAlias="TOKEN"+i;
+			lastSymbol="TK"+i;
+			lastAssetID="token:t"+i;
+			mock.addTokenMapping(Strings.create(lastAlias), Strings.create(lastAssetID), Maps.of(Fields.SYMBOL,lastSymbol));
+		}
+	}
+
+	@Benchmark
+	public AString lookupByAlias() {
+		return mock.lookupCAIPAssetID(lastAlias);
+	}
+
+	@Benchmark
+	public AString lookupBySymbol() {
+		return mock.lookupCAIPAssetID(lastSymbol);
+	}
+
+	@Benchmark
+	public AString lookupByAssetID() {
+		return mock.lookupCAIPAssetID(lastAssetID);
+	}
+
+	@Benchmark
+	public ACell parseAddressCVM() {
+		return cvm.parseAddress(CVM_ADDRESS);
+	}
+
+	@Benchmark
+	public AString parseUserKeyCVM() {
+		return cvm.parseUserKey(CVM_ADDRESS);
+	}
+
+	@Benchmark
+	public ACell parseAddressEVM() {
+		return evm.parseAddress(EVM_ADDRESS);
+	}
+
+	@Benchmark
+	public AString parseUserKeyEVM() {
+		return evm.parseUserKey(EVM_ADDRESS);
+	}
+
+	@Benchmark
+	public ACell parseAddressCVMPlain() {
+		return cvm.parseAddress(CVM_PLAIN);
+	}
+
+	@Benchmark
+	public ACell parseAddressEVMCAIP10() {
+		return evm.parseAddress(EVM_CAIP10);
+	}
+
+	@Benchmark
+	public ACell parseAddressTezos() {
+		return tezos.parseAddress(TEZOS_ADDRESS);
+	}
+
+	@Benchmark
+	public AString parseUserKeyTezos() {
+		return tezos.parseUserKey(TEZOS_ADDRESS);
+	}
+}
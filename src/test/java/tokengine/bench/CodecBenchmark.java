@@ -0,0 +1,79 @@
+package tokengine.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import convex.api.ContentTypes;
+import convex.core.data.ACell;
+import convex.core.data.Format;
+import convex.core.util.JSON;
+import tokengine.api.ATokengineAPI;
+
+/**
+ * Benchmarks for API request decoding and JSON result encoding. Request decoding uses 
+ * ATokengineAPI.decodeBody, which is what RestAPI.parseRequest runs for every POST body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	static final String TRANSFER_REQUEST="""
+			{
+			  "source": {"account": "0xa72018ba06475aCa284ED98AB0cE0E07878521a3", "network": "eip155:11155111", "token": "erc20:0x1c7D4B196Cb0C7B01d743Fbc6116a902379C7238"},
+			  "destination": {"account": "#12", "network": "convex", "token": "WCVM"},
+			  "deposit": {"tx": "0x9d3a3663d32b9ff5cf2d393e433b7b31489d13b398133a35c4bb6e2085bd8e83", "msg": "Transfer 1000 to #12 on convex", "sig": "0xdd48188b1647010d908e9fed4b6726cebd0d65e20f412b8b9ff4868386f05b0a28a9c0e35885c95e2322c2c670743edd07b0e1450ae65c3f6708b61bb3e582371c"},
+			  "quantity": "1000"
+			}
+			""";
+
+	byte[] jsonBody;
+	byte[] rawBody;
+	ACell request;
+
+	@Setup
+	public void setup() throws Exception {
+		jsonBody=TRANSFER_REQUEST.getBytes(StandardCharsets.UTF_8);
+		request=JSON.parse(TRANSFER_REQUEST);
+		rawBody=Format.encodeMultiCell(request, true).getBytes();
+	}
+
+	@Benchmark
+	public ACell decodeJSON() throws Exception {
+		return ATokengineAPI.decodeBody(ContentTypes.JSON, jsonBody);
+	}
+
+	@Benchmark
+	public ACell decodeJSON5() throws Exception {
+		return ATokengineAPI.decodeBody(ATokengineAPI.JSON5, jsonBody);
+	}
+
+	@Benchmark
+	public ACell decodeCVXRaw() throws Exception {
+		return ATokengineAPI.decodeBody(ContentTypes.CVX_RAW, rawBody);
+	}
+
+	@Benchmark
+	public String encodeJSON() {
+		return ATokengineAPI.encodeJSON(request, false);
+	}
+
+	@Benchmark
+	public String encodeJSONPretty() {
+		return ATokengineAPI.encodeJSON(request, true);
+	}
+}
@@ -0,0 +1,89 @@
+package tokengine.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import convex.core.data.AString;
+import convex.core.data.Blob;
+import convex.core.data.Maps;
+import convex.core.data.Strings;
+import convex.core.data.prim.AInteger;
+import convex.core.data.prim.CVMLong;
+import tokengine.Engine;
+import tokengine.Fields;
+import tokengine.adapter.mock.MockAdapter;
+
+/**
+ * Benchmarks for Engine state transitions, using a standalone Engine with a mock adapter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+	static final AString TOKEN=Strings.create("MOCK");
+	static final AInteger ONE=CVMLong.ONE;
+
+	Engine engine;
+	MockAdapter adapter;
+	AString tokenKey;
+	AString userKey=Strings.create("bench-user");
+	AtomicLong txCounter=new AtomicLong();
+
+	@Setup
+	public void setup() throws Exception {
+		engine=new Engine(Maps.empty());
+		adapter=MockAdapter.build(engine, Maps.of(Fields.CHAIN_ID,"mock:bench",Fields.ALIAS,"bench"));
+		adapter.addTokenMapping(TOKEN, MockAdapter.NATIVE_ASSET_ID, Maps.of(Fields.SYMBOL,"MCK"));
+		engine.addAdapter(adapter);
+		tokenKey=engine.getTokenKey(adapter, TOKEN.toString());
+
+		// Large starting balance so concurrent debits never run out
+		engine.addVirtualCredit(tokenKey, userKey, CVMLong.create(1000000000000000L));
+	}
+
+	/**
+	 * Creates a unique 32-byte transaction ID, since each deposit tx can only be used once
+	 */
+	private AString nextTx() {
+		byte[] bs=new byte[32];
+		ByteBuffer.wrap(bs).putLong(24, txCounter.incrementAndGet());
+		return Strings.create(Blob.wrap(bs).toHexString());
+	}
+
+	@Benchmark
+	public AInteger makeDeposit() throws Exception {
+		return engine.makeDeposit(adapter, TOKEN.toString(), "depositor", Maps.of(Fields.TX,nextTx()));
+	}
+
+	@Benchmark
+	@Group("credit")
+	@GroupThreads(2)
+	public AInteger addVirtualCredit() {
+		return engine.addVirtualCredit(tokenKey, userKey, ONE);
+	}
+
+	@Benchmark
+	@Group("credit")
+	@GroupThreads(2)
+	public AInteger subtractVirtualCredit() {
+		return engine.subtractVirtualCredit(tokenKey, userKey, ONE);
+	}
+}
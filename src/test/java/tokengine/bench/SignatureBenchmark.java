@@ -0,0 +1,106 @@
+package tokengine.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.crypto.Keys;
+import org.web3j.crypto.Sign;
+
+import convex.core.crypto.AKeyPair;
+import convex.core.crypto.Hashing;
+import convex.core.crypto.InsecureRandom;
+import convex.core.data.Blob;
+import tokengine.adapter.SignatureVerifier;
+import tokengine.adapter.SignatureVerifier.Check;
+import tokengine.adapter.SignatureVerifier.Scheme;
+
+/**
+ * Benchmarks for payout signature verification: single uncached and cached checks for each scheme,
+ * and a mixed batch checked sequentially and across the fork-join pool
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+	static final int N=256;
+
+	/** Cache of one entry, so checks cycling over distinct signatures always verify */
+	SignatureVerifier uncached=new SignatureVerifier(1);
+	SignatureVerifier cached=new SignatureVerifier(SignatureVerifier.DEFAULT_CACHE_SIZE);
+
+	Check[] ed25519=new Check[N];
+	Check[] secp256k1=new Check[N];
+	List<Check> batch=new ArrayList<>();
+	int i=0;
+
+	@Setup
+	public void setup() throws Exception {
+		ECKeyPair ek=Keys.createEcKeyPair(new InsecureRandom(57865));
+		Blob evmAddress=Blob.parse(Credentials.create(ek).getAddress());
+		AKeyPair kp=AKeyPair.createSeeded(1234);
+		Blob edKey=Blob.wrap(kp.getAccountKey().getBytes());
+
+		for (int j=0; j<N; j++) {
+			Blob msg=Blob.wrap(("Transfer "+j+" to #13 on convex").getBytes());
+			Sign.SignatureData sd=Sign.signPrefixedMessage(Hashing.keccak256(msg.getBytes()).getBytes(), ek);
+			byte[] bs=new byte[65];
+			System.arraycopy(sd.getR(), 0, bs, 0, 32);
+			System.arraycopy(sd.getS(), 0, bs, 32, 32);
+			bs[64]=sd.getV()[0];
+			secp256k1[j]=new Check(Scheme.SECP256K1,msg,Blob.wrap(bs),evmAddress);
+			ed25519[j]=new Check(Scheme.ED25519,msg,Blob.wrap(kp.sign(msg).getBytes()),edKey);
+			batch.add(secp256k1[j]);
+			batch.add(ed25519[j]);
+		}
+		cached.verifyAll(batch);
+	}
+
+	@Benchmark
+	public boolean ed25519Uncached() {
+		return uncached.verify(ed25519[(i++)%N]);
+	}
+
+	@Benchmark
+	public boolean secp256k1Uncached() {
+		return uncached.verify(secp256k1[(i++)%N]);
+	}
+
+	@Benchmark
+	public boolean secp256k1Cached() {
+		return cached.verify(secp256k1[(i++)%N]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(2*N)
+	public boolean batchSequential() {
+		boolean ok=true;
+		for (Check c: batch) {
+			ok&=uncached.verify(c);
+		}
+		return ok;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(2*N)
+	public boolean[] batchParallel() {
+		return uncached.verifyAll(batch);
+	}
+}